@@ -0,0 +1,329 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Decorates a {@code CouchFunctions} with an {@link AdaptiveLimit} on the number of requests in flight.
+ * {@code 429 Too Many Requests}, {@code 503 Service Unavailable} and read timeouts count as signs of overload.
+ * {@link #async(AsyncCouchFunctions)} puts the non-blocking requests under the same limit.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class AdaptiveConcurrencyCouchFunctions implements CouchFunctions {
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNAVAILABLE = 503;
+
+    private final CouchFunctions delegate;
+    private final AdaptiveLimit limit;
+
+    public AdaptiveConcurrencyCouchFunctions(CouchFunctions delegate, AdaptiveLimit limit) {
+        super();
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.limit = Preconditions.checkNotNull(limit);
+    }
+
+    /**
+     * @return {@code delegate}, with its requests counted against the same limit as those of these
+     *         {@code CouchFunctions}.
+     */
+    public AsyncCouchFunctions async(AsyncCouchFunctions delegate) {
+        return new Async(Preconditions.checkNotNull(delegate));
+    }
+
+    @Override
+    public boolean isExistentDatabase(final String databaseName) throws IOException {
+        return send("isExistentDatabase", 1, new CouchRequest<Boolean>() {
+            @Override
+            public Boolean send() throws IOException {
+                return delegate.isExistentDatabase(databaseName);
+            }
+        });
+    }
+
+    @Override
+    public Set<String> findExistingDatabases(final Collection<String> databaseNames) throws IOException {
+        return send("findExistingDatabases", databaseNames.size(), new CouchRequest<Set<String>>() {
+            @Override
+            public Set<String> send() throws IOException {
+                return delegate.findExistingDatabases(databaseNames);
+            }
+        });
+    }
+
+    @Override
+    public void createDatabase(final String databaseName) throws IOException {
+        send("createDatabase", 1, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.createDatabase(databaseName);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Optional<RemoteDocument> download(final String databaseName, final String id) throws IOException {
+        return send("download", 1, new CouchRequest<Optional<RemoteDocument>>() {
+            @Override
+            public Optional<RemoteDocument> send() throws IOException {
+                return delegate.download(databaseName, id);
+            }
+        });
+    }
+
+    @Override
+    public Optional<String> headRevision(final String databaseName, final String id) throws IOException {
+        return send("headRevision", 1, new CouchRequest<Optional<String>>() {
+            @Override
+            public Optional<String> send() throws IOException {
+                return delegate.headRevision(databaseName, id);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, String> findRevisions(final String databaseName, final Collection<String> ids) throws IOException {
+        return send("findRevisions", ids.size(), new CouchRequest<Map<String, String>>() {
+            @Override
+            public Map<String, String> send() throws IOException {
+                return delegate.findRevisions(databaseName, ids);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, RemoteDocument> findDocuments(final String databaseName, final Collection<String> ids) throws IOException {
+        return send("findDocuments", ids.size(), new CouchRequest<Map<String, RemoteDocument>>() {
+            @Override
+            public Map<String, RemoteDocument> send() throws IOException {
+                return delegate.findDocuments(databaseName, ids);
+            }
+        });
+    }
+
+    @Override
+    public String upload(final String databaseName, final LocalDocument localDocument) throws IOException {
+        return send("upload", 1, new CouchRequest<String>() {
+            @Override
+            public String send() throws IOException {
+                return delegate.upload(databaseName, localDocument);
+            }
+        });
+    }
+
+    @Override
+    public List<BulkResult> bulkUpload(final String databaseName, final List<LocalDocument> localDocuments) throws IOException {
+        return send("bulkUpload", localDocuments.size(), new CouchRequest<List<BulkResult>>() {
+            @Override
+            public List<BulkResult> send() throws IOException {
+                return delegate.bulkUpload(databaseName, localDocuments);
+            }
+        });
+    }
+
+    @Override
+    public List<BulkResult> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) throws IOException {
+        return send("bulkReplace", localDocuments.size(), new CouchRequest<List<BulkResult>>() {
+            @Override
+            public List<BulkResult> send() throws IOException {
+                return delegate.bulkReplace(databaseName, localDocuments);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String databaseName, final String id, final String rev) throws IOException {
+        send("delete", 1, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.delete(databaseName, id, rev);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Optional<ObjectNode> downloadLocal(final String databaseName, final String name) throws IOException {
+        return send("downloadLocal", 1, new CouchRequest<Optional<ObjectNode>>() {
+            @Override
+            public Optional<ObjectNode> send() throws IOException {
+                return delegate.downloadLocal(databaseName, name);
+            }
+        });
+    }
+
+    @Override
+    public String uploadLocal(final String databaseName, final String name, final ObjectNode document) throws IOException {
+        return send("uploadLocal", 1, new CouchRequest<String>() {
+            @Override
+            public String send() throws IOException {
+                return delegate.uploadLocal(databaseName, name, document);
+            }
+        });
+    }
+
+    @Override
+    public int streamDocuments(final String databaseName, final boolean designOnly, final DocumentHandler handler) throws IOException {
+        return send("streamDocuments", 1, new CouchRequest<Integer>() {
+            @Override
+            public Integer send() throws IOException {
+                return delegate.streamDocuments(databaseName, designOnly, handler);
+            }
+        });
+    }
+
+    @Override
+    public void downloadAttachment(final String databaseName, final String id, final String name, final File target) throws IOException {
+        send("downloadAttachment", 1, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.downloadAttachment(databaseName, id, name, target);
+                return null;
+            }
+        });
+    }
+
+    private <T> T send(String operation, int units, CouchRequest<T> request) throws IOException {
+        final long start = limit.acquire();
+        boolean overloaded = false;
+        try {
+            return request.send();
+        } catch (CouchDatabaseException e) {
+            overloaded = isOverload(e);
+            throw e;
+        } catch (SocketTimeoutException e) {
+            overloaded = true;
+            throw e;
+        } finally {
+            limit.release(operation, units, start, overloaded);
+        }
+    }
+
+    /**
+     * Sends the request once the limit allows it, without blocking the calling thread.
+     */
+    private <T> CompletableFuture<T> send(final String operation, final int units, final AsyncCouchRequest<T> request) {
+        return limit.acquireAsync().thenCompose(new Function<Long, CompletionStage<T>>() {
+            @Override
+            public CompletionStage<T> apply(final Long start) {
+                return AsyncCouchRequest.sendAfter(0L, request).whenComplete(new BiConsumer<T, Throwable>() {
+                    @Override
+                    public void accept(T result, Throwable failure) {
+                        final Throwable cause = HttpClientCouchFunctions.unwrap(failure);
+                        limit.release(operation, units, start, cause instanceof HttpTimeoutException
+                                || (cause instanceof CouchDatabaseException && isOverload((CouchDatabaseException) cause)));
+                    }
+                });
+            }
+        });
+    }
+
+    private static boolean isOverload(CouchDatabaseException e) {
+        return e.getResponseCode() == HTTP_TOO_MANY_REQUESTS || e.getResponseCode() == HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * The non-blocking counterpart of the enclosing decorator, sharing its limit.
+     */
+    private final class Async implements AsyncCouchFunctions {
+
+        private final AsyncCouchFunctions delegate;
+
+        Async(AsyncCouchFunctions delegate) {
+            super();
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<Optional<RemoteDocument>> download(final String databaseName, final String id) {
+            return send("download", 1, new AsyncCouchRequest<Optional<RemoteDocument>>() {
+                @Override
+                public CompletableFuture<Optional<RemoteDocument>> send() {
+                    return delegate.download(databaseName, id);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Optional<String>> headRevision(final String databaseName, final String id) {
+            return send("headRevision", 1, new AsyncCouchRequest<Optional<String>>() {
+                @Override
+                public CompletableFuture<Optional<String>> send() {
+                    return delegate.headRevision(databaseName, id);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<String> upload(final String databaseName, final LocalDocument localDocument) {
+            return send("upload", 1, new AsyncCouchRequest<String>() {
+                @Override
+                public CompletableFuture<String> send() {
+                    return delegate.upload(databaseName, localDocument);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkUpload(final String databaseName, final List<LocalDocument> localDocuments) {
+            return send("bulkUpload", localDocuments.size(), new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkUpload(databaseName, localDocuments);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) {
+            return send("bulkReplace", localDocuments.size(), new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkReplace(databaseName, localDocuments);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(final String databaseName, final String id, final String rev) {
+            return send("delete", 1, new AsyncCouchRequest<Void>() {
+                @Override
+                public CompletableFuture<Void> send() {
+                    return delegate.delete(databaseName, id, rev);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * A limit on the number of requests in flight that adapts to how the server copes, by additive increase and
+ * multiplicative decrease (AIMD). While the limit is in use and latency stays flat, it grows by one for every
+ * {@code limit} requests that complete. When the server signals overload, or the recent latency rises above
+ * {@link #LATENCY_TOLERANCE} times the usual latency, the limit is halved. Only requests that started after the last
+ * decrease can cause another one, so that a single congestion event halves the limit once.
+ *
+ * <p>Latency is measured per unit of work (such as a document in a bulk request), for each kind of request
+ * separately. The recent latency is a moving average over roughly the last {@link #RECENT_SAMPLES} requests of that
+ * kind, and the usual latency one over roughly the last {@link #BASELINE_SAMPLES}, so that a few slow responses in
+ * otherwise normal traffic don't count as congestion, while the baseline still follows a server that becomes slower
+ * or faster over the course of the build. No kind of request is judged before {@link #WARMUP_SAMPLES} of them have
+ * completed.</p>
+ *
+ * <p>A lock and condition are used rather than {@code synchronized}, because a virtual thread that waits in a
+ * {@code synchronized} block pins its carrier thread. Non-blocking requests wait for a slot in a queue of futures
+ * instead, and are let in ahead of the threads that wait.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class AdaptiveLimit {
+
+    static final double LATENCY_TOLERANCE = 2.0;
+    static final int RECENT_SAMPLES = 10;
+    static final int BASELINE_SAMPLES = 200;
+    static final int WARMUP_SAMPLES = 10;
+    private static final int MAX_HISTORY = 1000;
+
+    private final int maxLimit;
+    private final long startNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+    private final Map<String, Baseline> baselines = new HashMap<String, Baseline>();
+    private final List<String> history = new ArrayList<String>();
+    private final Queue<CompletableFuture<Long>> waiting = new ArrayDeque<CompletableFuture<Long>>();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+
+    /**
+     * Exponentially weighted moving averages of the latency per unit of work for one kind of request.
+     */
+    private static class Baseline {
+        double recent;
+        double usual;
+        int samples;
+
+        void add(double sample) {
+            if (samples++ == 0) {
+                recent = sample;
+                usual = sample;
+            } else {
+                recent += (sample - recent) * 2 / (RECENT_SAMPLES + 1);
+                usual += (sample - usual) * 2 / (BASELINE_SAMPLES + 1);
+            }
+        }
+
+        boolean isSlow() {
+            return samples >= WARMUP_SAMPLES && recent > LATENCY_TOLERANCE * usual;
+        }
+
+        /**
+         * Forgets the recent latency after a decrease, so that only new evidence of congestion causes another.
+         */
+        void restart() {
+            recent = usual;
+        }
+    }
+
+    /**
+     * @param initialLimit the number of requests allowed in flight at the start.
+     * @param maxLimit     the number of requests in flight that the limit never grows beyond.
+     */
+    public AdaptiveLimit(int initialLimit, int maxLimit) {
+        this(initialLimit, maxLimit, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    AdaptiveLimit(int initialLimit, int maxLimit, long nowNanos) {
+        super();
+        Preconditions.checkArgument(initialLimit > 0, "The initial limit must be a positive number.");
+        Preconditions.checkArgument(maxLimit >= initialLimit, "The maximum limit must not be less than the initial limit.");
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.startNanos = nowNanos;
+        this.lastDecreaseNanos = nowNanos;
+        recordLimit(nowNanos);
+    }
+
+    /**
+     * Waits until a request may be sent.
+     *
+     * @return the start time of the request, to be passed to {@link #release}.
+     */
+    public long acquire() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                slotAvailable.await();
+            }
+            inFlight++;
+            return System.nanoTime();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to send a request.");
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot for a request without waiting for it.
+     *
+     * @return a future of the start time of the request, to be passed to {@link #release}, that completes once the
+     *         request may be sent.
+     */
+    public CompletableFuture<Long> acquireAsync() {
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(System.nanoTime());
+            }
+            final CompletableFuture<Long> slot = new CompletableFuture<Long>();
+            waiting.add(slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports that a request is done, and adjusts the limit to how it went.
+     *
+     * @param operation  the kind of request, such as the name of the {@code CouchFunctions} method.
+     * @param units      the amount of work the request carried, such as the number of documents.
+     * @param startNanos the value returned by {@link #acquire()}.
+     * @param overloaded whether the server signalled that it's overloaded.
+     */
+    public void release(String operation, int units, long startNanos, boolean overloaded) {
+        release(operation, units, startNanos, System.nanoTime(), overloaded);
+    }
+
+    @VisibleForTesting
+    void release(String operation, int units, long startNanos, long nowNanos, boolean overloaded) {
+        final List<CompletableFuture<Long>> admitted = new ArrayList<CompletableFuture<Long>>();
+        lock.lock();
+        try {
+            final boolean limitInUse = inFlight >= (int) limit;
+            inFlight--;
+
+            Baseline baseline = baselines.get(operation);
+            if (null == baseline) {
+                baseline = new Baseline();
+                baselines.put(operation, baseline);
+            }
+            if (!overloaded) {
+                baseline.add((double) (nowNanos - startNanos) / Math.max(1, units));
+            }
+            final boolean slow = baseline.isSlow();
+
+            final int before = (int) limit;
+            if (overloaded || slow) {
+                if (startNanos >= lastDecreaseNanos) {
+                    limit = Math.max(1.0, limit / 2);
+                    lastDecreaseNanos = nowNanos;
+                    baseline.restart();
+                }
+            } else if (limitInUse) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            if ((int) limit != before) {
+                recordLimit(nowNanos);
+            }
+            while (!waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                admitted.add(waiting.poll());
+            }
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // Completing a future runs the request that waited for it, which mustn't happen while holding the lock.
+        for (CompletableFuture<Long> slot : admitted) {
+            slot.complete(System.nanoTime());
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the changes of the limit, as "seconds since the start: limit".
+     */
+    public List<String> getHistory() {
+        lock.lock();
+        try {
+            return new ArrayList<String>(history);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordLimit(long nowNanos) {
+        if (history.size() < MAX_HISTORY) {
+            final long tenths = TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos) / 100;
+            history.add(tenths / 10 + "." + tenths % 10 + "s: " + (int) limit);
+        }
+    }
+}
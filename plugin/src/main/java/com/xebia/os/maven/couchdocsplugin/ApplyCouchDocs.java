@@ -0,0 +1,174 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Carries out a {@link DeployPlan}: creates the planned databases and uploads the documents planned for creation or
+ * update, over the remote revisions recorded in the plan. Nothing is read from the server, with one exception: the
+ * attachment stubs of a document with attachment files that is updated.
+ *
+ * <p>If a document changed on the server since the plan was made, CouchDB rejects the upload with a conflict, and
+ * the document is reported as failed. The same goes for a file that changed locally since the plan was made. In
+ * both cases, make a new plan.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class ApplyCouchDocs {
+
+    private final Progress progress;
+    private final CouchFunctions couchFunctions;
+    private final DeployPlan plan;
+    private final Optional<DeployManifest> manifest;
+    private final DocumentUploader uploader;
+
+    /**
+     * @param config only the batch size is taken from it; the strategy is the one the plan was made for.
+     */
+    public ApplyCouchDocs(Config config, Progress progress, CouchFunctions couchFunctions, DeployPlan plan,
+            Optional<DeployManifest> manifest) {
+        super();
+        this.progress = Preconditions.checkNotNull(progress);
+        this.couchFunctions = Preconditions.checkNotNull(couchFunctions);
+        this.plan = Preconditions.checkNotNull(plan);
+        this.manifest = Preconditions.checkNotNull(manifest);
+        this.uploader = new DocumentUploader(couchFunctions, plan.getExistingDocs() == Config.ExistingDocs.REPLACE,
+                Preconditions.checkNotNull(config).batchSize, manifest);
+    }
+
+    public void execute() {
+        // Report the planned failures before anything is written, so that failOnError leaves the server untouched.
+        final Map<String, List<DeployPlan.Entry>> uploads = new LinkedHashMap<String, List<DeployPlan.Entry>>();
+        for (DeployPlan.Entry entry : plan.getEntries()) {
+            if (entry.action == DeployPlan.Action.FAIL) {
+                progress.error("The plan fails on " + entry.databaseName + "/" + (entry.id != null ? entry.id : entry.file)
+                        + ": " + entry.reason);
+            } else if (entry.action == DeployPlan.Action.CREATE || entry.action == DeployPlan.Action.UPDATE) {
+                List<DeployPlan.Entry> database = uploads.get(entry.databaseName);
+                if (database == null) {
+                    database = new ArrayList<DeployPlan.Entry>();
+                    uploads.put(entry.databaseName, database);
+                }
+                database.add(entry);
+            }
+        }
+        // Databases are created even when no uploads are planned for them.
+        final Set<String> uncreated = createDatabases();
+        try {
+            for (Map.Entry<String, List<DeployPlan.Entry>> database : uploads.entrySet()) {
+                if (uncreated.contains(database.getKey())) {
+                    continue;
+                }
+                progress.info("Applying " + database.getValue().size() + " planned upload(s) to database \"" + database.getKey() + "\".");
+                progress.indent();
+                try {
+                    applyToDatabase(database.getKey(), database.getValue());
+                } finally {
+                    progress.unindent();
+                }
+            }
+        } finally {
+            if (manifest.isPresent()) {
+                try {
+                    manifest.get().save();
+                } catch (IOException e) {
+                    progress.warn("Could not save the manifest: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the planned databases that could not be created.
+     */
+    private Set<String> createDatabases() {
+        final Set<String> uncreated = new HashSet<String>();
+        for (String databaseName : plan.getCreatedDatabases()) {
+            progress.info("Creating database \"" + databaseName + "\" on the server.");
+            try {
+                couchFunctions.createDatabase(databaseName);
+            } catch (IOException e) {
+                progress.error("Could not create database \"" + databaseName + "\"", e);
+                uncreated.add(databaseName);
+            }
+        }
+        return uncreated;
+    }
+
+    private void applyToDatabase(String databaseName, List<DeployPlan.Entry> entries) {
+        final List<LocalDocument> documents = new ArrayList<LocalDocument>(entries.size());
+        for (DeployPlan.Entry entry : entries) {
+            final LocalDocument localDocument = prepare(entry);
+            if (localDocument != null) {
+                documents.add(localDocument);
+            }
+        }
+        uploader.upload(databaseName, documents, progress, new DocumentUploader.Listener() {
+            @Override
+            public void uploaded(LocalDocument localDocument, String rev, Progress progress) {
+                // Recorded in the manifest by the uploader.
+            }
+
+            @Override
+            public void rejected(LocalDocument localDocument, boolean conflict, String error, Progress progress) {
+                if (conflict) {
+                    progress.error("Document \"" + localDocument.getId() + "\" changed on the server since the plan was made; make a new plan.");
+                } else {
+                    progress.error("Could not upload document " + localDocument + " to CouchDB: " + error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the document of a planned upload and gives it the planned revision.
+     *
+     * @return the document, or {@code null} if its file no longer matches the plan.
+     */
+    private LocalDocument prepare(DeployPlan.Entry entry) {
+        final LocalDocument localDocument = new LocalDocument(entry.file, LocalDocumentsSelector.attachmentDirectoryOf(entry.file));
+        try {
+            localDocument.load();
+            if (!localDocument.getId().equals(entry.id) || !localDocument.getContentHash().equals(entry.hash)) {
+                progress.error("File " + entry.file + " changed since the plan was made; make a new plan.");
+                return null;
+            }
+        } catch (IOException e) {
+            progress.error("Could not load " + localDocument + ": " + e, e);
+            return null;
+        }
+        if (entry.getRev().isPresent()) {
+            if (plan.getExistingDocs() == Config.ExistingDocs.REPLACE) {
+                localDocument.setReplacedRev(entry.rev);
+            } else {
+                localDocument.setRev(entry.rev);
+            }
+        } else {
+            localDocument.clearRev();
+        }
+        return localDocument;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Carry out a plan made by the plan goal.
+ *
+ * This goal creates the planned databases and uploads the documents planned for creation or update, over the
+ * remote revisions recorded in the plan, without looking them up again. A document that changed on the server or
+ * in the source directory since the plan was made is not uploaded, and reported as an error. The documents come
+ * from the plan, so the source directory isn't scanned; the plan's existingDocs strategy applies.
+ *
+ * @goal apply
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+public class ApplyCouchDocsMojo extends PlanCouchDocsMojo {
+
+    @Override
+    protected Multimap<String, LocalDocument> findLocalDocuments() {
+        return LinkedListMultimap.create();
+    }
+
+    @Override
+    protected void deploy(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        final DeployPlan plan;
+        try {
+            plan = DeployPlan.load(getPlanFile());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not read the plan " + getPlanFile() + ": " + e.getMessage(), e);
+        }
+        plan.checkServer(getCouchUrl());
+        prewarmConnections();
+        if (plan.getExistingDocs() != config.existingDocs) {
+            getLog().warn("The plan was made for existingDocs " + plan.getExistingDocs() + ", which applies instead of "
+                    + config.existingDocs + ".");
+        }
+        new ApplyCouchDocs(config, progress, couchFunctions, plan, loadManifest()).execute();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.base.Optional;
+
+/**
+ * The per-document requests of {@link CouchFunctions}, sent without blocking the calling thread. A request that
+ * fails completes its future exceptionally, with the {@code IOException} or {@code CouchDatabaseException} that the
+ * synchronous method would have thrown.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+interface AsyncCouchFunctions {
+    CompletableFuture<Optional<RemoteDocument>> download(String databaseName, String id);
+    CompletableFuture<Optional<String>> headRevision(String databaseName, String id);
+    CompletableFuture<String> upload(String databaseName, LocalDocument localDocument);
+    CompletableFuture<List<BulkResult>> bulkUpload(String databaseName, List<LocalDocument> localDocuments);
+    CompletableFuture<List<BulkResult>> bulkReplace(String databaseName, List<LocalDocument> localDocuments);
+    CompletableFuture<Void> delete(String databaseName, String id, String rev);
+}
@@ -0,0 +1,50 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A single call to an {@code AsyncCouchFunctions}, for the decorators that wrap every call in the same way.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+interface AsyncCouchRequest<T> {
+    CompletableFuture<T> send();
+
+    /**
+     * Sends {@code request} once {@code delayNanos} have passed, without holding up a thread in the meantime. A
+     * request that throws rather than return a future fails the returned future.
+     */
+    static <T> CompletableFuture<T> sendAfter(long delayNanos, final AsyncCouchRequest<T> request) {
+        if (delayNanos <= 0L) {
+            try {
+                return request.send();
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> get() {
+                return request.send();
+            }
+        }, CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS)).thenCompose(Function.<CompletableFuture<T>>identity());
+    }
+}
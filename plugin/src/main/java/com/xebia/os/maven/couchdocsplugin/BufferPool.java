@@ -0,0 +1,53 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps serialisation buffers around for reuse, so that uploading a document doesn't allocate a fresh buffer the
+ * size of the document each time. Buffers that grew beyond {@link #MAX_RETAINED_SIZE} are left to the garbage
+ * collector rather than pinning that much memory.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class BufferPool {
+
+    static final int INITIAL_SIZE = 8192;
+    static final int MAX_RETAINED_SIZE = 16 * 1024 * 1024;
+
+    private final Queue<ByteArrayOutputStream> buffers = new ConcurrentLinkedQueue<ByteArrayOutputStream>();
+
+    /**
+     * @return an empty buffer.
+     */
+    public ByteArrayOutputStream acquire() {
+        final ByteArrayOutputStream buffer = buffers.poll();
+        return buffer != null ? buffer : new ByteArrayOutputStream(INITIAL_SIZE);
+    }
+
+    /**
+     * Hands {@code buffer} back for reuse. The caller must not use it afterwards.
+     */
+    public void release(ByteArrayOutputStream buffer) {
+        if (buffer.size() <= MAX_RETAINED_SIZE) {
+            buffer.reset();
+            buffers.offer(buffer);
+        }
+    }
+}
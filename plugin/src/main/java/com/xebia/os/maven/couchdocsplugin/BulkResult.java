@@ -0,0 +1,93 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * The outcome for a single document in a {@code _bulk_docs} request. CouchDB reports success or failure for every
+ * document individually, so a bulk request as a whole can succeed while some of its documents were rejected.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class BulkResult {
+
+    private final String id;
+    private final Optional<String> rev;
+    private final Optional<String> error;
+    private final Optional<String> reason;
+
+    public BulkResult(String id, Optional<String> rev, Optional<String> error, Optional<String> reason) {
+        super();
+        this.id = Preconditions.checkNotNull(id);
+        this.rev = Preconditions.checkNotNull(rev);
+        this.error = Preconditions.checkNotNull(error);
+        this.reason = Preconditions.checkNotNull(reason);
+    }
+
+    /**
+     * Reads a single element of the array that {@code _bulk_docs} responds with.
+     */
+    static BulkResult fromJson(JsonNode node) {
+        final JsonNode idNode = node.path("id");
+        if (!idNode.isTextual()) {
+            throw new DocumentValidationException("The bulk result's id node is missing or not a string value.");
+        }
+        return new BulkResult(idNode.asText(), textValue(node, "rev"), textValue(node, "error"), textValue(node, "reason"));
+    }
+
+    private static Optional<String> textValue(JsonNode node, String fieldName) {
+        final JsonNode value = node.path(fieldName);
+        return value.isTextual() ? Optional.of(value.asText()) : Optional.<String>absent();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the new revision of the document, if it was written.
+     */
+    public Optional<String> getRev() {
+        return rev;
+    }
+
+    /**
+     * @return the CouchDB error code, such as {@code conflict} or {@code forbidden}, if the document was rejected.
+     */
+    public Optional<String> getError() {
+        return error;
+    }
+
+    public Optional<String> getReason() {
+        return reason;
+    }
+
+    public boolean isOk() {
+        return !error.isPresent();
+    }
+
+    @Override
+    public String toString() {
+        if (isOk()) {
+            return "BulkResult[ " + id + " , " + rev.orNull() + " ]";
+        }
+        return "BulkResult[ " + id + " , " + error.get() + " , " + reason.orNull() + " ]";
+    }
+}
@@ -30,13 +30,74 @@ class Config {
     public final ExistingDocs existingDocs;
     public final UnknownDatabases unknownDatabases;
 
+    /**
+     * The maximum number of documents sent to CouchDB in a single {@code _bulk_docs} request. A value of {@code 1}
+     * uploads every document with its own {@code PUT} request.
+     */
+    public final int batchSize;
+
+    /**
+     * The maximum number of databases that are processed at the same time.
+     */
+    public final int databaseParallelism;
+
+    public final Execution execution;
+
+    /**
+     * The maximum number of documents that are worked on at the same time, and thus the maximum number of requests
+     * in flight to the server, in {@link Execution#VIRTUAL_THREADS} execution.
+     */
+    public final int maxConcurrentRequests;
+
+    /**
+     * Whether the content hashes of deployed documents are kept in a {@link ServerManifest} in each database.
+     */
+    public final boolean serverManifest;
+
     public Config(String existingDocs, String unknownDatabases) {
         this(ExistingDocs.parse(existingDocs), UnknownDatabases.parse(unknownDatabases));
     }
 
+    public Config(String existingDocs, String unknownDatabases, int batchSize, int databaseParallelism, String execution,
+            int maxConcurrentRequests, boolean serverManifest) {
+        this(ExistingDocs.parse(existingDocs), UnknownDatabases.parse(unknownDatabases), batchSize, databaseParallelism,
+                Execution.parse(execution), maxConcurrentRequests, serverManifest);
+    }
+
     public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases) {
+        this(existingDocs, unknownDatabases, 1);
+    }
+
+    public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases, int batchSize) {
+        this(existingDocs, unknownDatabases, batchSize, 1, Execution.SERIAL);
+    }
+
+    public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases, int batchSize, int databaseParallelism) {
+        this(existingDocs, unknownDatabases, batchSize, databaseParallelism, Execution.SERIAL);
+    }
+
+    public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases, int batchSize, int databaseParallelism,
+            Execution execution) {
+        this(existingDocs, unknownDatabases, batchSize, databaseParallelism, execution, ConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases, int batchSize, int databaseParallelism,
+            Execution execution, int maxConcurrentRequests) {
+        this(existingDocs, unknownDatabases, batchSize, databaseParallelism, execution, maxConcurrentRequests, false);
+    }
+
+    public Config(ExistingDocs existingDocs, UnknownDatabases unknownDatabases, int batchSize, int databaseParallelism,
+            Execution execution, int maxConcurrentRequests, boolean serverManifest) {
+        Preconditions.checkArgument(batchSize > 0, "The batch size must be a positive number.");
+        Preconditions.checkArgument(databaseParallelism > 0, "The database parallelism must be a positive number.");
+        Preconditions.checkArgument(maxConcurrentRequests > 0, "The maximum number of concurrent requests must be a positive number.");
         this.existingDocs = existingDocs;
         this.unknownDatabases = unknownDatabases;
+        this.batchSize = batchSize;
+        this.databaseParallelism = databaseParallelism;
+        this.execution = Preconditions.checkNotNull(execution);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.serverManifest = serverManifest;
     }
 
     /**
@@ -60,6 +121,12 @@ class Config {
          */
         UPDATE,
 
+        /**
+         * Like {@link #UPDATE}, but only if the local document differs in content from
+         * the existing document. Unchanged documents are left alone.
+         */
+        UPDATE_IF_CHANGED,
+
         /**
          * Fail the build.
          */
@@ -111,4 +178,42 @@ class Config {
             }
         }
     }
+
+    /**
+     * Indicates how the documents within a database are processed.
+     */
+    static enum Execution {
+        /**
+         * Load all documents, then look them up, then upload them.
+         */
+        SERIAL,
+
+        /**
+         * Load, look up and upload documents at the same time, in a pipeline with bounded queues between the steps.
+         */
+        PIPELINED,
+
+        /**
+         * Load, look up and upload each document on a virtual thread of its own. Requires Java 21 or newer.
+         */
+        VIRTUAL_THREADS,
+
+        /**
+         * Load each document on the calling thread, and look it up and upload it with non-blocking requests.
+         */
+        ASYNC;
+
+        /**
+         * Like {@link #valueOf(String)}, but with case insensitivity and a friendlier error message.
+         */
+        static Execution parse(String value) {
+            try {
+                Preconditions.checkNotNull(value);
+                return Execution.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("The value \"" + value + "\" is not valid; it must be one of "
+                        + Arrays.toString(Config.Execution.values()) + ".");
+            }
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hands out keep-alive {@code HttpURLConnection}s to a single CouchDB host and takes them back when the caller is done.
+ *
+ * <p>The sockets themselves are cached by the JDK's keep-alive cache, which only reuses a socket if the response was
+ * read to the end and its stream was closed. {@link #release(HttpURLConnection)} takes care of that for both regular
+ * and error responses. The number of connections that are open at the same time is bounded.</p>
+ *
+ * <p>The keep-alive cache is shared by the whole JVM and configured through system properties. It holds on to at
+ * most {@code http.maxConnections} (default 5) idle sockets per host, and closes a socket that has been idle for
+ * 5 seconds, or as long as the server's {@code Keep-Alive} header says. On Java 20 and newer that default can be
+ * changed through {@code http.keepAlive.time.server}. {@link #configureKeepAliveCache(int)} raises
+ * {@code http.maxConnections} to the size of the pool, so that a pool of more than 5 connections doesn't close
+ * and reopen sockets.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class ConnectionPool {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+    /** The system property that sizes the JDK's keep-alive cache. */
+    static final String KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+    private final Semaphore permits;
+    private final int maxConnections;
+    private final Set<HttpURLConnection> responded;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections the maximum number of connections to the host that are open at the same time.
+     */
+    public ConnectionPool(int maxConnections) {
+        Preconditions.checkArgument(maxConnections > 0, "The maximum number of connections must be a positive number.");
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+        this.responded = Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets {@code http.maxConnections} to {@code maxConnections} if it's above the default and the property isn't
+     * set already. The JDK reads the property when it makes its first HTTP connection, so this has no effect after
+     * that; set the property on the command line, e.g. through {@code MAVEN_OPTS}, in that case.
+     *
+     * @return the number of idle sockets per host the keep-alive cache holds on to.
+     */
+    static int configureKeepAliveCache(int maxConnections) {
+        final String configured = System.getProperty(KEEP_ALIVE_CONNECTIONS_PROPERTY);
+        if (null == configured) {
+            if (maxConnections <= DEFAULT_MAX_CONNECTIONS) {
+                return DEFAULT_MAX_CONNECTIONS;
+            }
+            System.setProperty(KEEP_ALIVE_CONNECTIONS_PROPERTY, Integer.toString(maxConnections));
+            return maxConnections;
+        }
+        try {
+            final int keepAliveConnections = Integer.parseInt(configured.trim());
+            return keepAliveConnections > 0 ? keepAliveConnections : DEFAULT_MAX_CONNECTIONS;
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_CONNECTIONS;
+        }
+    }
+
+    /**
+     * Opens a connection, waiting for another one to be released if the maximum number of connections are in use.
+     * Every connection obtained here must be given back through {@link #release(HttpURLConnection)}.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+        }
+        boolean opened = false;
+        try {
+            final HttpURLConnection urc = (HttpURLConnection) url.openConnection();
+            urc.setRequestProperty("Connection", "keep-alive");
+            opened = true;
+            return urc;
+        } finally {
+            if (!opened) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the status code of the response, and remembers that the connection got one. Use this rather than
+     * {@link HttpURLConnection#getResponseCode()} on connections from this pool.
+     */
+    public int responseCode(HttpURLConnection urc) throws IOException {
+        final int responseCode = urc.getResponseCode();
+        responded.add(urc);
+        return responseCode;
+    }
+
+    /**
+     * Reads whatever is left of the response and closes it, so the JDK can put the socket back into its keep-alive
+     * cache. If that fails, the socket is closed instead. So is the socket of a connection that never got as far as
+     * {@link #responseCode(HttpURLConnection)}: asking it for the response would connect all over again.
+     */
+    public void release(HttpURLConnection urc) {
+        if (!responded.remove(urc)) {
+            discard(urc);
+            return;
+        }
+        InputStream is = null;
+        try {
+            is = urc.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? urc.getErrorStream() : urc.getInputStream();
+            if (null != is) {
+                final byte[] buffer = new byte[4096];
+                while (is.read(buffer) != -1) {
+                    // Discard.
+                }
+            }
+        } catch (IOException e) {
+            urc.disconnect();
+        } finally {
+            IOUtil.close(is);
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the socket rather than reading what is left of the response, for a response that was abandoned
+     * halfway.
+     */
+    public void discard(HttpURLConnection urc) {
+        responded.remove(urc);
+        urc.disconnect();
+        permits.release();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.plexus.util.Base64;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Decides whether a local document has the same content as the copy in CouchDB.
+ *
+ * <p>The comparison works on a canonical form of the JSON: object members match regardless of their order, and
+ * numbers match by value, so {@code 1} and {@code 1.0} are the same. The revision and the other fields that CouchDB
+ * maintains are ignored. Inline attachments are compared with the stubs CouchDB returns through their content type
+ * and MD5 digest, and so are the attachment files of a {@link LocalDocument}.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+final class ContentComparison {
+
+    private static final Set<String> SERVER_MANAGED_FIELDS = ImmutableSet.of(
+            "_rev", "_revisions", "_revs_info", "_conflicts", "_deleted_conflicts", "_local_seq");
+
+    private ContentComparison() {
+    }
+
+    public static boolean isSameContent(Document local, Document remote) {
+        final JsonNode localRoot = local.getRootNode();
+        final JsonNode remoteRoot = remote.getRootNode();
+        final Set<String> localFields = fieldNames(localRoot);
+        if (!local.getAttachmentsNode().isMissingNode()) {
+            localFields.add("_attachments");
+        }
+        final Set<String> fields = Sets.difference(localFields, SERVER_MANAGED_FIELDS);
+        if (!fields.equals(Sets.difference(fieldNames(remoteRoot), SERVER_MANAGED_FIELDS))) {
+            return false;
+        }
+        for (String field : fields) {
+            final boolean same = "_attachments".equals(field)
+                    ? isSameAttachments(local.getAttachmentsNode(), remote.getAttachmentsNode())
+                    : isSameValue(localRoot.get(field), remoteRoot.get(field));
+            if (!same) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSameValue(JsonNode local, JsonNode remote) {
+        if (local.isNumber() && remote.isNumber()) {
+            return local.getDecimalValue().compareTo(remote.getDecimalValue()) == 0;
+        } else if (local.isObject() && remote.isObject()) {
+            final Set<String> fields = fieldNames(local);
+            if (!fields.equals(fieldNames(remote))) {
+                return false;
+            }
+            for (String field : fields) {
+                if (!isSameValue(local.get(field), remote.get(field))) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (local.isArray() && remote.isArray()) {
+            if (local.size() != remote.size()) {
+                return false;
+            }
+            for (int i = 0; i < local.size(); i++) {
+                if (!isSameValue(local.get(i), remote.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return local.equals(remote);
+    }
+
+    private static boolean isSameAttachments(JsonNode local, JsonNode remote) {
+        final Set<String> names = fieldNames(local);
+        if (!names.equals(fieldNames(remote))) {
+            return false;
+        }
+        for (String name : names) {
+            final JsonNode localAttachment = local.get(name);
+            final JsonNode remoteAttachment = remote.get(name);
+            if (!localAttachment.path("content_type").equals(remoteAttachment.path("content_type"))
+                    || !digestOf(localAttachment).equals(remoteAttachment.path("digest").getTextValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the digest in the form CouchDB reports it, {@code "md5-<base64>"}.
+     */
+    private static String digestOf(JsonNode attachment) {
+        if (!attachment.path("data").isTextual()) {
+            return attachment.path("digest").asText();
+        }
+        try {
+            final byte[] data = Base64.decodeBase64(attachment.get("data").getTextValue().getBytes(Charsets.US_ASCII));
+            final byte[] md5 = MessageDigest.getInstance("MD5").digest(data);
+            return "md5-" + new String(Base64.encodeBase64(md5), Charsets.US_ASCII);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Every implementation of the Java platform is required to support MD5.");
+        }
+    }
+
+    private static Set<String> fieldNames(JsonNode node) {
+        final Set<String> names = Sets.newHashSet();
+        for (Iterator<String> i = node.getFieldNames(); i.hasNext();) {
+            names.add(i.next());
+        }
+        return names;
+    }
+}
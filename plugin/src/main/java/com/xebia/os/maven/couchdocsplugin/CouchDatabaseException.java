@@ -15,19 +15,35 @@
 */
 package com.xebia.os.maven.couchdocsplugin;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
 public class CouchDatabaseException extends RuntimeException {
     private static final long serialVersionUID = 1L;
     private final int responseCode;
+    private final Optional<Long> retryAfter;
 
     public CouchDatabaseException(int responseCode, String message) {
+        this(responseCode, message, Optional.<Long>absent());
+    }
+
+    public CouchDatabaseException(int responseCode, String message, Optional<Long> retryAfter) {
         super(message);
         this.responseCode = responseCode;
+        this.retryAfter = Preconditions.checkNotNull(retryAfter);
     }
 
     public int getResponseCode() {
         return responseCode;
     }
 
+    /**
+     * @return the number of milliseconds the server asked to wait before the request is retried, if it did.
+     */
+    public Optional<Long> getRetryAfter() {
+        return retryAfter;
+    }
+
     @Override
     public String toString() {
         return CouchDatabaseException.class.getSimpleName() + ": HTTP " + responseCode + " " + getMessage();
@@ -15,7 +15,14 @@
 */
 package com.xebia.os.maven.couchdocsplugin;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.node.ObjectNode;
 
 import com.google.common.base.Optional;
 
@@ -26,8 +33,18 @@ import com.google.common.base.Optional;
  */
 interface CouchFunctions {
     boolean isExistentDatabase(String databaseName) throws IOException;
+    Set<String> findExistingDatabases(Collection<String> databaseNames) throws IOException;
     void createDatabase(String databaseName) throws IOException;
     Optional<RemoteDocument> download(String databaseName, String id) throws IOException;
-    void upload(String databaseName, LocalDocument localDocument) throws IOException;
-    void delete(String databaseName, RemoteDocument remoteDocument) throws IOException;
+    Optional<String> headRevision(String databaseName, String id) throws IOException;
+    Map<String, String> findRevisions(String databaseName, Collection<String> ids) throws IOException;
+    Map<String, RemoteDocument> findDocuments(String databaseName, Collection<String> ids) throws IOException;
+    String upload(String databaseName, LocalDocument localDocument) throws IOException;
+    List<BulkResult> bulkUpload(String databaseName, List<LocalDocument> localDocuments) throws IOException;
+    List<BulkResult> bulkReplace(String databaseName, List<LocalDocument> localDocuments) throws IOException;
+    void delete(String databaseName, String id, String rev) throws IOException;
+    Optional<ObjectNode> downloadLocal(String databaseName, String name) throws IOException;
+    String uploadLocal(String databaseName, String name, ObjectNode document) throws IOException;
+    int streamDocuments(String databaseName, boolean designOnly, DocumentHandler handler) throws IOException;
+    void downloadAttachment(String databaseName, String id, String name, File target) throws IOException;
 }
@@ -15,27 +15,65 @@
 */
 package com.xebia.os.maven.couchdocsplugin;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.MissingNode;
+import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.plexus.util.Base64;
 import org.codehaus.plexus.util.IOUtil;
 import org.sonatype.inject.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 
 /**
- * Implements {@code CouchFunctions} using {@code HttpUrlConnection}. No fancy stuff like connection pooling or
- * keepalives here, move along.
+ * Implements {@code CouchFunctions} using {@code HttpUrlConnection}. Connections are obtained from a
+ * {@link ConnectionPool}, so that the underlying sockets are kept alive between requests.
  *
  * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
  */
@@ -43,104 +81,895 @@ class CouchFunctionsImpl implements CouchFunctions {
 
     private final URL baseUrl;
     private final String authorization;
-    private static final String HTTP_USER_AGENT = "couch-docs-maven-plugin; Java " + System.getProperty("java.vm.name")
+    private final ConnectionPool connectionPool;
+    private final int compressionThreshold;
+    private final Timeouts timeouts;
+    private final BufferPool bufferPool = new BufferPool();
+    static final String HTTP_USER_AGENT = "couch-docs-maven-plugin; Java " + System.getProperty("java.vm.name")
             + " " + System.getProperty("java.vm.version");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private static final int HTTP_OK = 200;
     private static final int HTTP_CREATED = 201;
+    private static final int HTTP_ACCEPTED = 202;
+    private static final int HTTP_BAD_REQUEST = 400;
     private static final int HTTP_NOTFOUND = 404;
+    private static final int HTTP_BAD_METHOD = 405;
+    private static final int DBS_INFO_MAX_KEYS = 100;
+    private static final int ALL_DBS_PAGE_SIZE = 1000;
+    static final int NO_COMPRESSION = -1;
 
     public CouchFunctionsImpl(String baseUrl) throws MalformedURLException {
         this(new URL(Preconditions.checkNotNull(baseUrl)));
     }
 
     public CouchFunctionsImpl(URL baseUrl) {
+        this(baseUrl, new ConnectionPool());
+    }
+
+    public CouchFunctionsImpl(URL baseUrl, ConnectionPool connectionPool) {
+        this(baseUrl, connectionPool, NO_COMPRESSION);
+    }
+
+    /**
+     * @param compressionThreshold request bodies of at least this many bytes are sent gzip-compressed. Use
+     *                             {@link #NO_COMPRESSION} to always send them as-is.
+     */
+    public CouchFunctionsImpl(URL baseUrl, ConnectionPool connectionPool, int compressionThreshold) {
+        this(baseUrl, connectionPool, compressionThreshold, Timeouts.DEFAULT);
+    }
+
+    public CouchFunctionsImpl(URL baseUrl, ConnectionPool connectionPool, int compressionThreshold, Timeouts timeouts) {
         Preconditions.checkNotNull(baseUrl);
         Preconditions.checkArgument(baseUrl.getProtocol().startsWith("http"), "CouchDB URL must be HTTP or HTTPS");
         this.baseUrl = baseUrl;
+        this.connectionPool = Preconditions.checkNotNull(connectionPool);
+        this.compressionThreshold = compressionThreshold;
+        this.timeouts = Preconditions.checkNotNull(timeouts);
+
+        this.authorization = authorization(baseUrl);
+    }
 
+    /**
+     * @return the value of the {@code Authorization} header for the credentials in the URL, or {@code null} if
+     *         there are none.
+     */
+    static String authorization(URL baseUrl) {
         String userInfo = baseUrl.getUserInfo();
         if (!Strings.isNullOrEmpty(userInfo)) {
-            this.authorization = "Basic " + new String( Base64.encodeBase64(userInfo.getBytes(Charsets.US_ASCII)), Charsets.US_ASCII);
-        } else {
-            this.authorization = null;
+            return "Basic " + new String( Base64.encodeBase64(userInfo.getBytes(Charsets.US_ASCII)), Charsets.US_ASCII);
         }
+        return null;
     }
 
     @Override
     public boolean isExistentDatabase(String databaseName) throws IOException {
         HttpURLConnection urc = createConnection(databaseName);
-        urc.setRequestMethod("HEAD");
-        urc.setDoOutput(false);
-        if (HTTP_OK == urc.getResponseCode()) {
-            return true;
-        } else if (HTTP_NOTFOUND == urc.getResponseCode()) {
-            return false;
-        } else {
-            throw databaseException(urc);
+        try {
+            urc.setRequestMethod("HEAD");
+            urc.setDoOutput(false);
+            if (HTTP_OK == connectionPool.responseCode(urc)) {
+                return true;
+            } else if (HTTP_NOTFOUND == connectionPool.responseCode(urc)) {
+                return false;
+            } else {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Looks up which of the given databases exist through {@code POST /_dbs_info}, in chunks of
+     * {@value #DBS_INFO_MAX_KEYS} names. Servers that don't have {@code _dbs_info} (before CouchDB 2.2) are asked
+     * for their {@code _all_dbs} instead, page by page.
+     */
+    @Override
+    public Set<String> findExistingDatabases(Collection<String> databaseNames) throws IOException {
+        final Set<String> result = new HashSet<String>();
+        for (List<String> chunk : Lists.partition(new ArrayList<String>(databaseNames), DBS_INFO_MAX_KEYS)) {
+            final Optional<JsonNode> response = postDbsInfo(chunk);
+            if (!response.isPresent()) {
+                return findExistingDatabasesInAllDbs(databaseNames);
+            }
+            for (JsonNode row : response.get()) {
+                // Rows for unknown databases carry an "error": "not_found" and no info.
+                if (row.path("info").isObject()) {
+                    result.add(row.path("key").asText());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the response, or nothing if the server doesn't support {@code _dbs_info}. Such servers answer with a
+     *         {@code 404} or {@code 405}, or, if they take the path for a database name, with a {@code 400} and the
+     *         error {@code illegal_database_name}. Any other {@code 400} means the request was at fault.
+     */
+    private Optional<JsonNode> postDbsInfo(List<String> databaseNames) throws IOException {
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("keys");
+            for (String databaseName : databaseNames) {
+                generator.writeString(databaseName);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.close();
+
+            HttpURLConnection urc = openConnection(new URL(baseUrl, "_dbs_info"));
+            try {
+                urc.setRequestMethod("POST");
+                writeBody(urc, buffer);
+                final int responseCode = connectionPool.responseCode(urc);
+                if (HTTP_NOTFOUND == responseCode || HTTP_BAD_METHOD == responseCode) {
+                    return Optional.absent();
+                } else if (HTTP_BAD_REQUEST == responseCode) {
+                    final JsonNode error = readError(urc);
+                    if ("illegal_database_name".equals(error.path("error").getTextValue())) {
+                        return Optional.absent();
+                    }
+                    throw new CouchDatabaseException(responseCode, "_dbs_info rejected the request: "
+                            + error.path("error").asText() + " (" + error.path("reason").asText() + ")");
+                } else if (HTTP_OK != responseCode) {
+                    throw databaseException(urc);
+                }
+                return Optional.of(readJson(urc));
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private Set<String> findExistingDatabasesInAllDbs(Collection<String> databaseNames) throws IOException {
+        final Set<String> wanted = new HashSet<String>(databaseNames);
+        final Set<String> result = new HashSet<String>();
+        String startKey = null;
+        while (true) {
+            String query = "_all_dbs?limit=" + ALL_DBS_PAGE_SIZE;
+            if (null != startKey) {
+                query += "&skip=1&startkey=" + urlEncode(OBJECT_MAPPER.writeValueAsString(startKey));
+            }
+            final JsonNode page;
+            HttpURLConnection urc = openConnection(new URL(baseUrl, query));
+            try {
+                urc.setRequestMethod("GET");
+                if (HTTP_OK != connectionPool.responseCode(urc)) {
+                    throw databaseException(urc);
+                }
+                page = readJson(urc);
+            } finally {
+                connectionPool.release(urc);
+            }
+            for (JsonNode name : page) {
+                if (wanted.contains(name.asText())) {
+                    result.add(name.asText());
+                }
+            }
+            if (page.size() < ALL_DBS_PAGE_SIZE) {
+                return result;
+            }
+            startKey = page.get(page.size() - 1).asText();
         }
     }
 
     @Override
     public void createDatabase(String databaseName) throws IOException {
         HttpURLConnection urc = createConnection(databaseName);
-        urc.setRequestMethod("PUT");
-        if (HTTP_CREATED != urc.getResponseCode()) {
-            throw databaseException(urc);
+        try {
+            urc.setRequestMethod("PUT");
+            if (HTTP_CREATED != connectionPool.responseCode(urc)) {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
         }
     }
 
     @VisibleForTesting
     void deleteDatabase(String databaseName) throws IOException {
         HttpURLConnection urc = createConnection(databaseName);
-        urc.setRequestMethod("DELETE");
-        if (HTTP_OK != urc.getResponseCode()) {
-            throw databaseException(urc);
+        try {
+            urc.setRequestMethod("DELETE");
+            if (HTTP_OK != connectionPool.responseCode(urc)) {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
         }
     }
 
     @Override
     public Optional<RemoteDocument> download(String databaseName, String id) throws IOException {
         HttpURLConnection urc = createConnection(databaseName, urlEncode(id));
-        urc.setRequestMethod("GET");
-        if (HTTP_NOTFOUND == urc.getResponseCode()) {
-            return Optional.absent();
-        } else if (HTTP_OK == urc.getResponseCode()) {
-            return Optional.of(new RemoteDocument(urc.getInputStream()));
-        } else {
-            throw databaseException(urc);
+        try {
+            urc.setRequestMethod("GET");
+            if (HTTP_NOTFOUND == connectionPool.responseCode(urc)) {
+                return Optional.absent();
+            } else if (HTTP_OK == connectionPool.responseCode(urc)) {
+                return Optional.of(new RemoteDocument(responseBody(urc)));
+            } else {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Looks up the current revision of a document with a {@code HEAD} request. CouchDB returns the revision in
+     * the {@code ETag} header, so the document body is never transferred.
+     */
+    @Override
+    public Optional<String> headRevision(String databaseName, String id) throws IOException {
+        HttpURLConnection urc = createConnection(databaseName, urlEncode(id));
+        try {
+            urc.setRequestMethod("HEAD");
+            if (HTTP_NOTFOUND == connectionPool.responseCode(urc)) {
+                return Optional.absent();
+            } else if (HTTP_OK == connectionPool.responseCode(urc)) {
+                final String etag = urc.getHeaderField("ETag");
+                if (etag == null) {
+                    throw new CouchDatabaseException(connectionPool.responseCode(urc), "The server did not return an ETag for"
+                            + " document \"" + id + "\" in database \"" + databaseName + "\".");
+                }
+                return Optional.of(CharMatcher.is('"').trimFrom(etag));
+            } else {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Looks up the current revisions of the given documents with a single {@code _all_docs} request. Only the
+     * revisions are transferred, not the document bodies. Documents that don't exist or that have been deleted
+     * are left out of the result.
+     */
+    @Override
+    public Map<String, String> findRevisions(String databaseName, Collection<String> ids) throws IOException {
+        final JsonNode response = postAllDocs(databaseName, "_all_docs", ids);
+        final Map<String, String> result = new HashMap<String, String>(ids.size() * 2);
+        for (JsonNode row : response.path("rows")) {
+            // Rows for unknown keys carry an "error": "not_found" and no value.
+            final JsonNode value = row.path("value");
+            if (row.path("id").isTextual() && value.path("rev").isTextual() && !value.path("deleted").asBoolean()) {
+                result.put(row.path("id").asText(), value.path("rev").asText());
+            }
         }
+        return result;
     }
 
+    /**
+     * Downloads the given documents with a single {@code _all_docs?include_docs=true} request. Documents that
+     * don't exist or that have been deleted are left out of the result.
+     */
     @Override
-    public void upload(String databaseName, LocalDocument localDocument) throws IOException {
-        String payload = localDocument.getJson();
-        byte[] body = payload.getBytes(Charsets.UTF_8);
+    public Map<String, RemoteDocument> findDocuments(String databaseName, Collection<String> ids) throws IOException {
+        final JsonNode response = postAllDocs(databaseName, "_all_docs?include_docs=true", ids);
+        final Map<String, RemoteDocument> result = new HashMap<String, RemoteDocument>(ids.size() * 2);
+        for (JsonNode row : response.path("rows")) {
+            // Deleted documents come back with "doc": null.
+            if (row.path("id").isTextual() && row.path("doc").isObject()) {
+                result.put(row.path("id").asText(), new RemoteDocument(row.get("doc")));
+            }
+        }
+        return result;
+    }
+
+    private JsonNode postAllDocs(String databaseName, String documentAndQuery, Collection<String> ids) throws IOException {
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("keys");
+            for (String id : ids) {
+                generator.writeString(id);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.close();
+
+            HttpURLConnection urc = createConnection(databaseName, documentAndQuery);
+            try {
+                urc.setRequestMethod("POST");
+                urc.setReadTimeout(timeouts.getBulkReadMillis());
+                writeBody(urc, buffer);
+                if (HTTP_OK != connectionPool.responseCode(urc)) {
+                    throw databaseException(urc);
+                }
+                return readJson(urc);
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads {@code _all_docs?include_docs=true} with a streaming parser and hands every document to the handler as
+     * soon as its row is parsed, so that only one row is held in memory at a time however large the database is.
+     * With {@code designOnly}, only the {@code _design/} key range is read.
+     *
+     * @return the number of documents handed to the handler.
+     */
+    @Override
+    public int streamDocuments(String databaseName, boolean designOnly, DocumentHandler handler) throws IOException {
+        final String query = designOnly
+                ? "_all_docs?include_docs=true&startkey=%22_design%2F%22&endkey=%22_design0%22"
+                : "_all_docs?include_docs=true";
+        HttpURLConnection urc = createConnection(databaseName, query);
+        boolean complete = true;
+        try {
+            urc.setRequestMethod("GET");
+            urc.setReadTimeout(timeouts.getBulkReadMillis());
+            if (HTTP_OK != connectionPool.responseCode(urc)) {
+                throw databaseException(urc);
+            }
+            complete = false;
+            final int count = readRows(responseBody(urc), handler);
+            complete = true;
+            return count;
+        } finally {
+            // Reading the rest of a stream that stopped halfway could take as long as the whole export.
+            if (complete) {
+                connectionPool.release(urc);
+            } else {
+                connectionPool.discard(urc);
+            }
+        }
+    }
+
+    /**
+     * Streams an attachment into {@code target}, replacing its content. The slashes of the attachment name are kept
+     * as path separators.
+     */
+    @Override
+    public void downloadAttachment(String databaseName, String id, String name, File target) throws IOException {
+        HttpURLConnection urc = createConnection(databaseName, urlEncode(id) + '/' + urlEncode(name).replace("%2F", "/"));
+        try {
+            urc.setRequestMethod("GET");
+            urc.setReadTimeout(timeouts.getBulkReadMillis());
+            urc.setRequestProperty("Accept", "*/*");
+            if (HTTP_OK != connectionPool.responseCode(urc)) {
+                throw databaseException(urc);
+            }
+            final OutputStream out = new FileOutputStream(target);
+            try {
+                IOUtil.copy(responseBody(urc), out);
+            } finally {
+                IOUtil.close(out);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Walks an {@code _all_docs} response up to its {@code rows} array and parses the rows one by one. Rows without
+     * a document object (deleted documents) are skipped. The stream is left open for the connection pool to drain.
+     */
+    @VisibleForTesting
+    static int readRows(InputStream body, DocumentHandler handler) throws IOException {
+        final JsonParser parser = OBJECT_MAPPER.getJsonFactory().createJsonParser(body);
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        try {
+            if (JsonToken.START_OBJECT != parser.nextToken()) {
+                throw new CouchDatabaseException(HTTP_OK, "The _all_docs response is not a JSON object.");
+            }
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                final String field = parser.getCurrentName();
+                if ("rows".equals(field) && JsonToken.START_ARRAY == parser.nextToken()) {
+                    int count = 0;
+                    while (JsonToken.START_OBJECT == parser.nextToken()) {
+                        final JsonNode row = parser.readValueAsTree();
+                        if (row.path("doc").isObject()) {
+                            handler.handle((ObjectNode) row.get("doc"));
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+                parser.nextToken();
+                parser.skipChildren();
+            }
+            throw new CouchDatabaseException(HTTP_OK, "The _all_docs response has no rows.");
+        } finally {
+            parser.close();
+        }
+    }
 
-        HttpURLConnection urc = createConnection(databaseName, urlEncode(localDocument.getId()));
-        urc.setRequestMethod("PUT");
+    /**
+     * Documents with attachment files are sent as {@code multipart/related}, with the attachments streamed from
+     * disk. An update first looks up the attachments of the current revision; attachment files with the same
+     * digest and content type are sent as stubs rather than uploaded again.
+     *
+     * @return the revision the document was stored as.
+     */
+    @Override
+    public String upload(String databaseName, LocalDocument localDocument) throws IOException {
+        if (localDocument.hasAttachmentFiles()) {
+            return uploadWithAttachments(databaseName, localDocument);
+        }
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            generator.writeTree(localDocument.getRootNode());
+            generator.close();
+
+            HttpURLConnection urc = createConnection(databaseName, urlEncode(localDocument.getId()));
+            try {
+                urc.setRequestMethod("PUT");
+                writeBody(urc, buffer);
+
+                if (HTTP_CREATED != connectionPool.responseCode(urc)) {
+                    throw databaseException(urc);
+                }
+                return readJson(urc).path("rev").getTextValue();
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private String uploadWithAttachments(String databaseName, LocalDocument localDocument) throws IOException {
+        final JsonNode remoteAttachments = localDocument.getRev().isPresent()
+                ? remoteAttachments(download(databaseName, localDocument.getId()))
+                : MissingNode.getInstance();
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            final List<LocalAttachment> follows = writeDocumentWithAttachments(generator, localDocument, remoteAttachments);
+            generator.close();
+
+            HttpURLConnection urc = createConnection(databaseName, urlEncode(localDocument.getId()));
+            try {
+                urc.setRequestMethod("PUT");
+                if (follows.isEmpty()) {
+                    writeBody(urc, buffer);
+                } else {
+                    sendMultipart(urc, new MultipartRelated(buffer.toByteArray(), follows));
+                }
+
+                if (HTTP_CREATED != connectionPool.responseCode(urc)) {
+                    throw databaseException(urc);
+                }
+                return readJson(urc).path("rev").getTextValue();
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return the {@code _attachments} stubs of the remote document, or a missing node if it has none.
+     */
+    static JsonNode remoteAttachments(Optional<RemoteDocument> remoteDocument) {
+        return remoteDocument.isPresent() ? remoteDocument.get().getAttachmentsNode() : MissingNode.getInstance();
+    }
+
+    /**
+     * Writes the document, with an entry in {@code _attachments} for each of its attachment files. Files that match
+     * an attachment in {@code remoteAttachments} by digest and content type are written as stubs, which keep the
+     * remote copy; the others are marked to follow the document in a {@code multipart/related} request.
+     *
+     * @return the attachments whose content must follow the document, in order.
+     */
+    static List<LocalAttachment> writeDocumentWithAttachments(JsonGenerator generator, LocalDocument localDocument,
+            JsonNode remoteAttachments) throws IOException {
+        final ObjectNode rootNode = localDocument.getRootNode();
+        final List<LocalAttachment> attachments = localDocument.getAttachments();
+        final Set<String> names = new HashSet<String>(attachments.size() * 2);
+        for (LocalAttachment attachment : attachments) {
+            names.add(attachment.getName());
+        }
+        final List<LocalAttachment> follows = new ArrayList<LocalAttachment>(attachments.size());
+
+        generator.writeStartObject();
+        for (Iterator<Map.Entry<String, JsonNode>> i = rootNode.getFields(); i.hasNext();) {
+            final Map.Entry<String, JsonNode> field = i.next();
+            if (!"_attachments".equals(field.getKey())) {
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
+            }
+        }
+        generator.writeObjectFieldStart("_attachments");
+        for (Iterator<Map.Entry<String, JsonNode>> i = rootNode.path("_attachments").getFields(); i.hasNext();) {
+            final Map.Entry<String, JsonNode> inline = i.next();
+            if (!names.contains(inline.getKey())) {
+                generator.writeFieldName(inline.getKey());
+                generator.writeTree(inline.getValue());
+            }
+        }
+        for (LocalAttachment attachment : attachments) {
+            final JsonNode remote = remoteAttachments.path(attachment.getName());
+            generator.writeObjectFieldStart(attachment.getName());
+            if (attachment.getDigest().equals(remote.path("digest").getTextValue())
+                    && attachment.getContentType().equals(remote.path("content_type").getTextValue())) {
+                generator.writeBooleanField("stub", true);
+            } else {
+                generator.writeBooleanField("follows", true);
+                generator.writeStringField("content_type", attachment.getContentType());
+                generator.writeNumberField("length", attachment.getLength());
+                follows.add(attachment);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+        return follows;
+    }
+
+    /**
+     * Posts the documents to {@code _bulk_docs} in a single request. The returned list contains one result for each
+     * document, in the order of {@code localDocuments}; rejected documents are reported there rather than thrown.
+     */
+    @Override
+    public List<BulkResult> bulkUpload(String databaseName, List<LocalDocument> localDocuments) throws IOException {
+        return postBulkDocs(databaseName, localDocuments, false);
+    }
+
+    /**
+     * Like {@link #bulkUpload(String, List)}, but the documents with a {@linkplain LocalDocument#getReplacedRev()
+     * replaced revision} are deleted first, with tombstones for those revisions in a {@code _bulk_docs} request of
+     * their own. CouchDB checks every document of a request against the revisions as they were before it, so a
+     * tombstone and a new version of the same document can't go out together: the new version would conflict.
+     * Documents whose tombstone is rejected are not uploaded; the result of the tombstone is reported for them.
+     */
+    @Override
+    public List<BulkResult> bulkReplace(String databaseName, List<LocalDocument> localDocuments) throws IOException {
+        final List<LocalDocument> replaced = withReplacedRev(localDocuments);
+        if (replaced.isEmpty()) {
+            return bulkUpload(databaseName, localDocuments);
+        }
+        final Map<LocalDocument, BulkResult> rejected = acceptTombstones(replaced,
+                postBulkDocs(databaseName, replaced, true));
+        final List<LocalDocument> uploads = without(localDocuments, rejected);
+        final List<BulkResult> uploaded = uploads.isEmpty()
+                ? Collections.<BulkResult>emptyList()
+                : bulkUpload(databaseName, uploads);
+        return mergeBulkResults(localDocuments, rejected, uploaded);
+    }
+
+    private List<BulkResult> postBulkDocs(String databaseName, List<LocalDocument> localDocuments, boolean tombstones) throws IOException {
+        final int responseCode;
+        final JsonNode response;
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            writeBulkDocs(generator, localDocuments, tombstones);
+            generator.close();
+
+            HttpURLConnection urc = createConnection(databaseName, "_bulk_docs");
+            try {
+                urc.setRequestMethod("POST");
+                urc.setReadTimeout(timeouts.getBulkReadMillis());
+                writeBody(urc, buffer);
+
+                responseCode = connectionPool.responseCode(urc);
+                if (HTTP_CREATED != responseCode && HTTP_ACCEPTED != responseCode) {
+                    throw databaseException(urc);
+                }
+                response = readJson(urc);
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return readBulkResults(responseCode, response, localDocuments);
+    }
+
+    /**
+     * Writes the request body for {@code _bulk_docs}: the documents, or with {@code tombstones}, a tombstone for the
+     * replaced revision of each document instead.
+     */
+    static void writeBulkDocs(JsonGenerator generator, List<LocalDocument> localDocuments, boolean tombstones) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("docs");
+        for (LocalDocument localDocument : localDocuments) {
+            if (tombstones) {
+                generator.writeStartObject();
+                generator.writeStringField("_id", localDocument.getId());
+                generator.writeStringField("_rev", localDocument.getReplacedRev().get());
+                generator.writeBooleanField("_deleted", true);
+                generator.writeEndObject();
+            } else {
+                generator.writeTree(localDocument.getRootNode());
+            }
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Matches the response of {@code _bulk_docs} up with the documents written by
+     * {@link #writeBulkDocs(JsonGenerator, List, boolean)}.
+     *
+     * @return one result for each document.
+     */
+    static List<BulkResult> readBulkResults(int responseCode, JsonNode response, List<LocalDocument> localDocuments) {
+        if (!response.isArray() || response.size() != localDocuments.size()) {
+            throw new CouchDatabaseException(responseCode, "Expected " + localDocuments.size()
+                    + " results from _bulk_docs, but got " + response.size() + ".");
+        }
+        final List<BulkResult> results = new ArrayList<BulkResult>(localDocuments.size());
+        for (JsonNode result : response) {
+            results.add(BulkResult.fromJson(result));
+        }
+        return results;
+    }
+
+    /**
+     * @return the documents that replace a revision on the server.
+     */
+    static List<LocalDocument> withReplacedRev(List<LocalDocument> localDocuments) {
+        final List<LocalDocument> result = new ArrayList<LocalDocument>();
+        for (LocalDocument localDocument : localDocuments) {
+            if (localDocument.getReplacedRev().isPresent()) {
+                result.add(localDocument);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes in the results of the tombstones for {@code replaced}. A document whose revision was deleted no longer
+     * replaces anything, so that if the upload that follows is retried, the tombstone isn't sent again.
+     *
+     * @return the documents whose tombstone was rejected, with the result of the tombstone.
+     */
+    static Map<LocalDocument, BulkResult> acceptTombstones(List<LocalDocument> replaced, List<BulkResult> results) {
+        final Map<LocalDocument, BulkResult> rejected = new IdentityHashMap<LocalDocument, BulkResult>();
+        for (int i = 0; i < replaced.size(); i++) {
+            if (results.get(i).isOk()) {
+                replaced.get(i).clearReplacedRev();
+            } else {
+                rejected.put(replaced.get(i), results.get(i));
+            }
+        }
+        return rejected;
+    }
+
+    static List<LocalDocument> without(List<LocalDocument> localDocuments, Map<LocalDocument, BulkResult> rejected) {
+        final List<LocalDocument> result = new ArrayList<LocalDocument>(localDocuments.size());
+        for (LocalDocument localDocument : localDocuments) {
+            if (!rejected.containsKey(localDocument)) {
+                result.add(localDocument);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return one result for each of {@code localDocuments}: that of its rejected tombstone, or of its upload.
+     */
+    static List<BulkResult> mergeBulkResults(List<LocalDocument> localDocuments, Map<LocalDocument, BulkResult> rejected,
+            List<BulkResult> uploaded) {
+        final List<BulkResult> results = new ArrayList<BulkResult>(localDocuments.size());
+        final Iterator<BulkResult> uploads = uploaded.iterator();
+        for (LocalDocument localDocument : localDocuments) {
+            final BulkResult tombstone = rejected.get(localDocument);
+            results.add(tombstone != null ? tombstone : uploads.next());
+        }
+        return results;
+    }
+
+    @Override
+    public void delete(String databaseName, String id, String rev) throws IOException {
+        String documentAndQuery = urlEncode(id) + "?rev=" + urlEncode(rev);
+        HttpURLConnection urc = createConnection(databaseName, documentAndQuery);
+        try {
+            urc.setRequestMethod("DELETE");
+            if (HTTP_OK != connectionPool.responseCode(urc)) {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Reads the local (non-replicating) document {@code _local/name}.
+     */
+    @Override
+    public Optional<ObjectNode> downloadLocal(String databaseName, String name) throws IOException {
+        HttpURLConnection urc = createConnection(databaseName, "_local/" + urlEncode(name));
+        try {
+            urc.setRequestMethod("GET");
+            if (HTTP_NOTFOUND == connectionPool.responseCode(urc)) {
+                return Optional.absent();
+            } else if (HTTP_OK == connectionPool.responseCode(urc)) {
+                final JsonNode document = readJson(urc);
+                if (!document.isObject()) {
+                    throw new CouchDatabaseException(HTTP_OK, "The local document \"" + name + "\" in database \""
+                            + databaseName + "\" is not a JSON object.");
+                }
+                return Optional.of((ObjectNode) document);
+            } else {
+                throw databaseException(urc);
+            }
+        } finally {
+            connectionPool.release(urc);
+        }
+    }
+
+    /**
+     * Writes the local (non-replicating) document {@code _local/name}. To update an existing one, {@code document}
+     * must carry its current {@code _rev}.
+     *
+     * @return the revision the document was stored as.
+     */
+    @Override
+    public String uploadLocal(String databaseName, String name, ObjectNode document) throws IOException {
+        final ByteArrayOutputStream buffer = bufferPool.acquire();
+        try {
+            final JsonGenerator generator = createGenerator(buffer);
+            generator.writeTree(document);
+            generator.close();
+
+            HttpURLConnection urc = createConnection(databaseName, "_local/" + urlEncode(name));
+            try {
+                urc.setRequestMethod("PUT");
+                writeBody(urc, buffer);
+                if (HTTP_CREATED != connectionPool.responseCode(urc)) {
+                    throw databaseException(urc);
+                }
+                return readJson(urc).path("rev").getTextValue();
+            } finally {
+                connectionPool.release(urc);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static JsonGenerator createGenerator(OutputStream target) throws IOException {
+        return OBJECT_MAPPER.getJsonFactory().createJsonGenerator(target, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Writes the serialised request body, gzip-compressed if it is at least {@code compressionThreshold} bytes
+     * long. The body is streamed straight out of the buffer; the connection doesn't keep a copy of its own.
+     */
+    private void writeBody(HttpURLConnection urc, ByteArrayOutputStream body) throws IOException {
         urc.setRequestProperty("Content-Type", "application/json;charset=utf8");
-        urc.setRequestProperty("Content-Length", Integer.toString(body.length));
+        if (compressionThreshold != NO_COMPRESSION && body.size() >= compressionThreshold) {
+            final ByteArrayOutputStream compressed = bufferPool.acquire();
+            try {
+                gzip(body, compressed);
+                urc.setRequestProperty("Content-Encoding", "gzip");
+                sendBody(urc, compressed);
+            } finally {
+                bufferPool.release(compressed);
+            }
+        } else {
+            sendBody(urc, body);
+        }
+    }
+
+    private static void sendBody(HttpURLConnection urc, ByteArrayOutputStream body) throws IOException {
         urc.setDoOutput(true);
+        urc.setFixedLengthStreamingMode(body.size());
         final OutputStream os = urc.getOutputStream();
         try {
-            IOUtil.copy(body, os);
+            body.writeTo(os);
             os.flush();
         } finally {
             IOUtil.close(os);
         }
+    }
 
-        if (HTTP_CREATED != urc.getResponseCode()) {
-            throw databaseException(urc);
+    /**
+     * Streams a {@code multipart/related} body. It isn't compressed; CouchDB compresses attachments itself.
+     */
+    private static void sendMultipart(HttpURLConnection urc, MultipartRelated body) throws IOException {
+        if (body.getContentLength() > Integer.MAX_VALUE) {
+            throw new IOException("The attachments of a single document can't exceed 2 GB.");
+        }
+        urc.setRequestProperty("Content-Type", body.getContentType());
+        urc.setDoOutput(true);
+        urc.setFixedLengthStreamingMode((int) body.getContentLength());
+        final OutputStream os = urc.getOutputStream();
+        try {
+            body.writeTo(os);
+            os.flush();
+        } finally {
+            IOUtil.close(os);
         }
     }
 
-    @Override
-    public void delete(String databaseName, RemoteDocument remoteDocument) throws IOException {
-        String documentAndQuery = urlEncode(remoteDocument.getId()) + "?rev=" + remoteDocument.getRev().get();
-        HttpURLConnection urc = createConnection(databaseName, documentAndQuery);
-        urc.setRequestMethod("DELETE");
-        if (HTTP_OK != urc.getResponseCode()) {
-            throw databaseException(urc);
+    /**
+     * Parses the response body. The stream is left open; {@link ConnectionPool#release(HttpURLConnection)} drains
+     * and closes it.
+     */
+    private static JsonNode readJson(HttpURLConnection urc) throws IOException {
+        return OBJECT_MAPPER.readTree(responseBody(urc));
+    }
+
+    /**
+     * Parses the body of an error response, or returns a missing node if it isn't JSON.
+     */
+    private static JsonNode readError(HttpURLConnection urc) throws IOException {
+        final InputStream body = urc.getErrorStream();
+        if (null == body) {
+            return MissingNode.getInstance();
+        }
+        try {
+            return OBJECT_MAPPER.readTree("gzip".equalsIgnoreCase(urc.getContentEncoding()) ? new GZIPInputStream(body) : body);
+        } catch (JsonProcessingException e) {
+            return MissingNode.getInstance();
+        }
+    }
+
+    /**
+     * Returns the response body, decompressing it if the server (or a proxy in between) sent it gzip-encoded.
+     */
+    private static InputStream responseBody(HttpURLConnection urc) throws IOException {
+        if ("gzip".equalsIgnoreCase(urc.getContentEncoding())) {
+            return new GZIPInputStream(urc.getInputStream());
+        }
+        return urc.getInputStream();
+    }
+
+    static void gzip(ByteArrayOutputStream data, ByteArrayOutputStream target) throws IOException {
+        final GZIPOutputStream gzip = new GZIPOutputStream(target);
+        try {
+            data.writeTo(gzip);
+            gzip.finish();
+        } finally {
+            IOUtil.close(gzip);
+        }
+    }
+
+    /**
+     * Opens up to {@code connections} connections to the server at the same time and hands them back to the
+     * connection pool, so that the first requests of the actual work don't pay for the TCP and TLS handshakes.
+     */
+    public void prewarm(int connections) throws IOException {
+        final int count = Math.min(connections, connectionPool.getMaxConnections());
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>(count);
+            for (int i = 0; i < count; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        HttpURLConnection urc = openConnection(new URL(baseUrl, "/"));
+                        try {
+                            urc.setRequestMethod("HEAD");
+                            if (HTTP_OK != connectionPool.responseCode(urc)) {
+                                throw databaseException(urc);
+                            }
+                        } finally {
+                            connectionPool.release(urc);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening connections to " + baseUrl.getHost());
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdown();
         }
     }
 
@@ -150,10 +979,15 @@ class CouchFunctionsImpl implements CouchFunctions {
 
     private HttpURLConnection createConnection(String databaseName, @Nullable String documentAndQuery) throws IOException {
         String suffix = createDatabaseUrlSuffix(databaseName, documentAndQuery);
-        HttpURLConnection urc = (HttpURLConnection) new URL(baseUrl, suffix).openConnection();
-        urc.setConnectTimeout(30000);
-        urc.setReadTimeout(120000);
+        return openConnection(new URL(baseUrl, suffix));
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection urc = connectionPool.open(url);
+        urc.setConnectTimeout(timeouts.getConnectMillis());
+        urc.setReadTimeout(timeouts.getReadMillis());
         urc.setRequestProperty("Accept", "application/json");
+        urc.setRequestProperty("Accept-Encoding", "gzip");
         urc.setRequestProperty("User-Agent", HTTP_USER_AGENT);
         if (null != authorization) {
             urc.setRequestProperty("Authorization", authorization);
@@ -161,7 +995,7 @@ class CouchFunctionsImpl implements CouchFunctions {
         return urc;
     }
 
-    private static String createDatabaseUrlSuffix(String databaseName, @Nullable String documentAndQuery) {
+    static String createDatabaseUrlSuffix(String databaseName, @Nullable String documentAndQuery) {
         Preconditions.checkArgument(Document.isValidDabaseName(databaseName), "The string \"" + databaseName + "\" is an invalid Couch database name.");
 
         // URLEncode the '/' and '+' characters in the database name. Skip the trailing slash,
@@ -191,7 +1025,7 @@ class CouchFunctionsImpl implements CouchFunctions {
         return result.toString();
     }
 
-    private static String urlEncode(String text) {
+    static String urlEncode(String text) {
         try {
             return URLEncoder.encode(text, "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -200,6 +1034,33 @@ class CouchFunctionsImpl implements CouchFunctions {
     }
 
     private static CouchDatabaseException databaseException(HttpURLConnection urc) throws IOException {
-        return new CouchDatabaseException(urc.getResponseCode(), urc.getResponseMessage());
+        return new CouchDatabaseException(urc.getResponseCode(), urc.getResponseMessage(),
+                retryAfter(urc.getHeaderField("Retry-After"), System.currentTimeMillis()));
+    }
+
+    /**
+     * Reads the value of a {@code Retry-After} header, which holds either a number of seconds or an HTTP date.
+     *
+     * @return the number of milliseconds the server asked us to wait, if it did.
+     */
+    static Optional<Long> retryAfter(@Nullable String value, long nowMillis) {
+        if (Strings.isNullOrEmpty(value)) {
+            return Optional.absent();
+        }
+        final String trimmed = value.trim();
+        if (CharMatcher.DIGIT.matchesAllOf(trimmed)) {
+            try {
+                return Optional.of(Long.parseLong(trimmed) * 1000L);
+            } catch (NumberFormatException e) {
+                return Optional.absent();
+            }
+        }
+        final SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Optional.of(Math.max(0L, httpDate.parse(trimmed).getTime() - nowMillis));
+        } catch (ParseException e) {
+            return Optional.absent();
+        }
     }
 }
@@ -0,0 +1,196 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Remembers which documents were written to a CouchDB server by earlier runs: for every database and document id,
+ * the file it came from, the hash of that file's content and the revision it was stored as.
+ *
+ * <p>With this, a later run can skip files that haven't changed without contacting the server, and can upload
+ * changed files with the recorded revision instead of looking it up first. The manifest is a JSON file that holds
+ * one section per server URL; the credentials in the URL are not stored. Instances are safe for use by multiple
+ * threads.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class DeployManifest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final File file;
+    private final String serverKey;
+    private final ObjectNode root;
+
+    /** Keys: database name, then document id. */
+    private final Map<String, Map<String, Entry>> entriesById = new HashMap<String, Map<String, Entry>>();
+
+    /** Keys: database name, then absolute file path. */
+    private final Map<String, Map<String, Entry>> entriesByFile = new HashMap<String, Map<String, Entry>>();
+
+    private DeployManifest(File file, String serverKey, ObjectNode root) {
+        this.file = file;
+        this.serverKey = serverKey;
+        this.root = root;
+        for (Iterator<Map.Entry<String, JsonNode>> databases = root.path("servers").path(serverKey).getFields(); databases.hasNext();) {
+            final Map.Entry<String, JsonNode> database = databases.next();
+            for (Iterator<Map.Entry<String, JsonNode>> documents = database.getValue().getFields(); documents.hasNext();) {
+                final Map.Entry<String, JsonNode> document = documents.next();
+                put(database.getKey(), document.getKey(), new Entry(
+                        document.getValue().path("file").asText(),
+                        document.getValue().path("hash").asText(),
+                        document.getValue().path("rev").asText()));
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest from {@code file}, or starts an empty one if the file doesn't exist yet.
+     */
+    public static DeployManifest load(File file, URL couchUrl) throws IOException {
+        if (!Preconditions.checkNotNull(file).exists()) {
+            return empty(file, couchUrl);
+        }
+        final JsonNode root = OBJECT_MAPPER.readTree(file);
+        if (!root.isObject()) {
+            throw new IOException("The manifest " + file + " is not a JSON object.");
+        }
+        return new DeployManifest(file, serverKey(couchUrl), (ObjectNode) root);
+    }
+
+    /**
+     * Starts an empty manifest that will be saved to {@code file}, replacing whatever is there.
+     */
+    public static DeployManifest empty(File file, URL couchUrl) {
+        return new DeployManifest(Preconditions.checkNotNull(file), serverKey(couchUrl), OBJECT_MAPPER.createObjectNode());
+    }
+
+    /**
+     * @return {@code true} if {@code localDocument} was written to {@code databaseName} before, from a file with
+     *         the same content as it has now.
+     */
+    public boolean isUnchanged(String databaseName, LocalDocument localDocument) throws IOException {
+        final Entry entry = find(entriesByFile, databaseName, localDocument.getFile().getAbsolutePath());
+        return entry != null && entry.hash.equals(localDocument.getContentHash());
+    }
+
+    /**
+     * @return the revision {@code id} was last written as by this plugin, if any.
+     */
+    public synchronized Optional<String> getRevision(String databaseName, String id) {
+        final Entry entry = find(entriesById, databaseName, id);
+        return entry != null ? Optional.of(entry.rev) : Optional.<String>absent();
+    }
+
+    /**
+     * Records that {@code localDocument} was written to {@code databaseName} as revision {@code rev}.
+     */
+    public void record(String databaseName, LocalDocument localDocument, String rev) throws IOException {
+        final Entry entry = new Entry(localDocument.getFile().getAbsolutePath(), localDocument.getContentHash(), rev);
+        synchronized (this) {
+            final Entry previous = find(entriesById, databaseName, localDocument.getId());
+            if (previous != null) {
+                entriesByFile.get(databaseName).remove(previous.file);
+            }
+            put(databaseName, localDocument.getId(), entry);
+        }
+    }
+
+    /**
+     * Writes the manifest back to its file. Sections for other servers are kept as they were.
+     */
+    public synchronized void save() throws IOException {
+        final ObjectNode server = OBJECT_MAPPER.createObjectNode();
+        for (Map.Entry<String, Map<String, Entry>> database : entriesById.entrySet()) {
+            final ObjectNode documents = server.putObject(database.getKey());
+            for (Map.Entry<String, Entry> document : database.getValue().entrySet()) {
+                final ObjectNode node = documents.putObject(document.getKey());
+                node.put("file", document.getValue().file);
+                node.put("hash", document.getValue().hash);
+                node.put("rev", document.getValue().rev);
+            }
+        }
+        final JsonNode servers = root.path("servers");
+        (servers.isObject() ? (ObjectNode) servers : root.putObject("servers")).put(serverKey, server);
+
+        // Write to a temporary file first, so that an interrupted build doesn't leave half a manifest behind.
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        final File temporary = new File(parent, file.getName() + ".tmp");
+        OBJECT_MAPPER.writeValue(temporary, root);
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            throw new IOException("Could not replace " + file + " with " + temporary);
+        }
+    }
+
+    private void put(String databaseName, String id, Entry entry) {
+        index(entriesById, databaseName).put(id, entry);
+        index(entriesByFile, databaseName).put(entry.file, entry);
+    }
+
+    private static Map<String, Entry> index(Map<String, Map<String, Entry>> entries, String databaseName) {
+        Map<String, Entry> database = entries.get(databaseName);
+        if (database == null) {
+            database = new HashMap<String, Entry>();
+            entries.put(databaseName, database);
+        }
+        return database;
+    }
+
+    private synchronized Entry find(Map<String, Map<String, Entry>> entries, String databaseName, String key) {
+        final Map<String, Entry> database = entries.get(databaseName);
+        return database != null ? database.get(key) : null;
+    }
+
+    /**
+     * @return {@code couchUrl} without the user info, so that no credentials end up in the manifest.
+     */
+    static String serverKey(URL couchUrl) {
+        try {
+            return new URL(couchUrl.getProtocol(), couchUrl.getHost(), couchUrl.getPort(), couchUrl.getPath()).toString();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Not a valid CouchDB URL: " + couchUrl, e);
+        }
+    }
+
+    private static final class Entry {
+        final String file;
+        final String hash;
+        final String rev;
+
+        Entry(String file, String hash, String rev) {
+            this.file = file;
+            this.hash = hash;
+            this.rev = rev;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.sonatype.inject.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * What a deploy will do to a CouchDB server: which databases it creates, and for every local document whether it's
+ * created, updated, left alone or fails, together with the remote revision it was planned against.
+ *
+ * <p>A plan is written to a JSON file by the {@code plan} goal, so that it can be reviewed, and carried out later by
+ * the {@code apply} goal. Instances are safe for use by multiple threads.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class DeployPlan {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    static enum Action {
+        /** The document doesn't exist on the server, and is uploaded. */
+        CREATE,
+        /** The document exists on the server, and is uploaded over the planned revision. */
+        UPDATE,
+        /** The document exists on the server with the same content, and isn't uploaded. */
+        UNCHANGED,
+        /** The document, or its database, is left alone as configured. */
+        SKIP,
+        /** The deploy fails on the document. */
+        FAIL
+    }
+
+    private final String serverKey;
+    private final Config.ExistingDocs existingDocs;
+    private final Set<String> createdDatabases = new LinkedHashSet<String>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    DeployPlan(URL couchUrl, Config.ExistingDocs existingDocs) {
+        this(DeployManifest.serverKey(couchUrl), existingDocs);
+    }
+
+    private DeployPlan(String serverKey, Config.ExistingDocs existingDocs) {
+        this.serverKey = serverKey;
+        this.existingDocs = Preconditions.checkNotNull(existingDocs);
+    }
+
+    /**
+     * Reads a plan written by {@link #save(File)}.
+     */
+    public static DeployPlan load(File file) throws IOException {
+        final JsonNode root = OBJECT_MAPPER.readTree(file);
+        if (!root.isObject() || !root.path("server").isTextual() || !root.path("existingDocs").isTextual()) {
+            throw new IOException("The file " + file + " is not a deploy plan.");
+        }
+        final DeployPlan plan;
+        try {
+            plan = new DeployPlan(root.path("server").asText(), Config.ExistingDocs.parse(root.path("existingDocs").asText()));
+            for (JsonNode database : root.path("createDatabases")) {
+                plan.createDatabase(database.asText());
+            }
+            for (JsonNode document : root.path("documents")) {
+                plan.add(new Entry(
+                        document.path("db").asText(),
+                        new File(document.path("file").asText()),
+                        Action.valueOf(document.path("action").asText()),
+                        textOrNull(document.path("id")),
+                        textOrNull(document.path("rev")),
+                        textOrNull(document.path("hash")),
+                        textOrNull(document.path("reason"))));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The file " + file + " is not a valid deploy plan: " + e.getMessage(), e);
+        }
+        return plan;
+    }
+
+    /**
+     * Writes the plan to {@code file}, one compact JSON object per document.
+     */
+    public synchronized void save(File file) throws IOException {
+        final ObjectNode root = OBJECT_MAPPER.createObjectNode();
+        root.put("server", serverKey);
+        root.put("existingDocs", existingDocs.name());
+        final ArrayNode databases = root.putArray("createDatabases");
+        for (String database : createdDatabases) {
+            databases.add(database);
+        }
+        final ArrayNode documents = root.putArray("documents");
+        for (Entry entry : entries) {
+            final ObjectNode document = documents.addObject();
+            document.put("db", entry.databaseName);
+            document.put("file", entry.file.getAbsolutePath());
+            document.put("action", entry.action.name());
+            putIfPresent(document, "id", entry.id);
+            putIfPresent(document, "rev", entry.rev);
+            putIfPresent(document, "hash", entry.hash);
+            putIfPresent(document, "reason", entry.reason);
+        }
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        OBJECT_MAPPER.writeValue(file, root);
+    }
+
+    /**
+     * @throws IllegalStateException if the plan was made for another server than {@code couchUrl}.
+     */
+    public void checkServer(URL couchUrl) {
+        Preconditions.checkState(serverKey.equals(DeployManifest.serverKey(couchUrl)),
+                "The plan was made for %s, not for %s.", serverKey, DeployManifest.serverKey(couchUrl));
+    }
+
+    public Config.ExistingDocs getExistingDocs() {
+        return existingDocs;
+    }
+
+    public synchronized void createDatabase(String databaseName) {
+        createdDatabases.add(databaseName);
+    }
+
+    public synchronized Set<String> getCreatedDatabases() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(createdDatabases));
+    }
+
+    public synchronized void add(Entry entry) {
+        entries.add(Preconditions.checkNotNull(entry));
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    public synchronized int count(Action action) {
+        int result = 0;
+        for (Entry entry : entries) {
+            if (entry.action == action) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static void putIfPresent(ObjectNode node, String name, @Nullable String value) {
+        if (value != null) {
+            node.put(name, value);
+        }
+    }
+
+    private static String textOrNull(JsonNode node) {
+        return node.isTextual() ? node.getTextValue() : null;
+    }
+
+    /**
+     * What happens to a single local document.
+     */
+    static final class Entry {
+        final String databaseName;
+        final File file;
+        final Action action;
+        final String id;
+        final String rev;
+        final String hash;
+        final String reason;
+
+        /**
+         * @param id     the document id, if the file could be loaded.
+         * @param rev    the remote revision the document is planned against, if it exists on the server.
+         * @param hash   the content hash of the file, for documents that are uploaded.
+         * @param reason why the deploy would fail on the document, for {@link Action#FAIL}.
+         */
+        Entry(String databaseName, File file, Action action, @Nullable String id, @Nullable String rev,
+                @Nullable String hash, @Nullable String reason) {
+            this.databaseName = Preconditions.checkNotNull(databaseName);
+            this.file = Preconditions.checkNotNull(file);
+            this.action = Preconditions.checkNotNull(action);
+            this.id = id;
+            this.rev = rev;
+            this.hash = hash;
+            this.reason = reason;
+        }
+
+        public Optional<String> getRev() {
+            return Optional.fromNullable(rev);
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + databaseName + "/" + (id != null ? id : file.getName()) + (rev != null ? " @ " + rev : "")
+                    + (reason != null ? " (" + reason + ")" : "");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree for changed files with a {@link WatchService}. A {@code WatchService} only reports
+ * changes in the directories registered with it, so every directory in the tree is registered, and directories that
+ * are created later are registered as they appear.
+ *
+ * <p>Editors tend to save a file in several steps, and a build may touch many files at once. {@link
+ * #awaitChanges(long)} therefore waits for the file system to go quiet before it reports a change. On platforms
+ * without native file events, the JDK polls the directories, and it takes a few seconds for a change to be
+ * noticed. Instances are not safe for use by multiple threads.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+final class DirectoryWatcher implements Closeable {
+
+    private final Path root;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    public DirectoryWatcher(File root) throws IOException {
+        this.root = root.toPath();
+        this.watchService = this.root.getFileSystem().newWatchService();
+        try {
+            registerTree(this.root);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks until something changes in the tree, then keeps collecting changes until none arrive for
+     * {@code quietMillis}.
+     *
+     * @return the paths that were created, modified or deleted. A directory stands for everything below it, for
+     *         instance when it was created with its content, or when the platform dropped events. Never empty.
+     */
+    public Set<File> awaitChanges(long quietMillis) throws IOException, InterruptedException {
+        final Set<File> changes = new HashSet<File>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            collect(key, changes);
+            key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+        }
+        if (changes.isEmpty()) {
+            // Only the watched directories themselves were affected, for instance when one was deleted.
+            return awaitChanges(quietMillis);
+        }
+        return changes;
+    }
+
+    private void collect(WatchKey key, Set<File> changes) throws IOException {
+        final Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                changes.add(directory != null ? directory.toFile() : root.toFile());
+                continue;
+            }
+            final Path path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    registerTree(path);
+                } catch (NoSuchFileException e) {
+                    // Deleted again already; the deletion is among the next events.
+                }
+            }
+            changes.add(path.toFile());
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void registerTree(Path directory) throws IOException {
+        directories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+        final DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    registerTree(entry);
+                }
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -41,8 +41,11 @@ abstract class Document {
     private ObjectNode jsonRootNode;
 
     protected void initRootNode(JsonParser parser) throws JsonProcessingException, IOException {
+        initRootNode(parser.readValueAsTree());
+    }
+
+    protected void initRootNode(JsonNode parsed) throws DocumentValidationException {
         Preconditions.checkState(jsonRootNode == null, "The rootNode should only be set once.");
-        JsonNode parsed = parser.readValueAsTree();
 
         if (!parsed.isObject()) {
             throw new DocumentValidationException("The root of the JSON document must be an object node.");
@@ -50,8 +53,8 @@ abstract class Document {
 
         ObjectNode rootNode = ((ObjectNode) parsed);
 
-        // All our documents must have an _id.
-        final JsonNode idNode = rootNode.findPath("_id");
+        // All our documents must have an _id, at the top level.
+        final JsonNode idNode = rootNode.path("_id");
         if (!idNode.isTextual()) {
             throw new DocumentValidationException("The document's _id node is missing or not a string value.");
         }
@@ -70,7 +73,7 @@ abstract class Document {
 
     public Optional<String> getRev() {
         Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
-        JsonNode revNode = jsonRootNode.findPath("_rev");
+        JsonNode revNode = jsonRootNode.path("_rev");
         if (revNode.isMissingNode()) {
             return Optional.absent();
         }
@@ -81,6 +84,13 @@ abstract class Document {
         return jsonRootNode;
     }
 
+    /**
+     * @return the {@code _attachments} of this document as CouchDB reports them, or a missing node if it has none.
+     */
+    protected JsonNode getAttachmentsNode() {
+        return getRootNode().path("_attachments");
+    }
+
     protected JsonFactory getJsonFactory() {
         return JSON_FACTORY;
     }
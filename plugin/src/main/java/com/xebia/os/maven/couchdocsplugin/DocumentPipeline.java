@@ -0,0 +1,199 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Runs the load, look-up and upload steps for the documents of one database as a pipeline, so that parsing
+ * documents and waiting for the network happen at the same time.
+ *
+ * <p>Documents are loaded on the parse executor, which should be sized to the number of processors. The look-up and
+ * upload stages each run on a thread of the I/O executor and work in batches. The stages are connected by bounded
+ * queues: a stage that falls behind makes the stages before it wait, so no more than a few batches of parsed
+ * documents are held in memory.</p>
+ *
+ * <p>If a stage fails, the remaining documents are passed through without being processed and the first failure is
+ * rethrown from {@link #run(Collection, Stages)}.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class DocumentPipeline {
+
+    /**
+     * The work done in each stage of the pipeline. The methods are called from different threads.
+     */
+    interface Stages {
+        /**
+         * @return {@code true} if the document was loaded and should go on to the next stage.
+         */
+        boolean load(LocalDocument localDocument);
+
+        /**
+         * @return the documents from {@code batch} that should be uploaded.
+         */
+        List<LocalDocument> select(List<LocalDocument> batch);
+
+        void upload(List<LocalDocument> batch);
+    }
+
+    private static final Optional<LocalDocument> END = Optional.absent();
+
+    private final ExecutorService parseExecutor;
+    private final ExecutorService ioExecutor;
+    private final int batchSize;
+
+    public DocumentPipeline(ExecutorService parseExecutor, ExecutorService ioExecutor, int batchSize) {
+        super();
+        Preconditions.checkArgument(batchSize > 0, "The batch size must be a positive number.");
+        this.parseExecutor = Preconditions.checkNotNull(parseExecutor);
+        this.ioExecutor = Preconditions.checkNotNull(ioExecutor);
+        this.batchSize = batchSize;
+    }
+
+    public void run(Collection<LocalDocument> documents, final Stages stages) {
+        // Room for the batch that is being filled plus the next one.
+        final int queueCapacity = Math.max(2 * batchSize, 16);
+        final BlockingQueue<Optional<LocalDocument>> loaded = new ArrayBlockingQueue<Optional<LocalDocument>>(queueCapacity);
+        final BlockingQueue<Optional<LocalDocument>> selected = new ArrayBlockingQueue<Optional<LocalDocument>>(queueCapacity);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(documents.size() + 2);
+        futures.add(ioExecutor.submit(new BatchingStage(loaded, failure) {
+            @Override
+            void process(List<LocalDocument> batch) throws InterruptedException {
+                for (LocalDocument localDocument : stages.select(batch)) {
+                    selected.put(Optional.of(localDocument));
+                }
+            }
+
+            @Override
+            void finish() throws InterruptedException {
+                selected.put(END);
+            }
+        }));
+        futures.add(ioExecutor.submit(new BatchingStage(selected, failure) {
+            @Override
+            void process(List<LocalDocument> batch) {
+                stages.upload(batch);
+            }
+        }));
+
+        final List<Future<?>> parseFutures = new ArrayList<Future<?>>(documents.size());
+        for (final LocalDocument localDocument : documents) {
+            parseFutures.add(parseExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (null == failure.get() && stages.load(localDocument)) {
+                            loaded.put(Optional.of(localDocument));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        futures.addAll(parseFutures);
+
+        try {
+            for (Future<?> parseFuture : parseFutures) {
+                parseFuture.get();
+            }
+            loaded.put(END);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing documents.", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+
+        if (null != failure.get()) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Takes documents from a queue until it hits the end marker, and processes them in batches. After a failure
+     * anywhere in the pipeline, it keeps taking documents without processing them, so the stages before it are
+     * never blocked on a full queue.
+     */
+    private abstract class BatchingStage implements Runnable {
+        private final BlockingQueue<Optional<LocalDocument>> input;
+        private final AtomicReference<RuntimeException> failure;
+
+        BatchingStage(BlockingQueue<Optional<LocalDocument>> input, AtomicReference<RuntimeException> failure) {
+            this.input = input;
+            this.failure = failure;
+        }
+
+        abstract void process(List<LocalDocument> batch) throws InterruptedException;
+
+        void finish() throws InterruptedException {
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<LocalDocument> batch = new ArrayList<LocalDocument>(batchSize);
+                for (Optional<LocalDocument> next = input.take(); next.isPresent(); next = input.take()) {
+                    batch.add(next.get());
+                    if (batch.size() == batchSize) {
+                        processUnlessFailed(batch);
+                        batch = new ArrayList<LocalDocument>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    processUnlessFailed(batch);
+                }
+                finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void processUnlessFailed(List<LocalDocument> batch) throws InterruptedException {
+            if (null != failure.get()) {
+                return;
+            }
+            try {
+                process(batch);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
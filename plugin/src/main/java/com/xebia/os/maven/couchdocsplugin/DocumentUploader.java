@@ -0,0 +1,183 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Uploads loaded documents to a database, one by one or in {@code _bulk_docs} requests, and records the new
+ * revisions in the deploy manifest. Documents that carry a replaced revision have the remote copy deleted first.
+ * Used by both the {@code update} and the {@code apply} goals, which differ in how they deal with rejected documents.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class DocumentUploader {
+
+    private static final int HTTP_CONFLICT = 409;
+
+    /**
+     * Receives the outcome of each document.
+     */
+    interface Listener {
+
+        /**
+         * The document was written as revision {@code rev}, and recorded in the deploy manifest.
+         */
+        void uploaded(LocalDocument localDocument, String rev, Progress progress);
+
+        /**
+         * The server rejected the document.
+         *
+         * @param conflict whether the document was rejected because its revision isn't the current one.
+         * @param error    the CouchDB error code and reason, or the failure of a document uploaded on its own.
+         */
+        void rejected(LocalDocument localDocument, boolean conflict, String error, Progress progress);
+    }
+
+    private final CouchFunctions couchFunctions;
+    private final boolean replace;
+    private final int batchSize;
+    private final Optional<DeployManifest> manifest;
+
+    /**
+     * @param replace   whether documents are uploaded with {@code bulkReplace}, as the REPLACE strategy does.
+     * @param batchSize the number of documents per bulk request; 1 uploads each document on its own.
+     */
+    public DocumentUploader(CouchFunctions couchFunctions, boolean replace, int batchSize, Optional<DeployManifest> manifest) {
+        super();
+        Preconditions.checkArgument(batchSize > 0, "The batch size must be a positive number.");
+        this.couchFunctions = Preconditions.checkNotNull(couchFunctions);
+        this.replace = replace;
+        this.batchSize = batchSize;
+        this.manifest = Preconditions.checkNotNull(manifest);
+    }
+
+    /**
+     * Uploads {@code uploads} in batches of {@code batchSize}. Documents with attachment files are uploaded on their
+     * own, because {@code _bulk_docs} only takes attachments inline, as base64.
+     */
+    public void upload(String databaseName, List<LocalDocument> uploads, Progress progress, Listener listener) {
+        if (batchSize == 1) {
+            for (LocalDocument localDocument : uploads) {
+                uploadDocument(databaseName, localDocument, progress, listener);
+            }
+            return;
+        }
+        for (List<LocalDocument> batch : Lists.partition(uploads, batchSize)) {
+            final List<LocalDocument> bulk = new ArrayList<LocalDocument>(batch.size());
+            for (LocalDocument localDocument : batch) {
+                if (localDocument.hasAttachmentFiles()) {
+                    uploadDocument(databaseName, localDocument, progress, listener);
+                } else {
+                    bulk.add(localDocument);
+                }
+            }
+            if (!bulk.isEmpty()) {
+                uploadBatch(databaseName, bulk, progress, listener);
+            }
+        }
+    }
+
+    public void uploadDocument(String databaseName, LocalDocument localDocument, Progress progress, Listener listener) {
+        final CouchFunctions couch = RetryingCouchFunctions.reportingTo(couchFunctions, progress);
+        if (localDocument.getReplacedRev().isPresent()) {
+            if (!localDocument.hasAttachmentFiles()) {
+                // bulkReplace() deletes the remote copy and uploads this one in two bulk requests of one document.
+                uploadBatch(databaseName, Collections.singletonList(localDocument), progress, listener);
+                return;
+            }
+            // Attachment files can't go in _bulk_docs, so the remote copy is deleted up front.
+            try {
+                couch.delete(databaseName, localDocument.getId(), localDocument.getReplacedRev().get());
+            } catch (CouchDatabaseException e) {
+                listener.rejected(localDocument, e.getResponseCode() == HTTP_CONFLICT, e.toString(), progress);
+                return;
+            } catch (IOException e) {
+                progress.error("Could not delete document " + localDocument.getId() + " from database " + databaseName, e);
+                return;
+            }
+        }
+        progress.info("Uploading document \"" + localDocument.getId() + "\".");
+        final String rev;
+        try {
+            rev = couch.upload(databaseName, localDocument);
+        } catch (CouchDatabaseException e) {
+            listener.rejected(localDocument, e.getResponseCode() == HTTP_CONFLICT, e.toString(), progress);
+            return;
+        } catch (IOException e) {
+            progress.error("Could not upload document " + localDocument + " to CouchDB", e);
+            return;
+        }
+        uploaded(databaseName, localDocument, rev, progress, listener);
+    }
+
+    public void uploadBatch(String databaseName, List<LocalDocument> batch, Progress progress, Listener listener) {
+        final CouchFunctions couch = RetryingCouchFunctions.reportingTo(couchFunctions, progress);
+        progress.info("Uploading " + batch.size() + " document(s) in bulk.");
+        final List<BulkResult> results;
+        try {
+            results = replace ? couch.bulkReplace(databaseName, batch) : couch.bulkUpload(databaseName, batch);
+        } catch (CouchDatabaseException e) {
+            // The server turned down the request as a whole, such as a 413 for a batch that's too large.
+            for (LocalDocument localDocument : batch) {
+                listener.rejected(localDocument, e.getResponseCode() == HTTP_CONFLICT, e.toString(), progress);
+            }
+            return;
+        } catch (IOException e) {
+            progress.error("Could not upload " + batch.size() + " document(s) to CouchDB", e);
+            return;
+        }
+
+        // CouchDB reports the results in request order, one for each document.
+        for (int i = 0; i < batch.size(); i++) {
+            final LocalDocument localDocument = batch.get(i);
+            final BulkResult result = results.get(i);
+            if (result.isOk()) {
+                uploaded(databaseName, localDocument, result.getRev().orNull(), progress, listener);
+            } else {
+                listener.rejected(localDocument, "conflict".equals(result.getError().get()),
+                        result.getError().get() + " (" + result.getReason().or("no reason given") + ")", progress);
+            }
+        }
+    }
+
+    /**
+     * Records {@code rev} as the revision of {@code localDocument} in the deploy manifest, if there is one.
+     */
+    public void record(String databaseName, LocalDocument localDocument, String rev, Progress progress) {
+        if (!manifest.isPresent() || null == rev || null == localDocument.getFile()) {
+            return;
+        }
+        try {
+            manifest.get().record(databaseName, localDocument, rev);
+        } catch (IOException e) {
+            progress.warn("Could not record " + localDocument + " in the manifest: " + e);
+        }
+    }
+
+    private void uploaded(String databaseName, LocalDocument localDocument, String rev, Progress progress, Listener listener) {
+        progress.debug("Uploaded document \"" + localDocument.getId() + "\" as revision " + rev + ".");
+        record(databaseName, localDocument, rev, progress);
+        listener.uploaded(localDocument, rev, progress);
+    }
+}
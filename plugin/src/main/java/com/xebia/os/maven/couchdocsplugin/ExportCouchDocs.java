@@ -0,0 +1,386 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Writes the documents of databases on the server to files in the {@code baseDir} layout, one file per document,
+ * so that the update goal can deploy them again.
+ *
+ * <p>The documents are read from a single streaming {@code _all_docs} request per database and written on a pool
+ * of threads. At most a few documents per writer thread are held in memory at any time, so that memory use doesn't
+ * grow with the size of the database. The {@code _rev} of every document is left out.</p>
+ *
+ * <p>The attachments of a document are written to its {@code .attachments} directory, as described in
+ * {@link LocalDocumentsSelector}, once the stream of documents is done; the stream doesn't hold on to its connection
+ * while they download. Until then, the attachments to download are kept in a temporary file rather than in memory.
+ * An attachment whose name doesn't make a safe relative path is reported as a warning and left out.</p>
+ *
+ * <p>The directory of a database is only created once its first document arrives, so that a database that
+ * doesn't exist leaves nothing behind.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class ExportCouchDocs {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+    private static final int QUEUED_PER_WRITER = 4;
+
+    private final Progress progress;
+    private final CouchFunctions couchFunctions;
+    private final File baseDir;
+    private final boolean designOnly;
+    private final int writers;
+
+    /**
+     * @param designOnly only export the design documents.
+     * @param writers    the number of threads that write files.
+     */
+    public ExportCouchDocs(Progress progress, CouchFunctions couchFunctions, File baseDir, boolean designOnly, int writers) {
+        super();
+        Preconditions.checkArgument(writers > 0, "The number of writers must be positive.");
+        this.progress = Preconditions.checkNotNull(progress);
+        this.couchFunctions = Preconditions.checkNotNull(couchFunctions);
+        this.baseDir = Preconditions.checkNotNull(baseDir);
+        this.designOnly = designOnly;
+        this.writers = writers;
+    }
+
+    /**
+     * @return the number of documents exported.
+     */
+    public int execute(Collection<String> databaseNames) throws InterruptedIOException {
+        int total = 0;
+        for (String databaseName : databaseNames) {
+            final File directory = new File(baseDir, databaseName);
+            progress.info("Exporting " + (designOnly ? "the design documents of " : "") + "database \"" + databaseName
+                    + "\" to " + directory + ".");
+            progress.indent();
+            try {
+                total += exportDatabase(databaseName, directory);
+            } finally {
+                progress.unindent();
+            }
+        }
+        return total;
+    }
+
+    private int exportDatabase(String databaseName, File directory) throws InterruptedIOException {
+        if (!Document.isValidDabaseName(databaseName)) {
+            progress.error("\"" + databaseName + "\" is an invalid Couch database name.");
+            return 0;
+        }
+        final DocumentWriter writer = new DocumentWriter(databaseName, directory);
+        int count = 0;
+        Exception failure = null;
+        try {
+            count = couchFunctions.streamDocuments(databaseName, designOnly, writer);
+            writer.downloadAttachments();
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            failure = e;
+        } catch (CouchDatabaseException e) {
+            failure = e;
+        } finally {
+            writer.close();
+        }
+        // A failed write stops the export, and is the more likely reason if the stream failed as well.
+        if (writer.failure.get() != null) {
+            progress.error("Could not export database \"" + databaseName + "\"", writer.failure.get());
+            return 0;
+        }
+        if (failure != null) {
+            progress.error("Could not export database \"" + databaseName + "\"", failure);
+            return 0;
+        }
+        progress.info("Exported " + count + " document(s).");
+        return count;
+    }
+
+    /**
+     * Percent-encodes every character of the document id other than letters, digits, {@code '.'}, {@code '_'} and
+     * {@code '-'}, in UTF-8, so that ids such as {@code _design/app} make valid and distinct file names. The file
+     * name is not used when the document is deployed again; the id is taken from the content.
+     */
+    static String fileNameOf(String id) {
+        final StringBuilder result = new StringBuilder(id.length() + 16);
+        for (byte b : id.getBytes(Charsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '_' || b == '-') {
+                result.append((char) b);
+            } else {
+                result.append('%').append(HEX_DIGITS.charAt((b >> 4) & 0xF)).append(HEX_DIGITS.charAt(b & 0xF));
+            }
+        }
+        // A leading dot would hide the file, and be skipped by some tools.
+        if (result.length() > 0 && result.charAt(0) == '.') {
+            result.replace(0, 1, "%2E");
+        }
+        return result.append(".json").toString();
+    }
+
+    /**
+     * Tells whether an attachment name makes a relative path below the attachments directory.
+     */
+    static boolean isSafeAttachmentName(String name) {
+        if (name.isEmpty() || CharMatcher.anyOf("\\:").matchesAnyOf(name)) {
+            return false;
+        }
+        for (String segment : Splitter.on('/').split(name)) {
+            if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands every document to a pool of writer threads, blocking the stream while the writers are behind. The first
+     * failed write is thrown from the next call to {@link #handle}, which ends the stream.
+     */
+    private final class DocumentWriter implements DocumentHandler {
+
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        private final String databaseName;
+        private final File directory;
+        private final ExecutorService executor;
+        private final Semaphore queued;
+        private boolean directoryCreated;
+        /** The attachments seen in the stream so far, as a JSON array of document id and name per line. */
+        private File pending;
+        private Writer pendingWriter;
+
+        DocumentWriter(String databaseName, File directory) {
+            super();
+            this.databaseName = databaseName;
+            this.directory = directory;
+            this.executor = Executors.newFixedThreadPool(writers,
+                    new ThreadFactoryBuilder().setNameFormat("couch-docs-export-%d").setDaemon(true).build());
+            this.queued = new Semaphore(writers * QUEUED_PER_WRITER);
+        }
+
+        @Override
+        public void handle(final ObjectNode document) throws IOException {
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (!document.path("_id").isTextual()) {
+                return;
+            }
+            if (!directoryCreated) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not create directory " + directory);
+                }
+                directoryCreated = true;
+            }
+            final String id = document.get("_id").getTextValue();
+            final File documentFile = new File(directory, fileNameOf(id));
+            document.remove("_rev");
+            final JsonNode stubs = document.remove("_attachments");
+            if (stubs != null) {
+                final Iterator<String> names = stubs.getFieldNames();
+                while (names.hasNext()) {
+                    queueAttachment(id, names.next());
+                }
+            }
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(document, documentFile);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        private void queueAttachment(String id, String name) throws IOException {
+            if (!isSafeAttachmentName(name)) {
+                progress.warn("The attachment \"" + name + "\" of document \"" + id + "\" in database \"" + databaseName
+                        + "\" is not exported; its name is not a safe file name.");
+                return;
+            }
+            if (null == pendingWriter) {
+                pending = File.createTempFile("couch-docs-attachments-", ".json");
+                pendingWriter = Files.newWriter(pending, Charsets.UTF_8);
+            }
+            final ArrayNode line = OBJECT_MAPPER.createArrayNode();
+            line.add(id);
+            line.add(name);
+            pendingWriter.write(line.toString());
+            pendingWriter.write('\n');
+        }
+
+        /**
+         * Downloads the attachments seen in the stream, unless a write failed. An attachment that a retried stream
+         * listed twice is downloaded twice; the second copy replaces the first.
+         */
+        void downloadAttachments() throws IOException {
+            if (null == pendingWriter) {
+                return;
+            }
+            pendingWriter.close();
+            pendingWriter = null;
+            final BufferedReader reader = Files.newReader(pending, Charsets.UTF_8);
+            try {
+                String line;
+                while (failure.get() == null && null != (line = reader.readLine())) {
+                    final JsonNode attachment = OBJECT_MAPPER.readTree(line);
+                    final String id = attachment.get(0).getTextValue();
+                    final String name = attachment.get(1).getTextValue();
+                    enqueue(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failure.get() == null) {
+                                download(id, name);
+                            }
+                        }
+                    });
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        private void download(String id, String name) {
+            final File target = new File(LocalDocumentsSelector.attachmentDirectoryOf(new File(directory, fileNameOf(id))), name);
+            try {
+                final File parent = target.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create directory " + parent);
+                }
+                final File temporary = File.createTempFile("couch-docs-", ".tmp", parent);
+                try {
+                    couchFunctions.downloadAttachment(databaseName, id, name, temporary);
+                    replace(target, temporary);
+                } finally {
+                    deleteIfPresent(temporary);
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } catch (CouchDatabaseException e) {
+                failure.compareAndSet(null, new IOException("Could not download attachment \"" + name + "\" of document \""
+                        + id + "\".", e));
+            }
+        }
+
+        /**
+         * Runs {@code task} on a writer thread, waiting while the writers are behind.
+         */
+        private void enqueue(final Runnable task) throws InterruptedIOException {
+            try {
+                queued.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while exporting database \"" + databaseName + "\".");
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        queued.release();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits for the queued documents and attachments to be written.
+         */
+        void close() throws InterruptedIOException {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1L, TimeUnit.MINUTES)) {
+                    // Keep waiting; every write is bounded by the size of a single document.
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while exporting database \"" + databaseName + "\".");
+            } finally {
+                if (null != pendingWriter) {
+                    IOUtil.close(pendingWriter);
+                }
+                if (null != pending) {
+                    deleteIfPresent(pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to a temporary file first, so that an interrupted export doesn't leave half a document behind. A
+     * retried stream can hand over the same document again while the first copy is being written.
+     */
+    private static void write(ObjectNode document, File target) throws IOException {
+        final File temporary = File.createTempFile("couch-docs-", ".tmp", target.getParentFile());
+        try {
+            final JsonGenerator generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(temporary, JsonEncoding.UTF8);
+            try {
+                generator.useDefaultPrettyPrinter();
+                generator.writeTree(document);
+            } finally {
+                generator.close();
+            }
+            replace(target, temporary);
+        } finally {
+            deleteIfPresent(temporary);
+        }
+    }
+
+    private static void replace(File target, File temporary) throws IOException {
+        if (!temporary.renameTo(target) && !(target.delete() && temporary.renameTo(target))) {
+            throw new IOException("Could not replace " + target + " with " + temporary);
+        }
+    }
+
+    private static void deleteIfPresent(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
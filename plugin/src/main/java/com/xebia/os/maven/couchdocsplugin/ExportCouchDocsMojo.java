@@ -0,0 +1,93 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Export documents from CouchDB into the source directory.
+ *
+ * This goal reads every document of the configured databases and writes it to a file of its own in baseDir, in the
+ * directory layout the update goal deploys from. The documents are streamed from the server and written as they
+ * arrive, so that databases of any size can be exported. Use it to bootstrap a project from an existing server, or
+ * to pull in design documents that were edited on the server.
+ *
+ * <p>Existing files with the same names are overwritten; other files are left alone. The {@code _rev} of the
+ * documents is not exported. Their attachments are, as files in a directory next to the document file named after
+ * it with {@code .attachments} in place of its extension, at the path given by the attachment name: attachment
+ * {@code css/style.css} of {@code _design%2Fapp.json} goes to {@code _design%2Fapp.attachments/css/style.css}. An
+ * attachment whose name isn't a safe relative path, such as one with a {@code ..} segment, is left out with a
+ * warning. A database directory is only created once the database turns out to have documents.</p>
+ *
+ * @goal export
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+public class ExportCouchDocsMojo extends UpdateCouchDocsMojo {
+
+    /**
+     * The databases to export.
+     *
+     * @parameter expression="${couchdocs.databases}"
+     * @required
+     */
+    private String[] databases;
+
+    /**
+     * Only export the design documents.
+     *
+     * @parameter expression="${couchdocs.designOnly}" default-value=false
+     */
+    private boolean designOnly;
+
+    /**
+     * The source directory is written to rather than read from, and need not exist yet.
+     */
+    @Override
+    protected Multimap<String, LocalDocument> findLocalDocuments() {
+        return LinkedListMultimap.create();
+    }
+
+    @Override
+    protected void deploy(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        prewarmConnections();
+        final ExportCouchDocs export = new ExportCouchDocs(progress, couchFunctions, getBaseDir(), designOnly,
+                Runtime.getRuntime().availableProcessors());
+        try {
+            final int count = export.execute(Arrays.asList(databases));
+            getLog().info("Exported " + count + " document(s) from " + databases.length + " database(s) to " + getBaseDir() + ".");
+        } catch (InterruptedIOException e) {
+            throw new MojoExecutionException("Interrupted while exporting to " + getBaseDir() + ".", e);
+        }
+    }
+
+    public void setDatabases(String[] databases) {
+        this.databases = databases;
+    }
+
+    public void setDesignOnly(boolean designOnly) {
+        this.designOnly = designOnly;
+    }
+}
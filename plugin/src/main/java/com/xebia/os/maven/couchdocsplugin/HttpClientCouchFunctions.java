@@ -0,0 +1,391 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.MissingNode;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Implements {@code AsyncCouchFunctions} on the non-blocking {@code java.net.http.HttpClient} of Java 11. Requests
+ * don't occupy a thread while they wait for the server, so a single thread can keep many of them in flight. Request
+ * bodies are serialised on the calling thread; responses are handled on the client's executor.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class HttpClientCouchFunctions implements AsyncCouchFunctions {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_CREATED = 201;
+    private static final int HTTP_ACCEPTED = 202;
+    private static final int HTTP_NOTFOUND = 404;
+
+    /**
+     * Reads the revision a document was stored as from the response to a {@code PUT}.
+     */
+    private static final Function<HttpResponse<byte[]>, String> STORED_REVISION = new Function<HttpResponse<byte[]>, String>() {
+        @Override
+        public String apply(HttpResponse<byte[]> response) {
+            if (HTTP_CREATED != response.statusCode()) {
+                throw databaseException(response);
+            }
+            return readJson(response).path("rev").getTextValue();
+        }
+    };
+
+    private final URL baseUrl;
+    private final String authorization;
+    private final Timeouts timeouts;
+    private final int compressionThreshold;
+    private final HttpClient client;
+
+    /**
+     * @param compressionThreshold request bodies of at least this many bytes are sent gzip-compressed. Use
+     *                             {@link CouchFunctionsImpl#NO_COMPRESSION} to always send them as-is.
+     */
+    public HttpClientCouchFunctions(URL baseUrl, Timeouts timeouts, int compressionThreshold) {
+        Preconditions.checkNotNull(baseUrl);
+        Preconditions.checkArgument(baseUrl.getProtocol().startsWith("http"), "CouchDB URL must be HTTP or HTTPS");
+        this.baseUrl = baseUrl;
+        this.authorization = CouchFunctionsImpl.authorization(baseUrl);
+        this.timeouts = Preconditions.checkNotNull(timeouts);
+        this.compressionThreshold = compressionThreshold;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(timeouts.getConnectMillis()))
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<Optional<RemoteDocument>> download(String databaseName, final String id) {
+        final HttpRequest request;
+        try {
+            request = newRequest(databaseName, CouchFunctionsImpl.urlEncode(id), timeouts.getReadMillis()).GET().build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, new Function<HttpResponse<byte[]>, Optional<RemoteDocument>>() {
+            @Override
+            public Optional<RemoteDocument> apply(HttpResponse<byte[]> response) {
+                if (HTTP_NOTFOUND == response.statusCode()) {
+                    return Optional.absent();
+                } else if (HTTP_OK == response.statusCode()) {
+                    return Optional.of(new RemoteDocument(readJson(response)));
+                }
+                throw databaseException(response);
+            }
+        });
+    }
+
+    /**
+     * Looks up the current revision of a document with a {@code HEAD} request. CouchDB returns the revision in
+     * the {@code ETag} header, so the document body is never transferred.
+     */
+    @Override
+    public CompletableFuture<Optional<String>> headRevision(final String databaseName, final String id) {
+        final HttpRequest request;
+        try {
+            request = newRequest(databaseName, CouchFunctionsImpl.urlEncode(id), timeouts.getReadMillis())
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, new Function<HttpResponse<byte[]>, Optional<String>>() {
+            @Override
+            public Optional<String> apply(HttpResponse<byte[]> response) {
+                if (HTTP_NOTFOUND == response.statusCode()) {
+                    return Optional.absent();
+                } else if (HTTP_OK == response.statusCode()) {
+                    final String etag = response.headers().firstValue("ETag").orElse(null);
+                    if (etag == null) {
+                        throw new CouchDatabaseException(response.statusCode(), "The server did not return an ETag for"
+                                + " document \"" + id + "\" in database \"" + databaseName + "\".");
+                    }
+                    return Optional.of(CharMatcher.is('"').trimFrom(etag));
+                }
+                throw databaseException(response);
+            }
+        });
+    }
+
+    /**
+     * Documents with attachment files are sent as {@code multipart/related}, like
+     * {@link CouchFunctionsImpl#upload(String, LocalDocument)} does. The attachments are read from disk as the
+     * client sends the body.
+     *
+     * @return the revision the document was stored as.
+     */
+    @Override
+    public CompletableFuture<String> upload(final String databaseName, final LocalDocument localDocument) {
+        if (localDocument.hasAttachmentFiles()) {
+            if (!localDocument.getRev().isPresent()) {
+                return uploadWithAttachments(databaseName, localDocument, MissingNode.getInstance());
+            }
+            return download(databaseName, localDocument.getId()).thenCompose(new Function<Optional<RemoteDocument>, CompletionStage<String>>() {
+                @Override
+                public CompletionStage<String> apply(Optional<RemoteDocument> remoteDocument) {
+                    return uploadWithAttachments(databaseName, localDocument, CouchFunctionsImpl.remoteAttachments(remoteDocument));
+                }
+            });
+        }
+        final HttpRequest request;
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final JsonGenerator generator = createGenerator(body);
+            generator.writeTree(localDocument.getRootNode());
+            generator.close();
+            request = withBody(newRequest(databaseName, CouchFunctionsImpl.urlEncode(localDocument.getId()), timeouts.getReadMillis()), "PUT", body)
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, STORED_REVISION);
+    }
+
+    private CompletableFuture<String> uploadWithAttachments(String databaseName, LocalDocument localDocument, JsonNode remoteAttachments) {
+        final HttpRequest request;
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final JsonGenerator generator = createGenerator(body);
+            final List<LocalAttachment> follows = CouchFunctionsImpl.writeDocumentWithAttachments(generator, localDocument, remoteAttachments);
+            generator.close();
+            final HttpRequest.Builder builder = newRequest(databaseName, CouchFunctionsImpl.urlEncode(localDocument.getId()), timeouts.getReadMillis());
+            if (follows.isEmpty()) {
+                request = withBody(builder, "PUT", body).build();
+            } else {
+                final MultipartRelated multipart = new MultipartRelated(body.toByteArray(), follows);
+                request = builder.header("Content-Type", multipart.getContentType())
+                        .PUT(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+                            @Override
+                            public InputStream get() {
+                                return multipart.openStream();
+                            }
+                        }), multipart.getContentLength()))
+                        .build();
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, STORED_REVISION);
+    }
+
+    @Override
+    public CompletableFuture<List<BulkResult>> bulkUpload(String databaseName, List<LocalDocument> localDocuments) {
+        return postBulkDocs(databaseName, localDocuments, false);
+    }
+
+    /**
+     * Deletes the replaced revisions in a {@code _bulk_docs} request ahead of the one that uploads the documents, as
+     * {@link CouchFunctionsImpl#bulkReplace(String, List)} does.
+     */
+    @Override
+    public CompletableFuture<List<BulkResult>> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) {
+        final List<LocalDocument> replaced = CouchFunctionsImpl.withReplacedRev(localDocuments);
+        if (replaced.isEmpty()) {
+            return bulkUpload(databaseName, localDocuments);
+        }
+        return postBulkDocs(databaseName, replaced, true).thenCompose(new Function<List<BulkResult>, CompletionStage<List<BulkResult>>>() {
+            @Override
+            public CompletionStage<List<BulkResult>> apply(List<BulkResult> tombstones) {
+                final Map<LocalDocument, BulkResult> rejected = CouchFunctionsImpl.acceptTombstones(replaced, tombstones);
+                final List<LocalDocument> uploads = CouchFunctionsImpl.without(localDocuments, rejected);
+                final CompletableFuture<List<BulkResult>> uploaded = uploads.isEmpty()
+                        ? CompletableFuture.completedFuture(Collections.<BulkResult>emptyList())
+                        : bulkUpload(databaseName, uploads);
+                return uploaded.thenApply(new Function<List<BulkResult>, List<BulkResult>>() {
+                    @Override
+                    public List<BulkResult> apply(List<BulkResult> results) {
+                        return CouchFunctionsImpl.mergeBulkResults(localDocuments, rejected, results);
+                    }
+                });
+            }
+        });
+    }
+
+    private CompletableFuture<List<BulkResult>> postBulkDocs(String databaseName, final List<LocalDocument> localDocuments, final boolean tombstones) {
+        final HttpRequest request;
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final JsonGenerator generator = createGenerator(body);
+            CouchFunctionsImpl.writeBulkDocs(generator, localDocuments, tombstones);
+            generator.close();
+            request = withBody(newRequest(databaseName, "_bulk_docs", timeouts.getBulkReadMillis()), "POST", body).build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, new Function<HttpResponse<byte[]>, List<BulkResult>>() {
+            @Override
+            public List<BulkResult> apply(HttpResponse<byte[]> response) {
+                if (HTTP_CREATED != response.statusCode() && HTTP_ACCEPTED != response.statusCode()) {
+                    throw databaseException(response);
+                }
+                return CouchFunctionsImpl.readBulkResults(response.statusCode(), readJson(response), localDocuments);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String databaseName, String id, String rev) {
+        final HttpRequest request;
+        try {
+            request = newRequest(databaseName, CouchFunctionsImpl.urlEncode(id) + "?rev=" + CouchFunctionsImpl.urlEncode(rev), timeouts.getReadMillis())
+                    .DELETE()
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(request, new Function<HttpResponse<byte[]>, Void>() {
+            @Override
+            public Void apply(HttpResponse<byte[]> response) {
+                if (HTTP_OK != response.statusCode()) {
+                    throw databaseException(response);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sends the request, and hands the response to {@code handler} once it has arrived. Checked exceptions thrown
+     * while handling the response are unwrapped, so the future fails with the same exception the synchronous
+     * implementation would throw.
+     */
+    private <T> CompletableFuture<T> send(HttpRequest request, Function<HttpResponse<byte[]>, T> handler) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(handler)
+                .whenComplete(new BiConsumer<T, Throwable>() {
+                    @Override
+                    public void accept(T value, Throwable failure) {
+                        if (null == failure) {
+                            result.complete(value);
+                        } else {
+                            result.completeExceptionally(unwrap(failure));
+                        }
+                    }
+                });
+        return result;
+    }
+
+    private HttpRequest.Builder newRequest(String databaseName, String documentAndQuery, int readTimeoutMillis) throws IOException {
+        final URI uri;
+        try {
+            uri = new URL(baseUrl, CouchFunctionsImpl.createDatabaseUrlSuffix(databaseName, documentAndQuery)).toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL for database \"" + databaseName + "\": " + e.getMessage(), e);
+        }
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(stripUserInfo(uri))
+                .timeout(Duration.ofMillis(readTimeoutMillis))
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .header("User-Agent", CouchFunctionsImpl.HTTP_USER_AGENT);
+        if (null != authorization) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    /**
+     * Sets the serialised request body, gzip-compressed if it is at least {@code compressionThreshold} bytes long.
+     */
+    private HttpRequest.Builder withBody(HttpRequest.Builder builder, String method, ByteArrayOutputStream body) throws IOException {
+        builder.header("Content-Type", "application/json;charset=utf8");
+        if (compressionThreshold != CouchFunctionsImpl.NO_COMPRESSION && body.size() >= compressionThreshold) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.size() / 4);
+            CouchFunctionsImpl.gzip(body, compressed);
+            builder.header("Content-Encoding", "gzip");
+            return builder.method(method, HttpRequest.BodyPublishers.ofByteArray(compressed.toByteArray()));
+        }
+        return builder.method(method, HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()));
+    }
+
+    /**
+     * The credentials go in the {@code Authorization} header; {@code HttpClient} rejects URIs that carry them.
+     */
+    private static URI stripUserInfo(URI uri) throws IOException {
+        if (null == uri.getRawUserInfo()) {
+            return uri;
+        }
+        try {
+            return new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), null, null, null)
+                    .resolve(uri.getRawPath() + (null == uri.getRawQuery() ? "" : "?" + uri.getRawQuery()));
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static JsonGenerator createGenerator(ByteArrayOutputStream target) throws IOException {
+        return OBJECT_MAPPER.getJsonFactory().createJsonGenerator(target, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Parses the response body, decompressing it if the server (or a proxy in between) sent it gzip-encoded.
+     */
+    private static JsonNode readJson(HttpResponse<byte[]> response) {
+        try {
+            InputStream body = new ByteArrayInputStream(response.body());
+            if ("gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(null))) {
+                body = new GZIPInputStream(body);
+            }
+            return OBJECT_MAPPER.readTree(body);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static CouchDatabaseException databaseException(HttpResponse<byte[]> response) {
+        return new CouchDatabaseException(response.statusCode(), "HTTP " + response.statusCode(),
+                CouchFunctionsImpl.retryAfter(response.headers().firstValue("Retry-After").orElse(null), System.currentTimeMillis()));
+    }
+
+    static Throwable unwrap(Throwable failure) {
+        Throwable cause = failure;
+        while (cause instanceof CompletionException && null != cause.getCause()) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.plexus.util.Base64;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An attachment of a {@link LocalDocument}, kept as a file of its own next to the document. The file is read
+ * through a {@link FileChannel} in small chunks, both to compute its digest and to upload it, so an attachment is
+ * never held in memory as a whole.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class LocalAttachment {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final Map<String, String> CONTENT_TYPES = ImmutableMap.<String, String>builder()
+            .put("css", "text/css")
+            .put("gif", "image/gif")
+            .put("htm", "text/html")
+            .put("html", "text/html")
+            .put("ico", "image/x-icon")
+            .put("jpeg", "image/jpeg")
+            .put("jpg", "image/jpeg")
+            .put("js", "application/javascript")
+            .put("json", "application/json")
+            .put("map", "application/json")
+            .put("png", "image/png")
+            .put("svg", "image/svg+xml")
+            .put("txt", "text/plain")
+            .put("woff", "font/woff")
+            .put("woff2", "font/woff2")
+            .put("xml", "application/xml")
+            .build();
+
+    private final String name;
+    private final File file;
+    private final String contentType;
+    private final long length;
+    private final String digest;
+
+    private LocalAttachment(String name, File file, long length, String digest) {
+        this.name = name;
+        this.file = file;
+        this.contentType = contentTypeOf(name);
+        this.length = length;
+        this.digest = digest;
+    }
+
+    /**
+     * Reads {@code file} once to compute its digest.
+     *
+     * @param name the attachment name, which is its path relative to the attachment directory, with forward slashes.
+     */
+    public static LocalAttachment read(String name, File file) throws IOException {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(file);
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Every implementation of the Java platform is required to support MD5.");
+        }
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            long length = 0L;
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                length += buffer.remaining();
+                md5.update(buffer);
+                buffer.clear();
+            }
+            return new LocalAttachment(name, file, length, "md5-" + new String(Base64.encodeBase64(md5.digest()), Charsets.US_ASCII));
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Doesn't read {@code file}, but takes its digest as given.
+     *
+     * @param digest the MD5 digest of the content, in the form {@code "md5-<base64>"}.
+     */
+    static LocalAttachment withDigest(String name, File file, String digest) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(file);
+        Preconditions.checkArgument(digest.startsWith("md5-"), "Not an MD5 digest: %s", digest);
+        return new LocalAttachment(name, file, file.length(), digest);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the MD5 digest of the content, in the form CouchDB reports it: {@code "md5-<base64>"}.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Copies the file to {@code target}, letting the channel hand the data over directly where the platform
+     * supports that.
+     *
+     * @throws IOException if the file no longer has the length it had when it was read.
+     */
+    public void writeTo(OutputStream target) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            if (channel.size() != length) {
+                throw new IOException("Attachment " + file + " changed while the build was running.");
+            }
+            final WritableByteChannel out = Channels.newChannel(target);
+            long position = 0L;
+            while (position < length) {
+                final long transferred = channel.transferTo(position, Math.min(CHUNK_SIZE, length - position), out);
+                if (transferred <= 0) {
+                    throw new IOException("Attachment " + file + " changed while the build was running.");
+                }
+                position += transferred;
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    static String contentTypeOf(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0 || name.lastIndexOf('/') > dot) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        final String contentType = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+        return null != contentType ? contentType : DEFAULT_CONTENT_TYPE;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalAttachment[ " + name + " , " + file + " ]";
+    }
+}
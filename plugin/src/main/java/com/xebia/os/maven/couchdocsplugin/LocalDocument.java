@@ -17,28 +17,70 @@ package com.xebia.os.maven.couchdocsplugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.plexus.util.Base64;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.sonatype.inject.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 /**
  * Implements handling of the JSON files in the local file system.
  *
+ * <p>Loading a document only streams through the file to find the top-level {@code _id} and {@code _rev}; that's
+ * enough to look the document up on the server and to check it against the manifests. The JSON tree is built when
+ * it's first needed, which is usually when the document is uploaded. Files of at least
+ * {@value MappedFiles#MAPPED_READ_THRESHOLD} bytes are read through a memory mapping.</p>
+ *
  * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
  */
 class LocalDocument extends Document {
     private final File file;
+    private final File attachmentDirectory;
+    private String id;
+    private String rev;
+    private String contentHash;
+    private List<String> attachmentNames;
+    private List<LocalAttachment> attachments;
+    private ScanCache scanCache;
+    private volatile String replacedRev;
 
     public LocalDocument(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param attachmentDirectory the directory that holds the attachments of this document, one file each. Its
+     *                            files are read when the attachments are first needed.
+     */
+    public LocalDocument(File file, @Nullable File attachmentDirectory) {
         this.file = Preconditions.checkNotNull(file);
+        this.attachmentDirectory = attachmentDirectory;
     }
 
     @VisibleForTesting
     LocalDocument(String rawJson) throws IOException {
         this.file = null;
+        this.attachmentDirectory = null;
         final JsonParser parser = getJsonFactory().createJsonParser(rawJson);
         initRootNode(parser);
+        final ObjectNode rootNode = super.getRootNode();
+        this.id = rootNode.get("_id").asText();
+        this.rev = rootNode.has("_rev") ? rootNode.get("_rev").asText() : null;
     }
 
     @VisibleForTesting
@@ -46,14 +88,274 @@ class LocalDocument extends Document {
         return file;
     }
 
+    /**
+     * Makes this document take the digests of its file and attachment files from {@code scanCache}, so that files
+     * that didn't change since an earlier run aren't read to compute its content hash.
+     */
+    public synchronized void useScanCache(ScanCache scanCache) {
+        Preconditions.checkState(contentHash == null && attachments == null, "Document was already digested.");
+        this.scanCache = Preconditions.checkNotNull(scanCache);
+    }
+
+    /**
+     * Whether the file and attachment files of this document have the size and modification time they had in an
+     * earlier run, according to the scan cache. If so, its content hash was found without reading them. Only valid
+     * once the content hash was computed.
+     */
+    public synchronized boolean isUnchangedSinceLastScan() {
+        Preconditions.checkState(contentHash != null, "Document was not digested.");
+        if (scanCache == null || !scanCache.isUnchanged(file)) {
+            return false;
+        }
+        for (LocalAttachment attachment : attachments) {
+            if (!scanCache.isUnchanged(attachment.getFile())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the top-level {@code _id} and {@code _rev} of the document. The rest of the file is checked for
+     * well-formedness on the way, but not kept. The attachment files aren't read.
+     */
     public void load() throws IOException, DocumentValidationException {
-        final JsonParser parser = getJsonFactory().createJsonParser(file);
-        initRootNode(parser);
+        final JsonParser parser = getJsonFactory().createJsonParser(MappedFiles.open(file));
+        try {
+            scanTopLevel(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private synchronized void scanTopLevel(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new DocumentValidationException("The root of the JSON document must be an object node.");
+        }
+        String scannedId = null;
+        String scannedRev = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("_id".equals(name)) {
+                scannedId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+            } else if ("_rev".equals(name)) {
+                scannedRev = value.isScalarValue() ? parser.getText() : "";
+            }
+            parser.skipChildren();
+        }
+        if (scannedId == null) {
+            throw new DocumentValidationException("The document's _id node is missing or not a string value.");
+        }
+        this.id = scannedId;
+        this.rev = scannedRev;
+    }
+
+    @Override
+    public synchronized boolean isLoaded() {
+        return null != id;
+    }
+
+    @Override
+    public synchronized String getId() {
+        Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
+        return id;
+    }
+
+    @Override
+    public synchronized Optional<String> getRev() {
+        Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
+        return Optional.fromNullable(rev);
+    }
+
+    /**
+     * Parses the file into a JSON tree on the first call, and applies the revision set since loading.
+     *
+     * @throws IllegalStateException if the file can no longer be read, or no longer holds the document that was
+     *                               loaded.
+     */
+    @Override
+    protected synchronized ObjectNode getRootNode() {
+        Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
+        if (!super.isLoaded()) {
+            try {
+                final JsonParser parser = getJsonFactory().createJsonParser(MappedFiles.open(file));
+                try {
+                    initRootNode(parser);
+                } finally {
+                    parser.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read " + file + " again; was it changed during the build?", e);
+            }
+            Preconditions.checkState(id.equals(super.getId()), "The _id in %s changed during the build.", file);
+            applyRev(super.getRootNode());
+        }
+        return super.getRootNode();
+    }
+
+    private void applyRev(ObjectNode rootNode) {
+        if (rev == null) {
+            rootNode.remove("_rev");
+        } else {
+            rootNode.put("_rev", rev);
+        }
+    }
+
+    /**
+     * Returns the attachments kept as files next to this document, in the order of their names. The files are
+     * digested, not loaded, on the first call only.
+     */
+    public synchronized List<LocalAttachment> getAttachments() throws IOException {
+        if (attachments == null) {
+            final List<String> names = getAttachmentNames();
+            final List<LocalAttachment> result = new ArrayList<LocalAttachment>(names.size());
+            for (String name : names) {
+                final File attachmentFile = new File(attachmentDirectory, name);
+                result.add(scanCache != null
+                        ? LocalAttachment.withDigest(name.replace('\\', '/'), attachmentFile, scanCache.digest(attachmentFile, "MD5"))
+                        : LocalAttachment.read(name.replace('\\', '/'), attachmentFile));
+            }
+            attachments = Collections.unmodifiableList(result);
+        }
+        return attachments;
+    }
+
+    /**
+     * Returns the names of the files in the attachment directory, in order. The directory is scanned on the first
+     * call only; the files aren't read.
+     */
+    private synchronized List<String> getAttachmentNames() {
+        if (attachmentNames == null) {
+            if (attachmentDirectory == null || !attachmentDirectory.isDirectory()) {
+                attachmentNames = Collections.emptyList();
+            } else {
+                final DirectoryScanner scanner = new DirectoryScanner();
+                scanner.addDefaultExcludes();
+                scanner.setBasedir(attachmentDirectory);
+                scanner.scan();
+                final String[] names = scanner.getIncludedFiles();
+                Arrays.sort(names);
+                attachmentNames = Collections.unmodifiableList(Arrays.asList(names));
+            }
+        }
+        return attachmentNames;
     }
 
-    public void setRev(String rev) {
+    /**
+     * Whether this document has attachment files, which must be sent in a {@code multipart/related} request of
+     * their own rather than in {@code _bulk_docs}. Only valid once the document was loaded. This doesn't read the
+     * files.
+     */
+    public synchronized boolean hasAttachmentFiles() {
         Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
-        getRootNode().put("_rev", rev);
+        return !getAttachmentNames().isEmpty();
+    }
+
+    /**
+     * Adds a stub for every attachment file to the inline attachments, with the content type, length and digest
+     * that CouchDB will report for it once it's uploaded.
+     *
+     * @throws IllegalStateException if the attachment files can't be read.
+     */
+    @Override
+    protected JsonNode getAttachmentsNode() {
+        if (!hasAttachmentFiles()) {
+            return super.getAttachmentsNode();
+        }
+        final List<LocalAttachment> files;
+        try {
+            files = getAttachments();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the attachments of " + file + ".", e);
+        }
+        final ObjectNode result = JsonNodeFactory.instance.objectNode();
+        if (super.getAttachmentsNode().isObject()) {
+            result.putAll((ObjectNode) super.getAttachmentsNode());
+        }
+        for (LocalAttachment attachment : files) {
+            final ObjectNode stub = result.putObject(attachment.getName());
+            stub.put("content_type", attachment.getContentType());
+            stub.put("length", attachment.getLength());
+            stub.put("digest", attachment.getDigest());
+        }
+        return result;
+    }
+
+    /**
+     * Sets the revision to upload this document as. Doesn't build the JSON tree if it wasn't built yet.
+     */
+    public synchronized void setRev(String rev) {
+        Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
+        this.rev = Preconditions.checkNotNull(rev);
+        if (super.isLoaded()) {
+            applyRev(super.getRootNode());
+        }
+    }
+
+    public synchronized void clearRev() {
+        Preconditions.checkState(isLoaded(), "Document was not loaded, or loading failed.");
+        this.rev = null;
+        if (super.isLoaded()) {
+            applyRev(super.getRootNode());
+        }
+    }
+
+    /**
+     * Marks the remote revision that this document replaces. The remote copy is deleted in a {@code _bulk_docs}
+     * request ahead of the one that uploads this document.
+     */
+    public void setReplacedRev(String rev) {
+        this.replacedRev = Preconditions.checkNotNull(rev);
+    }
+
+    public void clearReplacedRev() {
+        this.replacedRev = null;
+    }
+
+    public Optional<String> getReplacedRev() {
+        return Optional.fromNullable(replacedRev);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the file's raw content. For a document with attachment files, it's the SHA-256
+     * hash of that hash and of the names and digests of the attachments. The files are read, but not parsed, on the
+     * first call only, and not at all if the scan cache knows them.
+     */
+    public synchronized String getContentHash() throws IOException {
+        Preconditions.checkState(file != null, "Document was not read from a file.");
+        if (contentHash == null) {
+            final String fileHash = scanCache != null ? scanCache.digest(file, "SHA-256") : sha256(file);
+            if (getAttachments().isEmpty()) {
+                contentHash = fileHash;
+            } else {
+                final StringBuilder content = new StringBuilder(fileHash);
+                for (LocalAttachment attachment : attachments) {
+                    content.append('\n').append(attachment.getName()).append('\n').append(attachment.getDigest());
+                }
+                final MessageDigest sha256 = newSha256();
+                contentHash = encode(sha256.digest(content.toString().getBytes(Charsets.UTF_8)));
+            }
+        }
+        return contentHash;
+    }
+
+    private static String sha256(File file) throws IOException {
+        final MessageDigest sha256 = newSha256();
+        MappedFiles.digest(file, sha256);
+        return encode(sha256.digest());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Every implementation of the Java platform is required to support SHA-256.");
+        }
+    }
+
+    private static String encode(byte[] digest) {
+        return "sha256-" + new String(Base64.encodeBase64(digest), Charsets.US_ASCII);
     }
 
     public String getJson() {
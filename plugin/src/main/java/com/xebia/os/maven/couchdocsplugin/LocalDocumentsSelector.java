@@ -18,30 +18,60 @@ package com.xebia.os.maven.couchdocsplugin;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.util.DirectoryScanner;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Finds the local files that should be processed as Couch documents. Relies on the directory scanner provided by
- * Maven so include/exclude semantics match other Maven plugins.
+ * Maven so include/exclude semantics match other Maven plugins; on Java 7 and newer, the tree is walked in parallel
+ * by a {@link ParallelFileScanner} with the same semantics.
+ *
+ * <p>The attachments of a document are kept in a sibling directory named after the document file, with
+ * {@value #ATTACHMENTS_SUFFIX} in place of its extension: {@code app.json} has its attachments in
+ * {@code app.attachments/}. Files in such a directory are never documents themselves.</p>
+ *
+ * <p>With a {@link ScanCache}, the content hashes of the documents are computed right away, on a thread per
+ * processor, and the files that didn't change since the last run aren't read for it. Each document is then known to
+ * be unchanged or changed before anything is parsed.</p>
  *
  * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
  */
 class LocalDocumentsSelector {
+    static final String ATTACHMENTS_SUFFIX = ".attachments";
+
     private final File baseDir;
     private final Log log;
     private final String[] includes;
     private final String[] excludes;
+    private final Optional<ScanCache> scanCache;
 
     public LocalDocumentsSelector(File baseDir, Log log) {
         this(baseDir, log, new String[] { "**/*.json", "**/*.js" }, null);
     }
 
     public LocalDocumentsSelector(File baseDir, Log log, String[] includes, String[] excludes) {
+        this(baseDir, log, includes, excludes, Optional.<ScanCache>absent());
+    }
+
+    public LocalDocumentsSelector(File baseDir, Log log, String[] includes, String[] excludes, Optional<ScanCache> scanCache) {
         super();
         if (baseDir == null) {
             throw new IllegalArgumentException("The baseDir parameter cannot be null.");
@@ -50,6 +80,7 @@ class LocalDocumentsSelector {
         this.log = log;
         this.includes = includes;
         this.excludes = excludes;
+        this.scanCache = Preconditions.checkNotNull(scanCache);
     }
 
     /**
@@ -61,19 +92,23 @@ class LocalDocumentsSelector {
             throw new FileNotFoundException("The path " + baseDir.getPath() + " doesn't exist, is not a directory, or is not readable.");
         }
         Multimap<String, LocalDocument> result = LinkedListMultimap.create();
-        DirectoryScanner scanner = new DirectoryScanner();
-        scanner.addDefaultExcludes();
-        scanner.setBasedir(baseDir);
-        scanner.setIncludes(includes);
-        scanner.setExcludes(excludes);
-        scanner.scan();
-        for (String file : scanner.getIncludedFiles()) {
+        final String[] files = ParallelFileScanner.isAvailable()
+                ? new ParallelFileScanner(baseDir, includes, withAttachmentDirectories(excludes)).scan()
+                : scanWithDirectoryScanner();
+        // Both scanners list the directories in no particular order.
+        Arrays.sort(files);
+        for (String file : files) {
             String databaseName = new File(file).getParent();
             if (databaseName != null) {
                 String cleanDatabaseName = sanifyDatabaseName(databaseName);
                 if (cleanDatabaseName != null) {
                     log.debug("Found document " + file + " in database " + cleanDatabaseName);
-                    result.put(cleanDatabaseName, new LocalDocument(new File(baseDir, file)));
+                    final File documentFile = new File(baseDir, file);
+                    final File attachmentDirectory = attachmentDirectoryOf(documentFile);
+                    if (attachmentDirectory.isDirectory()) {
+                        log.debug("Found attachments of document " + file + " in " + attachmentDirectory.getName());
+                    }
+                    result.put(cleanDatabaseName, new LocalDocument(documentFile, attachmentDirectory));
                 } else {
                     log.warn("Ignoring document " + file + " because \"" + databaseName + "\" is an invalid Couch database name.");
                 }
@@ -81,6 +116,76 @@ class LocalDocumentsSelector {
                 log.debug("Ingoring document " + file + " in database null");
             }
         }
+        if (scanCache.isPresent()) {
+            digest(result.values());
+        }
+        return result;
+    }
+
+    /**
+     * Computes the content hashes of {@code documents} in parallel, through the scan cache. A document that can't
+     * be read is left for loading to report.
+     */
+    private void digest(Collection<LocalDocument> documents) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat("couch-docs-digest-%d").setDaemon(true).build());
+        try {
+            final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(documents.size());
+            for (final LocalDocument document : documents) {
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        document.useScanCache(scanCache.get());
+                        try {
+                            document.getContentHash();
+                            return document.isUnchangedSinceLastScan();
+                        } catch (IOException e) {
+                            log.debug("Could not hash " + document.getFile() + ": " + e);
+                            return false;
+                        }
+                    }
+                });
+            }
+            int unchanged = 0;
+            for (Future<Boolean> task : executor.invokeAll(tasks)) {
+                if (task.get()) {
+                    unchanged++;
+                }
+            }
+            log.info(unchanged + " of " + documents.size() + " document(s) are unchanged since the last scan.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing the documents.");
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String[] scanWithDirectoryScanner() {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.addDefaultExcludes();
+        scanner.setBasedir(baseDir);
+        scanner.setIncludes(includes);
+        scanner.setExcludes(withAttachmentDirectories(excludes));
+        scanner.scan();
+        return scanner.getIncludedFiles();
+    }
+
+    static File attachmentDirectoryOf(File documentFile) {
+        final String name = documentFile.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(documentFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ATTACHMENTS_SUFFIX);
+    }
+
+    private static String[] withAttachmentDirectories(String[] excludes) {
+        final String attachments = "**/*" + ATTACHMENTS_SUFFIX + "/**";
+        if (excludes == null) {
+            return new String[] { attachments };
+        }
+        final String[] result = Arrays.copyOf(excludes, excludes.length + 1);
+        result[excludes.length] = attachments;
         return result;
     }
 
@@ -0,0 +1,118 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.io.Files;
+
+/**
+ * Reads large files through a read-only memory mapping, so that their content is paged in by the operating system
+ * rather than copied into the heap. Small files are read the ordinary way; for them, setting up a mapping costs
+ * more than it saves.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+final class MappedFiles {
+
+    /** Files of at least this many bytes are mapped. */
+    static final long MAPPED_READ_THRESHOLD = 1024 * 1024;
+
+    private MappedFiles() {
+        throw new AssertionError("Static utility class.");
+    }
+
+    /**
+     * @return a stream over the content of {@code file}; the caller must close it.
+     */
+    public static InputStream open(File file) throws IOException {
+        if (file.length() < MAPPED_READ_THRESHOLD) {
+            return new FileInputStream(file);
+        }
+        return new ByteBufferInputStream(map(file));
+    }
+
+    /**
+     * Feeds the content of {@code file} to {@code digest}.
+     */
+    public static void digest(File file, MessageDigest digest) throws IOException {
+        if (file.length() < MAPPED_READ_THRESHOLD) {
+            digest.update(Files.toByteArray(file));
+        } else {
+            digest.update(map(file));
+        }
+    }
+
+    /**
+     * The mapping stays valid after the channel is closed, and is released when the buffer is collected.
+     */
+    static MappedByteBuffer map(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            final int skipped = (int) Math.max(0L, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
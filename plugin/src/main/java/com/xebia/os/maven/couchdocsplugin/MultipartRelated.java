@@ -0,0 +1,175 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * The {@code multipart/related} body of a document update that carries its attachments: the JSON document first,
+ * then the content of every attachment that the document marks with {@code "follows": true}, in the same order.
+ * The attachments are streamed from disk as the body is written, and its length is known up front, so the request
+ * can be sent with a fixed {@code Content-Length}.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class MultipartRelated {
+
+    private static final String CRLF = "\r\n";
+
+    private final String boundary;
+    private final byte[] document;
+    private final List<LocalAttachment> attachments;
+    private final List<byte[]> attachmentHeaders;
+    private final byte[] trailer;
+    private final long contentLength;
+
+    /**
+     * @param document    the serialised JSON document.
+     * @param attachments the attachments whose content follows the document.
+     */
+    public MultipartRelated(byte[] document, List<LocalAttachment> attachments) {
+        this.boundary = UUID.randomUUID().toString().replace("-", "");
+        this.document = concat(ascii("--" + boundary + CRLF + "Content-Type: application/json" + CRLF + CRLF), Preconditions.checkNotNull(document));
+        this.attachments = new ArrayList<LocalAttachment>(attachments);
+        this.attachmentHeaders = new ArrayList<byte[]>(attachments.size());
+        long length = this.document.length;
+        for (LocalAttachment attachment : attachments) {
+            final byte[] header = ascii(CRLF + "--" + boundary + CRLF + "Content-Type: " + attachment.getContentType() + CRLF + CRLF);
+            attachmentHeaders.add(header);
+            length += header.length + attachment.getLength();
+        }
+        this.trailer = ascii(CRLF + "--" + boundary + "--");
+        this.contentLength = length + trailer.length;
+    }
+
+    public String getContentType() {
+        return "multipart/related;boundary=\"" + boundary + "\"";
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void writeTo(OutputStream target) throws IOException {
+        target.write(document);
+        for (int i = 0; i < attachments.size(); i++) {
+            target.write(attachmentHeaders.get(i));
+            attachments.get(i).writeTo(target);
+        }
+        target.write(trailer);
+    }
+
+    /**
+     * Returns the body as a stream, for clients that pull the request body rather than having it pushed. Each
+     * attachment file is opened when the stream reaches it, and closed when it has been read.
+     */
+    public InputStream openStream() {
+        final List<Object> parts = new ArrayList<Object>(attachments.size() * 2 + 2);
+        parts.add(document);
+        for (int i = 0; i < attachments.size(); i++) {
+            parts.add(attachmentHeaders.get(i));
+            parts.add(attachments.get(i));
+        }
+        parts.add(trailer);
+        return new PartsInputStream(parts.iterator());
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(Charsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Reads the parts one after the other; each part is either a {@code byte[]} or a {@link LocalAttachment}.
+     */
+    private static final class PartsInputStream extends InputStream {
+        private final Iterator<Object> parts;
+        private InputStream current;
+
+        PartsInputStream(Iterator<Object> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int count = read(single, 0, 1);
+            return count < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null) {
+                    if (!parts.hasNext()) {
+                        return -1;
+                    }
+                    current = open(parts.next());
+                }
+                final int count = current.read(buffer, offset, length);
+                if (count >= 0) {
+                    return count;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOUtil.close(current);
+            current = null;
+            while (parts.hasNext()) {
+                parts.next();
+            }
+        }
+
+        private static InputStream open(Object part) throws IOException {
+            if (part instanceof byte[]) {
+                return new ByteArrayInputStream((byte[]) part);
+            }
+            final LocalAttachment attachment = (LocalAttachment) part;
+            final FileInputStream in = new FileInputStream(attachment.getFile());
+            if (in.getChannel().size() != attachment.getLength()) {
+                IOUtil.close(in);
+                throw new IOException("Attachment " + attachment.getFile() + " changed while the build was running.");
+            }
+            return in;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Finds the files under a base directory that match Ant-style include and exclude patterns, like the plexus
+ * {@code DirectoryScanner} does, but on {@code java.nio.file} and in parallel. Every
+ * directory is listed by a task of its own in a {@link ForkJoinPool}, so large trees are walked by all processors
+ * at once. The patterns are compiled once into {@link PathMatcher}s, and directories that an exclude pattern
+ * rules out as a whole, such as {@code **&#47;*.attachments/**}, aren't entered at all.
+ *
+ * <p>The pattern syntax is that of the plexus scanner: {@code **} matches any number of directories, {@code *}
+ * and {@code ?} match within a single file or directory name, a trailing slash stands for {@code /**}, and
+ * {@code %regex[...]} and {@code %ant[...]} patterns are supported. Symbolic links to directories are followed,
+ * each target directory once.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+final class ParallelFileScanner {
+
+    private static final boolean AVAILABLE = findNio();
+    private static final String REGEX_PREFIX = "%regex[";
+    private static final String ANT_PREFIX = "%ant[";
+
+    private final Path baseDir;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final List<PathMatcher> excludedDirectories;
+    private final List<List<Pattern>> includeStarts;
+    private final Set<Path> visitedLinks = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    /**
+     * @param includes the patterns of the files to find, or {@code null} to find all of them.
+     * @param excludes the patterns of the files to leave out, or {@code null} to leave out none.
+     */
+    public ParallelFileScanner(File baseDir, String[] includes, String[] excludes) {
+        Preconditions.checkState(isAvailable(), "The parallel scanner requires Java 7 or newer.");
+        this.baseDir = baseDir.toPath();
+        final List<String> includePatterns = normalize(includes == null ? new String[] { "**" } : includes);
+        final List<String> excludePatterns = normalize(excludes == null ? new String[0] : excludes);
+
+        this.includes = new ArrayList<PathMatcher>(includePatterns.size());
+        this.includeStarts = new ArrayList<List<Pattern>>(includePatterns.size());
+        for (String pattern : includePatterns) {
+            this.includes.add(matcher(pattern));
+            this.includeStarts.add(isRegex(pattern) ? null : segmentPatterns(pattern));
+        }
+        this.excludes = new ArrayList<PathMatcher>(excludePatterns.size());
+        this.excludedDirectories = new ArrayList<PathMatcher>();
+        for (String pattern : excludePatterns) {
+            this.excludes.add(matcher(pattern));
+            if (!isRegex(pattern) && pattern.endsWith("/**")) {
+                this.excludedDirectories.add(matcher(pattern.substring(0, pattern.length() - 3)));
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the running JVM has {@code java.nio.file}, which arrived in Java 7.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return the paths of the matching files relative to the base directory, with the platform's separator,
+     *         just like {@code DirectoryScanner.getIncludedFiles()}; in no particular order.
+     */
+    public String[] scan() throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final List<String> files = pool.invoke(new DirectoryTask(baseDir, ""));
+            return files.toArray(new String[files.size()]);
+        } catch (ScanException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private boolean isIncluded(Path relativePath) {
+        return matchesAny(includes, relativePath) && !matchesAny(excludes, relativePath);
+    }
+
+    /**
+     * @return {@code true} if the directory, or any file below it, could be included.
+     */
+    private boolean isWorthEntering(Path relativeDirectory) {
+        if (matchesAny(excludedDirectories, relativeDirectory)) {
+            return false;
+        }
+        for (List<Pattern> segments : includeStarts) {
+            if (segments == null || couldHoldMatch(segments, relativeDirectory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the leading names of the directory match the leading segments of the pattern, up to the first
+     * {@code **}.
+     */
+    private static boolean couldHoldMatch(List<Pattern> segments, Path relativeDirectory) {
+        final int depth = relativeDirectory.getNameCount();
+        for (int i = 0; i < segments.size(); i++) {
+            final Pattern segment = segments.get(i);
+            if (segment == null) {
+                return true;
+            }
+            if (i == depth) {
+                return true;
+            }
+            if (!segment.matcher(relativeDirectory.getName(i).toString()).matches()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relativePath) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists one directory, and forks a task for every subdirectory worth entering.
+     */
+    private final class DirectoryTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String relative;
+
+        DirectoryTask(Path directory, String relative) {
+            this.directory = directory;
+            this.relative = relative;
+        }
+
+        @Override
+        protected List<String> compute() {
+            final List<String> files = new ArrayList<String>();
+            final List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+            try {
+                final DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+                try {
+                    for (Path entry : entries) {
+                        final String name = relative.isEmpty()
+                                ? entry.getFileName().toString()
+                                : relative + File.separator + entry.getFileName();
+                        final Path relativePath = baseDir.getFileSystem().getPath(name);
+                        if (Files.isDirectory(entry)) {
+                            if (isWorthEntering(relativePath)
+                                    && (!Files.isSymbolicLink(entry) || visitedLinks.add(entry.toRealPath()))) {
+                                final DirectoryTask task = new DirectoryTask(entry, name);
+                                task.fork();
+                                subdirectories.add(task);
+                            }
+                        } else if (isIncluded(relativePath)) {
+                            files.add(name);
+                        }
+                    }
+                } finally {
+                    entries.close();
+                }
+            } catch (IOException e) {
+                throw new ScanException(e);
+            }
+            for (DirectoryTask task : subdirectories) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Carries an {@code IOException} out of a task.
+     */
+    private static final class ScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScanException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Unifies the separators to {@code /}, and turns a trailing slash into {@code /**}, as the plexus scanner does.
+     */
+    private static List<String> normalize(String[] patterns) {
+        final List<String> result = new ArrayList<String>(patterns.length);
+        for (String pattern : patterns) {
+            if (isRegex(pattern)) {
+                result.add(pattern);
+                continue;
+            }
+            String normalized = pattern.trim();
+            if (normalized.startsWith(ANT_PREFIX) && normalized.endsWith("]")) {
+                normalized = normalized.substring(ANT_PREFIX.length(), normalized.length() - 1);
+            }
+            normalized = normalized.replace('\\', '/');
+            if (normalized.endsWith("/")) {
+                normalized += "**";
+            }
+            result.add(normalized);
+        }
+        return result;
+    }
+
+    private static boolean isRegex(String pattern) {
+        return pattern.startsWith(REGEX_PREFIX) && pattern.endsWith("]");
+    }
+
+    /**
+     * A {@code %regex[...]} pattern is matched against the relative path with the platform's separator; an Ant
+     * pattern against the relative path with forward slashes.
+     */
+    private static PathMatcher matcher(String pattern) {
+        if (isRegex(pattern)) {
+            final Pattern regex = Pattern.compile(pattern.substring(REGEX_PREFIX.length(), pattern.length() - 1));
+            return new PathMatcher() {
+                @Override
+                public boolean matches(Path path) {
+                    return regex.matcher(path.toString()).matches();
+                }
+            };
+        }
+        final Pattern regex = Pattern.compile(antToRegex(pattern));
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString().replace(File.separatorChar, '/')).matches();
+            }
+        };
+    }
+
+    static String antToRegex(String pattern) {
+        if (pattern.startsWith("/")) {
+            // Relative paths never start with a slash, so neither does the plexus scanner match these.
+            return "(?!)";
+        }
+        final StringBuilder regex = new StringBuilder();
+        boolean leadingDirectories = false;
+        boolean segmentWritten = false;
+        for (String segment : pattern.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            } else if ("**".equals(segment)) {
+                if (segmentWritten) {
+                    regex.append("(?:/[^/]*)*");
+                } else {
+                    leadingDirectories = true;
+                }
+            } else {
+                if (segmentWritten) {
+                    regex.append('/');
+                } else if (leadingDirectories) {
+                    regex.append("(?:[^/]*/)*");
+                }
+                regex.append(segmentToRegex(segment));
+                segmentWritten = true;
+            }
+        }
+        return segmentWritten ? regex.toString() : ".*";
+    }
+
+    private static String segmentToRegex(String segment) {
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+        for (char c : segment.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? "[^/]*" : "[^/]");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * @return a pattern for each leading segment of an Ant pattern, ending with {@code null} at the first {@code **}.
+     */
+    private static List<Pattern> segmentPatterns(String pattern) {
+        final List<Pattern> result = new ArrayList<Pattern>();
+        for (String segment : Arrays.asList(pattern.split("/"))) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if ("**".equals(segment)) {
+                result.add(null);
+                break;
+            }
+            result.add(Pattern.compile(segmentToRegex(segment)));
+        }
+        return result;
+    }
+
+    private static boolean findNio() {
+        try {
+            Class.forName("java.nio.file.Files");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+/**
+ * Works out what {@link UpdateCouchDocs} would do with the local documents under the given configuration, without
+ * writing anything to the server. The result is a {@link DeployPlan}.
+ *
+ * <p>The existence of all databases is looked up with one request, and the documents with one {@code _all_docs}
+ * request per batch of at least {@value #MIN_LOOKUP_BATCH_SIZE}. Only with {@code UPDATE_IF_CHANGED} are the remote
+ * documents downloaded, to compare their content. The manifests aren't used: the plan reflects what's on the
+ * server.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class PlanCouchDocs {
+
+    /**
+     * Lookups don't carry document bodies, so they're batched even if uploads aren't.
+     */
+    static final int MIN_LOOKUP_BATCH_SIZE = 100;
+
+    private final Config config;
+    private final Progress progress;
+    private final CouchFunctions couchFunctions;
+    private final Multimap<String, LocalDocument> localDocuments;
+    private final DeployPlan plan;
+
+    public PlanCouchDocs(Config config, Progress progress, CouchFunctions couchFunctions,
+            Multimap<String, LocalDocument> localDocuments, DeployPlan plan) {
+        super();
+        this.config = Preconditions.checkNotNull(config);
+        this.progress = Preconditions.checkNotNull(progress);
+        this.couchFunctions = Preconditions.checkNotNull(couchFunctions);
+        this.localDocuments = Preconditions.checkNotNull(localDocuments);
+        this.plan = Preconditions.checkNotNull(plan);
+        Preconditions.checkArgument(plan.getExistingDocs() == config.existingDocs,
+                "The plan must be made for the configured existingDocs strategy.");
+    }
+
+    public DeployPlan execute() {
+        final Set<String> existingDatabases;
+        try {
+            existingDatabases = couchFunctions.findExistingDatabases(localDocuments.keySet());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not look up the databases on the server: " + e, e);
+        }
+        for (Map.Entry<String, Collection<LocalDocument>> database : localDocuments.asMap().entrySet()) {
+            progress.info("Planning directory \"" + database.getKey() + "\" with " + database.getValue().size() + " document(s).");
+            progress.indent();
+            try {
+                planDatabase(database.getKey(), database.getValue(), existingDatabases.contains(database.getKey()));
+            } finally {
+                progress.unindent();
+            }
+        }
+        return plan;
+    }
+
+    private void planDatabase(String databaseName, Collection<LocalDocument> documents, boolean exists) {
+        if (!exists) {
+            switch (config.unknownDatabases) {
+            case CREATE:
+                progress.info("Database \"" + databaseName + "\" will be created.");
+                plan.createDatabase(databaseName);
+                break;
+            case SKIP:
+                for (LocalDocument localDocument : documents) {
+                    add(databaseName, localDocument, DeployPlan.Action.SKIP, null, null, "the database doesn't exist");
+                }
+                return;
+            case FAIL:
+                for (LocalDocument localDocument : documents) {
+                    add(databaseName, localDocument, DeployPlan.Action.FAIL, null, null, "the database doesn't exist");
+                }
+                return;
+            default:
+                throw new AssertionError("Unreachable case clause is reached.");
+            }
+        }
+
+        final List<LocalDocument> loaded = new ArrayList<LocalDocument>(documents.size());
+        for (LocalDocument localDocument : documents) {
+            try {
+                localDocument.load();
+                loaded.add(localDocument);
+            } catch (IOException e) {
+                add(databaseName, localDocument, DeployPlan.Action.FAIL, null, null, "could not be loaded: " + e);
+            } catch (DocumentValidationException e) {
+                add(databaseName, localDocument, DeployPlan.Action.FAIL, null, null, "could not be loaded: " + e.getMessage());
+            }
+        }
+        if (!exists) {
+            for (LocalDocument localDocument : loaded) {
+                addUpload(databaseName, localDocument, DeployPlan.Action.CREATE, null);
+            }
+            return;
+        }
+        for (List<LocalDocument> batch : Lists.partition(loaded, Math.max(config.batchSize, MIN_LOOKUP_BATCH_SIZE))) {
+            planBatch(databaseName, batch);
+        }
+    }
+
+    private void planBatch(String databaseName, List<LocalDocument> batch) {
+        final List<String> ids = new ArrayList<String>(batch.size());
+        for (LocalDocument localDocument : batch) {
+            ids.add(localDocument.getId());
+        }
+        final Map<String, String> remoteRevisions;
+        final Map<String, RemoteDocument> remoteDocuments;
+        try {
+            if (config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED) {
+                remoteDocuments = couchFunctions.findDocuments(databaseName, ids);
+                remoteRevisions = null;
+            } else {
+                remoteDocuments = Collections.emptyMap();
+                remoteRevisions = couchFunctions.findRevisions(databaseName, ids);
+            }
+        } catch (IOException e) {
+            for (LocalDocument localDocument : batch) {
+                add(databaseName, localDocument, DeployPlan.Action.FAIL, localDocument.getId(), null, "could not be looked up: " + e);
+            }
+            return;
+        }
+        for (LocalDocument localDocument : batch) {
+            final RemoteDocument remoteDocument = remoteDocuments.get(localDocument.getId());
+            final String remoteRevision = remoteRevisions != null
+                    ? remoteRevisions.get(localDocument.getId())
+                    : remoteDocument != null ? remoteDocument.getRev().orNull() : null;
+            if (remoteRevision == null) {
+                addUpload(databaseName, localDocument, DeployPlan.Action.CREATE, null);
+                continue;
+            }
+            switch (config.existingDocs) {
+            case KEEP:
+                add(databaseName, localDocument, DeployPlan.Action.SKIP, localDocument.getId(), remoteRevision, "kept as it is on the server");
+                break;
+            case FAIL:
+                add(databaseName, localDocument, DeployPlan.Action.FAIL, localDocument.getId(), remoteRevision, "already exists");
+                break;
+            case UPDATE_IF_CHANGED:
+                if (ContentComparison.isSameContent(localDocument, remoteDocument)) {
+                    add(databaseName, localDocument, DeployPlan.Action.UNCHANGED, localDocument.getId(), remoteRevision, null);
+                    break;
+                }
+                addUpload(databaseName, localDocument, DeployPlan.Action.UPDATE, remoteRevision);
+                break;
+            case UPDATE:
+            case REPLACE:
+                addUpload(databaseName, localDocument, DeployPlan.Action.UPDATE, remoteRevision);
+                break;
+            default:
+                throw new AssertionError("Unreachable case clause is reached.");
+            }
+        }
+    }
+
+    /**
+     * Plans an upload, with the content hash of the file as it is now, so that applying the plan can tell whether
+     * the file changed since.
+     */
+    private void addUpload(String databaseName, LocalDocument localDocument, DeployPlan.Action action, String remoteRevision) {
+        final String hash;
+        try {
+            hash = localDocument.getContentHash();
+        } catch (IOException e) {
+            add(databaseName, localDocument, DeployPlan.Action.FAIL, localDocument.getId(), remoteRevision, "could not be hashed: " + e);
+            return;
+        }
+        final DeployPlan.Entry entry = new DeployPlan.Entry(databaseName, localDocument.getFile(), action,
+                localDocument.getId(), remoteRevision, hash, null);
+        progress.info(entry.toString());
+        plan.add(entry);
+    }
+
+    private void add(String databaseName, LocalDocument localDocument, DeployPlan.Action action, String id,
+            String remoteRevision, String reason) {
+        final DeployPlan.Entry entry = new DeployPlan.Entry(databaseName, localDocument.getFile(), action, id,
+                remoteRevision, null, reason);
+        if (action == DeployPlan.Action.FAIL) {
+            progress.warn(entry.toString());
+        } else {
+            progress.info(entry.toString());
+        }
+        plan.add(entry);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Multimap;
+
+/**
+ * Show what the update goal would do, without changing anything in CouchDB.
+ *
+ * This goal looks up the databases and documents on the server in bulk, and classifies every local document as
+ * CREATE, UPDATE, UNCHANGED, SKIP or FAIL under the configured strategies. The result is logged and written to a
+ * plan file, which the apply goal can carry out later without looking anything up again.
+ *
+ * @goal plan
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+public class PlanCouchDocsMojo extends UpdateCouchDocsMojo {
+
+    /**
+     * The file the plan is written to by the plan goal, and read from by the apply goal.
+     *
+     * @parameter expression="${couchdocs.planFile}" default-value="${project.build.directory}/couchdocs-plan.json"
+     */
+    private File planFile;
+
+    @Override
+    protected void deploy(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        prewarmConnections();
+        final DeployPlan plan = new PlanCouchDocs(config, progress, couchFunctions, localDocuments,
+                new DeployPlan(getCouchUrl(), config.existingDocs)).execute();
+        try {
+            plan.save(planFile);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not write the plan to " + planFile + ": " + e.getMessage(), e);
+        }
+        getLog().info("Plan: " + plan.getCreatedDatabases().size() + " database(s) to create, "
+                + plan.count(DeployPlan.Action.CREATE) + " document(s) to create, "
+                + plan.count(DeployPlan.Action.UPDATE) + " to update, "
+                + plan.count(DeployPlan.Action.UNCHANGED) + " unchanged, "
+                + plan.count(DeployPlan.Action.SKIP) + " skipped, "
+                + plan.count(DeployPlan.Action.FAIL) + " failing. Written to " + planFile + ".");
+        if (plan.count(DeployPlan.Action.FAIL) > 0) {
+            progress.error("The deploy would fail on " + plan.count(DeployPlan.Action.FAIL) + " document(s).");
+        }
+    }
+
+    protected File getPlanFile() {
+        return planFile;
+    }
+
+    public void setPlanFile(File planFile) {
+        this.planFile = planFile;
+    }
+}
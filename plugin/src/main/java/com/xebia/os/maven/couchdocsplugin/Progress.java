@@ -15,24 +15,78 @@
 */
 package com.xebia.os.maven.couchdocsplugin;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.maven.plugin.logging.Log;
+import org.sonatype.inject.Nullable;
 
 /**
  * Handles reporting build progress and the {@code failOnError} behaviour. Isolates the non-Maven code from using the
  * Maven logger.
  *
+ * <p>Instances can be shared between threads. Work that runs concurrently with other work should report through
+ * its own {@link #buffered()} instance, which holds on to its output until {@link #flush()} is called, so that the
+ * output of one unit of work isn't interleaved with that of another.</p>
+ *
  * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
  */
 class Progress {
 
+    private static enum Level { DEBUG, INFO, WARN, ERROR }
+
     private final boolean failOnError;
     private final Log log;
-    private boolean indentation;
+    private final Object logLock;
+    private final List<Message> buffer;
+    private final Progress parent;
+    private volatile boolean indentation;
 
     public Progress(boolean failOnError, Log log) {
+        this(failOnError, log, new Object(), null, null);
+    }
+
+    private Progress(boolean failOnError, Log log, Object logLock, @Nullable List<Message> buffer, @Nullable Progress parent) {
         super();
         this.failOnError = failOnError;
         this.log = log;
+        this.logLock = logLock;
+        this.buffer = buffer;
+        this.parent = parent;
+    }
+
+    /**
+     * @return a {@code Progress} that writes to this one, but only when it's flushed. It starts out with the same
+     *         indentation as this one.
+     */
+    public Progress buffered() {
+        final Progress result = new Progress(failOnError, log, logLock, new ArrayList<Message>(), this);
+        result.indentation = indentation;
+        return result;
+    }
+
+    /**
+     * Writes all buffered output to the parent {@code Progress} in one go. Does nothing if this instance isn't
+     * buffered.
+     */
+    public void flush() {
+        if (null == buffer) {
+            return;
+        }
+        synchronized (buffer) {
+            if (null != parent.buffer) {
+                synchronized (parent.buffer) {
+                    parent.buffer.addAll(buffer);
+                }
+            } else {
+                synchronized (logLock) {
+                    for (Message message : buffer) {
+                        message.writeTo(log);
+                    }
+                }
+            }
+            buffer.clear();
+        }
     }
 
     public void indent() {
@@ -44,15 +98,15 @@ class Progress {
     }
 
     public void debug(String content) {
-        log.debug(indent(content));
+        write(Level.DEBUG, content, null);
     }
 
     public void info(String content) {
-        log.info(indent(content));
+        write(Level.INFO, content, null);
     }
 
     public void warn(String content) {
-        log.warn(indent(content));
+        write(Level.WARN, content, null);
     }
 
     public void error(String content) {
@@ -60,17 +114,61 @@ class Progress {
     }
 
     public void error(String content, Throwable error) {
-        if (null != error) {
-            log.error(indent(content), error);
-        } else {
-            log.error(indent(content));
-        }
+        write(Level.ERROR, content, error);
         if (failOnError) {
             throw new RuntimeException(content, error);
         }
     }
 
+    private void write(Level level, String content, @Nullable Throwable error) {
+        final Message message = new Message(level, indent(content), error);
+        if (null != buffer) {
+            synchronized (buffer) {
+                buffer.add(message);
+            }
+        } else {
+            synchronized (logLock) {
+                message.writeTo(log);
+            }
+        }
+    }
+
     private String indent(String message) {
         return indentation ? "    " + message : message;
     }
+
+    private static final class Message {
+        private final Level level;
+        private final String content;
+        private final Throwable error;
+
+        Message(Level level, String content, @Nullable Throwable error) {
+            this.level = level;
+            this.content = content;
+            this.error = error;
+        }
+
+        void writeTo(Log log) {
+            switch (level) {
+            case DEBUG:
+                log.debug(content);
+                break;
+            case INFO:
+                log.info(content);
+                break;
+            case WARN:
+                log.warn(content);
+                break;
+            case ERROR:
+                if (null != error) {
+                    log.error(content, error);
+                } else {
+                    log.error(content);
+                }
+                break;
+            default:
+                throw new AssertionError("Unreachable case clause is reached.");
+            }
+        }
+    }
 }
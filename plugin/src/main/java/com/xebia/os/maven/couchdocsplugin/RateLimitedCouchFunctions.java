@@ -0,0 +1,354 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.node.ObjectNode;
+import org.sonatype.inject.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Decorates a {@code CouchFunctions} with the {@link RateLimits}, so that a deploy can't saturate a shared server.
+ * Every request first takes its tokens from the buckets of its database, then from the buckets for the whole server;
+ * this keeps a single large database from using up the capacity of the server for the others. Request bodies are
+ * counted at their size on disk, or of the JSON they're serialised to, before compression.
+ * {@link #async(AsyncCouchFunctions)} takes the tokens of the non-blocking requests from the same buckets.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class RateLimitedCouchFunctions implements CouchFunctions {
+
+    private final CouchFunctions delegate;
+    private final RateLimits limits;
+    private final Optional<TokenBucket> requests;
+    private final Optional<TokenBucket> bytes;
+    private final ConcurrentMap<String, TokenBucket> databaseRequests = new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentMap<String, TokenBucket> databaseBytes = new ConcurrentHashMap<String, TokenBucket>();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    public RateLimitedCouchFunctions(CouchFunctions delegate, RateLimits limits) {
+        super();
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.limits = Preconditions.checkNotNull(limits);
+        this.requests = bucket(limits.getRequestsPerSecond());
+        this.bytes = bucket(limits.getBytesPerSecond());
+    }
+
+    /**
+     * @return the total time that requests were held back, in milliseconds. Requests that wait at the same time
+     *         are each counted in full.
+     */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * @return {@code delegate}, with its requests taking their tokens from the same buckets as those of these
+     *         {@code CouchFunctions}. A request that has to wait is sent later, rather than block the caller.
+     */
+    public AsyncCouchFunctions async(AsyncCouchFunctions delegate) {
+        return new Async(Preconditions.checkNotNull(delegate));
+    }
+
+    @Override
+    public boolean isExistentDatabase(String databaseName) throws IOException {
+        throttle(databaseName, 0L);
+        return delegate.isExistentDatabase(databaseName);
+    }
+
+    @Override
+    public Set<String> findExistingDatabases(Collection<String> databaseNames) throws IOException {
+        throttle(null, size(databaseNames));
+        return delegate.findExistingDatabases(databaseNames);
+    }
+
+    @Override
+    public void createDatabase(String databaseName) throws IOException {
+        throttle(databaseName, 0L);
+        delegate.createDatabase(databaseName);
+    }
+
+    @Override
+    public Optional<RemoteDocument> download(String databaseName, String id) throws IOException {
+        throttle(databaseName, 0L);
+        return delegate.download(databaseName, id);
+    }
+
+    @Override
+    public Optional<String> headRevision(String databaseName, String id) throws IOException {
+        throttle(databaseName, 0L);
+        return delegate.headRevision(databaseName, id);
+    }
+
+    @Override
+    public Map<String, String> findRevisions(String databaseName, Collection<String> ids) throws IOException {
+        throttle(databaseName, size(ids));
+        return delegate.findRevisions(databaseName, ids);
+    }
+
+    @Override
+    public Map<String, RemoteDocument> findDocuments(String databaseName, Collection<String> ids) throws IOException {
+        throttle(databaseName, size(ids));
+        return delegate.findDocuments(databaseName, ids);
+    }
+
+    @Override
+    public String upload(String databaseName, LocalDocument localDocument) throws IOException {
+        throttle(databaseName, size(localDocument));
+        return delegate.upload(databaseName, localDocument);
+    }
+
+    @Override
+    public List<BulkResult> bulkUpload(String databaseName, List<LocalDocument> localDocuments) throws IOException {
+        throttle(databaseName, sizeOfDocuments(localDocuments));
+        return delegate.bulkUpload(databaseName, localDocuments);
+    }
+
+    @Override
+    public List<BulkResult> bulkReplace(String databaseName, List<LocalDocument> localDocuments) throws IOException {
+        throttle(databaseName, sizeOfDocuments(localDocuments));
+        return delegate.bulkReplace(databaseName, localDocuments);
+    }
+
+    @Override
+    public void delete(String databaseName, String id, String rev) throws IOException {
+        throttle(databaseName, 0L);
+        delegate.delete(databaseName, id, rev);
+    }
+
+    @Override
+    public Optional<ObjectNode> downloadLocal(String databaseName, String name) throws IOException {
+        throttle(databaseName, 0L);
+        return delegate.downloadLocal(databaseName, name);
+    }
+
+    @Override
+    public String uploadLocal(String databaseName, String name, ObjectNode document) throws IOException {
+        throttle(databaseName, document.toString().getBytes(Charsets.UTF_8).length);
+        return delegate.uploadLocal(databaseName, name, document);
+    }
+
+    @Override
+    public int streamDocuments(String databaseName, boolean designOnly, DocumentHandler handler) throws IOException {
+        throttle(databaseName, 0L);
+        return delegate.streamDocuments(databaseName, designOnly, handler);
+    }
+
+    @Override
+    public void downloadAttachment(String databaseName, String id, String name, File target) throws IOException {
+        throttle(databaseName, 0L);
+        delegate.downloadAttachment(databaseName, id, name, target);
+    }
+
+    /**
+     * Waits until the request may be sent.
+     *
+     * @param databaseName the database the request is for, or {@code null} for a request to the server.
+     * @param bodySize     the size of the request body in bytes.
+     */
+    private void throttle(@Nullable String databaseName, long bodySize) throws InterruptedIOException {
+        long waited = 0L;
+        if (null != databaseName) {
+            waited += acquire(databaseBucket(databaseRequests, databaseName, limits.getDatabaseRequestsPerSecond()), 1L);
+            waited += acquire(databaseBucket(databaseBytes, databaseName, limits.getDatabaseBytesPerSecond()), bodySize);
+        }
+        waited += acquire(requests, 1L);
+        waited += acquire(bytes, bodySize);
+        if (waited > 0L) {
+            throttledNanos.addAndGet(waited);
+        }
+    }
+
+    private static long acquire(Optional<TokenBucket> bucket, long tokens) throws InterruptedIOException {
+        return bucket.isPresent() && tokens > 0L ? bucket.get().acquire(tokens) : 0L;
+    }
+
+    /**
+     * Takes the tokens for a request from all its buckets at once, on credit if need be.
+     *
+     * @return the number of nanoseconds to wait before the request may be sent.
+     */
+    private long reserve(@Nullable String databaseName, long bodySize) {
+        final long now = System.nanoTime();
+        long wait = 0L;
+        if (null != databaseName) {
+            wait = Math.max(wait, reserve(databaseBucket(databaseRequests, databaseName, limits.getDatabaseRequestsPerSecond()), 1L, now));
+            wait = Math.max(wait, reserve(databaseBucket(databaseBytes, databaseName, limits.getDatabaseBytesPerSecond()), bodySize, now));
+        }
+        wait = Math.max(wait, reserve(requests, 1L, now));
+        wait = Math.max(wait, reserve(bytes, bodySize, now));
+        if (wait > 0L) {
+            throttledNanos.addAndGet(wait);
+        }
+        return wait;
+    }
+
+    private static long reserve(Optional<TokenBucket> bucket, long tokens, long nowNanos) {
+        return bucket.isPresent() && tokens > 0L ? bucket.get().reserve(tokens, nowNanos) : 0L;
+    }
+
+    private static Optional<TokenBucket> databaseBucket(ConcurrentMap<String, TokenBucket> buckets, String databaseName, double rate) {
+        if (rate == RateLimits.UNLIMITED) {
+            return Optional.absent();
+        }
+        TokenBucket bucket = buckets.get(databaseName);
+        if (null == bucket) {
+            final TokenBucket created = new TokenBucket(rate);
+            bucket = buckets.putIfAbsent(databaseName, created);
+            if (null == bucket) {
+                bucket = created;
+            }
+        }
+        return Optional.of(bucket);
+    }
+
+    private static Optional<TokenBucket> bucket(double rate) {
+        return rate == RateLimits.UNLIMITED ? Optional.<TokenBucket>absent() : Optional.of(new TokenBucket(rate));
+    }
+
+    private static long size(Collection<String> keys) {
+        long size = 0L;
+        for (String key : keys) {
+            size += key.length() + 3;
+        }
+        return size;
+    }
+
+    private static long sizeOfDocuments(Collection<LocalDocument> localDocuments) throws IOException {
+        long size = 0L;
+        for (LocalDocument localDocument : localDocuments) {
+            size += size(localDocument);
+        }
+        return size;
+    }
+
+    private static long size(LocalDocument localDocument) throws IOException {
+        final File file = localDocument.getFile();
+        long size = null != file ? file.length() : localDocument.getJson().getBytes(Charsets.UTF_8).length;
+        if (localDocument.hasAttachmentFiles()) {
+            for (LocalAttachment attachment : localDocument.getAttachments()) {
+                size += attachment.getLength();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The non-blocking counterpart of the enclosing decorator, sharing its buckets.
+     */
+    private final class Async implements AsyncCouchFunctions {
+
+        private final AsyncCouchFunctions delegate;
+
+        Async(AsyncCouchFunctions delegate) {
+            super();
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<Optional<RemoteDocument>> download(final String databaseName, final String id) {
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, 0L), new AsyncCouchRequest<Optional<RemoteDocument>>() {
+                @Override
+                public CompletableFuture<Optional<RemoteDocument>> send() {
+                    return delegate.download(databaseName, id);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Optional<String>> headRevision(final String databaseName, final String id) {
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, 0L), new AsyncCouchRequest<Optional<String>>() {
+                @Override
+                public CompletableFuture<Optional<String>> send() {
+                    return delegate.headRevision(databaseName, id);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<String> upload(final String databaseName, final LocalDocument localDocument) {
+            final long size;
+            try {
+                size = size(localDocument);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, size), new AsyncCouchRequest<String>() {
+                @Override
+                public CompletableFuture<String> send() {
+                    return delegate.upload(databaseName, localDocument);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkUpload(final String databaseName, final List<LocalDocument> localDocuments) {
+            final long size;
+            try {
+                size = sizeOfDocuments(localDocuments);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, size), new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkUpload(databaseName, localDocuments);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) {
+            final long size;
+            try {
+                size = sizeOfDocuments(localDocuments);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, size), new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkReplace(databaseName, localDocuments);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(final String databaseName, final String id, final String rev) {
+            return AsyncCouchRequest.sendAfter(reserve(databaseName, 0L), new AsyncCouchRequest<Void>() {
+                @Override
+                public CompletableFuture<Void> send() {
+                    return delegate.delete(databaseName, id, rev);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The maximum rates at which requests are sent to the CouchDB server, in total and for each database. Bytes are
+ * counted for the request bodies. A rate of {@link #UNLIMITED} means no limit.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class RateLimits {
+
+    static final int UNLIMITED = 0;
+
+    static final RateLimits NONE = new RateLimits(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+
+    private final double requestsPerSecond;
+    private final long bytesPerSecond;
+    private final double databaseRequestsPerSecond;
+    private final long databaseBytesPerSecond;
+
+    public RateLimits(double requestsPerSecond, long bytesPerSecond, double databaseRequestsPerSecond, long databaseBytesPerSecond) {
+        super();
+        Preconditions.checkArgument(requestsPerSecond >= 0, "The request rate must not be negative.");
+        Preconditions.checkArgument(bytesPerSecond >= 0, "The byte rate must not be negative.");
+        Preconditions.checkArgument(databaseRequestsPerSecond >= 0, "The database request rate must not be negative.");
+        Preconditions.checkArgument(databaseBytesPerSecond >= 0, "The database byte rate must not be negative.");
+        this.requestsPerSecond = requestsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.databaseRequestsPerSecond = databaseRequestsPerSecond;
+        this.databaseBytesPerSecond = databaseBytesPerSecond;
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getDatabaseRequestsPerSecond() {
+        return databaseRequestsPerSecond;
+    }
+
+    public long getDatabaseBytesPerSecond() {
+        return databaseBytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return requestsPerSecond == UNLIMITED && bytesPerSecond == UNLIMITED
+                && databaseRequestsPerSecond == UNLIMITED && databaseBytesPerSecond == UNLIMITED;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimits[ " + requestsPerSecond + " req/s , " + bytesPerSecond + " B/s , per database "
+                + databaseRequestsPerSecond + " req/s , " + databaseBytesPerSecond + " B/s ]";
+    }
+}
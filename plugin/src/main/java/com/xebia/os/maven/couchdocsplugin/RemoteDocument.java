@@ -18,6 +18,7 @@ package com.xebia.os.maven.couchdocsplugin;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonParser.Feature;
 
@@ -43,6 +44,11 @@ class RemoteDocument extends Document {
         initRootNode(parser);
     }
 
+    public RemoteDocument(JsonNode data) throws DocumentValidationException {
+        Preconditions.checkNotNull(data, "data argument cannot be null");
+        initRootNode(data);
+    }
+
     @Override
     public String toString() {
         return "RemoteDocument[ " + getId() + " ]";
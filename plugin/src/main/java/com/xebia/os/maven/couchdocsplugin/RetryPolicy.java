@@ -0,0 +1,134 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides which failed requests are retried, and how long to wait before each retry.
+ *
+ * <p>Requests that only read are retried on any failure that may be temporary: {@code 429 Too Many Requests}, the
+ * {@code 5xx} responses other than {@code 501 Not Implemented}, timeouts and dropped connections. Requests that
+ * write are only retried when the server cannot have acted on them: {@code 429} and {@code 503 Service Unavailable}
+ * responses, and connections that couldn't be made. Retrying a write that timed out could apply it twice, and would
+ * be rejected as a conflict anyway.</p>
+ *
+ * <p>The delay before the <em>n</em>th retry is picked at random between zero and {@code initialBackoff * 2^(n-1)},
+ * capped at {@code maxBackoff} ("full jitter"), so that concurrent requests that failed together don't all return
+ * at the same moment. A {@code Retry-After} given by the server takes precedence when it asks for a longer wait, up
+ * to {@code maxBackoff}; a request whose {@code Retry-After} exceeds {@code maxBackoff} is not retried, since waiting
+ * less than the server asked would only get it rejected again.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class RetryPolicy {
+
+    static final RetryPolicy NONE = new RetryPolicy(0, 1, 1);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_INTERNAL_ERROR = 500;
+    private static final int HTTP_NOT_IMPLEMENTED = 501;
+    private static final int HTTP_UNAVAILABLE = 503;
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random;
+
+    /**
+     * @param maxRetries           the number of times a request is retried before its failure is reported.
+     * @param initialBackoffMillis the upper bound of the delay before the first retry.
+     * @param maxBackoffMillis     the upper bound of the delay before any retry.
+     */
+    public RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        this(maxRetries, initialBackoffMillis, maxBackoffMillis, new Random());
+    }
+
+    RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis, Random random) {
+        super();
+        Preconditions.checkArgument(maxRetries >= 0, "The number of retries must not be negative.");
+        Preconditions.checkArgument(initialBackoffMillis > 0, "The initial backoff must be a positive number.");
+        Preconditions.checkArgument(maxBackoffMillis >= initialBackoffMillis, "The maximum backoff must not be less than the initial backoff.");
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.random = Preconditions.checkNotNull(random);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param failure    the exception the request failed with.
+     * @param idempotent whether the request can safely be sent more than once.
+     * @param retries    the number of times the request has been retried so far.
+     */
+    public boolean shouldRetry(Exception failure, boolean idempotent, int retries) {
+        if (retries >= maxRetries) {
+            return false;
+        }
+        if (failure instanceof CouchDatabaseException) {
+            final CouchDatabaseException databaseException = (CouchDatabaseException) failure;
+            final Optional<Long> retryAfter = databaseException.getRetryAfter();
+            if (retryAfter.isPresent() && retryAfter.get() > maxBackoffMillis) {
+                return false;
+            }
+            final int responseCode = databaseException.getResponseCode();
+            if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HTTP_UNAVAILABLE) {
+                return true;
+            }
+            return idempotent && responseCode >= HTTP_INTERNAL_ERROR && responseCode != HTTP_NOT_IMPLEMENTED;
+        }
+        if (failure instanceof ConnectException || failure instanceof NoRouteToHostException) {
+            return true;
+        }
+        if (failure instanceof UnknownHostException || !(failure instanceof IOException)) {
+            return false;
+        }
+        // A SocketTimeoutException is an InterruptedIOException, but the thread wasn't interrupted.
+        return idempotent && (failure instanceof SocketTimeoutException || !(failure instanceof InterruptedIOException));
+    }
+
+    /**
+     * @param retry the number of the upcoming retry, starting at one.
+     * @param retryAfter the delay the server asked for, if any.
+     * @return the number of milliseconds to wait before the retry, never more than {@code maxBackoff}.
+     */
+    public long backoffMillis(int retry, Optional<Long> retryAfter) {
+        Preconditions.checkArgument(retry > 0, "Retries are numbered from one.");
+        final long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(retry - 1, 30));
+        final long jittered;
+        synchronized (random) {
+            jittered = (long) (random.nextDouble() * ceiling);
+        }
+        return retryAfter.isPresent() ? Math.min(maxBackoffMillis, Math.max(retryAfter.get(), jittered)) : jittered;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[ " + maxRetries + " retries , " + initialBackoffMillis + " - " + maxBackoffMillis + " ms ]";
+    }
+}
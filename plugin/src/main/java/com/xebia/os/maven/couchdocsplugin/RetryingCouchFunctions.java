@@ -0,0 +1,468 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Decorates a {@code CouchFunctions} with retries of the requests that fail in a way that may be temporary, as
+ * decided by a {@link RetryPolicy}. Every retry is reported as a warning, and counted for the summary at the end of
+ * the build. Callers that collect their output per database use {@link #reportingTo(CouchFunctions, Progress)}, so
+ * that the warnings appear with the database they concern. {@link #async(AsyncCouchFunctions)} retries the
+ * non-blocking requests by the same policy, and counts them with the others.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class RetryingCouchFunctions implements CouchFunctions {
+
+    private final CouchFunctions delegate;
+    private final RetryPolicy retryPolicy;
+    private final Progress progress;
+    private final AtomicInteger retries;
+    private final AtomicInteger recoveries;
+
+    public RetryingCouchFunctions(CouchFunctions delegate, RetryPolicy retryPolicy, Progress progress) {
+        this(delegate, retryPolicy, progress, new AtomicInteger(), new AtomicInteger());
+    }
+
+    private RetryingCouchFunctions(CouchFunctions delegate, RetryPolicy retryPolicy, Progress progress,
+            AtomicInteger retries, AtomicInteger recoveries) {
+        super();
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+        this.progress = Preconditions.checkNotNull(progress);
+        this.retries = retries;
+        this.recoveries = recoveries;
+    }
+
+    /**
+     * @return {@code couchFunctions} reporting its retries to {@code progress} if it retries requests, otherwise
+     *         {@code couchFunctions} itself.
+     */
+    static CouchFunctions reportingTo(CouchFunctions couchFunctions, Progress progress) {
+        if (couchFunctions instanceof RetryingCouchFunctions) {
+            return ((RetryingCouchFunctions) couchFunctions).withProgress(progress);
+        }
+        return couchFunctions;
+    }
+
+    /**
+     * @return {@code asyncCouchFunctions} reporting its retries to {@code progress} if it retries requests, otherwise
+     *         {@code asyncCouchFunctions} itself.
+     */
+    static AsyncCouchFunctions reportingTo(AsyncCouchFunctions asyncCouchFunctions, Progress progress) {
+        if (asyncCouchFunctions instanceof Async) {
+            return ((Async) asyncCouchFunctions).withProgress(progress);
+        }
+        return asyncCouchFunctions;
+    }
+
+    /**
+     * @return a view on these {@code CouchFunctions} that reports its retries to {@code progress}. The view shares
+     *         the retry and recovery counts with this instance.
+     */
+    public RetryingCouchFunctions withProgress(Progress progress) {
+        if (progress == this.progress) {
+            return this;
+        }
+        return new RetryingCouchFunctions(delegate, retryPolicy, progress, retries, recoveries);
+    }
+
+    /**
+     * @return {@code delegate}, with its requests retried like those of these {@code CouchFunctions}. A retry is
+     *         scheduled after the backoff, rather than block the caller.
+     */
+    public AsyncCouchFunctions async(AsyncCouchFunctions delegate) {
+        return new Async(Preconditions.checkNotNull(delegate));
+    }
+
+    /**
+     * @return the number of times a failed request was sent again.
+     */
+    public int getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of requests that succeeded after one or more retries.
+     */
+    public int getRecoveredCount() {
+        return recoveries.get();
+    }
+
+    @Override
+    public boolean isExistentDatabase(final String databaseName) throws IOException {
+        return send("HEAD /" + databaseName, true, new CouchRequest<Boolean>() {
+            @Override
+            public Boolean send() throws IOException {
+                return delegate.isExistentDatabase(databaseName);
+            }
+        });
+    }
+
+    @Override
+    public Set<String> findExistingDatabases(final Collection<String> databaseNames) throws IOException {
+        return send("POST /_dbs_info", true, new CouchRequest<Set<String>>() {
+            @Override
+            public Set<String> send() throws IOException {
+                return delegate.findExistingDatabases(databaseNames);
+            }
+        });
+    }
+
+    @Override
+    public void createDatabase(final String databaseName) throws IOException {
+        send("PUT /" + databaseName, false, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.createDatabase(databaseName);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Optional<RemoteDocument> download(final String databaseName, final String id) throws IOException {
+        return send("GET /" + databaseName + '/' + id, true, new CouchRequest<Optional<RemoteDocument>>() {
+            @Override
+            public Optional<RemoteDocument> send() throws IOException {
+                return delegate.download(databaseName, id);
+            }
+        });
+    }
+
+    @Override
+    public Optional<String> headRevision(final String databaseName, final String id) throws IOException {
+        return send("HEAD /" + databaseName + '/' + id, true, new CouchRequest<Optional<String>>() {
+            @Override
+            public Optional<String> send() throws IOException {
+                return delegate.headRevision(databaseName, id);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, String> findRevisions(final String databaseName, final Collection<String> ids) throws IOException {
+        return send("POST /" + databaseName + "/_all_docs", true, new CouchRequest<Map<String, String>>() {
+            @Override
+            public Map<String, String> send() throws IOException {
+                return delegate.findRevisions(databaseName, ids);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, RemoteDocument> findDocuments(final String databaseName, final Collection<String> ids) throws IOException {
+        return send("POST /" + databaseName + "/_all_docs", true, new CouchRequest<Map<String, RemoteDocument>>() {
+            @Override
+            public Map<String, RemoteDocument> send() throws IOException {
+                return delegate.findDocuments(databaseName, ids);
+            }
+        });
+    }
+
+    @Override
+    public String upload(final String databaseName, final LocalDocument localDocument) throws IOException {
+        return send("PUT /" + databaseName + '/' + localDocument.getId(), false, new CouchRequest<String>() {
+            @Override
+            public String send() throws IOException {
+                return delegate.upload(databaseName, localDocument);
+            }
+        });
+    }
+
+    @Override
+    public List<BulkResult> bulkUpload(final String databaseName, final List<LocalDocument> localDocuments) throws IOException {
+        return send("POST /" + databaseName + "/_bulk_docs", false, new CouchRequest<List<BulkResult>>() {
+            @Override
+            public List<BulkResult> send() throws IOException {
+                return delegate.bulkUpload(databaseName, localDocuments);
+            }
+        });
+    }
+
+    @Override
+    public List<BulkResult> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) throws IOException {
+        return send("POST /" + databaseName + "/_bulk_docs", false, new CouchRequest<List<BulkResult>>() {
+            @Override
+            public List<BulkResult> send() throws IOException {
+                return delegate.bulkReplace(databaseName, localDocuments);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String databaseName, final String id, final String rev) throws IOException {
+        send("DELETE /" + databaseName + '/' + id, false, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.delete(databaseName, id, rev);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Optional<ObjectNode> downloadLocal(final String databaseName, final String name) throws IOException {
+        return send("GET /" + databaseName + "/_local/" + name, true, new CouchRequest<Optional<ObjectNode>>() {
+            @Override
+            public Optional<ObjectNode> send() throws IOException {
+                return delegate.downloadLocal(databaseName, name);
+            }
+        });
+    }
+
+    @Override
+    public String uploadLocal(final String databaseName, final String name, final ObjectNode document) throws IOException {
+        return send("PUT /" + databaseName + "/_local/" + name, false, new CouchRequest<String>() {
+            @Override
+            public String send() throws IOException {
+                return delegate.uploadLocal(databaseName, name, document);
+            }
+        });
+    }
+
+    /**
+     * Retried as a whole. The handler sees the documents read before the failure again, so it must not mind that.
+     * A failure of the handler itself ends the stream, and is passed on without a retry.
+     */
+    @Override
+    public int streamDocuments(final String databaseName, final boolean designOnly, final DocumentHandler handler) throws IOException {
+        final DocumentHandler guarded = new DocumentHandler() {
+            @Override
+            public void handle(ObjectNode document) throws IOException {
+                try {
+                    handler.handle(document);
+                } catch (IOException e) {
+                    throw new HandlerFailure(e);
+                }
+            }
+        };
+        try {
+            return send("GET /" + databaseName + "/_all_docs", true, new CouchRequest<Integer>() {
+                @Override
+                public Integer send() throws IOException {
+                    return delegate.streamDocuments(databaseName, designOnly, guarded);
+                }
+            });
+        } catch (HandlerFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void downloadAttachment(final String databaseName, final String id, final String name, final File target) throws IOException {
+        send("GET /" + databaseName + '/' + id + '/' + name, true, new CouchRequest<Void>() {
+            @Override
+            public Void send() throws IOException {
+                delegate.downloadAttachment(databaseName, id, name, target);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Carries a failure of a {@link DocumentHandler} past {@link #send}, which would otherwise retry it.
+     */
+    private static final class HandlerFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        HandlerFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private <T> T send(String description, boolean idempotent, CouchRequest<T> request) throws IOException {
+        for (int retry = 0; ; retry++) {
+            final Exception failure;
+            try {
+                final T result = request.send();
+                if (retry > 0) {
+                    recoveries.incrementAndGet();
+                }
+                return result;
+            } catch (IOException e) {
+                failure = e;
+            } catch (CouchDatabaseException e) {
+                failure = e;
+            }
+            if (!retryPolicy.shouldRetry(failure, idempotent, retry)) {
+                Throwables.propagateIfPossible(failure, IOException.class);
+                throw new AssertionError(failure);
+            }
+            sleep(backoff(description, failure, retry));
+        }
+    }
+
+    /**
+     * The non-blocking counterpart of {@link #send(String, boolean, CouchRequest)}.
+     *
+     * @param retry the number of times the request has been retried so far.
+     */
+    private <T> CompletableFuture<T> send(final String description, final boolean idempotent, final AsyncCouchRequest<T> request,
+            final int retry) {
+        return AsyncCouchRequest.sendAfter(0L, request).handle(new BiFunction<T, Throwable, CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> apply(T result, Throwable failure) {
+                if (null == failure) {
+                    if (retry > 0) {
+                        recoveries.incrementAndGet();
+                    }
+                    return CompletableFuture.completedFuture(result);
+                }
+                final Throwable cause = HttpClientCouchFunctions.unwrap(failure);
+                if (!(cause instanceof Exception) || !retryPolicy.shouldRetry((Exception) cause, idempotent, retry)) {
+                    return CompletableFuture.failedFuture(cause);
+                }
+                final long delay = backoff(description, (Exception) cause, retry);
+                return AsyncCouchRequest.sendAfter(TimeUnit.MILLISECONDS.toNanos(delay), new AsyncCouchRequest<T>() {
+                    @Override
+                    public CompletableFuture<T> send() {
+                        return RetryingCouchFunctions.this.send(description, idempotent, request, retry + 1);
+                    }
+                });
+            }
+        }).thenCompose(Function.<CompletableFuture<T>>identity());
+    }
+
+    /**
+     * Reports and counts the upcoming retry.
+     *
+     * @return the number of milliseconds to wait before it.
+     */
+    private long backoff(String description, Exception failure, int retry) {
+        final Optional<Long> retryAfter = failure instanceof CouchDatabaseException
+                ? ((CouchDatabaseException) failure).getRetryAfter()
+                : Optional.<Long>absent();
+        final long delay = retryPolicy.backoffMillis(retry + 1, retryAfter);
+        progress.warn(description + " failed (" + failure + "), retry " + (retry + 1) + " of "
+                + retryPolicy.getMaxRetries() + " in " + delay + " ms.");
+        retries.incrementAndGet();
+        return delay;
+    }
+
+    @VisibleForTesting
+    void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to retry.");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+
+    /**
+     * The non-blocking counterpart of the enclosing decorator, sharing its policy, its progress and its counts.
+     */
+    private final class Async implements AsyncCouchFunctions {
+
+        private final AsyncCouchFunctions delegate;
+
+        Async(AsyncCouchFunctions delegate) {
+            super();
+            this.delegate = delegate;
+        }
+
+        AsyncCouchFunctions withProgress(Progress progress) {
+            return RetryingCouchFunctions.this.withProgress(progress).async(delegate);
+        }
+
+        @Override
+        public CompletableFuture<Optional<RemoteDocument>> download(final String databaseName, final String id) {
+            return send("GET /" + databaseName + '/' + id, true, new AsyncCouchRequest<Optional<RemoteDocument>>() {
+                @Override
+                public CompletableFuture<Optional<RemoteDocument>> send() {
+                    return delegate.download(databaseName, id);
+                }
+            }, 0);
+        }
+
+        @Override
+        public CompletableFuture<Optional<String>> headRevision(final String databaseName, final String id) {
+            return send("HEAD /" + databaseName + '/' + id, true, new AsyncCouchRequest<Optional<String>>() {
+                @Override
+                public CompletableFuture<Optional<String>> send() {
+                    return delegate.headRevision(databaseName, id);
+                }
+            }, 0);
+        }
+
+        @Override
+        public CompletableFuture<String> upload(final String databaseName, final LocalDocument localDocument) {
+            return send("PUT /" + databaseName + '/' + localDocument.getId(), false, new AsyncCouchRequest<String>() {
+                @Override
+                public CompletableFuture<String> send() {
+                    return delegate.upload(databaseName, localDocument);
+                }
+            }, 0);
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkUpload(final String databaseName, final List<LocalDocument> localDocuments) {
+            return send("POST /" + databaseName + "/_bulk_docs", false, new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkUpload(databaseName, localDocuments);
+                }
+            }, 0);
+        }
+
+        @Override
+        public CompletableFuture<List<BulkResult>> bulkReplace(final String databaseName, final List<LocalDocument> localDocuments) {
+            return send("POST /" + databaseName + "/_bulk_docs", false, new AsyncCouchRequest<List<BulkResult>>() {
+                @Override
+                public CompletableFuture<List<BulkResult>> send() {
+                    return delegate.bulkReplace(databaseName, localDocuments);
+                }
+            }, 0);
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(final String databaseName, final String id, final String rev) {
+            return send("DELETE /" + databaseName + '/' + id, false, new AsyncCouchRequest<Void>() {
+                @Override
+                public CompletableFuture<Void> send() {
+                    return delegate.delete(databaseName, id, rev);
+                }
+            }, 0);
+        }
+    }
+}
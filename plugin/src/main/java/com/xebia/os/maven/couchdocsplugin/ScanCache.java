@@ -0,0 +1,208 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.plexus.util.Base64;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Remembers the size, modification time and digest of the files read by earlier runs, so that a file whose size
+ * and modification time haven't changed since doesn't have to be read again to find its digest.
+ *
+ * <p>Files modified less than {@value #RACY_WINDOW_MILLIS} ms before they are digested are not recorded: another
+ * change within the resolution of the file system's timestamps could go unnoticed. On {@link #save()}, only the
+ * files digested by this run are kept, so deleted files drop out. Instances are safe for use by multiple
+ * threads.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class ScanCache {
+
+    static final long RACY_WINDOW_MILLIS = 2000L;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final File file;
+
+    /** Keys: absolute file path. */
+    private final Map<String, Entry> previous;
+    private final ConcurrentMap<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    private ScanCache(File file, Map<String, Entry> previous) {
+        this.file = file;
+        this.previous = previous;
+    }
+
+    /**
+     * Reads the cache from {@code file}, or starts an empty one if the file doesn't exist yet.
+     */
+    public static ScanCache load(File file) throws IOException {
+        if (!Preconditions.checkNotNull(file).exists()) {
+            return empty(file);
+        }
+        final JsonNode root = OBJECT_MAPPER.readTree(file);
+        if (!root.isObject()) {
+            throw new IOException("The scan cache " + file + " is not a JSON object.");
+        }
+        final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        for (Iterator<Map.Entry<String, JsonNode>> files = root.path("files").getFields(); files.hasNext();) {
+            final Map.Entry<String, JsonNode> entry = files.next();
+            entries.put(entry.getKey(), new Entry(
+                    entry.getValue().path("size").asLong(-1L),
+                    entry.getValue().path("mtime").asLong(-1L),
+                    entry.getValue().path("digest").asText()));
+        }
+        return new ScanCache(file, entries);
+    }
+
+    /**
+     * Starts an empty cache that will be saved to {@code file}, replacing whatever is there.
+     */
+    public static ScanCache empty(File file) {
+        return new ScanCache(Preconditions.checkNotNull(file), new ConcurrentHashMap<String, Entry>());
+    }
+
+    /**
+     * @return {@code true} if {@code source} has the size and modification time it had when it was digested by an
+     *         earlier run. Doesn't read the file.
+     */
+    public boolean isUnchanged(File source) {
+        final Entry entry = previous.get(source.getAbsolutePath());
+        return entry != null && entry.size == source.length() && entry.mtime == source.lastModified();
+    }
+
+    /**
+     * Returns the digest of {@code source} in the form {@code "<algorithm>-<base64>"}, such as
+     * {@code "sha256-..."} or {@code "md5-..."}. The file is only read if it changed since it was last digested
+     * with the same algorithm; files of at least {@value MappedFiles#MAPPED_READ_THRESHOLD} bytes are read through a
+     * memory mapping.
+     *
+     * @param algorithm a {@link MessageDigest} algorithm, such as {@code "SHA-256"}.
+     */
+    public String digest(File source, String algorithm) throws IOException {
+        final String key = source.getAbsolutePath();
+        final String prefix = algorithm.toLowerCase(Locale.ENGLISH).replace("-", "") + "-";
+        final long size = source.length();
+        final long mtime = source.lastModified();
+        final Entry entry = find(key);
+        if (entry != null && entry.size == size && entry.mtime == mtime && entry.digest.startsWith(prefix)) {
+            hitCount.incrementAndGet();
+            current.put(key, entry);
+            return entry.digest;
+        }
+        missCount.incrementAndGet();
+        final String digest = prefix + compute(source, algorithm);
+        // Only trust the timestamps if the file didn't change while it was read, and isn't too recent.
+        if (source.length() == size && source.lastModified() == mtime
+                && System.currentTimeMillis() - mtime >= RACY_WINDOW_MILLIS) {
+            current.put(key, new Entry(size, mtime, digest));
+        } else {
+            current.remove(key);
+        }
+        return digest;
+    }
+
+    /**
+     * @return the number of digests taken from the cache rather than computed, since this instance was created.
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of digests computed, since this instance was created.
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Writes the entries of the files digested by this run back to the cache file.
+     */
+    public void save() throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        // Write to a temporary file first, so that an interrupted build doesn't leave half a cache behind.
+        final File temporary = new File(parent, file.getName() + ".tmp");
+        final JsonGenerator generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(temporary, JsonEncoding.UTF8);
+        try {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("files");
+            for (Map.Entry<String, Entry> entry : current.entrySet()) {
+                generator.writeObjectFieldStart(entry.getKey());
+                generator.writeNumberField("size", entry.getValue().size);
+                generator.writeNumberField("mtime", entry.getValue().mtime);
+                generator.writeStringField("digest", entry.getValue().digest);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } finally {
+            generator.close();
+        }
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            throw new IOException("Could not replace " + file + " with " + temporary);
+        }
+    }
+
+    private Entry find(String key) {
+        final Entry entry = current.get(key);
+        return entry != null ? entry : previous.get(key);
+    }
+
+    private static String compute(File source, String algorithm) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, e);
+        }
+        MappedFiles.digest(source, digest);
+        return new String(Base64.encodeBase64(digest.digest()), Charsets.US_ASCII);
+    }
+
+    private static final class Entry {
+        final long size;
+        final long mtime;
+        final String digest;
+
+        Entry(long size, long mtime, String digest) {
+            this.size = size;
+            this.mtime = mtime;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+
+/**
+ * The content hashes and revisions of the documents this plugin wrote to a database, kept in the database itself as
+ * the local document {@code _local/couch-docs-maven-plugin}.
+ *
+ * <p>Local documents aren't replicated and don't show up in views, and because the manifest lives on the server
+ * it is shared by every build that deploys to it. It's read with one request when the database is processed, and
+ * written back with one request at the end. If another build updated it in the meantime, the entries of this run
+ * are merged into its version. Instances are safe for use by multiple threads.</p>
+ *
+ * <p>Every entry carries the time a build last deployed the document or found it unchanged. Entries no build has
+ * seen for {@link #STALE_AFTER_MILLIS} are dropped when the manifest is saved: their documents are no longer
+ * deployed from anywhere. The manifest is also kept below {@link #MAX_SIZE_BYTES}, well under CouchDB's
+ * {@code max_document_size}, by dropping the least recently seen entries. Documents without an entry are simply
+ * looked up on the server.</p>
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class ServerManifest {
+
+    static final String NAME = "couch-docs-maven-plugin";
+    private static final int HTTP_CONFLICT = 409;
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+    static final long STALE_AFTER_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    /** How old the last-seen time of an unchanged document may get before it's worth a write to refresh it. */
+    static final long REFRESH_AFTER_MILLIS = 24L * 60 * 60 * 1000;
+    static final int MAX_SIZE_BYTES = 1024 * 1024;
+    /** The serialized size of an entry, on top of its id, hash and revision: the quotes, field names and time. */
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+
+    private final String databaseName;
+    private final long now;
+    private Optional<String> rev;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** The entries recorded by this run, to merge into a newer version of the manifest on a conflict. */
+    private final Map<String, Entry> recorded = new HashMap<String, Entry>();
+    private int unchangedCount;
+
+    private ServerManifest(String databaseName, long now) {
+        this.databaseName = databaseName;
+        this.now = now;
+        this.rev = Optional.absent();
+    }
+
+    /**
+     * Reads the manifest of {@code databaseName}, or starts an empty one if the database doesn't have one yet.
+     */
+    public static ServerManifest load(CouchFunctions couchFunctions, String databaseName) throws IOException {
+        return load(couchFunctions, databaseName, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now the time this run's entries are recorded as seen at.
+     */
+    @VisibleForTesting
+    static ServerManifest load(CouchFunctions couchFunctions, String databaseName, long now) throws IOException {
+        final ServerManifest manifest = new ServerManifest(databaseName, now);
+        manifest.read(couchFunctions);
+        return manifest;
+    }
+
+    /**
+     * @return {@code true} if {@code localDocument} was written to the database before, from a file with the same
+     *         content as it has now.
+     */
+    public boolean isUnchanged(LocalDocument localDocument) throws IOException {
+        final String hash = localDocument.getContentHash();
+        synchronized (this) {
+            final Entry entry = entries.get(localDocument.getId());
+            if (entry != null && entry.hash.equals(hash)) {
+                unchangedCount++;
+                if (now - entry.seen > REFRESH_AFTER_MILLIS) {
+                    final Entry seen = new Entry(entry.hash, entry.rev, now);
+                    entries.put(localDocument.getId(), seen);
+                    recorded.put(localDocument.getId(), seen);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the revision {@code id} was last written as by this plugin, if any.
+     */
+    public synchronized Optional<String> getRevision(String id) {
+        final Entry entry = entries.get(id);
+        return entry != null ? Optional.of(entry.rev) : Optional.<String>absent();
+    }
+
+    public void record(LocalDocument localDocument, String documentRev) throws IOException {
+        final Entry entry = new Entry(localDocument.getContentHash(), documentRev, now);
+        synchronized (this) {
+            entries.put(localDocument.getId(), entry);
+            recorded.put(localDocument.getId(), entry);
+        }
+    }
+
+    /**
+     * @return the number of documents {@link #isUnchanged(LocalDocument)} found to be unchanged.
+     */
+    public synchronized int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * @return the number of documents recorded by this run, including unchanged ones whose last-seen time was
+     *         refreshed.
+     */
+    public synchronized int getRecordedCount() {
+        return recorded.size();
+    }
+
+    /**
+     * Writes the manifest back to the database, if anything was recorded. Stale entries are dropped first, and so
+     * are the least recently seen ones if the manifest would get too large.
+     */
+    public synchronized void save(CouchFunctions couchFunctions) throws IOException {
+        if (recorded.isEmpty()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                rev = Optional.fromNullable(couchFunctions.uploadLocal(databaseName, NAME, prune()));
+                return;
+            } catch (CouchDatabaseException e) {
+                if (HTTP_CONFLICT != e.getResponseCode() || attempt == MAX_SAVE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            // Another build saved its manifest in the meantime. Start over from that one, then apply ours on top.
+            entries.clear();
+            read(couchFunctions);
+            entries.putAll(recorded);
+        }
+    }
+
+    private synchronized void read(CouchFunctions couchFunctions) throws IOException {
+        final Optional<ObjectNode> document = couchFunctions.downloadLocal(databaseName, NAME);
+        if (!document.isPresent()) {
+            rev = Optional.absent();
+            return;
+        }
+        rev = Optional.fromNullable(document.get().path("_rev").getTextValue());
+        for (Iterator<Map.Entry<String, JsonNode>> fields = document.get().path("documents").getFields(); fields.hasNext();) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            // Entries written before last-seen times were kept count as seen now, so that they age from here on.
+            entries.put(field.getKey(), new Entry(field.getValue().path("hash").asText(), field.getValue().path("rev").asText(),
+                    field.getValue().path("seen").asLong(now)));
+        }
+    }
+
+    /**
+     * Drops the stale entries, then the least recently seen ones until the manifest fits in {@link #MAX_SIZE_BYTES}.
+     *
+     * @return the manifest as it should be written.
+     */
+    private ObjectNode prune() {
+        for (Iterator<Entry> values = entries.values().iterator(); values.hasNext();) {
+            if (now - values.next().seen > STALE_AFTER_MILLIS) {
+                values.remove();
+            }
+        }
+        ObjectNode document = toJson();
+        int size = sizeOf(document);
+        if (size > MAX_SIZE_BYTES) {
+            final List<Map.Entry<String, Entry>> oldestFirst = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+            Collections.sort(oldestFirst, new Comparator<Map.Entry<String, Entry>>() {
+                @Override
+                public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                    return a.getValue().seen < b.getValue().seen ? -1 : (a.getValue().seen == b.getValue().seen ? 0 : 1);
+                }
+            });
+            final Iterator<Map.Entry<String, Entry>> oldest = oldestFirst.iterator();
+            while (size > MAX_SIZE_BYTES && oldest.hasNext()) {
+                // Drop entries until the estimated size fits, then measure again.
+                int estimate = size;
+                while (estimate > MAX_SIZE_BYTES && oldest.hasNext()) {
+                    final Map.Entry<String, Entry> entry = oldest.next();
+                    estimate -= entry.getKey().getBytes(Charsets.UTF_8).length + entry.getValue().hash.length()
+                            + entry.getValue().rev.length() + ENTRY_OVERHEAD_BYTES;
+                    entries.remove(entry.getKey());
+                }
+                document = toJson();
+                size = sizeOf(document);
+            }
+        }
+        return document;
+    }
+
+    private static int sizeOf(ObjectNode document) {
+        return document.toString().getBytes(Charsets.UTF_8).length;
+    }
+
+    private ObjectNode toJson() {
+        final ObjectNode document = JsonNodeFactory.instance.objectNode();
+        if (rev.isPresent()) {
+            document.put("_rev", rev.get());
+        }
+        final ObjectNode documents = document.putObject("documents");
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            final ObjectNode node = documents.putObject(entry.getKey());
+            node.put("hash", entry.getValue().hash);
+            node.put("rev", entry.getValue().rev);
+            node.put("seen", entry.getValue().seen);
+        }
+        return document;
+    }
+
+    private static final class Entry {
+        final String hash;
+        final String rev;
+        final long seen;
+
+        Entry(String hash, String rev, long seen) {
+            this.hash = hash;
+            this.rev = rev;
+            this.seen = seen;
+        }
+    }
+}
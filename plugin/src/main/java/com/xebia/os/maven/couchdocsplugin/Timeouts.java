@@ -0,0 +1,60 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The socket timeouts for the requests to CouchDB. Bulk requests ({@code _bulk_docs} and {@code _all_docs} lookups)
+ * carry many documents at once, so they get a read timeout of their own.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class Timeouts {
+
+    static final Timeouts DEFAULT = new Timeouts(30000, 120000, 300000);
+
+    private final int connectMillis;
+    private final int readMillis;
+    private final int bulkReadMillis;
+
+    public Timeouts(int connectMillis, int readMillis, int bulkReadMillis) {
+        super();
+        Preconditions.checkArgument(connectMillis > 0, "The connect timeout must be a positive number.");
+        Preconditions.checkArgument(readMillis > 0, "The read timeout must be a positive number.");
+        Preconditions.checkArgument(bulkReadMillis > 0, "The bulk read timeout must be a positive number.");
+        this.connectMillis = connectMillis;
+        this.readMillis = readMillis;
+        this.bulkReadMillis = bulkReadMillis;
+    }
+
+    public int getConnectMillis() {
+        return connectMillis;
+    }
+
+    public int getReadMillis() {
+        return readMillis;
+    }
+
+    public int getBulkReadMillis() {
+        return bulkReadMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Timeouts[ connect " + connectMillis + " ms , read " + readMillis + " ms , bulk read " + bulkReadMillis + " ms ]";
+    }
+}
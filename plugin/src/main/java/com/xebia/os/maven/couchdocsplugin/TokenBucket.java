@@ -0,0 +1,89 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * A token bucket that refills at a fixed rate and holds at most one second's worth of tokens, so that a quiet period
+ * allows a burst of at most that size. A caller that takes more tokens than are available takes them on credit, and
+ * waits until the bucket is out of debt; later callers queue up behind it.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double available;
+    private long lastRefill;
+
+    /**
+     * @param tokensPerSecond the rate at which the bucket refills.
+     */
+    public TokenBucket(double tokensPerSecond) {
+        this(tokensPerSecond, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    TokenBucket(double tokensPerSecond, long nowNanos) {
+        super();
+        Preconditions.checkArgument(tokensPerSecond > 0, "The rate must be a positive number.");
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = tokensPerSecond;
+        this.available = tokensPerSecond;
+        this.lastRefill = nowNanos;
+    }
+
+    /**
+     * Takes {@code tokens} from the bucket, waiting for as long as it takes for them to become available.
+     *
+     * @return the number of nanoseconds spent waiting.
+     */
+    public long acquire(long tokens) throws InterruptedIOException {
+        final long waitNanos = reserve(tokens, System.nanoTime());
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while throttled.");
+                interrupted.initCause(e);
+                throw interrupted;
+            }
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Takes {@code tokens} from the bucket, on credit if need be.
+     *
+     * @return the number of nanoseconds until the bucket is out of debt, which is how long the caller must wait.
+     */
+    synchronized long reserve(long tokens, long nowNanos) {
+        Preconditions.checkArgument(tokens >= 0, "The number of tokens must not be negative.");
+        if (nowNanos > lastRefill) {
+            available = Math.min(capacity, available + (nowNanos - lastRefill) * tokensPerNano);
+            lastRefill = nowNanos;
+        }
+        available -= tokens;
+        return available >= 0 ? 0L : (long) Math.ceil(-available / tokensPerNano);
+    }
+}
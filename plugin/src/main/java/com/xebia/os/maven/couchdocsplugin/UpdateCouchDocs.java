@@ -16,11 +16,37 @@
 package com.xebia.os.maven.couchdocsplugin;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Implements the main workflow.
@@ -29,48 +55,301 @@ import com.google.common.collect.Multimap;
  */
 class UpdateCouchDocs {
 
+    private static final int HTTP_CONFLICT = 409;
+
     private final Config config;
     private final Progress progress;
     private final CouchFunctions couchFunctions;
     private final Multimap<String, LocalDocument> localDocuments;
+    private final Semaphore requestPermits;
+    private final Optional<DeployManifest> manifest;
+    private final Optional<AsyncCouchFunctions> asyncCouchFunctions;
+    private final DocumentUploader uploader;
+    private final Runnable prewarm;
+    private final ConcurrentMap<String, ServerManifest> serverManifests = new ConcurrentHashMap<String, ServerManifest>();
+    private final AtomicInteger unchangedDocuments = new AtomicInteger();
+    private volatile DocumentPipeline pipeline;
+
+    /** The databases known to exist on the server, or {@code null} if each database is to be checked by itself. */
+    private volatile Set<String> existingDatabases;
 
     public UpdateCouchDocs(
             Config config,
             Progress progress,
             CouchFunctions couchFunctions,
             Multimap<String, LocalDocument> localDocuments) {
+        this(config, progress, couchFunctions, localDocuments, Optional.<DeployManifest>absent());
+    }
+
+    public UpdateCouchDocs(
+            Config config,
+            Progress progress,
+            CouchFunctions couchFunctions,
+            Multimap<String, LocalDocument> localDocuments,
+            Optional<DeployManifest> manifest) {
+        this(config, progress, couchFunctions, Optional.<AsyncCouchFunctions>absent(), localDocuments, manifest);
+    }
+
+    public UpdateCouchDocs(
+            Config config,
+            Progress progress,
+            CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions,
+            Multimap<String, LocalDocument> localDocuments,
+            Optional<DeployManifest> manifest) {
+        this(config, progress, couchFunctions, asyncCouchFunctions, localDocuments, manifest, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * @param asyncCouchFunctions sends the per-document requests in the {@link Config.Execution#ASYNC} execution;
+     *                            {@code couchFunctions} still handles the databases and the server manifests.
+     * @param prewarm             runs before the first request to the server. It doesn't run if the manifest shows
+     *                            that no document changed since the last deploy.
+     */
+    public UpdateCouchDocs(
+            Config config,
+            Progress progress,
+            CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions,
+            Multimap<String, LocalDocument> localDocuments,
+            Optional<DeployManifest> manifest,
+            Runnable prewarm) {
         super();
         this.config = Preconditions.checkNotNull(config);
         this.progress = Preconditions.checkNotNull(progress);
         this.couchFunctions = Preconditions.checkNotNull(couchFunctions);
+        this.asyncCouchFunctions = Preconditions.checkNotNull(asyncCouchFunctions);
         this.localDocuments = Preconditions.checkNotNull(localDocuments);
+        this.requestPermits = new Semaphore(config.maxConcurrentRequests, true);
+        this.manifest = Preconditions.checkNotNull(manifest);
+        this.uploader = new DocumentUploader(couchFunctions, config.existingDocs == Config.ExistingDocs.REPLACE,
+                config.batchSize, manifest);
+        this.prewarm = Preconditions.checkNotNull(prewarm);
     }
 
     public void execute() {
-        for (final Map.Entry<String, Collection<LocalDocument>> database : localDocuments.asMap().entrySet()) {
-            final String databaseName = database.getKey();
-            final Collection<LocalDocument> documents = database.getValue();
-            progress.info("Processing directory \"" + databaseName + "\" with " + documents.size() + " document(s).");
-            progress.indent();
-            try {
-                if (ensureDatabaseExists(databaseName)) {
-                    for (LocalDocument localDocument : documents) {
-                        processLocalDesignDocument(databaseName, localDocument);
+        Preconditions.checkState(config.execution != Config.Execution.VIRTUAL_THREADS || VirtualThreads.isAvailable(),
+                "The VIRTUAL_THREADS execution requires Java 21 or newer.");
+        Preconditions.checkState(config.execution != Config.Execution.ASYNC || asyncCouchFunctions.isPresent(),
+                "The ASYNC execution requires an AsyncCouchFunctions.");
+        ExecutorService parseExecutor = null;
+        ExecutorService ioExecutor = null;
+        if (config.execution == Config.Execution.PIPELINED) {
+            parseExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory("couch-docs-parse-%d"));
+            ioExecutor = Executors.newCachedThreadPool(threadFactory("couch-docs-io-%d"));
+            pipeline = new DocumentPipeline(parseExecutor, ioExecutor, config.batchSize);
+        }
+        try {
+            // The manifest is checked first, so that a deploy without changes doesn't contact the server at all.
+            final Map<String, Collection<LocalDocument>> changes = selectChangedFiles();
+            final Set<String> changedDatabases = new LinkedHashSet<String>();
+            for (Map.Entry<String, Collection<LocalDocument>> database : changes.entrySet()) {
+                if (!database.getValue().isEmpty()) {
+                    changedDatabases.add(database.getKey());
+                }
+            }
+            if (!changedDatabases.isEmpty()) {
+                prewarm.run();
+                resolveDatabases(changedDatabases);
+            }
+            if (config.databaseParallelism == 1 || changedDatabases.size() < 2) {
+                for (final Map.Entry<String, Collection<LocalDocument>> database : localDocuments.asMap().entrySet()) {
+                    processDirectory(database.getKey(), database.getValue(), changes.get(database.getKey()), progress);
+                }
+            } else {
+                executeConcurrently(changes);
+            }
+            if (config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED) {
+                progress.info("Skipped " + unchangedDocuments.get() + " unchanged document(s).");
+            }
+        } finally {
+            saveManifest();
+            pipeline = null;
+            if (null != parseExecutor) {
+                parseExecutor.shutdownNow();
+                ioExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Processes up to {@code databaseParallelism} databases at the same time. Each database reports to its own
+     * buffered {@code Progress}, which is flushed when the database is done so that its output stays together.
+     */
+    private void executeConcurrently(final Map<String, Collection<LocalDocument>> changes) {
+        final int threads = Math.min(config.databaseParallelism, localDocuments.keySet().size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, threadFactory("couch-docs-%d"));
+        try {
+            final List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final Map.Entry<String, Collection<LocalDocument>> database : localDocuments.asMap().entrySet()) {
+                results.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Progress databaseProgress = progress.buffered();
+                        try {
+                            processDirectory(database.getKey(), database.getValue(), changes.get(database.getKey()), databaseProgress);
+                        } finally {
+                            databaseProgress.flush();
+                        }
                     }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing databases.", e);
+        } catch (ExecutionException e) {
+            // The failing database has flushed its output by now; stop the others and fail with its error.
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * With more than one database, finds out which of them exist with a single request rather than one request per
+     * database, and creates the missing ones in parallel if {@code unknownDatabases} is CREATE. The result is kept
+     * for the rest of the run.
+     */
+    private void resolveDatabases(Set<String> databaseNames) {
+        if (databaseNames.size() < 2) {
+            return;
+        }
+        final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            known.addAll(couchFunctions.findExistingDatabases(databaseNames));
+        } catch (IOException e) {
+            progress.warn("Could not list the databases on the server, checking them one by one: " + e);
+            return;
+        } catch (CouchDatabaseException e) {
+            // CouchDB 3 only lets admins list databases by default.
+            progress.warn("Could not list the databases on the server, checking them one by one: " + e);
+            return;
+        }
+        if (config.unknownDatabases == Config.UnknownDatabases.CREATE) {
+            final List<String> missing = new ArrayList<String>(databaseNames);
+            missing.removeAll(known);
+            createDatabases(missing, known);
+        }
+        existingDatabases = known;
+    }
+
+    /**
+     * Creates the databases, up to {@code maxConcurrentRequests} at the same time, and adds the ones that were
+     * created to {@code known}.
+     */
+    private void createDatabases(List<String> databaseNames, final Set<String> known) {
+        if (databaseNames.isEmpty()) {
+            return;
+        }
+        final int threads = Math.min(config.maxConcurrentRequests, databaseNames.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, threadFactory("couch-docs-create-%d"));
+        try {
+            final Map<String, Future<?>> results = new LinkedHashMap<String, Future<?>>();
+            for (final String databaseName : databaseNames) {
+                progress.info("Creating database \"" + databaseName + "\" on the server.");
+                results.put(databaseName, executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        couchFunctions.createDatabase(databaseName);
+                        known.add(databaseName);
+                        return null;
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException e) {
+                    // If we get past this line then "skip errors" is set; the database is tried once more when its
+                    // turn comes.
+                    progress.error("Could not create database \"" + result.getKey() + "\".", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while creating databases.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    /**
+     * @param changed the documents from {@code documents} that changed since the last deploy.
+     */
+    private void processDirectory(String databaseName, Collection<LocalDocument> documents, Collection<LocalDocument> changed,
+            Progress progress) {
+        progress.info("Processing directory \"" + databaseName + "\" with " + documents.size() + " document(s).");
+        progress.indent();
+        try {
+            if (changed.size() < documents.size()) {
+                progress.info("Skipping " + (documents.size() - changed.size()) + " document(s) that are unchanged since the last deploy.");
+            }
+            if (!changed.isEmpty() && ensureDatabaseExists(databaseName, progress)) {
+                loadServerManifest(databaseName, progress);
+                try {
+                    processDatabase(databaseName, changed, progress);
+                } finally {
+                    saveServerManifest(databaseName, progress);
+                }
+            }
+        } catch (IOException e) {
+            progress.error("Could not verify whether database " + databaseName + " exists.", e);
+        } finally {
+            progress.unindent();
+        }
+    }
+
+    /**
+     * Leaves out the files that haven't changed since they were last written to the server, according to the
+     * manifest. This doesn't contact the server, and doesn't parse the files.
+     *
+     * @return keys: database name, values: the documents to deploy to it, for every database in {@code localDocuments}.
+     */
+    private Map<String, Collection<LocalDocument>> selectChangedFiles() {
+        if (!usesLocalManifest()) {
+            return localDocuments.asMap();
+        }
+        final Map<String, Collection<LocalDocument>> changes = new HashMap<String, Collection<LocalDocument>>();
+        for (Map.Entry<String, Collection<LocalDocument>> database : localDocuments.asMap().entrySet()) {
+            changes.put(database.getKey(), selectChangedFiles(database.getKey(), database.getValue()));
+        }
+        return changes;
+    }
+
+    private Collection<LocalDocument> selectChangedFiles(String databaseName, Collection<LocalDocument> documents) {
+        final List<LocalDocument> changed = new ArrayList<LocalDocument>(documents.size());
+        for (LocalDocument localDocument : documents) {
+            try {
+                if (manifest.get().isUnchanged(databaseName, localDocument)) {
+                    progress.debug("File " + localDocument.getFile() + " is unchanged since the last deploy.");
+                    continue;
                 }
             } catch (IOException e) {
-                progress.error("Could not verify whether database " + databaseName + " exists.", e);
-            } finally {
-                progress.unindent();
+                // Let the regular loading report the problem.
+                progress.debug("Could not hash " + localDocument.getFile() + ": " + e);
             }
+            changed.add(localDocument);
         }
+        return changed;
     }
 
     /**
      * @return {@code true} if processing for this database should continue after this method returns.
      */
-    private boolean ensureDatabaseExists(String databaseName) throws IOException {
-        final boolean exists = couchFunctions.isExistentDatabase(databaseName);
+    private boolean ensureDatabaseExists(String databaseName, Progress progress) throws IOException {
+        final Set<String> known = existingDatabases;
+        final boolean exists = null != known ? known.contains(databaseName) : couchFunctions(progress).isExistentDatabase(databaseName);
         final boolean result;
 
         if (exists) {
@@ -87,7 +366,7 @@ class UpdateCouchDocs {
                 break;
             case CREATE:
                 progress.info("Creating database \"" + databaseName + "\" on the server.");
-                couchFunctions.createDatabase(databaseName);
+                couchFunctions(progress).createDatabase(databaseName);
                 result = true;
                 break;
             default:
@@ -97,7 +376,391 @@ class UpdateCouchDocs {
         return result;
     }
 
-    private void processLocalDesignDocument(final String databaseName, final LocalDocument localDocument) {
+    private void processDatabase(final String databaseName, Collection<LocalDocument> documents, final Progress progress) {
+        if (config.execution == Config.Execution.VIRTUAL_THREADS) {
+            processDocumentsOnVirtualThreads(databaseName, documents, progress);
+            return;
+        }
+        if (config.execution == Config.Execution.ASYNC) {
+            processDocumentsAsync(databaseName, documents, progress);
+            return;
+        }
+        if (null != pipeline) {
+            pipeline.run(documents, new DocumentPipeline.Stages() {
+                @Override
+                public boolean load(LocalDocument localDocument) {
+                    return loadLocalDocument(databaseName, localDocument, progress);
+                }
+
+                @Override
+                public List<LocalDocument> select(List<LocalDocument> batch) {
+                    return selectUploads(databaseName, batch, progress);
+                }
+
+                @Override
+                public void upload(List<LocalDocument> batch) {
+                    uploadDocuments(databaseName, batch, progress);
+                }
+            });
+            return;
+        }
+
+        final List<LocalDocument> loaded = new ArrayList<LocalDocument>(documents.size());
+        for (LocalDocument localDocument : documents) {
+            if (loadLocalDocument(databaseName, localDocument, progress)) {
+                loaded.add(localDocument);
+            }
+        }
+
+        final List<LocalDocument> uploads = new ArrayList<LocalDocument>(loaded.size());
+        for (List<LocalDocument> batch : Lists.partition(loaded, config.batchSize)) {
+            uploads.addAll(selectUploads(databaseName, batch, progress));
+        }
+
+        uploadDocuments(databaseName, uploads, progress);
+    }
+
+    /**
+     * Runs the whole flow for each document on a virtual thread of its own. The number of documents that are being
+     * worked on at the same time is capped by {@code maxConcurrentRequests}, because that's also the number of
+     * requests the server is asked to handle at the same time. Each document reports through a buffered
+     * {@code Progress}, so its output stays together.
+     */
+    private void processDocumentsOnVirtualThreads(final String databaseName, Collection<LocalDocument> documents, final Progress progress) {
+        final ExecutorService executor = VirtualThreads.newExecutor();
+        try {
+            final List<Future<?>> results = new ArrayList<Future<?>>(documents.size());
+            for (final LocalDocument localDocument : documents) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        requestPermits.acquire();
+                        final Progress documentProgress = progress.buffered();
+                        try {
+                            processDocument(databaseName, localDocument, documentProgress);
+                        } finally {
+                            documentProgress.flush();
+                            requestPermits.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing documents.", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the documents one after the other on the calling thread, and looks them up and uploads them with
+     * non-blocking requests. At most {@code maxConcurrentRequests} documents are in flight, and each document has
+     * one request outstanding at a time, so that's also the bound on the number of outstanding requests. Each
+     * document reports through a buffered {@code Progress}, so its output stays together.
+     */
+    private void processDocumentsAsync(final String databaseName, Collection<LocalDocument> documents, final Progress progress) {
+        final AsyncCouchFunctions async = asyncCouchFunctions.get();
+        final List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>(documents.size());
+        try {
+            for (final LocalDocument localDocument : documents) {
+                requestPermits.acquire();
+                final Progress documentProgress = progress.buffered();
+                final CompletableFuture<Void> result;
+                try {
+                    result = processDocumentAsync(databaseName, localDocument, documentProgress,
+                            RetryingCouchFunctions.reportingTo(async, documentProgress));
+                } catch (RuntimeException e) {
+                    documentProgress.flush();
+                    requestPermits.release();
+                    throw e;
+                }
+                result.whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void ignored, Throwable failure) {
+                        documentProgress.flush();
+                        requestPermits.release();
+                    }
+                });
+                results.add(result);
+            }
+            for (CompletableFuture<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing documents.", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(unwrap(e));
+        }
+    }
+
+    /**
+     * The non-blocking counterpart of {@link #processDocument(String, LocalDocument, Progress)}.
+     */
+    private CompletableFuture<Void> processDocumentAsync(final String databaseName, final LocalDocument localDocument, final Progress progress,
+            final AsyncCouchFunctions async) {
+        if (!loadLocalDocument(databaseName, localDocument, progress)
+                || isUnchangedOnServer(databaseName, localDocument, progress)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!applyRecordedRevision(databaseName, localDocument, progress)) {
+            return lookUpAndUploadAsync(databaseName, localDocument, progress, async);
+        }
+        return uploadAsync(databaseName, localDocument, progress, async, true).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Boolean conflict) {
+                if (!conflict) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                progress.info("Document \"" + localDocument.getId() + "\" changed on the server since the last deploy.");
+                localDocument.clearRev();
+                return lookUpAndUploadAsync(databaseName, localDocument, progress, async);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> lookUpAndUploadAsync(final String databaseName, final LocalDocument localDocument, final Progress progress,
+            final AsyncCouchFunctions async) {
+        final CompletableFuture<Boolean> lookup;
+        if (config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED) {
+            lookup = async.download(databaseName, localDocument.getId()).thenApply(new Function<Optional<RemoteDocument>, Boolean>() {
+                @Override
+                public Boolean apply(Optional<RemoteDocument> remoteDocument) {
+                    if (remoteDocument.isPresent() && isUnchanged(databaseName, localDocument, remoteDocument.get(), progress)) {
+                        return false;
+                    }
+                    final Optional<String> remoteRevision = remoteDocument.isPresent() ? remoteDocument.get().getRev() : Optional.<String>absent();
+                    return processLocalDesignDocument(databaseName, localDocument, remoteRevision, progress);
+                }
+            });
+        } else {
+            lookup = async.headRevision(databaseName, localDocument.getId()).thenApply(new Function<Optional<String>, Boolean>() {
+                @Override
+                public Boolean apply(Optional<String> remoteRevision) {
+                    return processLocalDesignDocument(databaseName, localDocument, remoteRevision, progress);
+                }
+            });
+        }
+        return lookup.handle(new BiFunction<Boolean, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(Boolean upload, Throwable failure) {
+                if (null == failure) {
+                    return upload;
+                }
+                final Throwable cause = unwrap(failure);
+                if (!(cause instanceof IOException)) {
+                    throw Throwables.propagate(cause);
+                }
+                progress.error("Could not load remote document " + localDocument.getId() + " from database " + databaseName, cause);
+                return false;
+            }
+        }).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Boolean upload) {
+                if (!upload) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                return uploadAsync(databaseName, localDocument, progress, async, false).thenApply(new Function<Boolean, Void>() {
+                    @Override
+                    public Void apply(Boolean conflict) {
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The non-blocking counterpart of {@link DocumentUploader#uploadDocument}.
+     *
+     * @param recorded whether the document carries the revision recorded in a manifest.
+     * @return a future of {@code true} if the recorded revision turned out to be outdated, and the document should
+     *         be looked up.
+     */
+    private CompletableFuture<Boolean> uploadAsync(final String databaseName, final LocalDocument localDocument, final Progress progress,
+            final AsyncCouchFunctions async, final boolean recorded) {
+        progress.info("Uploading document \"" + localDocument.getId() + "\".");
+        if (localDocument.getReplacedRev().isPresent() && !localDocument.hasAttachmentFiles()) {
+            // bulkReplace() deletes the remote copy and uploads this one in two bulk requests of one document.
+            return async.bulkReplace(databaseName, Collections.singletonList(localDocument)).handle(new BiFunction<List<BulkResult>, Throwable, Boolean>() {
+                @Override
+                public Boolean apply(List<BulkResult> results, Throwable failure) {
+                    if (null != failure) {
+                        reportUploadFailure(localDocument, unwrap(failure), progress);
+                    } else if (results.get(0).isOk()) {
+                        recordUpload(databaseName, localDocument, results.get(0).getRev().orNull(), progress);
+                    } else {
+                        progress.error("Could not upload document " + localDocument + " to CouchDB: "
+                                + results.get(0).getError().get() + " (" + results.get(0).getReason().or("no reason given") + ")");
+                    }
+                    return false;
+                }
+            });
+        }
+        final CompletableFuture<String> upload;
+        if (localDocument.getReplacedRev().isPresent()) {
+            // Attachment files can't go in _bulk_docs, so the remote copy is deleted up front.
+            upload = async.delete(databaseName, localDocument.getId(), localDocument.getReplacedRev().get())
+                    .thenCompose(new Function<Void, CompletionStage<String>>() {
+                        @Override
+                        public CompletionStage<String> apply(Void deleted) {
+                            return async.upload(databaseName, localDocument);
+                        }
+                    });
+        } else {
+            upload = async.upload(databaseName, localDocument);
+        }
+        return upload.handle(new BiFunction<String, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(String rev, Throwable failure) {
+                if (null == failure) {
+                    recordUpload(databaseName, localDocument, rev, progress);
+                    return false;
+                }
+                final Throwable cause = unwrap(failure);
+                if (recorded && cause instanceof CouchDatabaseException && HTTP_CONFLICT == ((CouchDatabaseException) cause).getResponseCode()) {
+                    return true;
+                }
+                reportUploadFailure(localDocument, cause, progress);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Reports a failed upload the way {@link DocumentUploader#uploadDocument} does: documents rejected by the server
+     * and I/O errors go to {@code progress}.
+     */
+    private static void reportUploadFailure(LocalDocument localDocument, Throwable cause, Progress progress) {
+        if (cause instanceof CouchDatabaseException) {
+            progress.error("Could not upload document " + localDocument + " to CouchDB: " + cause);
+        } else if (cause instanceof IOException) {
+            progress.error("Could not upload document " + localDocument + " to CouchDB", cause);
+        } else {
+            throw Throwables.propagate(cause);
+        }
+    }
+
+    /**
+     * @return the exception a future failed with, rather than the wrapper it was delivered in.
+     */
+    private static Throwable unwrap(Throwable failure) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && null != cause.getCause()) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private void processDocument(String databaseName, LocalDocument localDocument, Progress progress) {
+        if (!loadLocalDocument(databaseName, localDocument, progress)
+                || isUnchangedOnServer(databaseName, localDocument, progress)) {
+            return;
+        }
+        if (applyRecordedRevision(databaseName, localDocument, progress)) {
+            final List<LocalDocument> conflicts = new ArrayList<LocalDocument>(1);
+            uploader.uploadDocument(databaseName, localDocument, progress, uploadListener(databaseName, conflicts));
+            if (conflicts.isEmpty()) {
+                return;
+            }
+            progress.info("Document \"" + localDocument.getId() + "\" changed on the server since the last deploy.");
+            localDocument.clearRev();
+        }
+        final Optional<String> remoteRevision;
+        try {
+            if (config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED) {
+                final Optional<RemoteDocument> remoteDocument = couchFunctions(progress).download(databaseName, localDocument.getId());
+                if (remoteDocument.isPresent() && isUnchanged(databaseName, localDocument, remoteDocument.get(), progress)) {
+                    return;
+                }
+                remoteRevision = remoteDocument.isPresent() ? remoteDocument.get().getRev() : Optional.<String>absent();
+            } else {
+                remoteRevision = findRemoteRevision(databaseName, localDocument.getId(), progress);
+            }
+        } catch (IOException e) {
+            progress.error("Could not load remote document " + localDocument.getId() + " from database " + databaseName, e);
+            return;
+        }
+        if (processLocalDesignDocument(databaseName, localDocument, remoteRevision, progress)) {
+            uploader.uploadDocument(databaseName, localDocument, progress, uploadListener(databaseName, null));
+        }
+    }
+
+    /**
+     * Decides for each document in a batch of loaded documents what to do. Documents with a revision recorded in
+     * the manifest are uploaded as an update of that revision; the others are looked up on the server.
+     *
+     * @return the documents from {@code batch} that should be uploaded.
+     */
+    private List<LocalDocument> selectUploads(String databaseName, List<LocalDocument> batch, Progress progress) {
+        if (!usesLocalManifest() && !serverManifests.containsKey(databaseName)) {
+            return selectUploadsByLookup(databaseName, batch, progress);
+        }
+        final List<LocalDocument> uploads = new ArrayList<LocalDocument>(batch.size());
+        final List<LocalDocument> lookups = new ArrayList<LocalDocument>(batch.size());
+        for (LocalDocument localDocument : batch) {
+            if (isUnchangedOnServer(databaseName, localDocument, progress)) {
+                continue;
+            }
+            (applyRecordedRevision(databaseName, localDocument, progress) ? uploads : lookups).add(localDocument);
+        }
+        if (!lookups.isEmpty()) {
+            uploads.addAll(selectUploadsByLookup(databaseName, lookups, progress));
+        }
+        return uploads;
+    }
+
+    /**
+     * Looks up the remote revisions for a batch of loaded documents and decides for each of them what to do.
+     *
+     * @return the documents from {@code batch} that should be uploaded.
+     */
+    private List<LocalDocument> selectUploadsByLookup(String databaseName, List<LocalDocument> batch, Progress progress) {
+        final Map<String, String> remoteRevisions;
+        final Map<String, RemoteDocument> remoteDocuments;
+        try {
+            if (config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED) {
+                remoteDocuments = findRemoteDocuments(databaseName, batch, progress);
+                remoteRevisions = new HashMap<String, String>(remoteDocuments.size() * 2);
+                for (RemoteDocument remoteDocument : remoteDocuments.values()) {
+                    remoteRevisions.put(remoteDocument.getId(), remoteDocument.getRev().orNull());
+                }
+            } else {
+                remoteDocuments = Collections.emptyMap();
+                remoteRevisions = findRemoteRevisions(databaseName, batch, progress);
+            }
+        } catch (IOException e) {
+            progress.error("Could not look up " + batch.size() + " remote document(s) in database " + databaseName, e);
+
+            // If we reach this line then "skip errors" is set. Continue with the next batch.
+            return Collections.emptyList();
+        }
+
+        final List<LocalDocument> uploads = new ArrayList<LocalDocument>(batch.size());
+        for (LocalDocument localDocument : batch) {
+            final RemoteDocument remoteDocument = remoteDocuments.get(localDocument.getId());
+            if (remoteDocument != null && isUnchanged(databaseName, localDocument, remoteDocument, progress)) {
+                continue;
+            }
+            final Optional<String> remoteRevision = Optional.fromNullable(remoteRevisions.get(localDocument.getId()));
+            if (processLocalDesignDocument(databaseName, localDocument, remoteRevision, progress)) {
+                uploads.add(localDocument);
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * @return {@code true} if the document was loaded and processing for it should continue.
+     */
+    private boolean loadLocalDocument(final String databaseName, final LocalDocument localDocument, Progress progress) {
         progress.debug("Loading file " + localDocument);
         try {
             localDocument.load();
@@ -106,45 +769,281 @@ class UpdateCouchDocs {
 
         } catch (IOException e) {
             progress.error("Could not load " + localDocument + ": " + e.toString(), e);
+
+            // If we reach this line then "skip errors" is set. Skip this document, there's nothing to upload.
+            return false;
         }
 
         if (localDocument.getRev().isPresent()) {
             progress.warn(localDocument + " contains a _rev field; this will be ignored or overwritten.");
         }
+        return true;
+    }
+
+    /**
+     * Looks up the current revisions of the given documents. Without batching, the document is looked up by
+     * itself with a {@code HEAD} request; batches are looked up with one {@code _all_docs} request. Neither
+     * transfers the document bodies.
+     *
+     * @return keys: document id, values: remote revision. Documents that don't exist on the server are absent.
+     */
+    private Map<String, String> findRemoteRevisions(String databaseName, List<LocalDocument> batch, Progress progress) throws IOException {
+        if (config.batchSize == 1) {
+            final String id = batch.get(0).getId();
+            final Optional<String> remoteRevision = findRemoteRevision(databaseName, id, progress);
+            if (remoteRevision.isPresent()) {
+                return Collections.singletonMap(id, remoteRevision.get());
+            }
+            return Collections.emptyMap();
+        }
+        final List<String> ids = new ArrayList<String>(batch.size());
+        for (LocalDocument localDocument : batch) {
+            ids.add(localDocument.getId());
+        }
+        return couchFunctions(progress).findRevisions(databaseName, ids);
+    }
+
+    private Optional<String> findRemoteRevision(String databaseName, String id, Progress progress) throws IOException {
+        return couchFunctions(progress).headRevision(databaseName, id);
+    }
+
+    /**
+     * Downloads the remote copies of a batch of loaded documents, for comparison in
+     * {@link Config.ExistingDocs#UPDATE_IF_CHANGED} mode.
+     *
+     * @return keys: document id, values: remote document. Documents that don't exist on the server are absent.
+     */
+    private Map<String, RemoteDocument> findRemoteDocuments(String databaseName, List<LocalDocument> batch, Progress progress) throws IOException {
+        if (config.batchSize == 1) {
+            final String id = batch.get(0).getId();
+            final Optional<RemoteDocument> remoteDocument = couchFunctions(progress).download(databaseName, id);
+            if (remoteDocument.isPresent()) {
+                return Collections.singletonMap(id, remoteDocument.get());
+            }
+            return Collections.emptyMap();
+        }
+        final List<String> ids = new ArrayList<String>(batch.size());
+        for (LocalDocument localDocument : batch) {
+            ids.add(localDocument.getId());
+        }
+        return couchFunctions(progress).findDocuments(databaseName, ids);
+    }
+
+    /**
+     * @return {@code true} if {@code localDocument} has the same content as the remote copy and needn't be uploaded.
+     */
+    private boolean isUnchanged(String databaseName, LocalDocument localDocument, RemoteDocument remoteDocument, Progress progress) {
+        if (ContentComparison.isSameContent(localDocument, remoteDocument)) {
+            progress.info("Document \"" + localDocument.getId() + "\" is unchanged, skipping upload.");
+            unchangedDocuments.incrementAndGet();
+            recordUpload(databaseName, localDocument, remoteDocument.getRev().orNull(), progress);
+            return true;
+        }
+        progress.debug("Document \"" + localDocument.getId() + "\" differs from the remote copy.");
+        return false;
+    }
+
+    /**
+     * @return {@code true} if {@code localDocument} should be uploaded after this method returns.
+     */
+    private boolean processLocalDesignDocument(final String databaseName, final LocalDocument localDocument, Optional<String> remoteRevision, Progress progress) {
+        if (remoteRevision.isPresent()) {
+            progress.debug("Document exists on server with revision " + remoteRevision.get() + ".");
+            return resolveConflict(databaseName, localDocument, remoteRevision.get(), progress);
+        } else {
+            progress.debug("Document does not exist on server.");
+            return true;
+        }
+    }
+
+    /**
+     * Uploads the documents. Documents that were uploaded with the revision recorded in the manifest, and were
+     * rejected because they changed on the server since, are looked up and uploaded once more.
+     */
+    private void uploadDocuments(String databaseName, List<LocalDocument> uploads, Progress progress) {
+        final List<LocalDocument> conflicts = new ArrayList<LocalDocument>();
+        uploadDocuments(databaseName, uploads, progress, conflicts);
+        if (conflicts.isEmpty()) {
+            return;
+        }
+
+        progress.info(conflicts.size() + " document(s) changed on the server since the last deploy.");
+        final List<LocalDocument> retries = new ArrayList<LocalDocument>(conflicts.size());
+        for (LocalDocument localDocument : conflicts) {
+            localDocument.clearRev();
+        }
+        for (List<LocalDocument> batch : Lists.partition(conflicts, config.batchSize)) {
+            retries.addAll(selectUploadsByLookup(databaseName, batch, progress));
+        }
+        uploadDocuments(databaseName, retries, progress, null);
+    }
+
+    /**
+     * @param conflicts if not {@code null}, documents rejected because of an outdated recorded revision are added
+     *                  here instead of being reported as errors.
+     */
+    private void uploadDocuments(String databaseName, List<LocalDocument> uploads, Progress progress, List<LocalDocument> conflicts) {
+        uploader.upload(databaseName, uploads, progress, uploadListener(databaseName, conflicts));
+    }
+
+    /**
+     * @param conflicts if not {@code null}, documents rejected because of an outdated recorded revision are added
+     *                  here instead of being reported as errors.
+     */
+    private DocumentUploader.Listener uploadListener(final String databaseName, final List<LocalDocument> conflicts) {
+        return new DocumentUploader.Listener() {
+            @Override
+            public void uploaded(LocalDocument localDocument, String rev, Progress progress) {
+                recordOnServer(databaseName, localDocument, rev, progress);
+            }
+
+            @Override
+            public void rejected(LocalDocument localDocument, boolean conflict, String error, Progress progress) {
+                if (conflict && null != conflicts && hasRecordedRevision(databaseName, localDocument)) {
+                    conflicts.add(localDocument);
+                } else {
+                    progress.error("Could not upload document " + localDocument + " to CouchDB: " + error);
+                }
+            }
+        };
+    }
+
+    /**
+     * The manifest is only used when existing documents are updated; the other strategies have to see what's on
+     * the server.
+     */
+    private boolean usesLocalManifest() {
+        return manifest.isPresent() && isUpdating();
+    }
+
+    private boolean isUpdating() {
+        return config.existingDocs == Config.ExistingDocs.UPDATE || config.existingDocs == Config.ExistingDocs.UPDATE_IF_CHANGED;
+    }
+
+    /**
+     * Copies the revision recorded in the manifest into {@code localDocument}, if there is one.
+     *
+     * @return {@code true} if a recorded revision was applied, and the document needn't be looked up.
+     */
+    private boolean applyRecordedRevision(String databaseName, LocalDocument localDocument, Progress progress) {
+        final Optional<String> recorded = findRecordedRevision(databaseName, localDocument.getId());
+        if (recorded.isPresent()) {
+            progress.debug("Updating revision " + recorded.get() + " recorded by the last deploy.");
+            localDocument.setRev(recorded.get());
+        }
+        return recorded.isPresent();
+    }
 
-        Optional<RemoteDocument> remoteDocument;
+    /**
+     * The server manifest is shared by all builds that deploy to the database, so its revision is preferred over
+     * the one in the local manifest.
+     */
+    private Optional<String> findRecordedRevision(String databaseName, String id) {
+        final ServerManifest serverManifest = serverManifests.get(databaseName);
+        if (serverManifest != null) {
+            final Optional<String> recorded = serverManifest.getRevision(id);
+            if (recorded.isPresent()) {
+                return recorded;
+            }
+        }
+        if (usesLocalManifest()) {
+            return manifest.get().getRevision(databaseName, id);
+        }
+        return Optional.absent();
+    }
+
+    private boolean hasRecordedRevision(String databaseName, LocalDocument localDocument) {
+        return localDocument.getRev().isPresent()
+                && localDocument.getRev().equals(findRecordedRevision(databaseName, localDocument.getId()));
+    }
+
+    private void recordUpload(String databaseName, LocalDocument localDocument, String rev, Progress progress) {
+        uploader.record(databaseName, localDocument, rev, progress);
+        recordOnServer(databaseName, localDocument, rev, progress);
+    }
+
+    private void recordOnServer(String databaseName, LocalDocument localDocument, String rev, Progress progress) {
+        final ServerManifest serverManifest = serverManifests.get(databaseName);
+        if (null == serverManifest || null == rev || null == localDocument.getFile()) {
+            return;
+        }
         try {
-            remoteDocument = couchFunctions.download(databaseName, localDocument.getId());
+            serverManifest.record(localDocument, rev);
         } catch (IOException e) {
-            progress.error("Could not load remote document " + localDocument.getId() + " from database " + databaseName, e);
+            progress.warn("Could not record " + localDocument + " in the server manifest: " + e);
+        }
+    }
 
-            // If we reach this line then "skip errors" is set. Return from the method to continue processing the next local document.
+    private void loadServerManifest(String databaseName, Progress progress) {
+        if (!config.serverManifest || !isUpdating()) {
             return;
         }
+        try {
+            serverManifests.put(databaseName, ServerManifest.load(couchFunctions(progress), databaseName));
+        } catch (IOException e) {
+            progress.warn("Could not read the manifest of database \"" + databaseName + "\", looking up every document: " + e);
+        }
+    }
 
+    private void saveServerManifest(String databaseName, Progress progress) {
+        final ServerManifest serverManifest = serverManifests.remove(databaseName);
+        if (serverManifest == null) {
+            return;
+        }
+        if (serverManifest.getUnchangedCount() > 0) {
+            progress.info("Skipped " + serverManifest.getUnchangedCount() + " document(s) that the server manifest lists as unchanged.");
+        }
         try {
-            if (remoteDocument.isPresent()) {
-                progress.debug("Document exists on server with revision " + remoteDocument.get().getRev().get() + ".");
-                if (resolveConflict(databaseName, localDocument, remoteDocument.get())) {
-                    progress.info("Uploading document \"" + localDocument.getId() + "\".");
-                    couchFunctions.upload(databaseName, localDocument);
-                }
-            } else {
-                progress.debug("Document does not exist on server.");
-                progress.info("Uploading document \"" + localDocument.getId() + "\".");
-                couchFunctions.upload(databaseName, localDocument);
+            serverManifest.save(couchFunctions(progress));
+            progress.debug("Recorded " + serverManifest.getRecordedCount() + " document(s) in _local/" + ServerManifest.NAME + ".");
+        } catch (IOException e) {
+            progress.warn("Could not save the manifest of database \"" + databaseName + "\": " + e);
+        } catch (CouchDatabaseException e) {
+            progress.warn("Could not save the manifest of database \"" + databaseName + "\": " + e);
+        }
+    }
+
+    /**
+     * @return {@code true} if the server manifest lists {@code localDocument} as deployed with its current content.
+     */
+    private boolean isUnchangedOnServer(String databaseName, LocalDocument localDocument, Progress progress) {
+        final ServerManifest serverManifest = serverManifests.get(databaseName);
+        if (serverManifest == null || localDocument.getFile() == null) {
+            return false;
+        }
+        try {
+            if (serverManifest.isUnchanged(localDocument)) {
+                progress.debug("Document \"" + localDocument.getId() + "\" is unchanged since it was deployed.");
+                return true;
             }
         } catch (IOException e) {
-            progress.error("Could not upload document " + localDocument + " to CouchDB", e);
+            progress.debug("Could not hash " + localDocument.getFile() + ": " + e);
         }
+        return false;
     }
 
+    private void saveManifest() {
+        if (manifest.isPresent()) {
+            try {
+                manifest.get().save();
+            } catch (IOException e) {
+                progress.warn("Could not save the manifest: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the {@code CouchFunctions} to use on behalf of {@code progress}, so that retries are reported with the
+     *         database or document they concern.
+     */
+    private CouchFunctions couchFunctions(Progress progress) {
+        return RetryingCouchFunctions.reportingTo(couchFunctions, progress);
+    }
 
     /**
      * @return {@code true} if {@code localDocument} should be uploaded after this method returns.
      */
-    private boolean resolveConflict(String databaseName, LocalDocument localDocument, RemoteDocument remoteDocument) throws IOException {
-        Preconditions.checkArgument(localDocument.getId().equals(remoteDocument.getId()));
+    private boolean resolveConflict(String databaseName, LocalDocument localDocument, String remoteRevision, Progress progress) {
         final boolean result;
 
         switch (config.existingDocs) {
@@ -153,13 +1052,14 @@ class UpdateCouchDocs {
             result = false;
             break;
         case REPLACE:
-            progress.info("Deleting existing document \"" + localDocument.getId() + "\" from database.");
-            couchFunctions.delete(databaseName, remoteDocument);
+            progress.info("Replacing existing document \"" + localDocument.getId() + "\" in database.");
+            localDocument.setReplacedRev(remoteRevision);
             result = true;
             break;
         case UPDATE:
+        case UPDATE_IF_CHANGED:
             progress.info("Merging remote revision into local document \"" + localDocument.getId() + "\".");
-            localDocument.setRev(remoteDocument.getRev().get());
+            localDocument.setRev(remoteRevision);
             result = true;
             break;
         case FAIL:
@@ -18,10 +18,13 @@ package com.xebia.os.maven.couchdocsplugin;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.Multimap;
 
 /**
@@ -38,6 +41,8 @@ import com.google.common.collect.Multimap;
  */
 public class UpdateCouchDocsMojo extends AbstractMojo {
 
+    private static final int MAX_RETRY_BACKOFF_MILLIS = 30000;
+
     /**
      * The URL to the CouchDB instance.
      *
@@ -96,6 +101,11 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
      * the local document is then posted to Couch as an update. The document
      * history will show a single change.</dd>
      *
+     * <dt>UPDATE_IF_CHANGED</dt>
+     * <dd>Like UPDATE, but the original document is downloaded and compared with the
+     * local document first. If they have the same content, the upload is skipped, so
+     * that the revision doesn't change and CouchDB doesn't rebuild the view indexes.</dd>
+     *
      * <dt>REPLACE</dt>
      * <dd>The original document is deleted before the local document is uploaded.
      * The document history in CouchDB will show a deletion followed by an insertion.</dd>
@@ -108,6 +118,233 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
      */
     private String existingDocs;
 
+    /**
+     * The maximum number of documents to look up or upload in a single request.
+     *
+     * <p>The revisions of existing documents are looked up through CouchDB's {@code _all_docs} API and documents
+     * are sent to its {@code _bulk_docs} API in batches of this size, which saves a round trip for every document
+     * in the batch. CouchDB reports the result for each document separately, so an error on one document is handled
+     * just like with individual uploads. Set this to 1 to look up and upload every document with its own
+     * request.</p>
+     *
+     * @parameter expression="${couchdocs.batchSize}" default-value=100
+     */
+    private int batchSize;
+
+    /**
+     * The maximum number of databases to process at the same time.
+     *
+     * <p>Databases are independent of each other, so with a value above 1 the work for several databases is done
+     * in parallel. The log output of each database is kept together. Consider raising {@code maxConnections} along
+     * with this value.</p>
+     *
+     * @parameter expression="${couchdocs.databaseParallelism}" default-value=1
+     */
+    private int databaseParallelism;
+
+    /**
+     * How the documents within a database are processed.
+     *
+     * <dl>
+     * <dt>SERIAL</dt>
+     * <dd>All documents are loaded, then looked up on the server, then uploaded.</dd>
+     *
+     * <dt>PIPELINED</dt>
+     * <dd>Documents are loaded on a thread per processor while earlier documents are being looked up and uploaded.
+     * Bounded queues between these steps keep the number of loaded documents in memory small.</dd>
+     *
+     * <dt>VIRTUAL_THREADS</dt>
+     * <dd>Every document is loaded, looked up and uploaded on a virtual thread of its own, with one request per
+     * document; {@code batchSize} doesn't apply. No more than {@code maxConnections} documents are in flight at the
+     * same time. Requires Java 21 or newer.</dd>
+     *
+     * <dt>ASYNC</dt>
+     * <dd>Every document is loaded on the calling thread, and looked up and uploaded with non-blocking requests on
+     * the {@code HttpClient} of Java 11, one request per document; {@code batchSize} doesn't apply. No more than
+     * {@code maxConnections} documents are in flight at the same time. The requests are retried and limited like
+     * those of the other executions; a request that has to wait is scheduled for later, rather than hold up a
+     * thread.</dd>
+     * </dl>
+     *
+     * @parameter expression="${couchdocs.execution}" default-value="SERIAL"
+     */
+    private String execution;
+
+    /**
+     * The maximum number of connections that are open to the CouchDB server at the same time.
+     *
+     * <p>Connections are kept alive and reused between requests. The JVM's keep-alive cache holds on to at most
+     * {@code http.maxConnections} (default 5) idle connections per host, so a value above 5 needs that system
+     * property to be at least as large. The plugin sets it to this value if it isn't set; if the JVM already made
+     * an HTTP connection by then, set it through {@code MAVEN_OPTS} instead, e.g.
+     * {@code -Dhttp.maxConnections=10}. Idle connections are closed after 5 seconds, which Java 20 and newer let
+     * you change through {@code http.keepAlive.time.server}.</p>
+     *
+     * @parameter expression="${couchdocs.maxConnections}" default-value=5
+     */
+    private int maxConnections;
+
+    /**
+     * If set to true, the number of requests in flight adapts to how the server copes, between one and
+     * {@code maxConnections}.
+     *
+     * <p>The limit starts at one. It grows while latency stays flat and is halved when the server responds with
+     * {@code 429} or {@code 503}, when a request times out, or when latency doubles. The changes of the limit over
+     * time are reported at the end of the build.</p>
+     *
+     * @parameter expression="${couchdocs.adaptiveConcurrency}" default-value=false
+     */
+    private boolean adaptiveConcurrency;
+
+    /**
+     * The number of seconds to wait for a connection to the CouchDB server to be made.
+     *
+     * @parameter expression="${couchdocs.connectTimeout}" default-value=30
+     */
+    private int connectTimeout;
+
+    /**
+     * The number of seconds to wait for the response to a request for a single document or database.
+     *
+     * @parameter expression="${couchdocs.readTimeout}" default-value=120
+     */
+    private int readTimeout;
+
+    /**
+     * The number of seconds to wait for the response to a bulk request: a {@code _bulk_docs} upload or an
+     * {@code _all_docs} lookup of up to {@code batchSize} documents.
+     *
+     * @parameter expression="${couchdocs.bulkReadTimeout}" default-value=300
+     */
+    private int bulkReadTimeout;
+
+    /**
+     * The number of times a request that failed in a way that may be temporary is retried before the failure is
+     * reported. Set to 0 to disable retries.
+     *
+     * <p>Lookups are retried on {@code 429} and {@code 5xx} responses, timeouts and dropped connections. Uploads
+     * are only retried when the server cannot have acted on them: on {@code 429} and {@code 503} responses and on
+     * connections that couldn't be made.</p>
+     *
+     * @parameter expression="${couchdocs.maxRetries}" default-value=3
+     */
+    private int maxRetries;
+
+    /**
+     * The upper bound in milliseconds of the delay before the first retry. The bound doubles with every retry, up to
+     * 30 seconds, and the actual delay is picked at random below it. A longer {@code Retry-After} from the server is
+     * honoured up to that limit; a request asked to wait longer isn't retried.
+     *
+     * @parameter expression="${couchdocs.retryBackoff}" default-value=500
+     */
+    private int retryBackoff;
+
+    /**
+     * The maximum number of requests per second sent to the CouchDB server. Set to 0 for no limit.
+     *
+     * <p>The limits are enforced with token buckets that hold one second's worth of requests or bytes, so a short
+     * burst up to the limit is allowed after a quiet period. Retries count as requests. The time requests spend
+     * waiting for a limit is reported at the end of the build.</p>
+     *
+     * @parameter expression="${couchdocs.requestsPerSecond}" default-value=0
+     */
+    private double requestsPerSecond;
+
+    /**
+     * The maximum number of request body bytes per second sent to the CouchDB server, counted before compression.
+     * Set to 0 for no limit.
+     *
+     * @parameter expression="${couchdocs.bytesPerSecond}" default-value=0
+     */
+    private long bytesPerSecond;
+
+    /**
+     * The maximum number of requests per second sent for any single database, so that one large database can't use
+     * up the server-wide limit while the others wait. Set to 0 for no limit.
+     *
+     * @parameter expression="${couchdocs.databaseRequestsPerSecond}" default-value=0
+     */
+    private double databaseRequestsPerSecond;
+
+    /**
+     * The maximum number of request body bytes per second sent for any single database. Set to 0 for no limit.
+     *
+     * @parameter expression="${couchdocs.databaseBytesPerSecond}" default-value=0
+     */
+    private long databaseBytesPerSecond;
+
+    /**
+     * If set to true, request bodies of at least {@code compressionThreshold} bytes are sent gzip-compressed.
+     *
+     * <p>CouchDB accepts {@code Content-Encoding: gzip} request bodies; make sure any proxy in between does too.
+     * Compressed responses are always accepted and decompressed, regardless of this setting.</p>
+     *
+     * @parameter expression="${couchdocs.compressRequests}" default-value=false
+     */
+    private boolean compressRequests;
+
+    /**
+     * The size in bytes from which request bodies are compressed, if {@code compressRequests} is set. Small bodies
+     * don't gain enough from compression to make up for the work.
+     *
+     * @parameter expression="${couchdocs.compressionThreshold}" default-value=1024
+     */
+    private int compressionThreshold;
+
+    /**
+     * If set to true, a manifest of the documents written to the server is kept, so that later runs can skip the
+     * files that haven't changed without contacting the server.
+     *
+     * <p>For every server, database and document id, the manifest records a hash of the file and the revision it
+     * was written as. A changed file is uploaded as an update of the recorded revision; only if that revision turns
+     * out to be outdated is the document looked up on the server. The manifest applies to the UPDATE and
+     * UPDATE_IF_CHANGED strategies. Run {@code mvn clean}, or delete the manifest, after changing documents on the
+     * server by other means.</p>
+     *
+     * @parameter expression="${couchdocs.incremental}" default-value=false
+     */
+    private boolean incremental;
+
+    /**
+     * If set to true, each database keeps a manifest of the documents this plugin wrote to it, in the local document
+     * {@code _local/couch-docs-maven-plugin}.
+     *
+     * <p>This works like {@code incremental}, but the manifest is shared by every build that deploys to the
+     * database, such as several CI agents. It's read with one request per database, after which unchanged documents
+     * are skipped without looking them up. Local documents aren't replicated and don't show up in views. Applies to
+     * the UPDATE and UPDATE_IF_CHANGED strategies.</p>
+     *
+     * <p>Entries for documents that no build deployed for 30 days are dropped, and the manifest is kept under 1 MB
+     * by dropping the least recently deployed entries. Documents without an entry are looked up.</p>
+     *
+     * @parameter expression="${couchdocs.serverManifest}" default-value=false
+     */
+    private boolean serverManifest;
+
+    /**
+     * The manifest file used for incremental deploys.
+     *
+     * @parameter expression="${couchdocs.manifestFile}" default-value="${project.build.directory}/couchdocs-manifest.json"
+     */
+    private File manifestFile;
+
+    /**
+     * If set to true, the size, modification time and digest of every document and attachment file is kept in a
+     * scan cache, and the content hashes of the documents are computed in parallel before anything is parsed. Files
+     * whose size and modification time haven't changed since the last run aren't read for their hash. This speeds
+     * up {@code incremental} and {@code serverManifest} deploys of large document trees.
+     *
+     * @parameter expression="${couchdocs.scanCache}" default-value=false
+     */
+    private boolean scanCache;
+
+    /**
+     * The file the scan cache is kept in.
+     *
+     * @parameter expression="${couchdocs.scanCacheFile}" default-value="${project.build.directory}/couchdocs-scancache.json"
+     */
+    private File scanCacheFile;
+
     /**
      * If set to true, the build breaks when an error is encountered. If set to false, a
      * warning is logged in such case.
@@ -141,6 +378,9 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
      */
     private String[] excludes;
 
+    /** Opens the connections to the server, the first time it runs. */
+    private Runnable prewarm;
+
     public void execute() throws MojoExecutionException
     {
         if (skip) {
@@ -150,22 +390,142 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
         dumpConfig();
         try {
             final Multimap<String, LocalDocument> localDocuments = findLocalDocuments();
-            Config config = new Config(existingDocs, unknownDatabases);
+            Config config = new Config(existingDocs, unknownDatabases, batchSize, databaseParallelism, execution, maxConnections,
+                    serverManifest);
             Progress progress = new Progress(failOnError, getLog());
-            CouchFunctions couch = new CouchFunctionsImpl(couchUrl);
-            new UpdateCouchDocs(config, progress, couch, localDocuments).execute();
+            Timeouts timeouts = new Timeouts(connectTimeout * 1000, readTimeout * 1000, bulkReadTimeout * 1000);
+            int threshold = compressRequests ? compressionThreshold : CouchFunctionsImpl.NO_COMPRESSION;
+            int keepAliveConnections = ConnectionPool.configureKeepAliveCache(maxConnections);
+            if (keepAliveConnections < maxConnections) {
+                getLog().warn("http.maxConnections is " + keepAliveConnections + ", below maxConnections " + maxConnections
+                        + "; the connections above that are closed after each request rather than reused.");
+            }
+            final CouchFunctionsImpl couch = new CouchFunctionsImpl(couchUrl, new ConnectionPool(maxConnections),
+                    threshold, timeouts);
+            prewarm = new Runnable() {
+                private boolean done;
+
+                @Override
+                public void run() {
+                    if (!done) {
+                        done = true;
+                        prewarm(couch, databaseParallelism);
+                    }
+                }
+            };
+            Optional<AdaptiveLimit> adaptiveLimit = adaptiveConcurrency
+                    ? Optional.of(new AdaptiveLimit(1, maxConnections))
+                    : Optional.<AdaptiveLimit>absent();
+            Optional<AdaptiveConcurrencyCouchFunctions> adaptiveCouch = adaptiveLimit.isPresent()
+                    ? Optional.of(new AdaptiveConcurrencyCouchFunctions(couch, adaptiveLimit.get()))
+                    : Optional.<AdaptiveConcurrencyCouchFunctions>absent();
+            CouchFunctions limitedCouch = adaptiveCouch.isPresent() ? adaptiveCouch.get() : couch;
+            RateLimitedCouchFunctions rateLimitedCouch = new RateLimitedCouchFunctions(limitedCouch,
+                    new RateLimits(requestsPerSecond, bytesPerSecond, databaseRequestsPerSecond, databaseBytesPerSecond));
+            RetryingCouchFunctions retryingCouch = new RetryingCouchFunctions(rateLimitedCouch,
+                    new RetryPolicy(maxRetries, retryBackoff, Math.max(retryBackoff, MAX_RETRY_BACKOFF_MILLIS)), progress);
+            try {
+                Optional<AsyncCouchFunctions> asyncCouch = Optional.absent();
+                if (config.execution == Config.Execution.ASYNC) {
+                    // The non-blocking requests go through the same retries and limits as the blocking ones.
+                    AsyncCouchFunctions httpClientCouch = new HttpClientCouchFunctions(couchUrl, timeouts, threshold);
+                    if (adaptiveCouch.isPresent()) {
+                        httpClientCouch = adaptiveCouch.get().async(httpClientCouch);
+                    }
+                    asyncCouch = Optional.of(retryingCouch.async(rateLimitedCouch.async(httpClientCouch)));
+                }
+                deploy(config, progress, retryingCouch, asyncCouch, localDocuments);
+            } finally {
+                if (retryingCouch.getRetryCount() > 0) {
+                    getLog().info("Retried failed requests " + retryingCouch.getRetryCount() + " time(s); "
+                            + retryingCouch.getRecoveredCount() + " request(s) succeeded on a retry.");
+                }
+                if (rateLimitedCouch.getThrottledMillis() > 0) {
+                    getLog().info("Requests waited " + rateLimitedCouch.getThrottledMillis() + " ms in total for the rate limits.");
+                }
+                if (adaptiveLimit.isPresent()) {
+                    getLog().info("Concurrency limit over time: " + Joiner.on(", ").join(adaptiveLimit.get().getHistory()));
+                }
+            }
         } catch (RuntimeException e) {
             throw new MojoExecutionException(e.toString(), e);
         }
     }
 
-    private Multimap<String, LocalDocument> findLocalDocuments() throws MojoExecutionException {
+    /**
+     * Brings the server in sync with {@code localDocuments}. The {@code watch} goal overrides this to keep deploying
+     * changed files over the same connections.
+     */
+    protected void deploy(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        new UpdateCouchDocs(config, progress, couchFunctions, asyncCouchFunctions, localDocuments, loadManifest(), prewarm).execute();
+    }
+
+    /**
+     * Opens the connections to the server ahead of the first requests. The update goal only does so once it knows
+     * there is something to deploy.
+     */
+    protected void prewarmConnections() {
+        prewarm.run();
+    }
+
+    private void prewarm(CouchFunctionsImpl couch, int connections) {
+        try {
+            couch.prewarm(connections);
+        } catch (IOException e) {
+            getLog().warn("Could not open a connection to " + couchUrl.getHost() + ": " + e);
+        } catch (CouchDatabaseException e) {
+            getLog().warn("Could not open a connection to " + couchUrl.getHost() + ": " + e);
+        }
+    }
+
+    protected Optional<DeployManifest> loadManifest() {
+        if (!incremental) {
+            return Optional.absent();
+        }
+        try {
+            return Optional.of(DeployManifest.load(manifestFile, couchUrl));
+        } catch (IOException e) {
+            getLog().warn("Could not read the manifest " + manifestFile + ", starting a new one: " + e);
+            return Optional.of(DeployManifest.empty(manifestFile, couchUrl));
+        }
+    }
+
+    protected Multimap<String, LocalDocument> findLocalDocuments() throws MojoExecutionException {
         getLog().debug("Scanning for Couch documents in " + baseDir.getAbsolutePath());
-        final LocalDocumentsSelector docsCollector = new LocalDocumentsSelector(baseDir, getLog(), includes, excludes);
+        final Optional<ScanCache> cache = loadScanCache();
+        final LocalDocumentsSelector docsCollector = new LocalDocumentsSelector(baseDir, getLog(), includes, excludes, cache);
         try {
             return docsCollector.select();
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            saveScanCache(cache);
+        }
+    }
+
+    private Optional<ScanCache> loadScanCache() {
+        if (!scanCache) {
+            return Optional.absent();
+        }
+        try {
+            return Optional.of(ScanCache.load(scanCacheFile));
+        } catch (IOException e) {
+            getLog().warn("Could not read the scan cache " + scanCacheFile + ", starting a new one: " + e);
+            return Optional.of(ScanCache.empty(scanCacheFile));
+        }
+    }
+
+    private void saveScanCache(Optional<ScanCache> cache) {
+        if (cache.isPresent()) {
+            getLog().debug("Took " + cache.get().getHitCount() + " digest(s) from the scan cache, computed "
+                    + cache.get().getMissCount() + ".");
+            try {
+                cache.get().save();
+            } catch (IOException e) {
+                getLog().warn("Could not save the scan cache: " + e);
+            }
         }
     }
 
@@ -177,10 +537,39 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
             log.debug("  baseDir         : " + baseDir);
             log.debug("  unknownDatabases: " + unknownDatabases);
             log.debug("  existingDocs    : " + existingDocs);
+            log.debug("  batchSize       : " + batchSize);
+            log.debug("  dbParallelism   : " + databaseParallelism);
+            log.debug("  execution       : " + execution);
+            log.debug("  maxConnections  : " + maxConnections);
+            log.debug("  adaptiveConcurr : " + adaptiveConcurrency);
+            log.debug("  connectTimeout  : " + connectTimeout);
+            log.debug("  readTimeout     : " + readTimeout);
+            log.debug("  bulkReadTimeout : " + bulkReadTimeout);
+            log.debug("  maxRetries      : " + maxRetries);
+            log.debug("  retryBackoff    : " + retryBackoff);
+            log.debug("  requestsPerSec  : " + requestsPerSecond);
+            log.debug("  bytesPerSecond  : " + bytesPerSecond);
+            log.debug("  dbRequestsPerSec: " + databaseRequestsPerSecond);
+            log.debug("  dbBytesPerSec   : " + databaseBytesPerSecond);
+            log.debug("  compressRequests: " + compressRequests);
+            log.debug("  compressThresh  : " + compressionThreshold);
+            log.debug("  incremental     : " + incremental);
+            log.debug("  manifestFile    : " + manifestFile);
+            log.debug("  serverManifest  : " + serverManifest);
+            log.debug("  scanCache       : " + scanCache);
+            log.debug("  scanCacheFile   : " + scanCacheFile);
             log.debug("  failOnError     : " + failOnError);
         }
     }
 
+    protected URL getCouchUrl() {
+        return couchUrl;
+    }
+
+    protected File getBaseDir() {
+        return baseDir;
+    }
+
     public void setCouchUrl(URL couchUrl) {
         this.couchUrl = couchUrl;
     }
@@ -197,6 +586,90 @@ public class UpdateCouchDocsMojo extends AbstractMojo {
         this.existingDocs = existingDocs;
     }
 
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setDatabaseParallelism(int databaseParallelism) {
+        this.databaseParallelism = databaseParallelism;
+    }
+
+    public void setExecution(String execution) {
+        this.execution = execution;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setBulkReadTimeout(int bulkReadTimeout) {
+        this.bulkReadTimeout = bulkReadTimeout;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setRetryBackoff(int retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setDatabaseRequestsPerSecond(double databaseRequestsPerSecond) {
+        this.databaseRequestsPerSecond = databaseRequestsPerSecond;
+    }
+
+    public void setDatabaseBytesPerSecond(long databaseBytesPerSecond) {
+        this.databaseBytesPerSecond = databaseBytesPerSecond;
+    }
+
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public void setServerManifest(boolean serverManifest) {
+        this.serverManifest = serverManifest;
+    }
+
+    public void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public void setScanCache(boolean scanCache) {
+        this.scanCache = scanCache;
+    }
+
+    public void setScanCacheFile(File scanCacheFile) {
+        this.scanCacheFile = scanCacheFile;
+    }
+
     public void setFailOnError(boolean failOnError) {
         this.failOnError = failOnError;
     }
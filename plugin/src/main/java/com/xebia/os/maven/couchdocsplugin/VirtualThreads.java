@@ -0,0 +1,71 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Gives access to the virtual threads of Java 21 and newer, while the plugin itself is built for Java 11. This is
+ * the only API the plugin uses that is newer than that.
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+    private VirtualThreads() {
+        throw new AssertionError("Static utility class.");
+    }
+
+    /**
+     * @return {@code true} if the running JVM supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return null != NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread for each task.
+     * @throws IllegalStateException if the running JVM doesn't support virtual threads.
+     */
+    public static ExecutorService newExecutor() {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer; this is Java "
+                    + System.getProperty("java.version") + ".");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
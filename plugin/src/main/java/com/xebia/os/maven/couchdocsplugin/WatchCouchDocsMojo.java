@@ -0,0 +1,129 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Update documents in CouchDB, and keep updating them as they change.
+ *
+ * This goal does what the update goal does, and then keeps watching the source directory. Whenever files change,
+ * the documents they affect are uploaded again, over the same connections, until the build is interrupted. Meant
+ * for development: run {@code mvn couch-docs:watch} once, and every saved view function shows up on the server
+ * right away.
+ *
+ * <p>Editing an attachment file uploads its document again. Deleted files are not deleted from the server.</p>
+ *
+ * @goal watch
+ *
+ * @author Barend Garvelink <bgarvelink@xebia.com> (https://github.com/barend)
+ */
+public class WatchCouchDocsMojo extends UpdateCouchDocsMojo {
+
+    /**
+     * The number of milliseconds without further file changes to wait for before uploading. Editors and builds
+     * often write several files, or the same file several times, in quick succession; these are uploaded together.
+     *
+     * @parameter expression="${couchdocs.debounce}" default-value=100
+     */
+    private int debounce;
+
+    @Override
+    protected void deploy(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        final DirectoryWatcher watcher;
+        try {
+            watcher = new DirectoryWatcher(getBaseDir());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not watch " + getBaseDir() + ": " + e.getMessage(), e);
+        }
+        try {
+            deployOnce(config, progress, couchFunctions, asyncCouchFunctions, localDocuments);
+            while (true) {
+                getLog().info("Watching " + getBaseDir() + " for changes. Press Ctrl+C to stop.");
+                final Set<File> changes = watcher.awaitChanges(debounce);
+                final Multimap<String, LocalDocument> affected = affectedBy(changes, findLocalDocuments());
+                if (affected.isEmpty()) {
+                    getLog().debug("No documents are affected by the changes to " + changes);
+                } else {
+                    deployOnce(config, progress, couchFunctions, asyncCouchFunctions, affected);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not watch " + getBaseDir() + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Stopped watching " + getBaseDir() + ".");
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                getLog().debug("Could not stop watching " + getBaseDir() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Deploys the documents, and reports a failure without giving up on the documents that change next.
+     */
+    private void deployOnce(Config config, Progress progress, CouchFunctions couchFunctions,
+            Optional<AsyncCouchFunctions> asyncCouchFunctions, Multimap<String, LocalDocument> localDocuments)
+            throws MojoExecutionException {
+        final long start = System.currentTimeMillis();
+        try {
+            super.deploy(config, progress, couchFunctions, asyncCouchFunctions, localDocuments);
+            getLog().info("Deployed " + localDocuments.size() + " document(s) in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (RuntimeException e) {
+            getLog().error("Deploy failed, will try again when files change: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the documents whose file or attachment directory is among {@code changes}, or below one of them.
+     */
+    static Multimap<String, LocalDocument> affectedBy(Set<File> changes, Multimap<String, LocalDocument> localDocuments) {
+        final Multimap<String, LocalDocument> result = LinkedListMultimap.create();
+        for (Map.Entry<String, LocalDocument> entry : localDocuments.entries()) {
+            final File file = entry.getValue().getFile();
+            final File attachmentDirectory = LocalDocumentsSelector.attachmentDirectoryOf(file);
+            for (File change : changes) {
+                if (isSameOrBelow(file, change) || isSameOrBelow(change, attachmentDirectory)) {
+                    result.put(entry.getKey(), entry.getValue());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSameOrBelow(File file, File directory) {
+        return file.getAbsoluteFile().toPath().normalize().startsWith(directory.getAbsoluteFile().toPath().normalize());
+    }
+
+    public void setDebounce(int debounce) {
+        this.debounce = debounce;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdaptiveConcurrencyCouchFunctionsTest {
+
+    @Mock private CouchFunctions delegate;
+
+    @Test
+    public void shouldBackOffOnTooManyRequests() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(4, 4);
+        when(delegate.isExistentDatabase("database")).thenThrow(new CouchDatabaseException(429, "Too Many Requests"));
+
+        try {
+            new AdaptiveConcurrencyCouchFunctions(delegate, limit).isExistentDatabase("database");
+            fail("The failure should have been thrown.");
+        } catch (CouchDatabaseException e) {
+            // expected
+        }
+        assertThat(limit.getLimit(), is(2));
+    }
+
+    @Test
+    public void shouldBackOffOnTimeout() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(4, 4);
+        when(delegate.headRevision("database", "_design/Demo")).thenThrow(new SocketTimeoutException("Read timed out"));
+
+        try {
+            new AdaptiveConcurrencyCouchFunctions(delegate, limit).headRevision("database", "_design/Demo");
+            fail("The failure should have been thrown.");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertThat(limit.getLimit(), is(2));
+    }
+
+    @Test
+    public void shouldNotBackOffOnOtherErrors() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(4, 4);
+        when(delegate.isExistentDatabase("database")).thenThrow(new CouchDatabaseException(401, "Unauthorized"));
+
+        try {
+            new AdaptiveConcurrencyCouchFunctions(delegate, limit).isExistentDatabase("database");
+            fail("The failure should have been thrown.");
+        } catch (CouchDatabaseException e) {
+            // expected
+        }
+        assertThat(limit.getLimit(), is(4));
+    }
+}
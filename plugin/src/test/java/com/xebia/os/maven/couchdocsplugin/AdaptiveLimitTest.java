@@ -0,0 +1,207 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveLimitTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void shouldGrowWhileLatencyIsFlat() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 4, 0L);
+        long now = 0L;
+        for (int i = 0; i < 20; i++) {
+            fillAndRelease(limit, now, 10 * MILLI);
+            now += 10 * MILLI;
+        }
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void shouldNotGrowWhileTheLimitIsNotInUse() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(2, 4, 0L);
+        for (int i = 0; i < 20; i++) {
+            limit.acquire();
+            limit.release("headRevision", 1, i * 10 * MILLI, (i + 1) * 10 * MILLI, false);
+        }
+        assertThat(limit.getLimit(), is(2));
+    }
+
+    @Test
+    public void shouldQueueAsyncRequestsUntilASlotIsReleased() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 1, 0L);
+        final CompletableFuture<Long> first = limit.acquireAsync();
+        final CompletableFuture<Long> second = limit.acquireAsync();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        limit.release("headRevision", 1, 0L, MILLI, false);
+
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void shouldHalveOnOverload() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(8, 8, 0L);
+        limit.acquire();
+        limit.release("upload", 1, MILLI, 2 * MILLI, true);
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void shouldHalveOnceForRequestsThatWereInFlightTogether() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(8, 8, 0L);
+        limit.acquire();
+        limit.acquire();
+        limit.release("upload", 1, MILLI, 5 * MILLI, true);
+        limit.release("upload", 1, 2 * MILLI, 6 * MILLI, true);
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void shouldHalveOnRisingLatency() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(8, 8, 0L);
+        long now = 0L;
+        for (int i = 0; i < AdaptiveLimit.WARMUP_SAMPLES; i++) {
+            limit.acquire();
+            limit.release("headRevision", 1, now, now + 10 * MILLI, false);
+            now += 10 * MILLI;
+        }
+        for (int i = 0; i < 2; i++) {
+            limit.acquire();
+            limit.release("headRevision", 1, now, now + 40 * MILLI, false);
+            now += 40 * MILLI;
+        }
+        assertThat(limit.getLimit(), is(8));
+        for (int i = 0; i < 2; i++) {
+            limit.acquire();
+            limit.release("headRevision", 1, now, now + 40 * MILLI, false);
+            now += 40 * MILLI;
+        }
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void shouldNotHalveOnASingleSlowResponse() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(8, 8, 0L);
+        long now = 0L;
+        for (int i = 0; i < AdaptiveLimit.WARMUP_SAMPLES; i++) {
+            limit.acquire();
+            limit.release("headRevision", 1, now, now + 10 * MILLI, false);
+            now += 10 * MILLI;
+        }
+        limit.acquire();
+        limit.release("headRevision", 1, now, now + 50 * MILLI, false);
+        assertThat(limit.getLimit(), is(8));
+    }
+
+    @Test
+    public void shouldNotCollapseOnJitteryLatency() throws IOException {
+        // Log-normally distributed latencies around 10 ms, with the odd response that takes several times as long.
+        final Random random = new Random(42L);
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 16, 0L);
+        long now = 0L;
+        for (int round = 0; round < 500; round++) {
+            final int n = limit.getLimit();
+            for (int i = 0; i < n; i++) {
+                limit.acquire();
+            }
+            for (int i = 0; i < n; i++) {
+                final double factor = random.nextInt(100) == 0 ? 4.0 : Math.exp(0.5 * random.nextGaussian());
+                limit.release("headRevision", 1, now, now + (long) (10 * MILLI * factor), false);
+            }
+            now += 40 * MILLI;
+        }
+        assertThat(limit.getLimit(), is(16));
+    }
+
+    @Test
+    public void shouldCompareLatencyPerUnitOfWork() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(8, 8, 0L);
+        limit.acquire();
+        limit.release("bulkUpload", 1, MILLI, 11 * MILLI, false);
+        limit.acquire();
+        limit.release("bulkUpload", 10, 20 * MILLI, 120 * MILLI, false);
+        limit.acquire();
+        limit.release("headRevision", 1, 130 * MILLI, 230 * MILLI, false);
+        assertThat(limit.getLimit(), is(8));
+    }
+
+    @Test
+    public void shouldNotDropBelowOne() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 1, 0L);
+        limit.acquire();
+        limit.release("upload", 1, MILLI, 2 * MILLI, true);
+        assertThat(limit.getLimit(), is(1));
+    }
+
+    @Test
+    public void shouldRecordTheChanges() throws IOException {
+        final AdaptiveLimit limit = new AdaptiveLimit(4, 4, 0L);
+        limit.acquire();
+        limit.release("upload", 1, 1000 * MILLI, 1500 * MILLI, true);
+        assertThat(limit.getHistory().toString(), is("[0.0s: 4, 1.5s: 2]"));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldHoldBackRequestsOverTheLimit() throws Exception {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 1);
+        final long start = limit.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limit.acquire();
+                    acquired.countDown();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        second.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limit.release("upload", 1, start, false);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sends as many requests as the limit allows, which all complete after {@code latency}.
+     */
+    private static void fillAndRelease(AdaptiveLimit limit, long now, long latency) throws IOException {
+        final int n = limit.getLimit();
+        for (int i = 0; i < n; i++) {
+            limit.acquire();
+        }
+        for (int i = 0; i < n; i++) {
+            limit.release("headRevision", 1, now, now + latency, false);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import com.xebia.os.maven.couchdocsplugin.Config.ExistingDocs;
+import com.xebia.os.maven.couchdocsplugin.Config.UnknownDatabases;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApplyCouchDocsTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Mock private CouchFunctions couchFunctions;
+    @Mock private Log log;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldUploadOverThePlannedRevisionsWithoutLookups() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        plan.createDatabase("db");
+        plan.add(upload("db/new.json", "{ \"_id\": \"new\" }", DeployPlan.Action.CREATE, null));
+        plan.add(upload("db/existing.json", "{ \"_id\": \"existing\", \"_rev\": \"1-old\" }", DeployPlan.Action.UPDATE, "3-abc"));
+        plan.add(new DeployPlan.Entry("db", new File("same.json"), DeployPlan.Action.UNCHANGED, "same", "1-a", null, null));
+        when(couchFunctions.bulkUpload(eq("db"), anyListOf(LocalDocument.class))).thenReturn(Arrays.asList(
+                ok("new"), ok("existing")));
+
+        apply(plan, true);
+
+        final ArgumentCaptor<List> uploaded = ArgumentCaptor.forClass(List.class);
+        verify(couchFunctions).createDatabase("db");
+        verify(couchFunctions).bulkUpload(eq("db"), uploaded.capture());
+        verifyNoMoreInteractions(couchFunctions);
+        final List<LocalDocument> documents = uploaded.getValue();
+        assertThat(documents.size(), is(2));
+        assertThat(documents.get(0).getRev(), is(equalTo(Optional.<String>absent())));
+        assertThat(documents.get(1).getRev(), is(equalTo(Optional.of("3-abc"))));
+    }
+
+    @Test
+    public void shouldCreatePlannedDatabasesWithoutUploads() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        plan.createDatabase("empty");
+        plan.add(new DeployPlan.Entry("empty", new File("same.json"), DeployPlan.Action.UNCHANGED, "same", "1-a", null, null));
+
+        apply(plan, true);
+
+        verify(couchFunctions).createDatabase("empty");
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldReportDocumentsChangedOnTheServer() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        plan.add(upload("db/existing.json", "{ \"_id\": \"existing\" }", DeployPlan.Action.UPDATE, "3-abc"));
+        when(couchFunctions.bulkUpload(eq("db"), anyListOf(LocalDocument.class))).thenReturn(Arrays.asList(
+                new BulkResult("existing", Optional.<String>absent(), Optional.of("conflict"), Optional.of("Document update conflict."))));
+        try {
+            apply(plan, true);
+            fail("The conflict should fail the build.");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), is(equalTo("Document \"existing\" changed on the server since the plan was made; make a new plan.")));
+        }
+    }
+
+    @Test
+    public void shouldReportBatchesTheServerTurnsDown() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        plan.add(upload("db/one.json", "{ \"_id\": \"one\" }", DeployPlan.Action.CREATE, null));
+        plan.add(upload("db/two.json", "{ \"_id\": \"two\" }", DeployPlan.Action.CREATE, null));
+        when(couchFunctions.bulkUpload(eq("db"), anyListOf(LocalDocument.class)))
+                .thenThrow(new CouchDatabaseException(413, "Request Entity Too Large"));
+
+        apply(plan, false);
+
+        verify(log, times(2)).error(contains("Request Entity Too Large"));
+    }
+
+    @Test
+    public void shouldNotUploadFilesChangedSinceThePlan() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        final DeployPlan.Entry entry = upload("db/existing.json", "{ \"_id\": \"existing\" }", DeployPlan.Action.UPDATE, "3-abc");
+        plan.add(entry);
+        Files.write("{ \"_id\": \"existing\", \"changed\": true }", entry.file, Charsets.UTF_8);
+
+        apply(plan, false);
+
+        verifyZeroInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldNotWriteAnythingIfThePlanFails() throws IOException {
+        final DeployPlan plan = new DeployPlan(new URL("http://localhost:5984/"), ExistingDocs.UPDATE);
+        plan.createDatabase("db");
+        plan.add(upload("db/new.json", "{ \"_id\": \"new\" }", DeployPlan.Action.CREATE, null));
+        plan.add(new DeployPlan.Entry("db", new File("broken.json"), DeployPlan.Action.FAIL, null, null, null, "broken"));
+        try {
+            apply(plan, true);
+            fail("The planned failure should fail the build.");
+        } catch (RuntimeException e) {
+            verifyZeroInteractions(couchFunctions);
+        }
+    }
+
+    private void apply(DeployPlan plan, boolean failOnError) {
+        final Config config = new Config(ExistingDocs.FAIL, UnknownDatabases.FAIL, 100);
+        new ApplyCouchDocs(config, new Progress(failOnError, log), couchFunctions, plan, Optional.<DeployManifest>absent()).execute();
+    }
+
+    private DeployPlan.Entry upload(String path, String json, DeployPlan.Action action, String rev) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), path);
+        Files.createParentDirs(file);
+        Files.write(json, file, Charsets.UTF_8);
+        final LocalDocument localDocument = new LocalDocument(file);
+        localDocument.load();
+        return new DeployPlan.Entry("db", file, action, localDocument.getId(), rev, localDocument.getContentHash(), null);
+    }
+
+    private static BulkResult ok(String id) {
+        return new BulkResult(id, Optional.of("4-def"), Optional.<String>absent(), Optional.<String>absent());
+    }
+}
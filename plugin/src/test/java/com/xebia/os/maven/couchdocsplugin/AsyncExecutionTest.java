@@ -0,0 +1,137 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the update goal in the {@code ASYNC} execution against a local HTTP server that answers like CouchDB, and
+ * fails the first lookup.
+ */
+public class AsyncExecutionTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger unavailable = new AtomicInteger(1);
+    private HttpServer server;
+    private URL couchUrl;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                IOUtil.toByteArray(exchange.getRequestBody());
+                final String method = exchange.getRequestMethod();
+                final String path = exchange.getRequestURI().getRawPath();
+                requests.add(method + " " + path);
+
+                if ("/_dbs_info".equals(path)) {
+                    respond(exchange, 200, "[{\"key\":\"database\",\"info\":{}}]");
+                } else if ("HEAD".equals(method)) {
+                    final boolean document = path.startsWith("/database/") && path.length() > "/database/".length();
+                    exchange.sendResponseHeaders(!document ? 200 : unavailable.getAndDecrement() > 0 ? 503 : 404, -1);
+                    exchange.close();
+                } else if (path.startsWith("/database/") && "PUT".equals(method)) {
+                    respond(exchange, 201, "{\"ok\":true,\"id\":\"_design/Demo\",\"rev\":\"1-abc\"}");
+                } else {
+                    respond(exchange, 200, "{}");
+                }
+            }
+        });
+        server.start();
+        couchUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 30000)
+    public void shouldRetryTheRequestsOfTheAsyncExecution() throws IOException, MojoExecutionException {
+        final File database = temporaryFolder.newFolder("database");
+        Files.write("{ \"_id\": \"_design/Demo\", \"language\": \"javascript\" }", new File(database, "design.json"), Charsets.UTF_8);
+        final UpdateCouchDocsMojo mojo = new UpdateCouchDocsMojo();
+        mojo.setBaseDir(temporaryFolder.getRoot());
+        mojo.setCouchUrl(couchUrl);
+        mojo.setIncludes(new String[] { "**/*.json" });
+        mojo.setExistingDocs(Config.ExistingDocs.UPDATE.name());
+        mojo.setUnknownDatabases(Config.UnknownDatabases.FAIL.name());
+        mojo.setBatchSize(100);
+        mojo.setDatabaseParallelism(1);
+        mojo.setExecution(Config.Execution.ASYNC.name());
+        mojo.setMaxConnections(2);
+        mojo.setAdaptiveConcurrency(true);
+        mojo.setConnectTimeout(5);
+        mojo.setReadTimeout(5);
+        mojo.setBulkReadTimeout(5);
+        mojo.setMaxRetries(3);
+        mojo.setRetryBackoff(1);
+        mojo.setRequestsPerSecond(100);
+        mojo.setCompressionThreshold(1024);
+        mojo.setFailOnError(true);
+        mojo.setLog(new SystemStreamLog());
+        mojo.setPluginContext(Collections.emptyMap());
+
+        mojo.execute();
+
+        assertThat(Collections.frequency(requests, "HEAD /database/_design%2FDemo"), is(2));
+        assertThat(Collections.frequency(requests, "PUT /database/_design%2FDemo"), is(1));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        exchange.close();
+    }
+}
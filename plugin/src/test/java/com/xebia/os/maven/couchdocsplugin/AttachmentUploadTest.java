@@ -0,0 +1,191 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the {@code multipart/related} requests that {@link CouchFunctionsImpl#upload(String, LocalDocument)} sends
+ * for documents with attachment files, against a local HTTP server.
+ */
+public class AttachmentUploadTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    // The MD5 digest of "hello", in base64.
+    private static final String HELLO_DIGEST = "md5-XUFAKrxLKna5cZ2REBfFkg==";
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private HttpServer server;
+    private CouchFunctionsImpl couch;
+    private volatile String remoteDocument;
+    private volatile String lastContentType;
+    private volatile byte[] lastBody;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 200, remoteDocument);
+                    return;
+                }
+                lastContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                lastBody = IOUtil.toByteArray(exchange.getRequestBody());
+                respond(exchange, 201, "{\"ok\":true,\"id\":\"_design/App\",\"rev\":\"2-abc\"}");
+            }
+        });
+        server.start();
+        couch = new CouchFunctionsImpl(new URL("http://localhost:" + server.getAddress().getPort() + "/"), new ConnectionPool());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldStreamAttachmentsOfNewDocument() throws IOException {
+        final LocalDocument document = documentWithAttachments(true);
+
+        assertThat(couch.upload("database", document), is(equalTo("2-abc")));
+
+        assertTrue(lastContentType.startsWith("multipart/related;boundary="));
+        final List<String> parts = parts();
+        assertEquals(3, parts.size());
+        final JsonNode json = OBJECT_MAPPER.readTree(body(parts.get(0)));
+        assertThat(json.path("views").path("all").path("map").getTextValue(), is(equalTo("function(doc) { emit(doc._id, null); }")));
+        assertTrue(json.path("_attachments").path("app.js").path("follows").getBooleanValue());
+        assertThat(json.path("_attachments").path("app.js").path("content_type").getTextValue(), is(equalTo("application/javascript")));
+        assertThat(json.path("_attachments").path("app.js").path("length").getIntValue(), is(equalTo(5)));
+        assertTrue(json.path("_attachments").path("css/style.css").path("follows").getBooleanValue());
+        assertThat(body(parts.get(1)), is(equalTo("hello")));
+        assertThat(body(parts.get(2)), is(equalTo("body { color: red; }")));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldSendStubsForUnchangedAttachments() throws IOException {
+        final LocalDocument document = documentWithAttachments(true);
+        document.setRev("1-abc");
+        remoteDocument = "{\"_id\":\"_design/App\",\"_rev\":\"1-abc\",\"_attachments\":{"
+                + "\"app.js\":{\"content_type\":\"application/javascript\",\"digest\":\"" + HELLO_DIGEST + "\",\"length\":5,\"stub\":true},"
+                + "\"css/style.css\":{\"content_type\":\"text/css\",\"digest\":\"md5-AAAAAAAAAAAAAAAAAAAAAA==\",\"length\":20,\"stub\":true}}}";
+
+        couch.upload("database", document);
+
+        final List<String> parts = parts();
+        assertEquals(2, parts.size());
+        final JsonNode json = OBJECT_MAPPER.readTree(body(parts.get(0)));
+        assertThat(json.path("_rev").getTextValue(), is(equalTo("1-abc")));
+        assertTrue(json.path("_attachments").path("app.js").path("stub").getBooleanValue());
+        assertFalse(json.path("_attachments").path("app.js").has("follows"));
+        assertTrue(json.path("_attachments").path("css/style.css").path("follows").getBooleanValue());
+        assertThat(body(parts.get(1)), is(equalTo("body { color: red; }")));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldSendPlainJsonIfNoAttachmentChanged() throws IOException {
+        final LocalDocument document = documentWithAttachments(false);
+        document.setRev("1-abc");
+        remoteDocument = "{\"_id\":\"_design/App\",\"_rev\":\"1-abc\",\"_attachments\":{"
+                + "\"app.js\":{\"content_type\":\"application/javascript\",\"digest\":\"" + HELLO_DIGEST + "\",\"length\":5,\"stub\":true}}}";
+
+        couch.upload("database", document);
+
+        assertThat(lastContentType, is(equalTo("application/json;charset=utf8")));
+        assertTrue(OBJECT_MAPPER.readTree(lastBody).path("_attachments").path("app.js").path("stub").getBooleanValue());
+    }
+
+    @Test
+    public void shouldHashAttachmentsWithTheDocument() throws IOException {
+        final LocalDocument document = documentWithAttachments(true);
+        final String hash = document.getContentHash();
+        Files.write("hello, world", new File(temporaryFolder.getRoot(), "App.attachments/app.js"), Charsets.UTF_8);
+
+        final LocalDocument changed = new LocalDocument(document.getFile(), new File(temporaryFolder.getRoot(), "App.attachments"));
+
+        assertFalse(hash.equals(changed.getContentHash()));
+    }
+
+    private LocalDocument documentWithAttachments(boolean withStylesheet) throws IOException {
+        final File file = temporaryFolder.newFile("App.json");
+        Files.write("{ \"_id\": \"_design/App\", \"views\": { \"all\": { \"map\": \"function(doc) { emit(doc._id, null); }\" } } }",
+                file, Charsets.UTF_8);
+        final File directory = new File(temporaryFolder.getRoot(), "App.attachments");
+        new File(directory, "css").mkdirs();
+        Files.write("hello", new File(directory, "app.js"), Charsets.UTF_8);
+        if (withStylesheet) {
+            Files.write("body { color: red; }", new File(directory, "css/style.css"), Charsets.UTF_8);
+        }
+        final LocalDocument document = new LocalDocument(file, directory);
+        document.load();
+        return document;
+    }
+
+    /**
+     * Splits the last request body on the boundary from its content type.
+     */
+    private List<String> parts() {
+        final String boundary = lastContentType.substring(lastContentType.indexOf('"') + 1, lastContentType.lastIndexOf('"'));
+        final String body = new String(lastBody, Charsets.UTF_8);
+        assertTrue(body.startsWith("--" + boundary + "\r\n"));
+        assertTrue(body.endsWith("\r\n--" + boundary + "--"));
+        final String inner = body.substring(boundary.length() + 4, body.length() - boundary.length() - 6);
+        return Lists.newArrayList(Splitter.on("\r\n--" + boundary + "\r\n").split(inner));
+    }
+
+    private static String body(String part) {
+        return part.substring(part.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+}
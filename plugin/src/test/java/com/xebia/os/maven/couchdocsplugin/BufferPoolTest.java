@@ -0,0 +1,50 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReusedEmpty() {
+        final BufferPool pool = new BufferPool();
+        final ByteArrayOutputStream buffer = pool.acquire();
+        buffer.write(42);
+        pool.release(buffer);
+
+        final ByteArrayOutputStream reused = pool.acquire();
+        assertThat(reused, is(sameInstance(buffer)));
+        assertThat(reused.size(), is(0));
+    }
+
+    @Test
+    public void oversizedBuffersAreNotRetained() {
+        final BufferPool pool = new BufferPool();
+        final ByteArrayOutputStream buffer = pool.acquire();
+        buffer.write(new byte[BufferPool.MAX_RETAINED_SIZE + 1], 0, BufferPool.MAX_RETAINED_SIZE + 1);
+        pool.release(buffer);
+
+        assertThat(pool.acquire(), is(not(sameInstance(buffer))));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the {@code _bulk_docs} requests that {@link CouchFunctionsImpl#bulkReplace(String, List)} sends, and how the
+ * results are matched up with the documents, against a local HTTP server.
+ */
+public class BulkReplaceTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final List<JsonNode> requests = new CopyOnWriteArrayList<JsonNode>();
+    private final Queue<String> responses = new ConcurrentLinkedQueue<String>();
+    private HttpServer server;
+    private CouchFunctionsImpl couch;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(OBJECT_MAPPER.readTree(IOUtil.toByteArray(exchange.getRequestBody())));
+                final byte[] body = responses.remove().getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(201, body.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        couch = new CouchFunctionsImpl(new URL("http://localhost:" + server.getAddress().getPort() + "/"), new ConnectionPool());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDeleteReplacedRevisionsBeforeUploading() throws IOException {
+        final LocalDocument replacement = new LocalDocument("{ \"_id\": \"_design/Demo\" }");
+        replacement.setReplacedRev("1-abc");
+        final LocalDocument newcomer = new LocalDocument("{ \"_id\": \"_design/New\" }");
+        responses.add("[{\"ok\":true,\"id\":\"_design/Demo\",\"rev\":\"2-def\"}]");
+        responses.add("[{\"ok\":true,\"id\":\"_design/Demo\",\"rev\":\"3-ghi\"},"
+                + "{\"ok\":true,\"id\":\"_design/New\",\"rev\":\"1-jkl\"}]");
+
+        final List<BulkResult> results = couch.bulkReplace("database", Arrays.asList(replacement, newcomer));
+
+        assertThat(requests.size(), is(2));
+        assertThat(requests.get(0).get("docs").toString(),
+                is(equalTo("[{\"_id\":\"_design/Demo\",\"_rev\":\"1-abc\",\"_deleted\":true}]")));
+        assertThat(requests.get(1).get("docs").toString(), is(equalTo("[{\"_id\":\"_design/Demo\"},{\"_id\":\"_design/New\"}]")));
+        assertThat(results.size(), is(2));
+        assertThat(results.get(0).getRev(), is(equalTo(Optional.of("3-ghi"))));
+        assertThat(results.get(1).getRev(), is(equalTo(Optional.of("1-jkl"))));
+        assertFalse("A retry should not delete the document again.", replacement.getReplacedRev().isPresent());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReportRejectedTombstoneForItsDocument() throws IOException {
+        final LocalDocument replacement = new LocalDocument("{ \"_id\": \"_design/Demo\" }");
+        replacement.setReplacedRev("1-abc");
+        responses.add("[{\"id\":\"_design/Demo\",\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}]");
+
+        final List<BulkResult> results = couch.bulkReplace("database", Arrays.asList(replacement));
+
+        assertThat(requests.size(), is(1));
+        assertThat(results.size(), is(1));
+        assertFalse(results.get(0).isOk());
+        assertThat(results.get(0).getError(), is(equalTo(Optional.of("conflict"))));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldOnlyUploadDocumentsWhoseTombstoneWasAccepted() throws IOException {
+        final LocalDocument rejected = new LocalDocument("{ \"_id\": \"a\" }");
+        rejected.setReplacedRev("1-a");
+        final LocalDocument accepted = new LocalDocument("{ \"_id\": \"b\" }");
+        accepted.setReplacedRev("1-b");
+        final LocalDocument newcomer = new LocalDocument("{ \"_id\": \"c\" }");
+        responses.add("[{\"id\":\"a\",\"error\":\"conflict\",\"reason\":\"Document update conflict.\"},"
+                + "{\"ok\":true,\"id\":\"b\",\"rev\":\"2-b\"}]");
+        responses.add("[{\"ok\":true,\"id\":\"b\",\"rev\":\"3-b\"},{\"ok\":true,\"id\":\"c\",\"rev\":\"1-c\"}]");
+
+        final List<BulkResult> results = couch.bulkReplace("database", Arrays.asList(rejected, accepted, newcomer));
+
+        assertThat(requests.get(1).get("docs").toString(), is(equalTo("[{\"_id\":\"b\"},{\"_id\":\"c\"}]")));
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).getError(), is(equalTo(Optional.of("conflict"))));
+        assertThat(results.get(1).getRev(), is(equalTo(Optional.of("3-b"))));
+        assertThat(results.get(2).getRev(), is(equalTo(Optional.of("1-c"))));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldNotSendTombstonesFromBulkUpload() throws IOException {
+        final LocalDocument replacement = new LocalDocument("{ \"_id\": \"_design/Demo\" }");
+        replacement.setReplacedRev("1-abc");
+        responses.add("[{\"ok\":true,\"id\":\"_design/Demo\",\"rev\":\"2-def\"}]");
+
+        final List<BulkResult> results = couch.bulkUpload("database", Arrays.asList(replacement));
+
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0).get("docs").size(), is(1));
+        assertTrue(results.get(0).isOk());
+    }
+}
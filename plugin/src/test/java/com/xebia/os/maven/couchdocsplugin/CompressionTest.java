@@ -0,0 +1,187 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks request and response compression against a local HTTP server, and checks that compression shrinks the
+ * request body of a single design document to less than a third, and of a bulk upload to less than a fifth.
+ */
+public class CompressionTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+    private URL baseUrl;
+    private volatile String lastContentEncoding;
+    private volatile int lastBodyLength;
+    private volatile byte[] lastBody;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final byte[] raw = IOUtil.toByteArray(exchange.getRequestBody());
+                lastContentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                lastBodyLength = raw.length;
+                lastBody = "gzip".equals(lastContentEncoding)
+                        ? IOUtil.toByteArray(new GZIPInputStream(new ByteArrayInputStream(raw)))
+                        : raw;
+
+                final String method = exchange.getRequestMethod();
+                if ("GET".equals(method)) {
+                    final byte[] body = gzip("{\"_id\":\"_design/Demo\",\"_rev\":\"1-abc\"}".getBytes(Charsets.UTF_8));
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    respond(exchange, 200, body);
+                } else if (exchange.getRequestURI().getPath().endsWith("/_bulk_docs")) {
+                    final StringBuilder results = new StringBuilder("[");
+                    for (JsonNode doc : OBJECT_MAPPER.readTree(lastBody).get("docs")) {
+                        results.append(results.length() > 1 ? "," : "")
+                                .append("{\"ok\":true,\"id\":\"").append(doc.get("_id").getTextValue()).append("\",\"rev\":\"1-abc\"}");
+                    }
+                    respond(exchange, 201, results.append(']').toString().getBytes(Charsets.UTF_8));
+                } else {
+                    respond(exchange, 201, "{\"ok\":true}".getBytes(Charsets.UTF_8));
+                }
+            }
+        });
+        server.start();
+        baseUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldCompressBodiesAboveTheThreshold() throws IOException {
+        final LocalDocument document = designDocument("_design/Demo");
+        final CouchFunctionsImpl couch = new CouchFunctionsImpl(baseUrl, new ConnectionPool(), 1024);
+
+        couch.upload("database", document);
+
+        assertThat(lastContentEncoding, is(equalTo("gzip")));
+        assertThat(new String(lastBody, Charsets.UTF_8), is(equalTo(document.getJson())));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldNotCompressBodiesBelowTheThreshold() throws IOException {
+        final CouchFunctionsImpl couch = new CouchFunctionsImpl(baseUrl, new ConnectionPool(), 1024);
+
+        couch.upload("database", new LocalDocument("{ \"_id\": \"small\" }"));
+
+        assertNull(lastContentEncoding);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDecompressGzipResponses() throws IOException {
+        final CouchFunctionsImpl couch = new CouchFunctionsImpl(baseUrl, new ConnectionPool());
+
+        final Optional<RemoteDocument> document = couch.download("database", "_design/Demo");
+
+        assertThat(document.get().getRev(), is(equalTo(Optional.of("1-abc"))));
+    }
+
+    @Test(timeout = 30000)
+    public void compressionShouldShrinkDesignDocumentUploads() throws IOException {
+        final List<LocalDocument> batch = new ArrayList<LocalDocument>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(designDocument("_design/Demo" + i));
+        }
+        final CouchFunctionsImpl plain = new CouchFunctionsImpl(baseUrl, new ConnectionPool());
+        final CouchFunctionsImpl compressed = new CouchFunctionsImpl(baseUrl, new ConnectionPool(), 1024);
+
+        plain.upload("database", batch.get(0));
+        final int plainSingle = lastBodyLength;
+        compressed.upload("database", batch.get(0));
+        final int compressedSingle = lastBodyLength;
+        plain.bulkUpload("database", batch);
+        final int plainBulk = lastBodyLength;
+        compressed.bulkUpload("database", batch);
+        final int compressedBulk = lastBodyLength;
+
+        assertTrue("A single design document should shrink to less than a third: " + plainSingle + " -> " + compressedSingle,
+                compressedSingle * 3 < plainSingle);
+        assertTrue("A bulk upload of 100 design documents should shrink to less than a fifth: " + plainBulk + " -> " + compressedBulk,
+                compressedBulk * 5 < plainBulk);
+    }
+
+    /**
+     * Builds a design document shaped like the ones this plugin is used for: a number of views whose map functions
+     * look alike, and an embedded library.
+     */
+    private static LocalDocument designDocument(String id) throws IOException {
+        final StringBuilder json = new StringBuilder("{ \"_id\": \"").append(id).append("\", \"views\": {");
+        for (int i = 0; i < 20; i++) {
+            json.append(i > 0 ? "," : "").append("\"by_field").append(i).append("\": { \"map\": ")
+                    .append("\"function(doc) { if (doc.type === 'record' && doc.field").append(i)
+                    .append(") { emit([doc.field").append(i).append(", doc.created], {title: doc.title, owner: doc.owner}); } }\" }");
+        }
+        json.append("}, \"lib\": { \"util\": \"");
+        for (int i = 0; i < 40; i++) {
+            json.append("exports.fn").append(i).append(" = function(value) { return value === null ? '' : String(value).trim(); };\\n");
+        }
+        json.append("\" } }");
+        return new LocalDocument(json.toString());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(data);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        final OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+}
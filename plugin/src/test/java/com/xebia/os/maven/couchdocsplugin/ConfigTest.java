@@ -69,4 +69,15 @@ public class ConfigTest {
         assertEquals(Config.ExistingDocs.UPDATE, config.existingDocs);
         assertEquals(Config.UnknownDatabases.FAIL, config.unknownDatabases);
     }
+
+    @Test
+    public void executionParameterMatchesCaseInsensitively() {
+        final Config config = new Config("UPDATE", "SKIP", 1, 1, "PiPeLiNeD", 5, false);
+        assertEquals(Config.Execution.PIPELINED, config.execution);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void executionParameterCannotBeBogus() {
+        new Config("UPDATE", "SKIP", 1, 1, "WARP_SPEED", 5, false);
+    }
 }
@@ -0,0 +1,132 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ConnectionPoolTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private URL baseUrl;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                final int status = exchange.getRequestURI().getPath().startsWith("/missing") ? 404 : 200;
+                final byte[] body = "{\"error\":\"not_found\",\"reason\":\"missing\"}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        baseUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void releasedConnectionsCanBeOpenedAgain() throws IOException {
+        final ConnectionPool pool = new ConnectionPool(1);
+        for (int i = 0; i < 3; i++) {
+            final HttpURLConnection urc = pool.open(baseUrl);
+            assertEquals(200, pool.responseCode(urc));
+            pool.release(urc);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void errorResponsesAreReleased() throws IOException {
+        final ConnectionPool pool = new ConnectionPool(1);
+        for (int i = 0; i < 3; i++) {
+            final HttpURLConnection urc = pool.open(new URL(baseUrl, "missing"));
+            assertEquals(404, pool.responseCode(urc));
+            pool.release(urc);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void connectionsWithoutResponseAreReleasedWithoutConnecting() throws IOException {
+        final ConnectionPool pool = new ConnectionPool(1);
+        for (int i = 0; i < 3; i++) {
+            pool.release(pool.open(baseUrl));
+        }
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void keepAliveCacheIsRaisedToMaxConnections() {
+        final String original = System.clearProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY);
+        try {
+            assertEquals(5, ConnectionPool.configureKeepAliveCache(3));
+            assertNull(System.getProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY));
+            assertEquals(12, ConnectionPool.configureKeepAliveCache(12));
+            assertEquals("12", System.getProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY));
+        } finally {
+            restoreKeepAliveProperty(original);
+        }
+    }
+
+    @Test
+    public void configuredKeepAliveCacheIsLeftAlone() {
+        final String original = System.setProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY, "8");
+        try {
+            assertEquals(8, ConnectionPool.configureKeepAliveCache(12));
+            assertEquals("8", System.getProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY));
+        } finally {
+            restoreKeepAliveProperty(original);
+        }
+    }
+
+    private static void restoreKeepAliveProperty(String original) {
+        if (null == original) {
+            System.clearProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY);
+        } else {
+            System.setProperty(ConnectionPool.KEEP_ALIVE_CONNECTIONS_PROPERTY, original);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxConnectionsMustBePositive() {
+        new ConnectionPool(0);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ContentComparisonTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldIgnoreRevisionAndMemberOrder() throws IOException {
+        assertTrue(isSameContent(
+                "{ \"_id\": \"a\", \"language\": \"javascript\", \"views\": { \"x\": 1, \"y\": 2 } }",
+                "{ \"_rev\": \"3-abc\", \"views\": { \"y\": 2, \"x\": 1 }, \"language\": \"javascript\", \"_id\": \"a\" }"));
+    }
+
+    @Test
+    public void shouldCompareNumbersByValue() throws IOException {
+        assertTrue(isSameContent("{ \"_id\": \"a\", \"n\": 1 }", "{ \"_id\": \"a\", \"n\": 1.0 }"));
+        assertFalse(isSameContent("{ \"_id\": \"a\", \"n\": 1 }", "{ \"_id\": \"a\", \"n\": 1.5 }"));
+    }
+
+    @Test
+    public void shouldDetectChangedAndMissingFields() throws IOException {
+        assertFalse(isSameContent("{ \"_id\": \"a\", \"s\": \"x\" }", "{ \"_id\": \"a\", \"s\": \"y\" }"));
+        assertFalse(isSameContent("{ \"_id\": \"a\", \"s\": \"x\" }", "{ \"_id\": \"a\" }"));
+        assertFalse(isSameContent("{ \"_id\": \"a\", \"l\": [1, 2] }", "{ \"_id\": \"a\", \"l\": [2, 1] }"));
+    }
+
+    @Test
+    public void shouldCompareInlineAttachmentsWithStubs() throws IOException {
+        // "aGVsbG8=" is "hello", whose MD5 digest in base64 is XUFAKrxLKna5cZ2REBfFkg==.
+        final String local = "{ \"_id\": \"a\", \"_attachments\": { \"f.txt\": { \"content_type\": \"text/plain\", \"data\": \"aGVsbG8=\" } } }";
+        assertTrue(isSameContent(local, "{ \"_id\": \"a\", \"_attachments\": { \"f.txt\": { \"content_type\": \"text/plain\","
+                + " \"digest\": \"md5-XUFAKrxLKna5cZ2REBfFkg==\", \"length\": 5, \"revpos\": 1, \"stub\": true } } }"));
+        assertFalse(isSameContent(local, "{ \"_id\": \"a\", \"_attachments\": { \"f.txt\": { \"content_type\": \"text/plain\","
+                + " \"digest\": \"md5-AAAAAAAAAAAAAAAAAAAAAA==\", \"length\": 5, \"revpos\": 1, \"stub\": true } } }"));
+    }
+
+    @Test
+    public void shouldCompareAttachmentFilesWithStubs() throws IOException {
+        final File file = temporaryFolder.newFile("a.json");
+        Files.write("{ \"_id\": \"a\" }", file, Charsets.UTF_8);
+        final File attachments = temporaryFolder.newFolder("a.attachments");
+        Files.write("hello", new File(attachments, "f.txt"), Charsets.UTF_8);
+        final LocalDocument local = new LocalDocument(file, attachments);
+        local.load();
+
+        assertTrue(ContentComparison.isSameContent(local, new RemoteDocument(("{ \"_id\": \"a\", \"_attachments\": { \"f.txt\": {"
+                + " \"content_type\": \"text/plain\", \"digest\": \"md5-XUFAKrxLKna5cZ2REBfFkg==\", \"length\": 5, \"stub\": true } } }").getBytes("UTF-8"))));
+        assertFalse(ContentComparison.isSameContent(local, new RemoteDocument("{ \"_id\": \"a\" }".getBytes("UTF-8"))));
+    }
+
+    private static boolean isSameContent(String local, String remote) throws IOException {
+        return ContentComparison.isSameContent(new LocalDocument(local), new RemoteDocument(remote.getBytes("UTF-8")));
+    }
+}
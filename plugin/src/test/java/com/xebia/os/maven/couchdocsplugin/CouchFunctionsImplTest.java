@@ -27,6 +27,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.codehaus.plexus.util.IOUtil;
 import org.junit.Rule;
@@ -88,17 +91,29 @@ public class CouchFunctionsImplTest {
         remoteDoc = impl.download(databaseName, "_design/Demo");
         assertTrue("The document \"_design/Demo\" should now exist in the database, it was just uploaded.", remoteDoc.isPresent());
 
-        // 6. delete()
-        impl.delete(databaseName, remoteDoc.get());
+        // 6. headRevision() -> the same revision, without transferring the body
+        assertEquals("The ETag should carry the revision of the uploaded document.",
+                remoteDoc.get().getRev(), impl.headRevision(databaseName, "_design/Demo"));
 
-        // 7. download() -> not found
+        // 7. bulkReplace() -> the document is deleted and uploaded again, in two requests
+        localDoc.setReplacedRev(remoteDoc.get().getRev().get());
+        final List<BulkResult> results = impl.bulkReplace(databaseName, Arrays.asList(localDoc));
+        assertTrue("The replacement should have been accepted: " + results, results.get(0).isOk());
+        remoteDoc = impl.download(databaseName, "_design/Demo");
+        assertEquals("The document should have the revision of the replacement.", results.get(0).getRev(), remoteDoc.get().getRev());
+
+        // 8. delete()
+        impl.delete(databaseName, remoteDoc.get().getId(), remoteDoc.get().getRev().get());
+
+        // 9. download() and headRevision() -> not found
         remoteDoc = impl.download(databaseName, "_design/Demo");
         assertFalse("The document \"_design/Demo\" should no longer exist in the database.", remoteDoc.isPresent());
+        assertFalse("HEAD should not find a revision for a deleted document.", impl.headRevision(databaseName, "_design/Demo").isPresent());
 
-        // 8. deleteDatabase()
+        // 10. deleteDatabase()
         impl.deleteDatabase(databaseName);
 
-        // 9. isExistentDatabase() -> false
+        // 11. isExistentDatabase() -> false
         assertFalse("The database randomly named \"" + databaseName + "\" should no longer exist.",
                 impl.isExistentDatabase(databaseName));
     }
@@ -149,6 +164,34 @@ public class CouchFunctionsImplTest {
         }
     }
 
+    @Test
+    public void shouldReportBulkResultsPerDocument() throws IOException {
+        assumeNotNull(System.getenv("COUCHDB_INTEGRATION_TESTS"));
+
+        final CouchFunctionsImpl impl = new CouchFunctionsImpl(BASE_URL);
+        final String databaseName = randomDatabaseName();
+        try {
+            impl.createDatabase(databaseName);
+            impl.upload(databaseName, new LocalDocument("{ \"_id\": \"existing\" }"));
+
+            final List<BulkResult> results = impl.bulkUpload(databaseName, Arrays.asList(
+                    new LocalDocument("{ \"_id\": \"new\" }"),
+                    new LocalDocument("{ \"_id\": \"existing\" }")));
+
+            assertEquals(2, results.size());
+            assertTrue("The new document should have been written.", results.get(0).isOk());
+            assertEquals("The existing document should be a conflict.", "conflict", results.get(1).getError().get());
+            assertTrue(impl.download(databaseName, "new").isPresent());
+
+            final Map<String, String> revisions = impl.findRevisions(databaseName, Arrays.asList("new", "existing", "missing"));
+            assertEquals(results.get(0).getRev().get(), revisions.get("new"));
+            assertTrue("The existing document should have a revision.", revisions.containsKey("existing"));
+            assertFalse("The missing document should not have a revision.", revisions.containsKey("missing"));
+        } finally {
+            impl.deleteDatabase(databaseName);
+        }
+    }
+
     @Test
     public void shouldWrapServerErrors() throws IOException {
         assumeNotNull(System.getenv("COUCHDB_INTEGRATION_TESTS"));
@@ -0,0 +1,80 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class DirectoryWatcherTest {
+
+    private static final long QUIET_MILLIS = 100L;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private DirectoryWatcher watcher;
+    private File existing;
+
+    @Before
+    public void startWatching() throws IOException {
+        existing = new File(temporaryFolder.newFolder("database"), "doc.json");
+        Files.write("{ \"_id\": \"doc\" }", existing, Charsets.UTF_8);
+        watcher = new DirectoryWatcher(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void stopWatching() throws IOException {
+        watcher.close();
+    }
+
+    @Test(timeout = 30000)
+    public void shouldReportChangesInSubdirectories() throws IOException, InterruptedException {
+        Files.write("{ \"_id\": \"doc\", \"changed\": true }", existing, Charsets.UTF_8);
+        final Set<File> changes = watcher.awaitChanges(QUIET_MILLIS);
+        assertTrue(changes.toString(), changes.contains(existing));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldWatchNewDirectories() throws IOException, InterruptedException {
+        final File directory = new File(temporaryFolder.getRoot(), "other");
+        assertTrue(directory.mkdir());
+        assertTrue(watcher.awaitChanges(QUIET_MILLIS).contains(directory));
+
+        final File created = new File(directory, "new.json");
+        Files.write("{ \"_id\": \"new\" }", created, Charsets.UTF_8);
+        final Set<File> changes = watcher.awaitChanges(QUIET_MILLIS);
+        assertTrue(changes.toString(), changes.contains(created));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldCollectBurstsOfChanges() throws IOException, InterruptedException {
+        final File other = new File(existing.getParentFile(), "other.json");
+        Files.write("{ \"_id\": \"doc\", \"changed\": true }", existing, Charsets.UTF_8);
+        Files.write("{ \"_id\": \"other\" }", other, Charsets.UTF_8);
+        final Set<File> changes = watcher.awaitChanges(QUIET_MILLIS);
+        assertTrue(changes.toString(), changes.contains(existing) && changes.contains(other));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExportCouchDocsTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Mock private CouchFunctions couchFunctions;
+    @Mock private Log log;
+
+    @Test
+    public void shouldWriteOneFilePerDocument() throws IOException {
+        when(couchFunctions.streamDocuments(eq("customers/emea"), eq(false), any(DocumentHandler.class))).thenAnswer(
+                stream("{ \"_id\": \"_design/app\", \"_rev\": \"2-abc\", \"views\": {} }",
+                        "{ \"_id\": \"order 1\", \"_rev\": \"1-def\", \"_attachments\": { \"a.txt\": { \"stub\": true } } }"));
+        doAnswer(download("attached")).when(couchFunctions)
+                .downloadAttachment(eq("customers/emea"), eq("order 1"), eq("a.txt"), any(File.class));
+
+        final int count = new ExportCouchDocs(new Progress(false, log), couchFunctions, temporaryFolder.getRoot(), false, 2)
+                .execute(Collections.singletonList("customers/emea"));
+
+        assertThat(count, is(2));
+        final File directory = new File(temporaryFolder.getRoot(), "customers/emea");
+        assertThat(Arrays.asList(directory.list()).size(), is(3));
+        assertThat(read(new File(directory, "_design%2Fapp.json")), is(equalTo("{\"_id\":\"_design/app\",\"views\":{}}")));
+        assertThat(read(new File(directory, "order%201.json")), is(equalTo("{\"_id\":\"order 1\"}")));
+        assertThat(Files.toString(new File(directory, "order%201.attachments/a.txt"), Charsets.UTF_8), is(equalTo("attached")));
+    }
+
+    @Test
+    public void shouldWriteAttachmentsTheUpdateGoalCanLoad() throws IOException {
+        when(couchFunctions.streamDocuments(eq("db"), eq(true), any(DocumentHandler.class))).thenAnswer(
+                stream("{ \"_id\": \"_design/app\", \"_attachments\": { \"css/style.css\": { \"stub\": true },"
+                        + " \"../escape.txt\": { \"stub\": true } } }"));
+        doAnswer(download("body {}")).when(couchFunctions)
+                .downloadAttachment(eq("db"), eq("_design/app"), eq("css/style.css"), any(File.class));
+
+        new ExportCouchDocs(new Progress(false, log), couchFunctions, temporaryFolder.getRoot(), true, 1)
+                .execute(Collections.singletonList("db"));
+
+        final LocalDocument document = new LocalDocument(new File(temporaryFolder.getRoot(), "db/_design%2Fapp.json"),
+                new File(temporaryFolder.getRoot(), "db/_design%2Fapp.attachments"));
+        document.load();
+        assertThat(document.getAttachments().size(), is(1));
+        assertThat(document.getAttachments().get(0).getName(), is(equalTo("css/style.css")));
+        verify(log).warn("    The attachment \"../escape.txt\" of document \"_design/app\" in database \"db\" is not exported;"
+                + " its name is not a safe file name.");
+        assertFalse(new File(temporaryFolder.getRoot(), "db/escape.txt").exists());
+    }
+
+    @Test
+    public void shouldStopTheStreamAfterAFailedWrite() throws IOException {
+        assertTrue(new File(temporaryFolder.getRoot(), "db/a.json/occupied").mkdirs());
+        final AtomicInteger handled = new AtomicInteger();
+        when(couchFunctions.streamDocuments(eq("db"), eq(false), any(DocumentHandler.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws IOException, InterruptedException {
+                final DocumentHandler handler = (DocumentHandler) invocation.getArguments()[2];
+                for (int i = 0; i < 100; i++) {
+                    handler.handle((ObjectNode) OBJECT_MAPPER.readTree("{ \"_id\": \"a\" }"));
+                    handled.incrementAndGet();
+                    Thread.sleep(10L);
+                }
+                return 100;
+            }
+        });
+
+        final int count = new ExportCouchDocs(new Progress(false, log), couchFunctions, temporaryFolder.getRoot(), false, 1)
+                .execute(Collections.singletonList("db"));
+
+        assertThat(count, is(0));
+        assertTrue("The stream should have stopped, but handled " + handled.get(), handled.get() < 100);
+        verify(log).error(startsWith("    Could not export database \"db\""), any(IOException.class));
+        verify(couchFunctions, never()).downloadAttachment(anyString(), anyString(), anyString(), any(File.class));
+    }
+
+    @Test
+    public void shouldOnlyAcceptRelativeAttachmentNames() {
+        assertTrue(ExportCouchDocs.isSafeAttachmentName("a.txt"));
+        assertTrue(ExportCouchDocs.isSafeAttachmentName("css/style.css"));
+        assertTrue(ExportCouchDocs.isSafeAttachmentName("..a"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName(""));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("/etc/passwd"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("a/../../b"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("a//b"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("./a"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("a\\b"));
+        assertFalse(ExportCouchDocs.isSafeAttachmentName("c:a"));
+    }
+
+    @Test
+    public void shouldWriteDocumentsTheUpdateGoalCanLoad() throws IOException {
+        when(couchFunctions.streamDocuments(eq("db"), eq(true), any(DocumentHandler.class))).thenAnswer(
+                stream("{ \"_id\": \"_design/app\", \"language\": \"javascript\" }"));
+
+        new ExportCouchDocs(new Progress(true, log), couchFunctions, temporaryFolder.getRoot(), true, 1)
+                .execute(Collections.singletonList("db"));
+
+        final LocalDocument document = new LocalDocument(new File(temporaryFolder.getRoot(), "db/_design%2Fapp.json"));
+        document.load();
+        assertThat(document.getId(), is(equalTo("_design/app")));
+    }
+
+    @Test
+    public void shouldReportDirectoriesThatCannotBeCreated() throws IOException {
+        assertTrue(temporaryFolder.newFile("db").isFile());
+        when(couchFunctions.streamDocuments(eq("db"), eq(false), any(DocumentHandler.class))).thenAnswer(
+                stream("{ \"_id\": \"a\" }"));
+
+        final int count = new ExportCouchDocs(new Progress(false, log), couchFunctions, temporaryFolder.getRoot(), false, 1)
+                .execute(Collections.singletonList("db"));
+
+        assertThat(count, is(0));
+        final ArgumentCaptor<IOException> failure = ArgumentCaptor.forClass(IOException.class);
+        verify(log).error(eq("    Could not export database \"db\""), failure.capture());
+        assertThat(failure.getValue().getMessage(), is(equalTo("Could not create directory " + new File(temporaryFolder.getRoot(), "db"))));
+    }
+
+    @Test
+    public void shouldNotCreateDirectoriesForMissingDatabases() throws IOException {
+        when(couchFunctions.streamDocuments(eq("missing"), eq(false), any(DocumentHandler.class)))
+                .thenThrow(new CouchDatabaseException(404, "Object Not Found"));
+
+        final int count = new ExportCouchDocs(new Progress(false, log), couchFunctions, temporaryFolder.getRoot(), false, 1)
+                .execute(Arrays.asList("missing", "Invalid"));
+
+        assertThat(count, is(0));
+        verify(log).error(eq("    Could not export database \"missing\""), any(CouchDatabaseException.class));
+        verify(log).error("    \"Invalid\" is an invalid Couch database name.");
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void shouldEncodeFileNames() {
+        assertThat(ExportCouchDocs.fileNameOf("plain-id_1.0"), is(equalTo("plain-id_1.0.json")));
+        assertThat(ExportCouchDocs.fileNameOf("_design/app"), is(equalTo("_design%2Fapp.json")));
+        assertThat(ExportCouchDocs.fileNameOf("a:b*c?"), is(equalTo("a%3Ab%2Ac%3F.json")));
+        assertThat(ExportCouchDocs.fileNameOf("café"), is(equalTo("caf%C3%A9.json")));
+        assertThat(ExportCouchDocs.fileNameOf(".hidden"), is(equalTo("%2Ehidden.json")));
+        assertThat(ExportCouchDocs.fileNameOf("100%"), is(equalTo("100%25.json")));
+    }
+
+    @Test
+    public void shouldStreamTheRowsOfAnAllDocsResponse() throws IOException {
+        final String response = "{\"total_rows\":3,\"offset\":0,\"rows\":["
+                + "{\"id\":\"a\",\"key\":\"a\",\"value\":{\"rev\":\"1-a\"},\"doc\":{\"_id\":\"a\",\"_rev\":\"1-a\",\"n\":[1,2]}},"
+                + "{\"id\":\"b\",\"key\":\"b\",\"value\":{\"rev\":\"2-b\",\"deleted\":true},\"doc\":null},"
+                + "{\"id\":\"c\",\"key\":\"c\",\"value\":{\"rev\":\"1-c\"},\"doc\":{\"_id\":\"c\",\"_rev\":\"1-c\"}}"
+                + "]}";
+        final List<String> ids = new ArrayList<String>();
+
+        final int count = CouchFunctionsImpl.readRows(new ByteArrayInputStream(response.getBytes(Charsets.UTF_8)),
+                new DocumentHandler() {
+                    @Override
+                    public void handle(ObjectNode document) {
+                        ids.add(document.get("_id").getTextValue());
+                    }
+                });
+
+        assertThat(count, is(2));
+        assertThat(ids, is(equalTo(Arrays.asList("a", "c"))));
+    }
+
+    @Test(expected = CouchDatabaseException.class)
+    public void shouldRejectAllDocsResponsesWithoutRows() throws IOException {
+        CouchFunctionsImpl.readRows(new ByteArrayInputStream("{\"error\":\"x\",\"nested\":{\"rows\":1}}".getBytes(Charsets.UTF_8)),
+                new DocumentHandler() {
+                    @Override
+                    public void handle(ObjectNode document) {
+                        throw new AssertionError();
+                    }
+                });
+    }
+
+    private static Answer<Integer> stream(final String... documents) {
+        return new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws IOException {
+                final DocumentHandler handler = (DocumentHandler) invocation.getArguments()[2];
+                for (String document : documents) {
+                    handler.handle((ObjectNode) OBJECT_MAPPER.readTree(document));
+                }
+                return documents.length;
+            }
+        };
+    }
+
+    private static Answer<Void> download(final String content) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+                Files.write(content, (File) invocation.getArguments()[3], Charsets.UTF_8);
+                return null;
+            }
+        };
+    }
+
+    private static String read(File file) throws IOException {
+        assertFalse(file + " should not be empty", file.length() == 0);
+        return OBJECT_MAPPER.readTree(Files.toString(file, Charsets.UTF_8)).toString();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks how {@link CouchFunctionsImpl#findExistingDatabases(java.util.Collection)} tells a server without
+ * {@code _dbs_info} apart from a rejected request, against a local HTTP server.
+ */
+public class FindExistingDatabasesTest {
+
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private HttpServer server;
+    private CouchFunctionsImpl couch;
+    private volatile int dbsInfoStatus;
+    private volatile String dbsInfoResponse;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+                final boolean dbsInfo = exchange.getRequestURI().getPath().equals("/_dbs_info");
+                final byte[] body = (dbsInfo ? dbsInfoResponse : "[\"a\",\"c\"]").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(dbsInfo ? dbsInfoStatus : 200, body.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        couch = new CouchFunctionsImpl(new URL("http://localhost:" + server.getAddress().getPort() + "/"), new ConnectionPool());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldUseDbsInfo() throws IOException {
+        respond(200, "[{\"key\":\"a\",\"info\":{}},{\"key\":\"b\",\"error\":\"not_found\"}]");
+
+        assertThat(couch.findExistingDatabases(Arrays.asList("a", "b")), is(equalTo(Collections.singleton("a"))));
+        assertThat(requests, is(equalTo(Arrays.asList("POST /_dbs_info"))));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldFallBackToAllDbsIfDbsInfoIsNotFound() throws IOException {
+        respond(404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+
+        assertThat(couch.findExistingDatabases(Arrays.asList("a", "b")), is(equalTo(Collections.singleton("a"))));
+        assertThat(requests, is(equalTo(Arrays.asList("POST /_dbs_info", "GET /_all_dbs"))));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldFallBackToAllDbsIfDbsInfoIsTakenForADatabaseName() throws IOException {
+        respond(400, "{\"error\":\"illegal_database_name\",\"reason\":\"Name: '_dbs_info'. Only lowercase characters...\"}");
+
+        assertThat(couch.findExistingDatabases(Arrays.asList("a", "b")), is(equalTo(Collections.singleton("a"))));
+        assertThat(requests, is(equalTo(Arrays.asList("POST /_dbs_info", "GET /_all_dbs"))));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReportOtherBadRequests() throws IOException {
+        respond(400, "{\"error\":\"bad_request\",\"reason\":\"`keys` member must exist.\"}");
+
+        try {
+            couch.findExistingDatabases(Arrays.asList("a", "b"));
+            fail("A 400 response other than illegal_database_name should be reported.");
+        } catch (CouchDatabaseException e) {
+            assertThat(e.getResponseCode(), is(400));
+        }
+        assertThat(requests, is(equalTo(Arrays.asList("POST /_dbs_info"))));
+    }
+
+    private void respond(int status, String body) {
+        dbsInfoStatus = status;
+        dbsInfoResponse = body;
+    }
+}
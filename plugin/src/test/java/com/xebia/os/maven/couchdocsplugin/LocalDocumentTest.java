@@ -25,12 +25,18 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.plexus.util.Base64;
 import org.codehaus.plexus.util.IOUtil;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.xebia.os.maven.couchdocsplugin.LocalDocument;
 
 
@@ -60,6 +66,71 @@ public class LocalDocumentTest {
         assertFalse(ldd.getRev().isPresent());
     }
 
+    @Test
+    public void loadShouldOnlyLookAtTopLevelFields() throws IOException {
+        final LocalDocument ldd = new LocalDocument(newJsonFile(
+                "{ \"views\": { \"_rev\": \"1-nested\" }, \"_id\": \"top\", \"nested\": { \"_id\": \"nested\" } }"));
+        ldd.load();
+        assertThat(ldd.getId(), is("top"));
+        assertFalse(ldd.getRev().isPresent());
+    }
+
+    @Test(expected = DocumentValidationException.class)
+    public void loadShouldRejectNestedIdOnly() throws IOException {
+        new LocalDocument(newJsonFile("{ \"nested\": { \"_id\": \"nested\" } }")).load();
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void loadShouldRejectMalformedJsonAfterTheId() throws IOException {
+        new LocalDocument(newJsonFile("{ \"_id\": \"a\", \"views\": { \"x\": [1, 2 } }")).load();
+    }
+
+    @Test
+    public void treeShouldCarryRevisionSetBeforeItWasBuilt() throws IOException {
+        final LocalDocument ldd = new LocalDocument(newJsonFile("{ \"_id\": \"a\", \"_rev\": \"1-old\", \"n\": 1 }"));
+        ldd.load();
+        assertThat(ldd.getRev().get(), is("1-old"));
+        ldd.setRev("2-new");
+        assertThat(ldd.getJson(), is("{\"_id\":\"a\",\"_rev\":\"2-new\",\"n\":1}"));
+        ldd.clearRev();
+        assertThat(ldd.getJson(), is("{\"_id\":\"a\",\"n\":1}"));
+        assertFalse(ldd.getRev().isPresent());
+    }
+
+    @Test
+    public void loadShouldNotReadAttachmentFiles() throws IOException {
+        final File attachmentDirectory = temporaryFolder.newFolder("attachments");
+        final File attachment = new File(attachmentDirectory, "style.css");
+        Files.write("body {}", attachment, Charsets.UTF_8);
+        final LocalDocument ldd = new LocalDocument(newJsonFile("{ \"_id\": \"a\" }"), attachmentDirectory);
+        ldd.load();
+        Files.write("body { color: red; }", attachment, Charsets.UTF_8);
+        assertTrue(ldd.hasAttachmentFiles());
+        assertThat(ldd.getAttachments().get(0).getLength(), is(20L));
+    }
+
+    @Test
+    public void shouldReadLargeFilesThroughMapping() throws IOException, NoSuchAlgorithmException {
+        final StringBuilder json = new StringBuilder("{ \"_id\": \"large\", \"lines\": [");
+        while (json.length() < MappedFiles.MAPPED_READ_THRESHOLD) {
+            json.append("\"All work and no play makes Jack a dull boy.\",");
+        }
+        json.append("\"end\"] }");
+        final File file = newJsonFile(json.toString());
+        final LocalDocument ldd = new LocalDocument(file);
+        ldd.load();
+        assertThat(ldd.getId(), is("large"));
+        assertThat(ldd.getRootNode().get("lines").get(0).getTextValue(), is("All work and no play makes Jack a dull boy."));
+        final byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.toByteArray(file));
+        assertThat(ldd.getContentHash(), is("sha256-" + new String(Base64.encodeBase64(digest), Charsets.US_ASCII)));
+    }
+
+    private File newJsonFile(final String json) throws IOException {
+        final File result = temporaryFolder.newFile();
+        Files.write(json, result, Charsets.UTF_8);
+        return result;
+    }
+
     private File newTempFile(final String source) throws IOException, FileNotFoundException {
         File result = temporaryFolder.newFile();
         final InputStream dummyData = UpdateCouchDocsTest.class.getResourceAsStream(source);
@@ -38,6 +38,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sonatype.inject.Nullable;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
@@ -118,6 +119,50 @@ public class LocalDocumentsSelectorTest {
         assertEquals("Should find no qualifying files.", 0, selected.size());
     }
 
+    @Test
+    public void shouldPickUpAttachmentFiles() throws IOException, DocumentValidationException {
+        final File doc1 = createTempFile("database/app.json");
+        createTempFile("database/app.attachments/lib.js");
+        createTempFile("database/app.attachments/views/index.json");
+
+        final LocalDocumentsSelector collector = new LocalDocumentsSelector(tempDir.getRoot(), log);
+        final Multimap<String, LocalDocument> selected = collector.select();
+        assertEquals("Should not take attachments for documents.", 1, selected.size());
+        final LocalDocument document = Iterables.getOnlyElement(selected.get("database"));
+        assertEquals(doc1, document.getFile());
+        document.load();
+        assertTrue(document.hasAttachmentFiles());
+        assertEquals("lib.js", document.getAttachments().get(0).getName());
+        assertEquals("views/index.json", document.getAttachments().get(1).getName());
+    }
+
+    @Test
+    public void shouldTagDocumentsUnchangedSinceTheLastScan() throws IOException {
+        final long anHourAgo = System.currentTimeMillis() - 3600 * 1000L;
+        final File unchanged = createTempFile("database/unchanged.json");
+        final File attachment = createTempFile("database/unchanged.attachments/lib.js");
+        final File changed = createTempFile("database/changed.json");
+        for (File file : new File[] { unchanged, attachment, changed }) {
+            assertTrue(file.setLastModified(anHourAgo));
+        }
+        final File cacheFile = new File(tempDir.getRoot(), "scancache.json");
+        final ScanCache first = ScanCache.load(cacheFile);
+        for (LocalDocument document : select(first).values()) {
+            assertFalse(document.isUnchangedSinceLastScan());
+        }
+        first.save();
+
+        assertTrue(changed.setLastModified(anHourAgo + 1000L));
+        final ScanCache second = ScanCache.load(cacheFile);
+        final Multimap<String, LocalDocument> selected = select(second);
+        assertEquals(2, selected.size());
+        for (LocalDocument document : selected.values()) {
+            assertEquals(document.getFile().equals(unchanged), document.isUnchangedSinceLastScan());
+        }
+        assertEquals(2, second.getHitCount());
+        assertEquals(1, second.getMissCount());
+    }
+
     @Test
     public void sanifyDatabaseNameConvertsBackslashes() {
         final String name = "some\\path/full\\of\\backslashes";
@@ -136,6 +181,11 @@ public class LocalDocumentsSelectorTest {
         }
     }
 
+    private Multimap<String, LocalDocument> select(ScanCache scanCache) throws IOException {
+        return new LocalDocumentsSelector(tempDir.getRoot(), log, new String[] { "**/*.json" }, null,
+                Optional.of(scanCache)).select();
+    }
+
     private File createTempFile(String pathname) throws IOException {
         FileOutputStream fos = null;
         try {
@@ -0,0 +1,109 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Files;
+
+public class ParallelFileScannerTest {
+
+    @Rule public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Before
+    public void createTree() throws IOException {
+        assumeTrue(ParallelFileScanner.isAvailable());
+        for (String path : new String[] {
+                "root.json",
+                "db/doc.json",
+                "db/doc.attachments/index.html",
+                "db/doc.attachments/nested/data.json",
+                "db/view.js",
+                "db/notes.txt",
+                "db/doc.json~",
+                "db/.git/config.json",
+                "db/CVS/Entries",
+                "customers/emea/design.json",
+                "customers/apac/design.js",
+                "customers/apac/skip/ignored.json",
+                "a/b/c/d/deep.json",
+                "a/b/c/d/deep.js" }) {
+            final File file = new File(tempDir.getRoot(), path);
+            Files.createParentDirs(file);
+            Files.write(new byte[] { '{', '}' }, file);
+        }
+    }
+
+    @Test
+    public void shouldMatchDirectoryScannerWithDefaultPatterns() throws IOException {
+        assertSameFiles(new String[] { "**/*.json", "**/*.js" }, new String[] { "**/*.attachments/**" });
+    }
+
+    @Test
+    public void shouldMatchDirectoryScannerWithoutIncludes() throws IOException {
+        assertSameFiles(null, null);
+    }
+
+    @Test
+    public void shouldMatchDirectoryScannerWithCustomPatterns() throws IOException {
+        assertSameFiles(new String[] { "customers/", "a/**/d/*.js", "*.json" }, new String[] { "**/skip/**" });
+        assertSameFiles(new String[] { "db/?oc.json", "%regex[a.*deep\\.json]" }, new String[] { "%ant[**/*.txt]" });
+        assertSameFiles(new String[] { "**/*" }, new String[] { "db/", "**/apac" });
+    }
+
+    @Test
+    public void shouldPruneExcludedDirectories() throws IOException {
+        final String[] files = new ParallelFileScanner(tempDir.getRoot(), null, new String[] { "a/b/**" }).scan();
+        Arrays.sort(files);
+        assertEquals(12, files.length);
+        for (String file : files) {
+            assertEquals(false, file.startsWith("a" + File.separator));
+        }
+    }
+
+    @Test
+    public void translatesAntPatterns() {
+        assertEquals(".*", ParallelFileScanner.antToRegex("**"));
+        assertEquals("(?:[^/]*/)*[^/]*\\Q.json\\E", ParallelFileScanner.antToRegex("**/*.json"));
+        assertEquals("\\Qa\\E(?:/[^/]*)*/\\Qb\\E[^/]", ParallelFileScanner.antToRegex("a/**/b?"));
+    }
+
+    private void assertSameFiles(String[] includes, String[] excludes) throws IOException {
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(tempDir.getRoot());
+        scanner.setIncludes(includes);
+        scanner.setExcludes(excludes);
+        scanner.scan();
+        final String[] expected = scanner.getIncludedFiles();
+        Arrays.sort(expected);
+
+        final String[] actual = new ParallelFileScanner(tempDir.getRoot(), includes, excludes).scan();
+        Arrays.sort(actual);
+        assertArrayEquals(Arrays.toString(expected) + " vs " + Arrays.toString(actual), expected, actual);
+    }
+}
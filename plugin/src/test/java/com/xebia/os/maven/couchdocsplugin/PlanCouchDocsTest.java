@@ -0,0 +1,140 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Files;
+import com.xebia.os.maven.couchdocsplugin.Config.ExistingDocs;
+import com.xebia.os.maven.couchdocsplugin.Config.UnknownDatabases;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PlanCouchDocsTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Mock private CouchFunctions couchFunctions;
+    @Mock private Log log;
+
+    @Test
+    public void shouldClassifyDocumentsWithBulkLookups() throws IOException {
+        final Multimap<String, LocalDocument> docs = LinkedListMultimap.create();
+        docs.put("db", document("db/new.json", "{ \"_id\": \"new\" }"));
+        docs.put("db", document("db/existing.json", "{ \"_id\": \"existing\" }"));
+        docs.put("db", document("db/broken.json", "{ \"id\": \"broken\" }"));
+        docs.put("missing", document("missing/doc.json", "{ \"_id\": \"doc\" }"));
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("db"));
+        when(couchFunctions.findRevisions(eq("db"), anyListOf(String.class))).thenReturn(ImmutableMap.of("existing", "3-abc"));
+
+        final DeployPlan plan = plan(new Config(ExistingDocs.UPDATE, UnknownDatabases.CREATE), docs);
+
+        verify(couchFunctions).findExistingDatabases(docs.keySet());
+        verify(couchFunctions).findRevisions("db", Arrays.asList("new", "existing"));
+        verifyNoMoreInteractions(couchFunctions);
+        assertThat(plan.getCreatedDatabases(), is(equalTo(Collections.singleton("missing"))));
+        assertThat(actions(plan), is(equalTo("FAIL db/broken.json (could not be loaded: "
+                + "The document's _id node is missing or not a string value.), CREATE db/new, UPDATE db/existing @ 3-abc, CREATE missing/doc")));
+        final File existing = new File(temporaryFolder.getRoot(), "db/existing.json");
+        assertThat(plan.getEntries().get(2).hash, is(equalTo(new LocalDocument(existing).getContentHash())));
+    }
+
+    @Test
+    public void shouldFollowTheStrategies() throws IOException {
+        final Multimap<String, LocalDocument> docs = LinkedListMultimap.create();
+        docs.put("db", document("db/existing.json", "{ \"_id\": \"existing\" }"));
+        docs.put("skipped", document("skipped/doc.json", "{ \"_id\": \"doc\" }"));
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("db"));
+        when(couchFunctions.findRevisions(eq("db"), anyListOf(String.class))).thenReturn(ImmutableMap.of("existing", "3-abc"));
+
+        assertThat(actions(plan(new Config(ExistingDocs.KEEP, UnknownDatabases.SKIP), docs)),
+                is(equalTo("SKIP db/existing @ 3-abc (kept as it is on the server), SKIP skipped/doc.json (the database doesn't exist)")));
+        assertThat(actions(plan(new Config(ExistingDocs.FAIL, UnknownDatabases.FAIL), docs)),
+                is(equalTo("FAIL db/existing @ 3-abc (already exists), FAIL skipped/doc.json (the database doesn't exist)")));
+        assertThat(actions(plan(new Config(ExistingDocs.REPLACE, UnknownDatabases.SKIP), docs)),
+                is(equalTo("UPDATE db/existing @ 3-abc, SKIP skipped/doc.json (the database doesn't exist)")));
+    }
+
+    @Test
+    public void shouldCompareContentForUpdateIfChanged() throws IOException {
+        final Multimap<String, LocalDocument> docs = LinkedListMultimap.create();
+        docs.put("db", document("db/same.json", "{ \"_id\": \"same\", \"value\": 1 }"));
+        docs.put("db", document("db/changed.json", "{ \"_id\": \"changed\", \"value\": 2 }"));
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(ImmutableSet.of("db"));
+        when(couchFunctions.findDocuments(eq("db"), anyListOf(String.class))).thenReturn(ImmutableMap.of(
+                "same", remote("{ \"_id\": \"same\", \"_rev\": \"1-a\", \"value\": 1 }"),
+                "changed", remote("{ \"_id\": \"changed\", \"_rev\": \"2-b\", \"value\": 1 }")));
+
+        assertThat(actions(plan(new Config(ExistingDocs.UPDATE_IF_CHANGED, UnknownDatabases.FAIL), docs)),
+                is(equalTo("UNCHANGED db/same @ 1-a, UPDATE db/changed @ 2-b")));
+    }
+
+    private DeployPlan plan(Config config, Multimap<String, LocalDocument> docs) throws IOException {
+        final Multimap<String, LocalDocument> fresh = LinkedListMultimap.create();
+        for (Map.Entry<String, LocalDocument> entry : docs.entries()) {
+            fresh.put(entry.getKey(), new LocalDocument(entry.getValue().getFile()));
+        }
+        return new PlanCouchDocs(config, new Progress(false, log), couchFunctions, fresh,
+                new DeployPlan(new URL("http://localhost:5984/"), config.existingDocs)).execute();
+    }
+
+    private static String actions(DeployPlan plan) {
+        final List<DeployPlan.Entry> entries = plan.getEntries();
+        final StringBuilder result = new StringBuilder();
+        for (DeployPlan.Entry entry : entries) {
+            result.append(result.length() > 0 ? ", " : "").append(entry);
+        }
+        return result.toString();
+    }
+
+    private LocalDocument document(String path, String json) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), path);
+        Files.createParentDirs(file);
+        Files.write(json, file, Charsets.UTF_8);
+        return new LocalDocument(file);
+    }
+
+    private static RemoteDocument remote(String json) throws IOException {
+        return new RemoteDocument(new ObjectMapper().readTree(json));
+    }
+}
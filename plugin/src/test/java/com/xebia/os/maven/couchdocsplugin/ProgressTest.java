@@ -0,0 +1,71 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import org.apache.maven.plugin.logging.Log;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProgressTest {
+
+    @Mock private Log log;
+
+    @Test
+    public void shouldWriteDirectlyIfNotBuffered() {
+        final Progress progress = new Progress(true, log);
+        progress.info("Hello.");
+        progress.indent();
+        progress.warn("Indented.");
+        verify(log).info("Hello.");
+        verify(log).warn("    Indented.");
+    }
+
+    @Test
+    public void shouldHoldBufferedOutputUntilFlushed() {
+        final Progress progress = new Progress(true, log);
+        final Progress first = progress.buffered();
+        final Progress second = progress.buffered();
+
+        first.info("First, line one.");
+        second.info("Second, line one.");
+        first.indent();
+        first.debug("First, line two.");
+        second.info("Second, line two.");
+        verifyZeroInteractions(log);
+
+        second.flush();
+        first.flush();
+
+        InOrder inOrder = inOrder(log);
+        inOrder.verify(log).info("Second, line one.");
+        inOrder.verify(log).info("Second, line two.");
+        inOrder.verify(log).info("First, line one.");
+        inOrder.verify(log).debug("    First, line two.");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void bufferedErrorsShouldStillFailTheBuild() {
+        new Progress(true, log).buffered().error("Broken.");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.base.Optional;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RateLimitedCouchFunctionsTest {
+
+    @Mock private CouchFunctions delegate;
+
+    @Test
+    public void shouldPassRequestsThroughWithoutLimits() throws IOException {
+        when(delegate.headRevision("database", "_design/Demo")).thenReturn(Optional.of("1-abc"));
+        final RateLimitedCouchFunctions couch = new RateLimitedCouchFunctions(delegate, RateLimits.NONE);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(couch.headRevision("database", "_design/Demo"), is(equalTo(Optional.of("1-abc"))));
+        }
+
+        verify(delegate, times(100)).headRevision("database", "_design/Demo");
+        assertThat(couch.getThrottledMillis(), is(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldHoldBackRequestsOverTheLimit() throws IOException {
+        final RateLimitedCouchFunctions couch = new RateLimitedCouchFunctions(delegate, new RateLimits(20, 0, 0, 0));
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 24; i++) {
+            couch.headRevision("database", "_design/Demo");
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue("Took " + elapsedMillis + " ms.", elapsedMillis >= 150L);
+        assertTrue(couch.getThrottledMillis() >= 150L);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldLimitEachDatabaseSeparately() throws IOException {
+        final RateLimitedCouchFunctions couch = new RateLimitedCouchFunctions(delegate, new RateLimits(0, 0, 10, 0));
+
+        for (int i = 0; i < 10; i++) {
+            couch.headRevision("database1", "_design/Demo");
+            couch.headRevision("database2", "_design/Demo");
+        }
+        assertThat(couch.getThrottledMillis(), is(0L));
+
+        couch.headRevision("database1", "_design/Demo");
+        assertTrue(couch.getThrottledMillis() > 0L);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldLimitRequestBodyBytes() throws IOException {
+        final LocalDocument localDoc = new LocalDocument("{ \"_id\": \"_design/Demo\", \"padding\": \"0123456789\" }");
+        final int size = localDoc.getJson().length();
+        final RateLimitedCouchFunctions couch = new RateLimitedCouchFunctions(delegate, new RateLimits(0, size * 10, 0, 0));
+
+        for (int i = 0; i < 10; i++) {
+            couch.upload("database", localDoc);
+        }
+        assertThat(couch.getThrottledMillis(), is(0L));
+
+        couch.upload("database", localDoc);
+        assertTrue(couch.getThrottledMillis() > 0L);
+        verify(delegate, times(11)).upload("database", localDoc);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+    @Test
+    public void shouldRetryTemporaryServerErrorsOnReads() {
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(429, "Too Many Requests"), true, 0));
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(500, "Internal Server Error"), true, 0));
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(503, "Service Unavailable"), true, 0));
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(504, "Gateway Timeout"), true, 0));
+        assertFalse(policy.shouldRetry(new CouchDatabaseException(501, "Not Implemented"), true, 0));
+        assertFalse(policy.shouldRetry(new CouchDatabaseException(404, "Not Found"), true, 0));
+        assertFalse(policy.shouldRetry(new CouchDatabaseException(409, "Conflict"), true, 0));
+    }
+
+    @Test
+    public void shouldOnlyRetryUnprocessedWrites() {
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(429, "Too Many Requests"), false, 0));
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(503, "Service Unavailable"), false, 0));
+        assertTrue(policy.shouldRetry(new ConnectException("Connection refused"), false, 0));
+        assertFalse(policy.shouldRetry(new CouchDatabaseException(500, "Internal Server Error"), false, 0));
+        assertFalse(policy.shouldRetry(new SocketTimeoutException("Read timed out"), false, 0));
+        assertFalse(policy.shouldRetry(new SocketException("Connection reset"), false, 0));
+    }
+
+    @Test
+    public void shouldRetryNetworkFailuresOnReads() {
+        assertTrue(policy.shouldRetry(new SocketTimeoutException("Read timed out"), true, 0));
+        assertTrue(policy.shouldRetry(new SocketException("Connection reset"), true, 0));
+        assertFalse(policy.shouldRetry(new UnknownHostException("couch.invalid"), true, 0));
+        assertFalse(policy.shouldRetry(new InterruptedIOException(), true, 0));
+        assertFalse(policy.shouldRetry(new IllegalStateException(), true, 0));
+    }
+
+    @Test
+    public void shouldStopAfterMaxRetries() {
+        final IOException failure = new SocketTimeoutException("Read timed out");
+        assertTrue(policy.shouldRetry(failure, true, 2));
+        assertFalse(policy.shouldRetry(failure, true, 3));
+        assertFalse(RetryPolicy.NONE.shouldRetry(failure, true, 0));
+    }
+
+    @Test
+    public void backoffShouldGrowExponentiallyUpToTheMaximum() {
+        final RetryPolicy alwaysMax = new RetryPolicy(10, 100, 1000, new Random() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public double nextDouble() {
+                return 0.999999;
+            }
+        });
+        assertThat(alwaysMax.backoffMillis(1, Optional.<Long>absent()), is(99L));
+        assertThat(alwaysMax.backoffMillis(2, Optional.<Long>absent()), is(199L));
+        assertThat(alwaysMax.backoffMillis(3, Optional.<Long>absent()), is(399L));
+        assertThat(alwaysMax.backoffMillis(5, Optional.<Long>absent()), is(999L));
+        assertThat(alwaysMax.backoffMillis(40, Optional.<Long>absent()), is(999L));
+    }
+
+    @Test
+    public void backoffShouldBeJittered() {
+        for (int i = 0; i < 100; i++) {
+            final long backoff = policy.backoffMillis(2, Optional.<Long>absent());
+            assertTrue(backoff >= 0 && backoff < 200);
+        }
+    }
+
+    @Test
+    public void backoffShouldHonourLongerRetryAfter() {
+        assertThat(policy.backoffMillis(1, Optional.of(800L)), is(800L));
+    }
+
+    @Test
+    public void backoffShouldNotExceedMaxBackoff() {
+        assertThat(policy.backoffMillis(1, Optional.of(5000L)), is(1000L));
+    }
+
+    @Test
+    public void shouldNotRetryWhenRetryAfterExceedsMaxBackoff() {
+        assertFalse(policy.shouldRetry(new CouchDatabaseException(503, "Service Unavailable", Optional.of(5000L)), true, 0));
+        assertTrue(policy.shouldRetry(new CouchDatabaseException(503, "Service Unavailable", Optional.of(1000L)), true, 0));
+    }
+
+    @Test
+    public void shouldReadRetryAfterInSeconds() {
+        assertThat(CouchFunctionsImpl.retryAfter("7", 0L), is(Optional.of(7000L)));
+    }
+
+    @Test
+    public void shouldReadRetryAfterAsDate() {
+        final long now = 1445412420000L; // Wed, 21 Oct 2015 07:27:00 GMT
+        assertThat(CouchFunctionsImpl.retryAfter("Wed, 21 Oct 2015 07:28:00 GMT", now), is(Optional.of(60000L)));
+    }
+
+    @Test
+    public void shouldIgnoreMissingOrMalformedRetryAfter() {
+        assertFalse(CouchFunctionsImpl.retryAfter(null, 0L).isPresent());
+        assertFalse(CouchFunctionsImpl.retryAfter("soon", 0L).isPresent());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.base.Optional;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RetryingCouchFunctionsTest {
+
+    @Mock private CouchFunctions delegate;
+    @Mock private AsyncCouchFunctions asyncDelegate;
+    @Mock private Log log;
+
+    private final List<Long> delays = new ArrayList<Long>();
+
+    @Test
+    public void shouldRetryUntilTheRequestSucceeds() throws IOException {
+        when(delegate.headRevision("database", "_design/Demo"))
+            .thenThrow(new CouchDatabaseException(503, "Service Unavailable"))
+            .thenThrow(new SocketTimeoutException("Read timed out"))
+            .thenReturn(Optional.of("1-abc"));
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(3);
+
+        assertThat(couch.headRevision("database", "_design/Demo"), is(equalTo(Optional.of("1-abc"))));
+
+        verify(delegate, times(3)).headRevision("database", "_design/Demo");
+        assertThat(delays.size(), is(2));
+        assertThat(couch.getRetryCount(), is(2));
+        assertThat(couch.getRecoveredCount(), is(1));
+    }
+
+    @Test
+    public void shouldReportTheFailureAfterMaxRetries() throws IOException {
+        final CouchDatabaseException failure = new CouchDatabaseException(503, "Service Unavailable");
+        when(delegate.isExistentDatabase("database")).thenThrow(failure);
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(2);
+
+        try {
+            couch.isExistentDatabase("database");
+            fail("The last failure should have been thrown.");
+        } catch (CouchDatabaseException e) {
+            assertThat(e, is(failure));
+        }
+        verify(delegate, times(3)).isExistentDatabase("database");
+        assertThat(couch.getRetryCount(), is(2));
+        assertThat(couch.getRecoveredCount(), is(0));
+    }
+
+    @Test
+    public void shouldNotRetryUploadThatMayHaveBeenApplied() throws IOException {
+        final LocalDocument localDoc = new LocalDocument("{ \"_id\": \"_design/Demo\" }");
+        when(delegate.upload("database", localDoc)).thenThrow(new SocketTimeoutException("Read timed out"));
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(3);
+
+        try {
+            couch.upload("database", localDoc);
+            fail("The failure should have been thrown.");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        verify(delegate, times(1)).upload("database", localDoc);
+        assertThat(couch.getRetryCount(), is(0));
+    }
+
+    @Test
+    public void shouldWaitAsLongAsTheServerAsks() throws IOException {
+        when(delegate.bulkUpload("database", new ArrayList<LocalDocument>()))
+            .thenThrow(new CouchDatabaseException(429, "Too Many Requests", Optional.of(800L)))
+            .thenReturn(new ArrayList<BulkResult>());
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(3);
+
+        couch.bulkUpload("database", new ArrayList<LocalDocument>());
+
+        assertThat(delays.get(0), is(800L));
+    }
+
+    @Test
+    public void shouldNotWaitLongerThanMaxBackoff() throws IOException {
+        final CouchDatabaseException failure = new CouchDatabaseException(429, "Too Many Requests", Optional.of(20000L));
+        when(delegate.bulkUpload("database", new ArrayList<LocalDocument>())).thenThrow(failure);
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(3);
+
+        try {
+            couch.bulkUpload("database", new ArrayList<LocalDocument>());
+            fail("The failure should have been thrown.");
+        } catch (CouchDatabaseException e) {
+            assertThat(e, is(failure));
+        }
+        assertThat(delays.size(), is(0));
+    }
+
+    @Test
+    public void shouldReportRetriesToTheCallersProgress() throws IOException {
+        when(delegate.isExistentDatabase("database"))
+            .thenThrow(new CouchDatabaseException(503, "Service Unavailable"))
+            .thenReturn(true);
+        final RetryingCouchFunctions couch = new RetryingCouchFunctions(delegate, new RetryPolicy(1, 1, 1), new Progress(true, log));
+        final Progress buffered = new Progress(true, log).buffered();
+
+        RetryingCouchFunctions.reportingTo(couch, buffered).isExistentDatabase("database");
+
+        verify(log, never()).warn(anyString());
+        buffered.flush();
+        verify(log).warn(startsWith("HEAD /database failed"));
+        assertThat(couch.getRetryCount(), is(1));
+        assertThat(couch.getRecoveredCount(), is(1));
+    }
+
+    @Test
+    public void shouldNotRetryAFailedHandler() throws IOException {
+        final IOException failure = new IOException("Disk full");
+        when(delegate.streamDocuments(eq("database"), eq(false), any(DocumentHandler.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws IOException {
+                ((DocumentHandler) invocation.getArguments()[2]).handle(new ObjectMapper().createObjectNode());
+                return 1;
+            }
+        });
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(2);
+
+        try {
+            couch.streamDocuments("database", false, new DocumentHandler() {
+                @Override
+                public void handle(ObjectNode document) throws IOException {
+                    throw failure;
+                }
+            });
+            fail("The failure of the handler should have been thrown.");
+        } catch (IOException e) {
+            assertThat(e, is(failure));
+        }
+        verify(delegate, times(1)).streamDocuments(eq("database"), eq(false), any(DocumentHandler.class));
+        assertThat(couch.getRetryCount(), is(0));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRetryAsyncRequests() throws Exception {
+        when(asyncDelegate.headRevision("database", "_design/Demo"))
+            .thenReturn(CompletableFuture.<Optional<String>>failedFuture(new CouchDatabaseException(503, "Service Unavailable")))
+            .thenReturn(CompletableFuture.completedFuture(Optional.of("1-abc")));
+        final RetryingCouchFunctions couch = new RetryingCouchFunctions(delegate, new RetryPolicy(3, 1, 10), new Progress(true, log));
+
+        assertThat(couch.async(asyncDelegate).headRevision("database", "_design/Demo").get(), is(equalTo(Optional.of("1-abc"))));
+
+        verify(asyncDelegate, times(2)).headRevision("database", "_design/Demo");
+        assertThat(couch.getRetryCount(), is(1));
+        assertThat(couch.getRecoveredCount(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldNotRetryAsyncUploads() throws Exception {
+        final LocalDocument localDoc = new LocalDocument("{ \"_id\": \"_design/Demo\" }");
+        final SocketTimeoutException failure = new SocketTimeoutException("Read timed out");
+        when(asyncDelegate.upload("database", localDoc)).thenReturn(CompletableFuture.<String>failedFuture(failure));
+        final RetryingCouchFunctions couch = newRetryingCouchFunctions(3);
+
+        try {
+            couch.async(asyncDelegate).upload("database", localDoc).get();
+            fail("The failure should have been passed on.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is((Throwable) failure));
+        }
+        verify(asyncDelegate, times(1)).upload("database", localDoc);
+    }
+
+    @Test
+    public void shouldLeaveOtherCouchFunctionsAlone() {
+        assertThat(RetryingCouchFunctions.reportingTo(delegate, new Progress(true, log)), is(delegate));
+    }
+
+    private RetryingCouchFunctions newRetryingCouchFunctions(int maxRetries) {
+        return new RetryingCouchFunctions(delegate, new RetryPolicy(maxRetries, 100, 1000), new Progress(true, log)) {
+            @Override
+            void sleep(long millis) {
+                delays.add(millis);
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ScanCacheTest {
+
+    private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3600 * 1000L;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReuseDigestsOfUnchangedFilesAcrossRuns() throws IOException {
+        final File cacheFile = new File(temporaryFolder.getRoot(), "target/scancache.json");
+        final File file = file("doc.json", "{ \"_id\": \"doc\" }", AN_HOUR_AGO);
+
+        final ScanCache first = ScanCache.load(cacheFile);
+        assertFalse(first.isUnchanged(file));
+        final String digest = first.digest(file, "SHA-256");
+        assertThat(digest, is(equalTo(new LocalDocument(file).getContentHash())));
+        first.save();
+
+        final ScanCache second = ScanCache.load(cacheFile);
+        assertTrue(second.isUnchanged(file));
+        assertThat(second.digest(file, "SHA-256"), is(equalTo(digest)));
+        assertThat(second.getHitCount(), is(1));
+        assertThat(second.getMissCount(), is(0));
+    }
+
+    @Test
+    public void shouldNotReadUnchangedFiles() throws IOException {
+        final File file = file("doc.json", "{ \"_id\": \"doc\" }", AN_HOUR_AGO);
+        final ScanCache cache = ScanCache.empty(new File(temporaryFolder.getRoot(), "scancache.json"));
+        final String digest = cache.digest(file, "SHA-256");
+
+        // Same length and timestamp, different content: the cache can't tell, and doesn't look.
+        Files.write("{ \"_id\": \"DOC\" }", file, Charsets.UTF_8);
+        assertTrue(file.setLastModified(AN_HOUR_AGO));
+        assertThat(cache.digest(file, "SHA-256"), is(equalTo(digest)));
+    }
+
+    @Test
+    public void shouldNoticeChangedFiles() throws IOException {
+        final File file = file("doc.json", "{ \"_id\": \"doc\" }", AN_HOUR_AGO);
+        final ScanCache cache = ScanCache.empty(new File(temporaryFolder.getRoot(), "scancache.json"));
+        final String digest = cache.digest(file, "SHA-256");
+
+        Files.write("{ \"_id\": \"doc\", \"changed\": true }", file, Charsets.UTF_8);
+        assertTrue(file.setLastModified(AN_HOUR_AGO + 1000L));
+        assertThat(cache.digest(file, "SHA-256"), is(not(equalTo(digest))));
+        assertThat(cache.getMissCount(), is(2));
+    }
+
+    @Test
+    public void shouldKeepAlgorithmsApart() throws IOException {
+        final File file = file("lib.js", "var x = 1;", AN_HOUR_AGO);
+        final ScanCache cache = ScanCache.empty(new File(temporaryFolder.getRoot(), "scancache.json"));
+        assertTrue(cache.digest(file, "SHA-256").startsWith("sha256-"));
+        assertThat(cache.digest(file, "MD5"), is(equalTo(LocalAttachment.read("lib.js", file).getDigest())));
+    }
+
+    @Test
+    public void shouldNotRecordRecentlyModifiedFiles() throws IOException {
+        final File cacheFile = new File(temporaryFolder.getRoot(), "scancache.json");
+        final File file = file("doc.json", "{ \"_id\": \"doc\" }", System.currentTimeMillis());
+        final ScanCache first = ScanCache.empty(cacheFile);
+        first.digest(file, "SHA-256");
+        first.save();
+
+        assertFalse(ScanCache.load(cacheFile).isUnchanged(file));
+    }
+
+    @Test
+    public void shouldDropFilesNotDigestedByThisRun() throws IOException {
+        final File cacheFile = new File(temporaryFolder.getRoot(), "scancache.json");
+        final File kept = file("kept.json", "{ \"_id\": \"kept\" }", AN_HOUR_AGO);
+        final File dropped = file("dropped.json", "{ \"_id\": \"dropped\" }", AN_HOUR_AGO);
+        final ScanCache first = ScanCache.empty(cacheFile);
+        first.digest(kept, "SHA-256");
+        first.digest(dropped, "SHA-256");
+        first.save();
+
+        final ScanCache second = ScanCache.load(cacheFile);
+        second.digest(kept, "SHA-256");
+        second.save();
+
+        final ScanCache third = ScanCache.load(cacheFile);
+        assertTrue(third.isUnchanged(kept));
+        assertFalse(third.isUnchanged(dropped));
+    }
+
+    private File file(String name, String content, long lastModified) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), name);
+        Files.write(content, file, Charsets.UTF_8);
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ServerManifestTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Mock private CouchFunctions couchFunctions;
+
+    @Test
+    public void shouldStartEmptyAndSaveRecordedDocuments() throws IOException {
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME)).thenReturn(Optional.<ObjectNode>absent());
+        final LocalDocument document = document("{ \"_id\": \"doc\" }");
+
+        final ServerManifest manifest = ServerManifest.load(couchFunctions, "database");
+        assertFalse(manifest.isUnchanged(document));
+        manifest.record(document, "1-abc");
+        manifest.save(couchFunctions);
+
+        final ArgumentCaptor<ObjectNode> saved = ArgumentCaptor.forClass(ObjectNode.class);
+        verify(couchFunctions).uploadLocal(eq("database"), eq(ServerManifest.NAME), saved.capture());
+        assertTrue(saved.getValue().path("_rev").isMissingNode());
+        assertThat(saved.getValue().path("documents").path("doc").path("rev").getTextValue(), is(equalTo("1-abc")));
+        assertTrue(manifest.isUnchanged(document));
+    }
+
+    @Test
+    public void shouldNotSaveIfNothingWasRecorded() throws IOException {
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME)).thenReturn(Optional.<ObjectNode>absent());
+
+        ServerManifest.load(couchFunctions, "database").save(couchFunctions);
+
+        verify(couchFunctions, never()).uploadLocal(eq("database"), eq(ServerManifest.NAME), any(ObjectNode.class));
+    }
+
+    @Test
+    public void shouldMergeIntoNewerVersionOnConflict() throws IOException {
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME))
+                .thenReturn(Optional.of(manifest("0-1", "other", "1-xyz")))
+                .thenReturn(Optional.of(manifest("0-2", "another", "4-uvw")));
+        when(couchFunctions.uploadLocal(eq("database"), eq(ServerManifest.NAME), any(ObjectNode.class)))
+                .thenThrow(new CouchDatabaseException(409, "Conflict"))
+                .thenReturn("0-3");
+        final LocalDocument document = document("{ \"_id\": \"doc\" }");
+
+        final ServerManifest manifest = ServerManifest.load(couchFunctions, "database");
+        manifest.record(document, "1-abc");
+        manifest.save(couchFunctions);
+
+        final ArgumentCaptor<ObjectNode> saved = ArgumentCaptor.forClass(ObjectNode.class);
+        verify(couchFunctions, times(2)).uploadLocal(eq("database"), eq(ServerManifest.NAME), saved.capture());
+        final List<ObjectNode> attempts = saved.getAllValues();
+        final ObjectNode retry = attempts.get(attempts.size() - 1);
+        assertThat(retry.path("_rev").getTextValue(), is(equalTo("0-2")));
+        assertThat(retry.path("documents").path("another").path("rev").getTextValue(), is(equalTo("4-uvw")));
+        assertThat(retry.path("documents").path("doc").path("rev").getTextValue(), is(equalTo("1-abc")));
+        assertTrue(retry.path("documents").path("other").isMissingNode());
+    }
+
+    @Test
+    public void shouldDropEntriesNoBuildHasSeenForALongTime() throws IOException {
+        final long now = 100L * ServerManifest.STALE_AFTER_MILLIS;
+        final ObjectNode existing = manifest("0-1", "gone", "1-xyz");
+        ((ObjectNode) existing.path("documents").path("gone")).put("seen", now - ServerManifest.STALE_AFTER_MILLIS - 1);
+        final ObjectNode kept = existing.with("documents").putObject("kept");
+        kept.put("hash", "sha256-other");
+        kept.put("rev", "2-def");
+        kept.put("seen", now - 1000L);
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME)).thenReturn(Optional.of(existing));
+
+        final ServerManifest manifest = ServerManifest.load(couchFunctions, "database", now);
+        manifest.record(document("{ \"_id\": \"doc\" }"), "1-abc");
+        manifest.save(couchFunctions);
+
+        final ObjectNode saved = savedManifest();
+        assertTrue(saved.path("documents").path("gone").isMissingNode());
+        assertThat(saved.path("documents").path("kept").path("seen").getLongValue(), is(now - 1000L));
+        assertThat(saved.path("documents").path("doc").path("seen").getLongValue(), is(now));
+    }
+
+    @Test
+    public void shouldRefreshTheLastSeenTimeOfUnchangedDocumentsOncePerDay() throws IOException {
+        final long now = 100L * ServerManifest.STALE_AFTER_MILLIS;
+        final LocalDocument document = document("{ \"_id\": \"doc\" }");
+        final ObjectNode existing = JsonNodeFactory.instance.objectNode();
+        existing.put("_rev", "0-1");
+        final ObjectNode entry = existing.putObject("documents").putObject("doc");
+        entry.put("hash", document.getContentHash());
+        entry.put("rev", "1-abc");
+        entry.put("seen", now - 1000L);
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME)).thenReturn(Optional.of(existing));
+
+        final ServerManifest recent = ServerManifest.load(couchFunctions, "database", now);
+        assertTrue(recent.isUnchanged(document));
+        recent.save(couchFunctions);
+        verify(couchFunctions, never()).uploadLocal(eq("database"), eq(ServerManifest.NAME), any(ObjectNode.class));
+
+        final long tomorrow = now + ServerManifest.REFRESH_AFTER_MILLIS;
+        final ServerManifest later = ServerManifest.load(couchFunctions, "database", tomorrow);
+        assertTrue(later.isUnchanged(document));
+        later.save(couchFunctions);
+        assertThat(savedManifest().path("documents").path("doc").path("seen").getLongValue(), is(tomorrow));
+    }
+
+    @Test
+    public void shouldDropTheLeastRecentlySeenEntriesWhenTheManifestGetsTooLarge() throws IOException {
+        final long now = 100L * ServerManifest.STALE_AFTER_MILLIS;
+        final ObjectNode existing = JsonNodeFactory.instance.objectNode();
+        existing.put("_rev", "0-1");
+        final ObjectNode documents = existing.putObject("documents");
+        for (int i = 0; i < 20000; i++) {
+            final ObjectNode entry = documents.putObject("document-" + i);
+            entry.put("hash", "sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=");
+            entry.put("rev", "1-967a00dff5e02add41819138abb3284d");
+            entry.put("seen", now - 20000L + i);
+        }
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME)).thenReturn(Optional.of(existing));
+
+        final ServerManifest manifest = ServerManifest.load(couchFunctions, "database", now);
+        manifest.record(document("{ \"_id\": \"doc\" }"), "1-abc");
+        manifest.save(couchFunctions);
+
+        final ObjectNode saved = savedManifest();
+        assertTrue(saved.toString().getBytes(Charsets.UTF_8).length <= ServerManifest.MAX_SIZE_BYTES);
+        assertTrue(saved.path("documents").path("document-0").isMissingNode());
+        assertFalse(saved.path("documents").path("document-19999").isMissingNode());
+        assertFalse(saved.path("documents").path("doc").isMissingNode());
+        assertFalse(manifest.getRevision("document-0").isPresent());
+    }
+
+    private ObjectNode savedManifest() throws IOException {
+        final ArgumentCaptor<ObjectNode> saved = ArgumentCaptor.forClass(ObjectNode.class);
+        verify(couchFunctions).uploadLocal(eq("database"), eq(ServerManifest.NAME), saved.capture());
+        return saved.getValue();
+    }
+
+    private static ObjectNode manifest(String rev, String id, String documentRev) {
+        final ObjectNode manifest = JsonNodeFactory.instance.objectNode();
+        manifest.put("_rev", rev);
+        final ObjectNode entry = manifest.putObject("documents").putObject(id);
+        entry.put("hash", "sha256-whatever");
+        entry.put("rev", documentRev);
+        return manifest;
+    }
+
+    private LocalDocument document(String json) throws IOException {
+        final File file = temporaryFolder.newFile();
+        Files.write(json, file, Charsets.UTF_8);
+        final LocalDocument document = new LocalDocument(file);
+        document.load();
+        return document;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void shouldAllowABurstOfOneSecond() {
+        final TokenBucket bucket = new TokenBucket(10, 0L);
+        for (int i = 0; i < 10; i++) {
+            assertThat(bucket.reserve(1, 0L), is(0L));
+        }
+        assertThat(bucket.reserve(1, 0L), is(SECOND / 10));
+    }
+
+    @Test
+    public void shouldQueueCallersBehindTheDebt() {
+        final TokenBucket bucket = new TokenBucket(10, 0L);
+        bucket.reserve(10, 0L);
+
+        assertThat(bucket.reserve(1, 0L), is(SECOND / 10));
+        assertThat(bucket.reserve(1, 0L), is(2 * SECOND / 10));
+    }
+
+    @Test
+    public void shouldRefillAtTheRate() {
+        final TokenBucket bucket = new TokenBucket(10, 0L);
+        bucket.reserve(10, 0L);
+
+        assertThat(bucket.reserve(5, SECOND / 2), is(0L));
+        assertThat(bucket.reserve(1, SECOND / 2), is(SECOND / 10));
+    }
+
+    @Test
+    public void shouldNotRefillBeyondOneSecond() {
+        final TokenBucket bucket = new TokenBucket(10, 0L);
+
+        assertThat(bucket.reserve(10, 60 * SECOND), is(0L));
+        assertThat(bucket.reserve(1, 60 * SECOND), is(SECOND / 10));
+    }
+
+    @Test
+    public void shouldLendTokensBeyondTheCapacity() {
+        final TokenBucket bucket = new TokenBucket(1000, 0L);
+
+        assertThat(bucket.reserve(3000, 0L), is(2 * SECOND));
+    }
+}
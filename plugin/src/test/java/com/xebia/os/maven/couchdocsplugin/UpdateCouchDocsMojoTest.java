@@ -77,17 +77,7 @@ public class UpdateCouchDocsMojoTest {
     public void runMojo() throws IOException, MojoExecutionException {
         assumeNotNull(System.getenv("COUCHDB_INTEGRATION_TESTS"));
         final URL couchUrl = new URL(COUCH_URL);
-        final UpdateCouchDocsMojo mojo = new UpdateCouchDocsMojo();
-        mojo.setBaseDir(temporaryFolder.getRoot());
-        mojo.setCouchUrl(couchUrl);
-        mojo.setExcludes(new String[] { "**/ignored.js" });
-        mojo.setIncludes(new String[] { "**/*.js" });
-        mojo.setExistingDocs(Config.ExistingDocs.UPDATE.name());
-        mojo.setFailOnError(true);
-        mojo.setLog(log);
-        mojo.setSkip(false);
-        mojo.setPluginContext(pluginContext);
-        mojo.setUnknownDatabases(Config.UnknownDatabases.CREATE.name());
+        final UpdateCouchDocsMojo mojo = newMojo(couchUrl);
 
         mojo.execute();
 
@@ -103,6 +93,39 @@ public class UpdateCouchDocsMojoTest {
         assertTrue("Database 3 document should have been uploaded.", database3design.isPresent());
     }
 
+    private UpdateCouchDocsMojo newMojo(URL couchUrl) {
+        final UpdateCouchDocsMojo mojo = new UpdateCouchDocsMojo();
+        mojo.setBaseDir(temporaryFolder.getRoot());
+        mojo.setCouchUrl(couchUrl);
+        mojo.setExcludes(new String[] { "**/ignored.js" });
+        mojo.setIncludes(new String[] { "**/*.js" });
+        mojo.setExistingDocs(Config.ExistingDocs.UPDATE.name());
+        mojo.setBatchSize(100);
+        mojo.setDatabaseParallelism(2);
+        mojo.setExecution(Config.Execution.SERIAL.name());
+        mojo.setMaxConnections(5);
+        mojo.setAdaptiveConcurrency(false);
+        mojo.setConnectTimeout(30);
+        mojo.setReadTimeout(120);
+        mojo.setBulkReadTimeout(300);
+        mojo.setMaxRetries(3);
+        mojo.setRetryBackoff(500);
+        mojo.setRequestsPerSecond(0);
+        mojo.setBytesPerSecond(0);
+        mojo.setDatabaseRequestsPerSecond(0);
+        mojo.setDatabaseBytesPerSecond(0);
+        mojo.setCompressRequests(false);
+        mojo.setCompressionThreshold(1024);
+        mojo.setIncremental(false);
+        mojo.setServerManifest(false);
+        mojo.setScanCache(false);
+        mojo.setFailOnError(true);
+        mojo.setLog(log);
+        mojo.setSkip(false);
+        mojo.setPluginContext(pluginContext);
+        mojo.setUnknownDatabases(Config.UnknownDatabases.CREATE.name());
+        return mojo;
+    }
 
     private File newTempFile(final String source, final String database, final String name)
             throws IOException, FileNotFoundException {
@@ -15,15 +15,26 @@
 */
 package com.xebia.os.maven.couchdocsplugin;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -31,21 +42,35 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.maven.plugin.logging.Log;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.plexus.util.IOUtil;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.Files;
 import com.xebia.os.maven.couchdocsplugin.Config;
 import com.xebia.os.maven.couchdocsplugin.CouchFunctions;
 import com.xebia.os.maven.couchdocsplugin.LocalDocument;
@@ -53,6 +78,7 @@ import com.xebia.os.maven.couchdocsplugin.Progress;
 import com.xebia.os.maven.couchdocsplugin.RemoteDocument;
 import com.xebia.os.maven.couchdocsplugin.UpdateCouchDocs;
 import com.xebia.os.maven.couchdocsplugin.Config.ExistingDocs;
+import com.xebia.os.maven.couchdocsplugin.Config.Execution;
 import com.xebia.os.maven.couchdocsplugin.Config.UnknownDatabases;
 
 
@@ -61,7 +87,9 @@ public class UpdateCouchDocsTest {
 
     @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
     @Mock private CouchFunctions couchFunctions;
+    @Mock private AsyncCouchFunctions asyncCouchFunctions;
     @Mock private Log log;
+    @Mock private Runnable prewarm;
 
     @Test
     public void shouldUploadNewFileToNewDatabase() throws FileNotFoundException, IOException {
@@ -73,14 +101,14 @@ public class UpdateCouchDocsTest {
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
         when(couchFunctions.isExistentDatabase("database")).thenReturn(false);
-        when(couchFunctions.download("database", "_design/Demo"))
-            .thenReturn(Optional.<RemoteDocument>absent());
+        when(couchFunctions.headRevision("database", "_design/Demo"))
+            .thenReturn(Optional.<String>absent());
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
         verify(couchFunctions).isExistentDatabase("database");
         verify(couchFunctions).createDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         assertFalse(localDoc.getRev().isPresent());
         verify(couchFunctions).upload("database", localDoc);
         verifyNoMoreInteractions(couchFunctions);
@@ -95,15 +123,13 @@ public class UpdateCouchDocsTest {
         final LocalDocument localDoc = new LocalDocument(docFile);
         ListMultimap<String, LocalDocument> docs = ImmutableListMultimap.of("database2", localDoc, "database", localDoc);
 
-        when(couchFunctions.isExistentDatabase("database2")).thenReturn(false);
-        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.<RemoteDocument>absent());
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("database"));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(Optional.<String>absent());
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
-        verify(couchFunctions).isExistentDatabase("database2");
-        verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).findExistingDatabases(docs.keySet());
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         assertFalse(localDoc.getRev().isPresent());
         verify(couchFunctions).upload("database", localDoc);
         verifyNoMoreInteractions(couchFunctions);
@@ -118,16 +144,14 @@ public class UpdateCouchDocsTest {
         final LocalDocument localDoc = new LocalDocument(docFile);
         ListMultimap<String, LocalDocument> docs = ImmutableListMultimap.of("database2", localDoc, "database", localDoc);
 
-        when(couchFunctions.isExistentDatabase("database2")).thenReturn(false);
-        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.<RemoteDocument>absent());
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("database"));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(Optional.<String>absent());
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
         verify(log).error(endsWith("Database \"database2\" does not exist."));
-        verify(couchFunctions).isExistentDatabase("database2");
-        verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).findExistingDatabases(docs.keySet());
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         assertFalse(localDoc.getRev().isPresent());
         verify(couchFunctions).upload("database", localDoc);
         verifyNoMoreInteractions(couchFunctions);
@@ -166,19 +190,19 @@ public class UpdateCouchDocsTest {
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
         when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(remoteDoc.getRev());
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
         verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         assertThat(localDoc.getRev().get(), is(equalTo(remoteDoc.getRev().get())));
         verify(couchFunctions).upload("database", localDoc);
         verifyNoMoreInteractions(couchFunctions);
     }
 
     @Test
-    public void shouldDeleteExistingCopyIfDocumentExists() throws FileNotFoundException, IOException {
+    public void shouldReplaceExistingCopyIfDocumentExists() throws FileNotFoundException, IOException {
         final Config config = new Config(ExistingDocs.REPLACE, UnknownDatabases.FAIL);
         final Progress progress = new Progress(true, log);
 
@@ -187,15 +211,41 @@ public class UpdateCouchDocsTest {
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
         when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(remoteDoc.getRev());
+        when(couchFunctions.bulkReplace("database", Collections.singletonList(localDoc)))
+            .thenReturn(Arrays.asList(okResult("_design/Demo")));
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
         verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
-        verify(couchFunctions).delete("database", remoteDoc);
+        verify(couchFunctions).headRevision("database", "_design/Demo");
+        verify(couchFunctions).bulkReplace("database", Collections.singletonList(localDoc));
         assertFalse(localDoc.getRev().isPresent());
-        verify(couchFunctions).upload("database", localDoc);
+        assertEquals(remoteDoc.getRev(), localDoc.getReplacedRev());
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldReplaceExistingCopiesInBulk() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.REPLACE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final RemoteDocument remoteDoc = new RemoteDocument(read("/remote_design_doc.js"));
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.findRevisions("database", Arrays.asList("_design/Demo")))
+            .thenReturn(Collections.singletonMap("_design/Demo", remoteDoc.getRev().get()));
+        when(couchFunctions.bulkReplace("database", Collections.singletonList(localDoc)))
+            .thenReturn(Arrays.asList(okResult("_design/Demo")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).findRevisions("database", Arrays.asList("_design/Demo"));
+        verify(couchFunctions).bulkReplace("database", Collections.singletonList(localDoc));
+        assertEquals(remoteDoc.getRev(), localDoc.getReplacedRev());
         verifyNoMoreInteractions(couchFunctions);
     }
 
@@ -208,6 +258,25 @@ public class UpdateCouchDocsTest {
         final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(remoteDoc.getRev());
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).headRevision("database", "_design/Demo");
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldSkipUploadIfDocumentIsUnchanged() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE_IF_CHANGED, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final RemoteDocument remoteDoc = new RemoteDocument(read("/remote_design_doc.js"));
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
         when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
         when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
 
@@ -215,9 +284,231 @@ public class UpdateCouchDocsTest {
 
         verify(couchFunctions).isExistentDatabase("database");
         verify(couchFunctions).download("database", "_design/Demo");
+        verify(log).info(endsWith("Skipped 1 unchanged document(s)."));
         verifyNoMoreInteractions(couchFunctions);
     }
 
+    @Test
+    public void shouldUpdateRevIfDocumentHasChanged() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE_IF_CHANGED, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final RemoteDocument remoteDoc = new RemoteDocument("{ \"_id\": \"_design/Demo\", \"_rev\": \"1-abc\", \"language\": \"erlang\" }".getBytes("UTF-8"));
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).download("database", "_design/Demo");
+        assertThat(localDoc.getRev().get(), is(equalTo("1-abc")));
+        verify(couchFunctions).upload("database", localDoc);
+        verify(log).info(endsWith("Skipped 0 unchanged document(s)."));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldCompareDocumentsInBulk() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE_IF_CHANGED, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final RemoteDocument remoteDoc = new RemoteDocument(read("/remote_design_doc.js"));
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.findDocuments("database", Arrays.asList("_design/Demo")))
+                .thenReturn(Collections.singletonMap("_design/Demo", remoteDoc));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).findDocuments("database", Arrays.asList("_design/Demo"));
+        verify(log).info(endsWith("Skipped 1 unchanged document(s)."));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldSkipFilesUnchangedSinceLastDeploy() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final File docFile = newTempFile("/design_doc.js");
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(docFile), "1-abc");
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", new LocalDocument(docFile));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs, Optional.of(manifest)).execute();
+
+        verifyZeroInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldNotContactServerWhenNoDatabaseChanged() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final File docFile = newTempFile("/design_doc.js");
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(docFile), "1-abc");
+        manifest.record("database2", loaded(docFile), "1-abc");
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", new LocalDocument(docFile),
+                "database2", new LocalDocument(docFile));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, Optional.<AsyncCouchFunctions>absent(), docs,
+                Optional.of(manifest), prewarm).execute();
+
+        verifyZeroInteractions(prewarm);
+        verifyZeroInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldOnlyResolveDatabasesWithChanges() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final File docFile = newTempFile("/design_doc.js");
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(docFile), "1-abc");
+        final LocalDocument changedDoc = new LocalDocument(docFile);
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", new LocalDocument(docFile),
+                "database2", changedDoc);
+
+        when(couchFunctions.isExistentDatabase("database2")).thenReturn(true);
+        when(couchFunctions.headRevision("database2", "_design/Demo")).thenReturn(Optional.<String>absent());
+        when(couchFunctions.upload("database2", changedDoc)).thenReturn("1-def");
+
+        new UpdateCouchDocs(config, progress, couchFunctions, Optional.<AsyncCouchFunctions>absent(), docs,
+                Optional.of(manifest), prewarm).execute();
+
+        verify(prewarm).run();
+        verify(couchFunctions).isExistentDatabase("database2");
+        verify(couchFunctions).headRevision("database2", "_design/Demo");
+        verify(couchFunctions).upload("database2", changedDoc);
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldUploadChangedFileOnRecordedRevision() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(newTempFile("/remote_design_doc.js")), "1-abc");
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.upload("database", localDoc)).thenReturn("2-def");
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs, Optional.of(manifest)).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        assertThat(localDoc.getRev().get(), is(equalTo("1-abc")));
+        verify(couchFunctions).upload("database", localDoc);
+        verifyNoMoreInteractions(couchFunctions);
+        assertThat(manifest.getRevision("database", "_design/Demo"), is(equalTo(Optional.of("2-def"))));
+        assertTrue(manifest.isUnchanged("database", localDoc));
+    }
+
+    @Test
+    public void shouldLookUpDocumentIfRecordedRevisionIsOutdated() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(newTempFile("/remote_design_doc.js")), "1-abc");
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.upload("database", localDoc))
+                .thenThrow(new CouchDatabaseException(409, "Conflict"))
+                .thenReturn("3-ghi");
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(Optional.of("2-xyz"));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs, Optional.of(manifest)).execute();
+
+        verify(couchFunctions).headRevision("database", "_design/Demo");
+        assertThat(localDoc.getRev().get(), is(equalTo("2-xyz")));
+        verify(couchFunctions, times(2)).upload("database", localDoc);
+        assertThat(manifest.getRevision("database", "_design/Demo"), is(equalTo(Optional.of("3-ghi"))));
+    }
+
+    @Test
+    public void shouldLookUpBulkDocumentsIfRecordedRevisionIsOutdated() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final DeployManifest manifest = newManifest();
+        manifest.record("database", loaded(newTempFile("/remote_design_doc.js")), "1-abc");
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.bulkUpload("database", Arrays.asList(localDoc)))
+                .thenReturn(Arrays.asList(new BulkResult("_design/Demo", Optional.<String>absent(),
+                        Optional.of("conflict"), Optional.of("Document update conflict."))))
+                .thenReturn(Arrays.asList(okResult("_design/Demo")));
+        when(couchFunctions.findRevisions("database", Arrays.asList("_design/Demo")))
+                .thenReturn(Collections.singletonMap("_design/Demo", "2-xyz"));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs, Optional.of(manifest)).execute();
+
+        verify(couchFunctions).findRevisions("database", Arrays.asList("_design/Demo"));
+        verify(couchFunctions, times(2)).bulkUpload("database", Arrays.asList(localDoc));
+        assertThat(localDoc.getRev().get(), is(equalTo("2-xyz")));
+        verify(log, never()).error(anyString());
+    }
+
+    @Test
+    public void shouldSkipDocumentsListedAsUnchangedInServerManifest() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10, 1, Execution.SERIAL, 5, true);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME))
+                .thenReturn(Optional.of(serverManifest("_design/Demo", localDoc.getContentHash(), "1-abc")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).downloadLocal("database", ServerManifest.NAME);
+        verify(log).info(endsWith("Skipped 1 document(s) that the server manifest lists as unchanged."));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldRecordUploadsInServerManifest() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 1, 1, Execution.SERIAL, 5, true);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.downloadLocal("database", ServerManifest.NAME))
+                .thenReturn(Optional.of(serverManifest("_design/Demo", "sha256-outdated", "1-abc")));
+        when(couchFunctions.upload("database", localDoc)).thenReturn("2-def");
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        assertThat(localDoc.getRev().get(), is(equalTo("1-abc")));
+        verify(couchFunctions).upload("database", localDoc);
+        verify(couchFunctions, never()).headRevision(anyString(), anyString());
+        final ArgumentCaptor<ObjectNode> saved = ArgumentCaptor.forClass(ObjectNode.class);
+        verify(couchFunctions).uploadLocal(eq("database"), eq(ServerManifest.NAME), saved.capture());
+        assertThat(saved.getValue().path("_rev").getTextValue(), is(equalTo("0-1")));
+        assertThat(saved.getValue().path("documents").path("_design/Demo").path("rev").getTextValue(), is(equalTo("2-def")));
+        assertThat(saved.getValue().path("documents").path("_design/Demo").path("hash").getTextValue(), is(equalTo(localDoc.getContentHash())));
+    }
+
     @Test
     public void shouldFailBuildIfDocumentExists() throws FileNotFoundException, IOException {
         final Config config = new Config(ExistingDocs.FAIL, UnknownDatabases.FAIL);
@@ -228,7 +519,7 @@ public class UpdateCouchDocsTest {
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
         when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(remoteDoc.getRev());
 
         try {
             new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
@@ -239,7 +530,7 @@ public class UpdateCouchDocsTest {
 
         verify(log).error(endsWith("Document \"_design/Demo\" already exists in database \"database\""));
         verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         verifyNoMoreInteractions(couchFunctions);
     }
 
@@ -256,15 +547,396 @@ public class UpdateCouchDocsTest {
         Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
 
         when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
-        when(couchFunctions.download("database", "_design/Demo")).thenReturn(Optional.of(remoteDoc));
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(remoteDoc.getRev());
 
         new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
 
         verify(couchFunctions).isExistentDatabase("database");
-        verify(couchFunctions).download("database", "_design/Demo");
+        verify(couchFunctions).headRevision("database", "_design/Demo");
         verifyNoMoreInteractions(couchFunctions);
     }
 
+    @Test
+    public void shouldUploadInBulkIfBatchSizeIsAboveOne() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.bulkUpload("database", Collections.singletonList(localDoc)))
+            .thenReturn(Arrays.asList(okResult("_design/Demo")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).findRevisions("database", Arrays.asList("_design/Demo"));
+        verify(couchFunctions).bulkUpload("database", Collections.singletonList(localDoc));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldUploadDocumentsWithAttachmentsOutsideTheBulkRequest() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final File attachments = temporaryFolder.newFolder("attachments");
+        Files.write("hello", new File(attachments, "app.js"), Charsets.UTF_8);
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"), attachments);
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc1, "database", localDoc2);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.upload("database", localDoc1)).thenReturn("1-0123456789abcdef012345678");
+        when(couchFunctions.bulkUpload("database", Collections.singletonList(localDoc2)))
+            .thenReturn(Arrays.asList(okResult("_design/Demo")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).upload("database", localDoc1);
+        verify(couchFunctions).bulkUpload("database", Collections.singletonList(localDoc2));
+    }
+
+    @Test
+    public void shouldSplitBulkUploadsIntoBatches() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 2);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc1, "database", localDoc2, "database", localDoc3);
+        final List<LocalDocument> batch1 = Arrays.asList(localDoc1, localDoc2);
+        final List<LocalDocument> batch2 = Arrays.asList(localDoc3);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.bulkUpload("database", batch1)).thenReturn(Arrays.asList(okResult("_design/Demo"), okResult("_design/Demo")));
+        when(couchFunctions.bulkUpload("database", batch2)).thenReturn(Arrays.asList(okResult("_design/Demo")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).bulkUpload("database", batch1);
+        verify(couchFunctions).bulkUpload("database", batch2);
+        verify(couchFunctions, never()).upload("database", localDoc1);
+    }
+
+    @Test
+    public void shouldReportRejectedBulkDocumentsAsErrors() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+        final BulkResult conflict = new BulkResult("_design/Demo", Optional.<String>absent(),
+                Optional.of("conflict"), Optional.of("Document update conflict."));
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.bulkUpload("database", Collections.singletonList(localDoc))).thenReturn(Arrays.asList(conflict));
+
+        try {
+            new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+            fail();
+        } catch (RuntimeException e) {
+            assertNotNull(e);
+        }
+
+        verify(log).error(endsWith("conflict (Document update conflict.)"));
+    }
+
+    @Test
+    public void shouldMergeBulkLookedUpRevisionWithoutDownloading() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+        final String remoteRev = "1-0123456789abcdef012345678";
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.findRevisions("database", Arrays.asList("_design/Demo")))
+            .thenReturn(Collections.singletonMap("_design/Demo", remoteRev));
+        when(couchFunctions.bulkUpload("database", Collections.singletonList(localDoc)))
+            .thenReturn(Arrays.asList(okResult("_design/Demo")));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).findRevisions("database", Arrays.asList("_design/Demo"));
+        assertThat(localDoc.getRev().get(), is(equalTo(remoteRev)));
+        verify(couchFunctions).bulkUpload("database", Collections.singletonList(localDoc));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldKeepBulkLookedUpDocument() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.KEEP, UnknownDatabases.FAIL, 10);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.findRevisions("database", Arrays.asList("_design/Demo")))
+            .thenReturn(Collections.singletonMap("_design/Demo", "1-0123456789abcdef012345678"));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database");
+        verify(couchFunctions).findRevisions("database", Arrays.asList("_design/Demo"));
+        verifyNoMoreInteractions(couchFunctions);
+    }
+
+    @Test
+    public void shouldProcessDatabasesConcurrently() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 1, 4);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database1", localDoc1, "database2", localDoc2, "database3", localDoc3);
+
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(ImmutableSet.of("database1", "database2", "database3"));
+        when(couchFunctions.headRevision(anyString(), eq("_design/Demo"))).thenReturn(Optional.<String>absent());
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions, never()).isExistentDatabase(anyString());
+        verify(couchFunctions).upload("database1", localDoc1);
+        verify(couchFunctions).upload("database2", localDoc2);
+        verify(couchFunctions).upload("database3", localDoc3);
+    }
+
+    @Test
+    public void shouldCreateMissingDatabasesUpFront() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.CREATE);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database1", localDoc1, "database2", localDoc2, "database3", localDoc3);
+
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("database2"));
+        when(couchFunctions.headRevision(anyString(), eq("_design/Demo"))).thenReturn(Optional.<String>absent());
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).createDatabase("database1");
+        verify(couchFunctions).createDatabase("database3");
+        verify(couchFunctions, never()).createDatabase("database2");
+        verify(couchFunctions, never()).isExistentDatabase(anyString());
+        verify(couchFunctions).upload("database1", localDoc1);
+        verify(couchFunctions).upload("database2", localDoc2);
+        verify(couchFunctions).upload("database3", localDoc3);
+    }
+
+    @Test
+    public void shouldCheckDatabasesOneByOneIfTheyCannotBeListed() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database1", localDoc1, "database2", localDoc2);
+
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenThrow(new CouchDatabaseException(401, "Unauthorized"));
+        when(couchFunctions.isExistentDatabase(anyString())).thenReturn(true);
+        when(couchFunctions.headRevision(anyString(), eq("_design/Demo"))).thenReturn(Optional.<String>absent());
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).isExistentDatabase("database1");
+        verify(couchFunctions).isExistentDatabase("database2");
+        verify(couchFunctions).upload("database1", localDoc1);
+        verify(couchFunctions).upload("database2", localDoc2);
+    }
+
+    @Test
+    public void shouldFailIfAnyConcurrentDatabaseFails() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.FAIL, UnknownDatabases.FAIL, 1, 4);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database1", localDoc1, "database2", localDoc2);
+
+        when(couchFunctions.findExistingDatabases(docs.keySet())).thenReturn(Collections.singleton("database1"));
+        when(couchFunctions.headRevision(anyString(), eq("_design/Demo"))).thenReturn(Optional.<String>absent());
+
+        try {
+            new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+            fail();
+        } catch (RuntimeException e) {
+            assertNotNull(e);
+        }
+
+        verify(log).error(endsWith("Database \"database2\" does not exist."));
+    }
+
+    @Test
+    public void shouldUploadThroughPipeline() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 2, 1, Execution.PIPELINED);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc1, "database", localDoc2, "database", localDoc3);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.bulkUpload(eq("database"), anyListOf(LocalDocument.class))).thenAnswer(new Answer<List<BulkResult>>() {
+            @Override
+            public List<BulkResult> answer(InvocationOnMock invocation) {
+                final List<BulkResult> results = new ArrayList<BulkResult>();
+                for (Object ignored : (List<?>) invocation.getArguments()[1]) {
+                    results.add(okResult("_design/Demo"));
+                }
+                return results;
+            }
+        });
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        final ArgumentCaptor<List> uploaded = ArgumentCaptor.forClass(List.class);
+        verify(couchFunctions, atLeastOnce()).bulkUpload(eq("database"), uploaded.capture());
+        int count = 0;
+        for (List<?> batch : uploaded.getAllValues()) {
+            count += batch.size();
+        }
+        assertThat(count, is(3));
+    }
+
+    @Test
+    public void shouldFailPipelineOnRejectedDocument() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.FAIL, UnknownDatabases.FAIL, 1, 1, Execution.PIPELINED);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableMultimap.of("database", localDoc);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(new RemoteDocument(read("/remote_design_doc.js")).getRev());
+
+        try {
+            new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+            fail();
+        } catch (RuntimeException e) {
+            assertNotNull(e);
+        }
+
+        verify(log).error(endsWith("Document \"_design/Demo\" already exists in database \"database\""));
+        verify(couchFunctions, never()).upload("database", localDoc);
+    }
+
+    @Test
+    public void shouldUploadOnVirtualThreads() throws FileNotFoundException, IOException {
+        assumeTrue(VirtualThreads.isAvailable());
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 100, 1, Execution.VIRTUAL_THREADS, 2);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc1, "database", localDoc2, "database", localDoc3);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(couchFunctions.headRevision("database", "_design/Demo")).thenReturn(Optional.<String>absent());
+
+        new UpdateCouchDocs(config, progress, couchFunctions, docs).execute();
+
+        verify(couchFunctions).upload("database", localDoc1);
+        verify(couchFunctions).upload("database", localDoc2);
+        verify(couchFunctions).upload("database", localDoc3);
+        verify(couchFunctions, never()).bulkUpload(eq("database"), anyListOf(LocalDocument.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void virtualThreadsShouldRequireJava21() throws FileNotFoundException, IOException {
+        assumeTrue(!VirtualThreads.isAvailable());
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 1, 1, Execution.VIRTUAL_THREADS, 2);
+        new UpdateCouchDocs(config, new Progress(true, log), couchFunctions, ImmutableMultimap.<String, LocalDocument>of()).execute();
+    }
+
+    @Test
+    public void shouldUploadAsynchronously() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 100, 1, Execution.ASYNC, 2);
+        final Progress progress = new Progress(true, log);
+
+        final LocalDocument localDoc1 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc2 = new LocalDocument(newTempFile("/design_doc.js"));
+        final LocalDocument localDoc3 = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc1, "database", localDoc2, "database", localDoc3);
+
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(asyncCouchFunctions.headRevision("database", "_design/Demo"))
+                .thenReturn(CompletableFuture.completedFuture(Optional.of("1-0123456789abcdef012345678")));
+        when(asyncCouchFunctions.upload(eq("database"), any(LocalDocument.class)))
+                .thenReturn(CompletableFuture.completedFuture("2-0123456789abcdef012345678"));
+
+        new UpdateCouchDocs(config, progress, couchFunctions, Optional.of(asyncCouchFunctions), docs,
+                Optional.<DeployManifest>absent()).execute();
+
+        verify(asyncCouchFunctions).upload("database", localDoc1);
+        verify(asyncCouchFunctions).upload("database", localDoc2);
+        verify(asyncCouchFunctions).upload("database", localDoc3);
+        assertEquals("1-0123456789abcdef012345678", localDoc1.getRev().get());
+        verify(couchFunctions, never()).upload(eq("database"), any(LocalDocument.class));
+        verify(couchFunctions, never()).headRevision(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldReportFailedAsynchronousUpload() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 100, 1, Execution.ASYNC, 2);
+        final Progress progress = new Progress(false, log);
+
+        final LocalDocument localDoc = new LocalDocument(newTempFile("/design_doc.js"));
+        Multimap<String, LocalDocument> docs = ImmutableListMultimap.of("database", localDoc);
+
+        final CompletableFuture<String> failure = new CompletableFuture<String>();
+        failure.completeExceptionally(new IOException("Connection reset"));
+        when(couchFunctions.isExistentDatabase("database")).thenReturn(true);
+        when(asyncCouchFunctions.headRevision("database", "_design/Demo"))
+                .thenReturn(CompletableFuture.completedFuture(Optional.<String>absent()));
+        when(asyncCouchFunctions.upload("database", localDoc)).thenReturn(failure);
+
+        new UpdateCouchDocs(config, progress, couchFunctions, Optional.of(asyncCouchFunctions), docs,
+                Optional.<DeployManifest>absent()).execute();
+
+        verify(log).error(endsWith("Could not upload document " + localDoc + " to CouchDB"), any(IOException.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void asyncShouldRequireAsyncCouchFunctions() throws FileNotFoundException, IOException {
+        final Config config = new Config(ExistingDocs.UPDATE, UnknownDatabases.FAIL, 1, 1, Execution.ASYNC, 2);
+        new UpdateCouchDocs(config, new Progress(true, log), couchFunctions, ImmutableMultimap.<String, LocalDocument>of()).execute();
+    }
+
+    private static BulkResult okResult(String id) {
+        return new BulkResult(id, Optional.of("1-0123456789abcdef012345678"), Optional.<String>absent(), Optional.<String>absent());
+    }
+
+    private static ObjectNode serverManifest(String id, String hash, String rev) {
+        final ObjectNode manifest = JsonNodeFactory.instance.objectNode();
+        manifest.put("_id", "_local/" + ServerManifest.NAME);
+        manifest.put("_rev", "0-1");
+        final ObjectNode entry = manifest.putObject("documents").putObject(id);
+        entry.put("hash", hash);
+        entry.put("rev", rev);
+        return manifest;
+    }
+
+    private DeployManifest newManifest() throws IOException {
+        return DeployManifest.empty(new File(temporaryFolder.getRoot(), "manifest.json"), new URL("http://localhost:5984/"));
+    }
+
+    private static LocalDocument loaded(File file) throws IOException {
+        final LocalDocument localDocument = new LocalDocument(file);
+        localDocument.load();
+        return localDocument;
+    }
+
     private File newTempFile(final String source) throws IOException, FileNotFoundException {
         File result = temporaryFolder.newFile();
         final InputStream dummyData = UpdateCouchDocsTest.class.getResourceAsStream(source);
@@ -0,0 +1,71 @@
+/*
+   Copyright 2012 Xebia Nederland B.V.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.xebia.os.maven.couchdocsplugin;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+
+public class WatchCouchDocsMojoTest {
+
+    private final File baseDir = new File("src/main/couchdb");
+    private final LocalDocument app = new LocalDocument(new File(baseDir, "products/app.json"));
+    private final LocalDocument view = new LocalDocument(new File(baseDir, "products/view.js"));
+    private final LocalDocument design = new LocalDocument(new File(baseDir, "customers/emea/design.json"));
+    private final Multimap<String, LocalDocument> localDocuments = LinkedListMultimap.create();
+    {
+        localDocuments.put("products", app);
+        localDocuments.put("products", view);
+        localDocuments.put("customers/emea", design);
+    }
+
+    @Test
+    public void shouldSelectChangedDocuments() {
+        assertAffected(Collections.singleton(new File(baseDir, "products/view.js")), view);
+    }
+
+    @Test
+    public void shouldSelectDocumentsOfChangedAttachments() {
+        assertAffected(ImmutableSet.of(new File(baseDir, "products/app.attachments/js/app.js")), app);
+        assertAffected(ImmutableSet.of(new File(baseDir, "products/app.attachments")), app);
+    }
+
+    @Test
+    public void shouldSelectEverythingBelowChangedDirectories() {
+        assertAffected(ImmutableSet.of(new File(baseDir, "customers")), design);
+        assertAffected(ImmutableSet.of(baseDir), app, view, design);
+    }
+
+    @Test
+    public void shouldIgnoreUnrelatedChanges() {
+        assertAffected(ImmutableSet.of(new File(baseDir, "products/notes.txt"), new File(baseDir, "products/app")));
+    }
+
+    private void assertAffected(Set<File> changes, LocalDocument... expected) {
+        final Multimap<String, LocalDocument> affected = WatchCouchDocsMojo.affectedBy(changes, localDocuments);
+        assertThat(ImmutableSet.copyOf(affected.values()), is(equalTo(ImmutableSet.copyOf(expected))));
+    }
+}